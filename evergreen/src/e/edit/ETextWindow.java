@@ -20,6 +20,11 @@ public class ETextWindow extends EWindow implements Comparable<ETextWindow>, PTe
     // Used to update the watermark without creating and destroying an excessive number of threads.
     private static final ExecutorService WATERMARK_UPDATE_EXECUTOR = ThreadUtilities.newSingleThreadExecutor("Watermark Updater");
     
+    // Files at least this big are kept in a piece table; see PTextBuffer.setUsePieceTable.
+    private static final long PIECE_TABLE_FILE_SIZE = 16 * 1024 * 1024;
+    // Files at least this big are memory-mapped, and only decoded as they're looked at, until they're edited; see PTextBuffer.readFromMappedFile.
+    private static final long MAPPED_FILE_SIZE = 64 * 1024 * 1024;
+    
     private final String filename;
     private final File file;
     private final PTextArea textArea;
@@ -345,7 +350,13 @@ public class ETextWindow extends EWindow implements Comparable<ETextWindow>, PTe
     private void fillWithContent() {
         try {
             lastModifiedTime = file.lastModified();
-            textArea.getTextBuffer().readFromFile(file);
+            final long fileSize = file.length();
+            textArea.getTextBuffer().setUsePieceTable(fileSize >= PIECE_TABLE_FILE_SIZE);
+            if (fileSize >= MAPPED_FILE_SIZE) {
+                textArea.getTextBuffer().readFromMappedFile(file);
+            } else {
+                textArea.getTextBuffer().readFromFile(file);
+            }
             
             configureForGuessedFileType();
             updateWatermarkAndTitleBar();
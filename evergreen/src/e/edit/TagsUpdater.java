@@ -312,15 +312,17 @@ public class TagsUpdater {
                 if (textWindow.isDirty() || hasGTests()) {
                     temporaryFile = File.createTempFile("e.edit.TagsUpdater-", "");
                     temporaryFile.deleteOnExit();
+                    // Write a snapshot, so the user can carry on typing while we write.
+                    final PTextBuffer.Snapshot snapshot = getTextArea().getTextBuffer().getSnapshot();
                     if (hasGTests()) {
                         // Rewrite gtests in a way that ctags can understand, corresponding to
                         // the actual symbols the macros expand to.
-                        String content = getTextArea().getTextBuffer().toString();
+                        String content = snapshot.toString();
                         content = content.replaceAll("TEST_F\\((.*),\\s*(.*)\\)", "void $1::$2()");
                         content = content.replaceAll("TEST\\((.*),\\s*(.*)\\)", "void $1_$2_Test()");
                         StringUtilities.writeFile(temporaryFile, content);
                     } else {
-                    getTextArea().getTextBuffer().writeToFile(temporaryFile);
+                    snapshot.writeToFile(temporaryFile);
                 }
                 }
                 String charsetName = (String) getTextArea().getTextBuffer().getProperty(PTextBuffer.CHARSET_PROPERTY);
@@ -26,6 +26,8 @@ public class DebugMenu {
         menu.add(new ShowFramesAction());
         menu.add(new ShowSwingTimersAction());
         menu.add(new ShowStopwatchesAction());
+        menu.add(new ShowStopwatchHistogramsAction());
+        menu.add(new ShowThroughputCountersAction());
         menu.addSeparator();
         menu.add(new KeyEventTester());
         menu.add(new MouseEventTester());
@@ -246,6 +248,44 @@ public class DebugMenu {
         }
     }
 
+    private static class ShowStopwatchHistogramsAction extends AbstractAction {
+        public ShowStopwatchHistogramsAction() {
+            GuiUtilities.configureAction(this, "Show Stopwatch Hi_stograms", null);
+        }
+
+        public void actionPerformed(ActionEvent e) {
+            final PTextArea textArea = JFrameUtilities.makeTextArea("");
+
+            // Histograms are most useful for a specific activity, so the user can start again before doing it, and see the results afterwards.
+            final JButton refreshButton = new JButton("Refresh");
+            refreshButton.addActionListener(new ActionListener() {
+                public void actionPerformed(ActionEvent e) {
+                    textArea.setText(Stopwatch.toStringAll(true));
+                }
+            });
+            JButton resetButton = new JButton("Reset");
+            resetButton.addActionListener(new ActionListener() {
+                public void actionPerformed(ActionEvent e) {
+                    Stopwatch.resetAll();
+                    refreshButton.doClick(0);
+                }
+            });
+            refreshButton.doClick(0);
+
+            showFrameWithButtonPanel(Log.getApplicationName() + " Stopwatch Histograms", makeButtonPanel(refreshButton, resetButton), new JScrollPane(textArea), new Dimension(700, 500));
+        }
+    }
+
+    private static class ShowThroughputCountersAction extends AbstractAction {
+        public ShowThroughputCountersAction() {
+            GuiUtilities.configureAction(this, "Show Throughput _Counters", null);
+        }
+
+        public void actionPerformed(ActionEvent e) {
+            JFrameUtilities.showTextWindow(null, Log.getApplicationName() + " Throughput Counters", ThroughputCounter.toStringAll());
+        }
+    }
+
     private static class ShowUiDefaultsAction extends AbstractAction {
         public ShowUiDefaultsAction() {
             GuiUtilities.configureAction(this, "Show _UI Defaults", null);
@@ -1,7 +1,13 @@
 package e.ptextarea;
 
+import java.awt.EventQueue;
+import java.awt.event.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.regex.*;
+import javax.swing.Timer;
 import e.util.*;
+import org.jessies.test.*;
 
 /**
  * A PAbstractLanguageStyler does the main work for most of the various
@@ -14,20 +20,64 @@ import e.util.*;
  * or backquote. It also understands how to find keywords in what's left over,
  * given a fixed set of keywords.
  * 
- * FIXME: Perl and Ruby have various multiline quoting mechanisms that we don't support.
+ * It also understands here documents, for languages that supply a regular
+ * expression to recognize them.
+ * 
+ * A line is styled by lexing it, starting in whatever state the previous line
+ * ended in (in a comment, in a here document, or neither). We remember the
+ * state each line starts in (see PLineStates), so after an edit we only re-lex
+ * until the states stop changing, rather than everything after the edit.
+ * The rest of the file is lexed ahead of the user on a background thread, so
+ * scrolling a long way after an edit doesn't mean waiting for the lexer either.
+ * Lexing ahead starts again once the user stops typing for a moment, because
+ * it needs a snapshot of the text, which can mean copying all of it.
+ * 
+ * FIXME: Perl and Ruby have other multiline quoting mechanisms (q{} and %q() and friends, and ordinary strings containing newlines) that we don't support, though they'd just need states of their own.
  * 
  * @author Phil Norman
  */
 public abstract class PAbstractLanguageStyler extends PAbstractTextStyler {
-    private int lastGoodLine;
-    private BitSet commentCache;
+    // The states our lexer can be in at the end of a line.
+    // A here document's state also says whether its terminator can be indented, and its terminator's index in 'hereDocumentTerminators'.
+    private static final int NORMAL = 0;
+    private static final int IN_COMMENT = 1;
+    private static final int IN_HERE_DOCUMENT = 2;
+    private static final int MODE_MASK = 3;
+    private static final int INDENTED_TERMINATOR = 4;
+    private static final int HERE_DOCUMENT_INDEX_SHIFT = 3;
+    
+    // How many lines after an edit we'll re-lex before we give up on finding where the states stop changing, and just repaint everything after the edit.
+    // This bounds the work done for each keystroke; painting and lexing ahead will catch up with the rest.
+    private static final int MAX_LINES_TO_RELEX = 200;
+    // How many lines to lex ahead at a time.
+    private static final int LINES_PER_SLICE = 10000;
+    // How long after the last edit we wait before lexing ahead again.
+    private static final int LEX_AHEAD_DELAY_MS = 250;
+    
+    private static final ExecutorService lexingExecutor = ThreadUtilities.newSingleThreadExecutor("Language Styler");
+    
+    // Guarded by itself, as are 'editCount' and 'isLexingAhead'; anyone who also wants the text area's lock must take that first.
+    // Several readers can hold the text area's lock at once, so that's not enough on its own.
+    private final PLineStates lineStates = new PLineStates();
+    // Counts edits, so we can tell whether what we lexed ahead is still the text.
+    private int editCount;
+    private boolean isLexingAhead;
+    // Restarted by each edit, so we only take a snapshot to lex ahead once the edits stop coming.
+    private Timer lexAheadTimer;
+    
+    private final Pattern hereDocumentPattern;
+    // Guarded by itself, because lexing ahead happens on a background thread.
+    private final ArrayList<String> hereDocumentTerminators = new ArrayList<>();
     
     public PAbstractLanguageStyler(PTextArea textArea) {
         super(textArea);
+        String hereDocumentRegularExpression = getHereDocumentRegularExpression();
+        this.hereDocumentPattern = (hereDocumentRegularExpression != null) ? Pattern.compile(hereDocumentRegularExpression) : null;
         if (textArea != null) {
-            initCommentCache();
+            initLexAheadTimer();
             initTextListener();
             textArea.setTextStyler(this);
+            lexAheadLater();
         }
     }
     
@@ -70,6 +120,23 @@ public abstract class PAbstractLanguageStyler extends PAbstractTextStyler {
         return (ch == '\'' || ch == '\"');
     }
     
+    /**
+     * Returns a regular expression matching whatever introduces a here document (such as "<<EOF" or "<<'EOF'"), or null if the language doesn't have them.
+     * The named group "tag" must match the line that ends the here document, and the named group "indent" must match something if that line may be indented.
+     * The expression can look behind, but it's only tried where there's a "<<".
+     */
+    protected String getHereDocumentRegularExpression() {
+        return null;
+    }
+    
+    /**
+     * Returns true if the "<<" at 'index' in 'line' could introduce a here document.
+     * In languages where "<<" is also the left-shift operator, the here document regular expression can't always tell them apart ("1 << SHIFT" looks like "cat << EOF"), so they override this to rule out the shifts.
+     */
+    protected boolean canStartHereDocument(String line, int index) {
+        return true;
+    }
+    
     protected static final boolean isShellComment(String line, int i) {
         // Only recognize # comments if they're at the start of the line or the preceding character was whitespace.
         // This stops us mistaking "$#" in Perl or # characters in Ruby regular expressions for comments, for example.
@@ -98,35 +165,65 @@ public abstract class PAbstractLanguageStyler extends PAbstractTextStyler {
         }
     }
     
+    private void initLexAheadTimer() {
+        lexAheadTimer = new Timer(LEX_AHEAD_DELAY_MS, new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                lexAheadLater();
+            }
+        });
+        lexAheadTimer.setRepeats(false);
+    }
+    
     private void initTextListener() {
         textArea.getTextBuffer().addTextListener(new PTextListener() {
             public void textCompletelyReplaced(PTextEvent event) {
-                initCommentCache();
+                synchronized (lineStates) {
+                    ++editCount;
+                    lineStates.clear();
+                    lexAheadLater();
+                }
             }
             
             public void textInserted(PTextEvent event) {
-                dirtyFromOffset(event);
+                linesEdited(event);
             }
             
             public void textRemoved(PTextEvent event) {
-                dirtyFromOffset(event);
+                linesEdited(event);
             }
         });
     }
     
-    private void initCommentCache() {
-        lastGoodLine = 0;
-        commentCache = new BitSet();
-    }
-    
     public List<PLineSegment> getTextSegments(int lineIndex) {
-        String line = textArea.getLineContents(lineIndex).toString();
-        return getMainSegments(lineIndex, line);
+        textArea.getLock().getReadLock();
+        try {
+            String line = textArea.getLineContents(lineIndex).toString();
+            TextSegmentListBuilder builder = new TextSegmentListBuilder(textArea.getLineStartOffset(lineIndex));
+            lexLine(line, getStartState(lineIndex), builder);
+            return builder.getSegmentList();
+        } finally {
+            textArea.getLock().relinquishReadLock();
+        }
     }
     
-    private List<PLineSegment> getMainSegments(int lineIndex, String line) {
-        TextSegmentListBuilder builder = new TextSegmentListBuilder(textArea.getLineStartOffset(lineIndex));
-        boolean comment = startsCommented(lineIndex);
+    /**
+     * Lexes 'line', which starts in 'state', adding its segments to 'builder' unless that's null, and returning the state it ends in.
+     * Without a builder, this doesn't touch the text area, so it's safe to call on any thread.
+     */
+    private int lexLine(String line, int state, TextSegmentListBuilder builder) {
+        if ((state & MODE_MASK) == IN_HERE_DOCUMENT) {
+            if (line.length() > 0) {
+                addSegment(builder, line.length(), PStyle.STRING);
+            }
+            final String terminator = getHereDocumentTerminator(state >>> HERE_DOCUMENT_INDEX_SHIFT);
+            final String possibleTerminator = ((state & INDENTED_TERMINATOR) != 0) ? line.trim() : line;
+            return possibleTerminator.equals(terminator) ? NORMAL : state;
+        }
+        
+        boolean comment = (state == IN_COMMENT);
+        // The state after this line if it starts a here document (or the first, if it starts several).
+        int hereDocumentState = NORMAL;
+        final Matcher hereDocumentMatcher = (hereDocumentPattern != null) ? hereDocumentPattern.matcher(line).useTransparentBounds(true) : null;
         int lastStart = 0;
         for (int i = 0; i < line.length(); ) {
             if (comment) {
@@ -135,18 +232,17 @@ public abstract class PAbstractLanguageStyler extends PAbstractTextStyler {
                     commentEndIndex = line.length();
                 } else {
                     commentEndIndex += multiLineCommentEnd().length();
+                    comment = false;
                 }
-                builder.addStyledSegment(commentEndIndex, PStyle.COMMENT);
+                addSegment(builder, commentEndIndex, PStyle.COMMENT);
                 i = commentEndIndex;
                 lastStart = commentEndIndex;
-                comment = false;
             } else {
                 if (isStartOfCommentToEndOfLine(line, i)) {
-                    comment = true;
                     if (lastStart < i) {
-                        builder.addStyledSegment(i, PStyle.NORMAL);
+                        addSegment(builder, i, PStyle.NORMAL);
                     }
-                    builder.addStyledSegment(line.length(), PStyle.COMMENT);
+                    addSegment(builder, line.length(), PStyle.COMMENT);
                     i = line.length();
                     lastStart = i;
                     break;
@@ -155,14 +251,24 @@ public abstract class PAbstractLanguageStyler extends PAbstractTextStyler {
                 if (supportMultiLineComments() && line.startsWith(multiLineCommentStart(), i)) {
                     comment = true;
                     if (lastStart < i) {
-                        builder.addStyledSegment(i, PStyle.NORMAL);
+                        addSegment(builder, i, PStyle.NORMAL);
                     }
                     lastStart = i;
                     i += multiLineCommentStart().length();
+                } else if (hereDocumentMatcher != null && line.startsWith("<<", i) && canStartHereDocument(line, i) && hereDocumentMatcher.region(i, line.length()).lookingAt()) {
+                    if (lastStart < i) {
+                        addSegment(builder, i, PStyle.NORMAL);
+                    }
+                    if (hereDocumentState == NORMAL) {
+                        hereDocumentState = getHereDocumentState(hereDocumentMatcher);
+                    }
+                    i = hereDocumentMatcher.end();
+                    addSegment(builder, i, PStyle.STRING);
+                    lastStart = i;
                 } else if (isQuote(line.charAt(i)) && !(i > 0 && isValidHexDigit(line.charAt(i - 1)))) {
                     // This should apply to character literal '0' but not numeric literal 1'000'000...
                     if (lastStart < i) {
-                        builder.addStyledSegment(i, PStyle.NORMAL);
+                        addSegment(builder, i, PStyle.NORMAL);
                     }
                     int stringEnd = i + 1;
                     String matchString = String.valueOf(line.charAt(i));
@@ -177,10 +283,12 @@ public abstract class PAbstractLanguageStyler extends PAbstractTextStyler {
                     }
                     // If it falls out because stringEnd == -1, we have an unterminated string.
                     if (stringEnd == -1) {
-                        builder.addStyledSegment(line.length(), PStyle.ERROR);
+                        addSegment(builder, line.length(), PStyle.ERROR);
                         i = line.length();
                     } else {
-                        addStringSegment(builder, line, i, stringEnd);
+                        if (builder != null) {
+                            addStringSegment(builder, line, i, stringEnd);
+                        }
                         i = stringEnd;
                     }
                     lastStart = i;
@@ -190,9 +298,38 @@ public abstract class PAbstractLanguageStyler extends PAbstractTextStyler {
             }
         }
         if (lastStart < line.length()) {
-            builder.addStyledSegment(line.length(), comment ? PStyle.COMMENT : PStyle.NORMAL);
+            addSegment(builder, line.length(), comment ? PStyle.COMMENT : PStyle.NORMAL);
+        }
+        return comment ? IN_COMMENT : hereDocumentState;
+    }
+    
+    private static void addSegment(TextSegmentListBuilder builder, int end, PStyle style) {
+        if (builder != null) {
+            builder.addStyledSegment(end, style);
+        }
+    }
+    
+    private int getHereDocumentState(Matcher matcher) {
+        final String terminator = matcher.group("tag");
+        int index;
+        synchronized (hereDocumentTerminators) {
+            index = hereDocumentTerminators.indexOf(terminator);
+            if (index == -1) {
+                index = hereDocumentTerminators.size();
+                hereDocumentTerminators.add(terminator);
+            }
+        }
+        int result = IN_HERE_DOCUMENT | (index << HERE_DOCUMENT_INDEX_SHIFT);
+        if (matcher.group("indent").length() > 0) {
+            result |= INDENTED_TERMINATOR;
+        }
+        return result;
+    }
+    
+    private String getHereDocumentTerminator(int index) {
+        synchronized (hereDocumentTerminators) {
+            return hereDocumentTerminators.get(index);
         }
-        return builder.getSegmentList();
     }
     
     protected static boolean isValidOctalDigit(char ch) {
@@ -215,101 +352,220 @@ public abstract class PAbstractLanguageStyler extends PAbstractTextStyler {
         return result;
     }
     
-    private boolean startsCommented(int lineIndex) {
-        if (lastGoodLine < lineIndex) {
-            PLineList lineList = textArea.getLineList();
-            for (int i = lastGoodLine; i < lineIndex; i++) {
-                String line = lineList.getLineContents(i).toString();
-                commentCache.set(i + 1, lineEndsCommented(line, commentCache.get(i)));
+    private int getStartState(int lineIndex) {
+        synchronized (lineStates) {
+            while (lineStates.getValidLineCount() <= lineIndex) {
+                lexLastValidLine();
             }
-            lastGoodLine = lineIndex;
+            return lineStates.getStartState(lineIndex);
         }
-        return commentCache.get(lineIndex);
     }
     
     /**
-     * Returns true if the given line will end commented. By "end commented",
-     * I think this means "end in an open comment that implies that the next
-     * line begins inside a comment".
+     * Lexes the last line whose start state we know, so we know the state of the one after it, returning true if that hasn't changed.
      */
-    private boolean lineEndsCommented(String line, boolean startsCommented) {
-        boolean comment = startsCommented;
-        int index = 0;
-        while (true) {
-            if (comment) {
-                // Commented - comments eat strings.
-                int endIndex = line.indexOf(multiLineCommentEnd(), index);
-                if (endIndex == -1) {
-                    break;
-                }
-                comment = false;
-                index = endIndex + multiLineCommentEnd().length();
+    private boolean lexLastValidLine() {
+        final int lineIndex = lineStates.getValidLineCount() - 1;
+        final String line = textArea.getLineContents(lineIndex).toString();
+        return lineStates.setEndState(lineIndex, lexLine(line, lineStates.getStartState(lineIndex), null));
+    }
+    
+    private void linesEdited(PTextEvent event) {
+        final int lineIndex = textArea.getLineList().getLineIndex(event.getOffset());
+        final int newlineCount = StringUtilities.count(event.getCharacters(), '\n');
+        synchronized (lineStates) {
+            ++editCount;
+            if (event.isInsert()) {
+                lineStates.linesInserted(lineIndex, newlineCount);
+                restyleLinesAfter(lineIndex + newlineCount);
             } else {
-                // Uncommented - strings eat comments.
-                char lastQuote = 0;
-                boolean escaped = false;
-                for (int i = index; i < line.length(); i++) {
-                    char thisChar = line.charAt(i);
-                    if (lastQuote == 0) {
-                        if (escaped == false && isQuote(thisChar)) {
-                            lastQuote = thisChar;
-                        }
-                        if (supportMultiLineComments() && line.startsWith(multiLineCommentStart(), i)) {
-                            comment = true;
-                            i += multiLineCommentStart().length();
-                        } else if (isStartOfCommentToEndOfLine(line, i)) {
-                            break;
-                        }
-                    } else {
-                        if (escaped == false && thisChar == lastQuote) {
-                            lastQuote = 0;
-                        }
-                    }
-                    if (thisChar == '\\') {
-                        escaped = !escaped;
-                    } else {
-                        escaped = false;
-                    }
-                }
-                if (comment == false) {
-                    break;
-                }
+                lineStates.linesRemoved(lineIndex, newlineCount);
+                restyleLinesAfter(lineIndex);
             }
         }
-        return comment;
+        lexAheadTimer.restart();
     }
     
-    private void dirtyFromOffset(PTextEvent event) {
-        if (textArea.isLineWrappingInvalid()) {
+    /**
+     * Re-lexes the lines after an edit that ended on 'lastEditedLine' until their states stop changing, and repaints the ones that did change.
+     * PTextArea repaints the edited lines themselves.
+     */
+    private void restyleLinesAfter(int lastEditedLine) {
+        final int lastLineIndex = textArea.getLineCount() - 1;
+        int lastChangedLine = lastEditedLine;
+        boolean reconverged = false;
+        int lineIndex;
+        while ((lineIndex = lineStates.getValidLineCount() - 1) < lastLineIndex) {
+            if (lineIndex > lastEditedLine && (reconverged || lineIndex > lastEditedLine + MAX_LINES_TO_RELEX)) {
+                break;
+            }
+            reconverged = lexLastValidLine();
+            if (reconverged == false) {
+                lastChangedLine = lineIndex + 1;
+            }
+        }
+        if (lastChangedLine == lastEditedLine || textArea.isLineWrappingInvalid()) {
             return;
         }
-        
-        boolean startsOrEndsMultiLineComment = false;
-        if (supportMultiLineComments()) {
-            int HORIZON = Math.max(multiLineCommentStart().length(), multiLineCommentEnd().length());
-            CharSequence entireText = textArea.getTextBuffer();
-            String prefix = entireText.subSequence(Math.max(0, event.getOffset() - HORIZON), event.getOffset()).toString();
-            int endIndex = event.getOffset();
-            if (event.isInsert()) {
-                endIndex += event.getLength();
+        final int firstSplitIndex = textArea.getSplitLineIndex(lastEditedLine + 1);
+        if (reconverged) {
+            textArea.repaintLines(firstSplitIndex, textArea.getSplitLineIndex(lastChangedLine + 1) - 1);
+        } else {
+            // We either gave up, or the states changed right to the end.
+            textArea.repaintFromLine(firstSplitIndex);
+        }
+    }
+    
+    private void lexAheadLater() {
+        synchronized (lineStates) {
+            if (isLexingAhead) {
+                return;
             }
-            String suffix = entireText.subSequence(endIndex, Math.min(endIndex + HORIZON, entireText.length())).toString();
-            String withMiddleText = prefix + event.getCharacters() + suffix;
-            String withoutMiddleText = prefix + suffix;
-            startsOrEndsMultiLineComment = hasCommentMarker(withMiddleText) || hasCommentMarker(withoutMiddleText);
+            isLexingAhead = true;
         }
-        
-        if (hasNewline(event.getCharacters()) || startsOrEndsMultiLineComment) {
-            lastGoodLine = Math.min(lastGoodLine, textArea.getLineList().getLineIndex(event.getOffset()));
-            textArea.repaintFromLine(textArea.getSplitLineIndex(lastGoodLine));
+        EventQueue.invokeLater(new Runnable() {
+            public void run() {
+                lexAhead();
+            }
+        });
+    }
+    
+    /**
+     * Lexes the next LINES_PER_SLICE lines we don't know the states of on our background thread, unless we know them all.
+     * The background thread lexes a snapshot of the text, so the user can carry on typing, and hands back the states for us to use if they didn't.
+     */
+    private void lexAhead() {
+        textArea.getLock().getReadLock();
+        try {
+            final int firstLineIndex;
+            final int lineCount;
+            final int startState;
+            final int sliceEditCount;
+            synchronized (lineStates) {
+                firstLineIndex = lineStates.getValidLineCount() - 1;
+                // We don't need the state at the end of the last line.
+                lineCount = Math.min(LINES_PER_SLICE, textArea.getLineCount() - 1 - firstLineIndex);
+                if (lineCount <= 0) {
+                    isLexingAhead = false;
+                    return;
+                }
+                startState = lineStates.getStartState(firstLineIndex);
+                sliceEditCount = editCount;
+            }
+            final int startOffset = textArea.getLineStartOffset(firstLineIndex);
+            final PTextBuffer.Snapshot snapshot = textArea.getTextBuffer().getSnapshot();
+            lexingExecutor.execute(new Runnable() {
+                public void run() {
+                    final int[] endStates = lexLines(snapshot, startOffset, startState, lineCount);
+                    EventQueue.invokeLater(new Runnable() {
+                        public void run() {
+                            finishLexingAhead(sliceEditCount, firstLineIndex, endStates);
+                        }
+                    });
+                }
+            });
+        } finally {
+            textArea.getLock().relinquishReadLock();
+        }
+    }
+    
+    /**
+     * Returns the states at the ends of the 'lineCount' lines of 'text' starting at 'offset', the first of which starts in 'state'.
+     */
+    private int[] lexLines(CharSequence text, int offset, int state, int lineCount) {
+        final int[] result = new int[lineCount];
+        for (int i = 0; i < lineCount; ++i) {
+            int end = offset;
+            while (end < text.length() && text.charAt(end) != '\n') {
+                ++end;
+            }
+            state = lexLine(text.subSequence(offset, end).toString(), state, null);
+            result[i] = state;
+            offset = end + 1;
+        }
+        return result;
+    }
+    
+    private void finishLexingAhead(int sliceEditCount, int firstLineIndex, int[] endStates) {
+        textArea.getLock().getReadLock();
+        try {
+            synchronized (lineStates) {
+                // If there's been an edit since, we lexed the wrong text.
+                // The user may well still be typing, so rather than take another snapshot now, we wait until they stop.
+                if (sliceEditCount != editCount) {
+                    isLexingAhead = false;
+                    lexAheadTimer.restart();
+                    return;
+                }
+                for (int i = 0; i < endStates.length; ++i) {
+                    // Painting may have got to some lines first, and a line whose state hasn't changed means we already know about the lines after it.
+                    if (firstLineIndex + i == lineStates.getValidLineCount() - 1) {
+                        lineStates.setEndState(firstLineIndex + i, endStates[i]);
+                    }
+                }
+            }
+        } finally {
+            textArea.getLock().relinquishReadLock();
         }
+        lexAhead();
+    }
+    
+    /**
+     * Returns a string with a character for the state each line ends in, given the lines of a file: 'N' for normal, 'C' for in a comment, and 'H' for in a here document.
+     */
+    private static String getEndStates(PAbstractLanguageStyler styler, String... lines) {
+        StringBuilder result = new StringBuilder();
+        int state = NORMAL;
+        for (String line : lines) {
+            state = styler.lexLine(line, state, null);
+            result.append("NCH".charAt(state & MODE_MASK));
+        }
+        return result.toString();
+    }
+    
+    @Test private static void testBashHereDocuments() {
+        final PBashTextStyler styler = new PBashTextStyler(null);
+        Assert.equals(getEndStates(styler, "cat <<EOF", "$x", "EOF", "echo"), "HHNN");
+        Assert.equals(getEndStates(styler, "cat<<'EOF' | sort", "EOF"), "HN");
+        Assert.equals(getEndStates(styler, "\tcat <<- \"END\"", "\t\tx", "\tEND"), "HHN");
+        // A here string isn't a here document.
+        Assert.equals(getEndStates(styler, "cat <<< EOF", "EOF"), "NN");
+        // Nor is a shift.
+        Assert.equals(getEndStates(styler, "x=$(( 1 << SHIFT ))", "SHIFT"), "NN");
+        Assert.equals(getEndStates(styler, "(( x <<= 2 ))", "x"), "NN");
+        Assert.equals(getEndStates(styler, "if (( (mask << BITS) & 1 )); then", "BITS"), "NN");
+        // Once the arithmetic is over, "<<" can start a here document again.
+        Assert.equals(getEndStates(styler, "n=$(( 1 << n )); cat <<EOF", "EOF"), "HN");
+        Assert.equals(getEndStates(styler, "# cat <<EOF", "EOF"), "NN");
     }
     
-    private boolean hasNewline(CharSequence text) {
-        return StringUtilities.contains(text, '\n');
+    @Test private static void testPerlHereDocuments() {
+        final PPerlTextStyler styler = new PPerlTextStyler(null);
+        Assert.equals(getEndStates(styler, "print <<EOF;", "$x", "EOF"), "HHN");
+        Assert.equals(getEndStates(styler, "my $text = <<~\"END\";", "    x", "    END"), "HHN");
+        // Shifts of numbers, variables, and parenthesized expressions.
+        Assert.equals(getEndStates(styler, "my $mask = 1<<FOO;", "FOO"), "NN");
+        Assert.equals(getEndStates(styler, "$x = $y<<BITS;", "BITS"), "NN");
+        Assert.equals(getEndStates(styler, "$x = ($y + 1)<<BITS;", "BITS"), "NN");
+        Assert.equals(getEndStates(styler, "$x = $a[0]<<BITS;", "BITS"), "NN");
+        Assert.equals(getEndStates(styler, "$x <<= 2;"), "N");
+        // A variable after "print" is a filehandle, not something to shift.
+        Assert.equals(getEndStates(styler, "print $fh <<EOF;", "x", "EOF"), "HHN");
+        Assert.equals(getEndStates(styler, "printf $out <<\"END\", $x;", "END"), "HN");
+        Assert.equals(getEndStates(styler, "$sprint = $fh <<BITS;", "BITS"), "NN");
     }
     
-    private boolean hasCommentMarker(String text) {
-        return text.contains(multiLineCommentStart()) || text.contains(multiLineCommentEnd());
+    @Test private static void testRubyHereDocuments() {
+        final PRubyTextStyler styler = new PRubyTextStyler(null);
+        Assert.equals(getEndStates(styler, "puts <<EOF", "x", "EOF"), "HHN");
+        Assert.equals(getEndStates(styler, "text = <<~EOS.strip", "  x", "  EOS"), "HHN");
+        Assert.equals(getEndStates(styler, "foo(<<-'END')", "  END"), "HN");
+        // Appends and shifts.
+        Assert.equals(getEndStates(styler, "out<<line", "x", "line"), "NNN");
+        Assert.equals(getEndStates(styler, "mask = 1<<BITS", "BITS"), "NN");
+        Assert.equals(getEndStates(styler, "lines[0]<<word", "word"), "NN");
+        Assert.equals(getEndStates(styler, "x = \"a\"<<b", "b"), "NN");
+        Assert.equals(getEndStates(styler, "out << line", "line"), "NN");
+        Assert.equals(getEndStates(styler, "class <<self", "self"), "NN");
     }
 }
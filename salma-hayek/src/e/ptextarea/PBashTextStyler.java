@@ -25,6 +25,29 @@ public class PBashTextStyler extends PAbstractLanguageStyler {
         return (ch == '\'' || ch == '\"' || ch == '`');
     }
     
+    @Override protected String getHereDocumentRegularExpression() {
+        // "<<-" lets the terminator be indented (strictly, only with tabs).
+        // The look-behind stops us mistaking the "<<<" of a here string for a here document.
+        return "(?<!<)<<(?<indent>-?)\\s*(?<quote>[\"']?)(?<tag>[A-Za-z_]\\w*)\\k<quote>";
+    }
+    
+    @Override protected boolean canStartHereDocument(String line, int index) {
+        // Inside "((" or "$((", "<<" is a shift: "$(( 1 << SHIFT ))" doesn't start a here document.
+        // (In "(( x <<= 2 ))", the '=' stops it looking like one anyway.)
+        // Strictly, arithmetic can span lines, but it hardly ever does.
+        int depth = 0;
+        for (int i = 0; i + 1 < index; ++i) {
+            if (line.startsWith("((", i)) {
+                ++depth;
+                ++i;
+            } else if (depth > 0 && line.startsWith("))", i)) {
+                --depth;
+                ++i;
+            }
+        }
+        return (depth == 0);
+    }
+    
     public String[] getKeywords() {
         return new String[] {
             // "Compound Commands", bash man page.
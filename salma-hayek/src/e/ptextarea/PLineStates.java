@@ -0,0 +1,230 @@
+package e.ptextarea;
+
+import java.util.*;
+import org.jessies.test.*;
+
+/**
+ * Remembers, for a PAbstractLanguageStyler, the state its lexer is in at the start of each line (in a comment, in a here document, and so on).
+ * A line's state depends only on the state at the start of the previous line and that line's text, so after an edit we only need to re-lex from the edited line until we reach a line that starts in the same state it did before: after that, nothing can have changed.
+ * So we don't throw away what we knew about the lines after an edit, we just mark it stale.
+ *
+ * States are small non-negative ints chosen by the lexer; the state of the first line is always 0.
+ * We know the states of the first 'validLineCount' lines for sure.
+ * We also have states for the lines after that, up to 'stateCount', which are right unless they're marked stale, or the line before them was lexed starting in the wrong state.
+ */
+final class PLineStates {
+    // Set on a state when the line before, or the state that line starts in, has changed since the state was worked out.
+    private static final int STALE = 0x80000000;
+    
+    private int[] states = new int[16];
+    private int stateCount;
+    private int validLineCount;
+    
+    public PLineStates() {
+        clear();
+    }
+    
+    /**
+     * Forgets everything, as when the text has been completely replaced.
+     */
+    public void clear() {
+        stateCount = 1;
+        validLineCount = 1;
+        states[0] = 0;
+    }
+    
+    /**
+     * Returns the number of lines, from the first, whose start states are known for sure.
+     * To learn more, lex the last of them, and pass its end state to 'setEndState'.
+     */
+    public int getValidLineCount() {
+        return validLineCount;
+    }
+    
+    /**
+     * Returns the state at the start of 'lineIndex', which must be less than 'getValidLineCount'.
+     */
+    public int getStartState(int lineIndex) {
+        if (lineIndex >= validLineCount) {
+            throw new IllegalArgumentException("state of line " + lineIndex + " not yet known; only " + validLineCount + " lines are valid");
+        }
+        return states[lineIndex];
+    }
+    
+    /**
+     * Records the state the lexer was in at the end of 'lineIndex', which must be the last valid line.
+     * Returns true if that's the state we already had for the start of the next line, in which case the lines up to the next edited one are now valid too.
+     */
+    public boolean setEndState(int lineIndex, int state) {
+        if (lineIndex != validLineCount - 1) {
+            throw new IllegalArgumentException("line " + lineIndex + " isn't the last valid line, " + (validLineCount - 1));
+        }
+        final int nextLineIndex = lineIndex + 1;
+        if (nextLineIndex == stateCount) {
+            if (stateCount == states.length) {
+                states = Arrays.copyOf(states, states.length * 2);
+            }
+            ++stateCount;
+        } else if ((states[nextLineIndex] & ~STALE) == state) {
+            // The next line starts as it did before, and so do all the lines after it, until we reach one that follows an edited line.
+            states[nextLineIndex] = state;
+            ++validLineCount;
+            while (validLineCount < stateCount && (states[validLineCount] & STALE) == 0) {
+                ++validLineCount;
+            }
+            return true;
+        }
+        states[nextLineIndex] = state;
+        ++validLineCount;
+        // The line after starts in a different state now, so we don't know what state it ends in.
+        if (nextLineIndex + 1 < stateCount) {
+            states[nextLineIndex + 1] |= STALE;
+        }
+        return false;
+    }
+    
+    /**
+     * Notes that 'lineIndex' has changed, and that 'lineCount' new lines have been inserted after it.
+     */
+    public void linesInserted(int lineIndex, int lineCount) {
+        lineChanged(lineIndex);
+        final int nextLineIndex = lineIndex + 1;
+        if (lineCount == 0 || nextLineIndex >= stateCount) {
+            return;
+        }
+        if (stateCount + lineCount > states.length) {
+            states = Arrays.copyOf(states, Math.max(states.length * 2, stateCount + lineCount));
+        }
+        System.arraycopy(states, nextLineIndex, states, nextLineIndex + lineCount, stateCount - nextLineIndex);
+        // The new lines follow changed lines, as does the line that used to follow 'lineIndex'.
+        Arrays.fill(states, nextLineIndex, nextLineIndex + lineCount, STALE);
+        states[nextLineIndex + lineCount] |= STALE;
+        stateCount += lineCount;
+    }
+    
+    /**
+     * Notes that 'lineIndex' has changed, and that the 'lineCount' lines after it have been removed.
+     */
+    public void linesRemoved(int lineIndex, int lineCount) {
+        final int nextLineIndex = lineIndex + 1;
+        if (nextLineIndex < stateCount) {
+            final int removedCount = Math.min(lineCount, stateCount - nextLineIndex);
+            System.arraycopy(states, nextLineIndex + removedCount, states, nextLineIndex, stateCount - nextLineIndex - removedCount);
+            stateCount -= removedCount;
+        }
+        lineChanged(lineIndex);
+    }
+    
+    private void lineChanged(int lineIndex) {
+        // The line's own start state is fine, but we don't know about the next line's.
+        validLineCount = Math.min(validLineCount, lineIndex + 1);
+        if (lineIndex + 1 < stateCount) {
+            states[lineIndex + 1] |= STALE;
+        }
+    }
+    
+    /**
+     * Lexes the toy language of our tests, in which a '"' toggles between states 0 and 1, counting how many lines get lexed.
+     */
+    private static class TestLexer {
+        private final PLineStates states = new PLineStates();
+        private final ArrayList<String> lines = new ArrayList<>();
+        private int lexedLineCount;
+        
+        private TestLexer(String... lines) {
+            this.lines.addAll(Arrays.asList(lines));
+        }
+        
+        private int getStartState(int lineIndex) {
+            while (states.getValidLineCount() <= lineIndex) {
+                final int lastValidLine = states.getValidLineCount() - 1;
+                int state = states.getStartState(lastValidLine);
+                for (char ch : lines.get(lastValidLine).toCharArray()) {
+                    if (ch == '"') {
+                        state = 1 - state;
+                    }
+                }
+                states.setEndState(lastValidLine, state);
+                ++lexedLineCount;
+            }
+            return states.getStartState(lineIndex);
+        }
+        
+        private String getStartStates() {
+            lexedLineCount = 0;
+            StringBuilder result = new StringBuilder();
+            for (int i = 0; i < lines.size(); ++i) {
+                result.append(getStartState(i));
+            }
+            return result.toString();
+        }
+    }
+    
+    @Test private static void testReconvergence() {
+        TestLexer lexer = new TestLexer("a", "b", "c", "d", "e", "f");
+        Assert.equals(lexer.getStartStates(), "000000");
+        Assert.equals(lexer.lexedLineCount, 5);
+        
+        // An edit that doesn't change the state only costs us the edited line.
+        lexer.lines.set(2, "cc");
+        lexer.states.linesInserted(2, 0);
+        Assert.equals(lexer.getStartStates(), "000000");
+        Assert.equals(lexer.lexedLineCount, 1);
+        
+        // Opening a string changes everything after it.
+        lexer.lines.set(1, "\"b");
+        lexer.states.linesInserted(1, 0);
+        Assert.equals(lexer.getStartStates(), "001111");
+        Assert.equals(lexer.lexedLineCount, 4);
+        
+        // Closing it again only takes as long as it takes to get back in step.
+        lexer.lines.set(3, "d\"");
+        lexer.states.linesInserted(3, 0);
+        Assert.equals(lexer.getStartStates(), "001100");
+        Assert.equals(lexer.lexedLineCount, 2);
+        
+        // Two edits apart from each other are each noticed.
+        lexer.lines.set(0, "\"a\"");
+        lexer.states.linesInserted(0, 0);
+        lexer.lines.set(4, "\"e");
+        lexer.states.linesInserted(4, 0);
+        Assert.equals(lexer.getStartStates(), "001101");
+        Assert.equals(lexer.lexedLineCount, 2);
+        
+        // Stopping part way through the changes from one edit doesn't confuse the next edit.
+        lexer.lines.set(1, "b");
+        lexer.states.linesInserted(1, 0);
+        lexer.getStartState(3);
+        lexer.lines.set(0, "a");
+        lexer.states.linesInserted(0, 0);
+        Assert.equals(lexer.getStartStates(), "000010");
+    }
+    
+    @Test private static void testInsertAndRemoveLines() {
+        TestLexer lexer = new TestLexer("a", "\"b", "c", "d\"", "e");
+        Assert.equals(lexer.getStartStates(), "00110");
+        
+        // Split "c" into "c", "\"x", "y\"".
+        lexer.lines.add(3, "\"x");
+        lexer.lines.add(4, "y\"");
+        lexer.states.linesInserted(2, 2);
+        Assert.equals(lexer.getStartStates(), "0011010");
+        Assert.equals(lexer.lexedLineCount, 3);
+        
+        // Join the "\"b" line with the two after it.
+        lexer.lines.set(1, "\"bc\"x");
+        lexer.lines.remove(2);
+        lexer.lines.remove(2);
+        lexer.states.linesRemoved(1, 2);
+        Assert.equals(lexer.getStartStates(), "00010");
+        Assert.equals(lexer.lexedLineCount, 1);
+        
+        // Removing lines we've never lexed is fine too.
+        lexer.states.clear();
+        lexer.getStartState(1);
+        lexer.lines.remove(4);
+        lexer.lines.remove(3);
+        lexer.states.linesRemoved(2, 2);
+        Assert.equals(lexer.getStartStates(), "000");
+    }
+}
@@ -1,22 +1,24 @@
 package e.ptextarea;
 
-import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.*;
 import e.util.*;
+import org.jessies.test.*;
 
 /**
  * A PLock manages the locking for a PTextArea, although it could likely be used for any
  * object which needs to follow the same locking rules.
- * 
+ *
  * The locking rules are as follows:
  * 1: Only one thread may gain the write lock at any time.
  * 2: While the write lock is held, no read locks are given except to the thread which holds the write lock.
  * 3: Many read locks can be given.
  * 4: While at least one read lock is held, no write lock may be given, except to the thread which holds the
  *     read lock when it is the only one holding a read lock.
- * 
+ *
  * Using this class correctly is very important.  Failure to do so will result in the whole text area locking up.
  * Follow this pattern:
- * 
+ *
  * public void myMethod(PTextArea area) {
  *     area.getLock().getReadLock();
  *     try {
@@ -27,108 +29,133 @@ import e.util.*;
  * }
  *
  * Locks are reference counted, so it is safe to get and relinquish a lock in a nested fashion.
- * 
- * FIXME: switch to java.util.concurrent.ReentrantReadWriteLock?
- * 
+ *
+ * Short reads that can cope with seeing an edit half-done (because they'll be thrown away) can avoid locking altogether:
+ *
+ * long stamp = lock.tryOptimisticRead();
+ * if (stamp != 0) {
+ *     result = read();
+ *     if (lock.validate(stamp)) {
+ *         return result;
+ *     }
+ * }
+ * // Fall back to getReadLock.
+ *
+ * The locking is done by a StampedLock, which isn't reentrant, so each thread keeps its own counts, and only the outermost lock and release touch the StampedLock.
+ * A thread's first read lock costs a compare-and-swap, and nested ones nothing, so readers only contend with writers.
+ *
  * @author Phil Norman
  */
 
 public class PLock {
-    private Map<Thread, Integer> readLocks = new HashMap<>();
-    private Thread writeLock = null;
-    private int writeLockCount = 0;
+    private final StampedLock lock = new StampedLock();
     
-    public synchronized void getReadLock() {
-        Thread currentThread = Thread.currentThread();
-        final long startTimeNs = System.nanoTime();
-        boolean gotStuck = false;
-        while (canClaimReadLock(currentThread) == false) {
-            gotStuck = true;
-            try {
-                wait();
-            } catch (InterruptedException ex) {
-                Log.warn("Interrupted while attempting to get read lock.", ex);
-            }
-        }
-        report(gotStuck, startTimeNs, "read");
-        if (readLocks.containsKey(currentThread)) {
-            readLocks.put(currentThread, 1 + readLocks.get(currentThread));
-        } else {
-            readLocks.put(currentThread, 1);
+    private final ThreadLocal<Holder> holders = new ThreadLocal<Holder>() {
+        @Override protected Holder initialValue() {
+            return new Holder();
         }
+    };
+    
+    /**
+     * What one thread holds.
+     * While a thread holds the write lock, 'stamp' is a write stamp, even if it also holds read locks; otherwise, it's a read stamp if the thread holds any read locks.
+     */
+    private static class Holder {
+        private int readLockCount;
+        private int writeLockCount;
+        private long stamp;
     }
     
-    private boolean canClaimReadLock(Thread currentThread) {
-        return ((writeLock == null) || (writeLock == currentThread));
+    public void getReadLock() {
+        Holder holder = holders.get();
+        if (holder.readLockCount > 0 || holder.writeLockCount > 0) {
+            ++holder.readLockCount;
+            return;
+        }
+        long stamp = lock.tryReadLock();
+        if (stamp == 0) {
+            final long startTimeNs = System.nanoTime();
+            stamp = lock.readLock();
+            report(startTimeNs, "read");
+        }
+        holder.stamp = stamp;
+        holder.readLockCount = 1;
     }
     
-    public synchronized void relinquishReadLock() {
-        Thread currentThread = Thread.currentThread();
-        if (readLocks.containsKey(currentThread) == false) {
-            throw new RuntimeException("Cannot relinquish read lock on thread " + currentThread + " because it does not hold a lock.");
+    public void relinquishReadLock() {
+        Holder holder = holders.get();
+        if (holder.readLockCount == 0) {
+            throw new RuntimeException("Cannot relinquish read lock on thread " + Thread.currentThread() + " because it does not hold a lock.");
         }
-        int newLockCount = readLocks.get(currentThread) - 1;
-        if (newLockCount == 0) {
-            readLocks.remove(currentThread);
-            notifyAll();  // IMPORTANT: allow other threads to wake up and check if they can get locks now.
-        } else {
-            readLocks.put(currentThread, newLockCount);
+        --holder.readLockCount;
+        if (holder.readLockCount == 0 && holder.writeLockCount == 0) {
+            lock.unlockRead(holder.stamp);
+            holder.stamp = 0;
         }
     }
     
-    public synchronized void getWriteLock() {
-        //Log.warn("getWriteLock() in thread " + Thread.currentThread());
-        //dumpLocks();
-        Thread currentThread = Thread.currentThread();
+    public void getWriteLock() {
+        Holder holder = holders.get();
+        if (holder.writeLockCount > 0) {
+            ++holder.writeLockCount;
+            return;
+        }
         final long startTimeNs = System.nanoTime();
         boolean gotStuck = false;
-        while (canClaimWriteLock(currentThread) == false) {
-            gotStuck = true;
-            try {
-                wait();
-            } catch (InterruptedException ex) {
-                Log.warn("Interrupted while attempting to get write lock.", ex);
+        long stamp;
+        if (holder.readLockCount > 0) {
+            // Upgrade our read lock, once we're the only reader.
+            // StampedLock can't wait for that, so we poll: this is rare, and was never cheap.
+            while ((stamp = lock.tryConvertToWriteLock(holder.stamp)) == 0) {
+                gotStuck = true;
+                LockSupport.parkNanos(100000);
             }
-        }
-        report(gotStuck, startTimeNs, "write");
-        writeLock = currentThread;
-        writeLockCount++;
-    }
-    
-    private boolean canClaimWriteLock(Thread currentThread) {
-        if (writeLock == currentThread) {
-            return true;
-        } else if (writeLock != null) {
-            return false;
-        } else if (readLocks.size() == 0) {
-            return true;
-        } else if (readLocks.size() > 1) {
-            return false;
         } else {
-            return readLocks.containsKey(currentThread);
+            stamp = lock.tryWriteLock();
+            if (stamp == 0) {
+                gotStuck = true;
+                stamp = lock.writeLock();
+            }
         }
+        if (gotStuck) {
+            report(startTimeNs, "write");
+        }
+        holder.stamp = stamp;
+        holder.writeLockCount = 1;
     }
     
-    public synchronized void relinquishWriteLock() {
-        //Log.warn("relinquishWriteLock() in thread " + Thread.currentThread());
-        Thread currentThread = Thread.currentThread();
-        if (writeLock != currentThread) {
-            throw new RuntimeException("Cannot relinquish write lock on thread " + currentThread + " because it does not hold the lock.");
-        }
-        if (writeLockCount <= 0) {
-            throw new RuntimeException("Tried to relinquish write lock on thread " + currentThread + " while write lock count is " + writeLockCount);
+    public void relinquishWriteLock() {
+        Holder holder = holders.get();
+        if (holder.writeLockCount <= 0) {
+            throw new RuntimeException("Cannot relinquish write lock on thread " + Thread.currentThread() + " because it does not hold the lock.");
         }
-        writeLockCount--;
-        if (writeLockCount == 0) {
-            writeLock = null;
-            notifyAll();  // IMPORTANT: allow other threads to wake up and check if they can get locks now.
+        --holder.writeLockCount;
+        if (holder.writeLockCount == 0) {
+            if (holder.readLockCount > 0) {
+                // Keep the read locks we took while writing; converting a write stamp always succeeds.
+                holder.stamp = lock.tryConvertToReadLock(holder.stamp);
+            } else {
+                lock.unlockWrite(holder.stamp);
+                holder.stamp = 0;
+            }
         }
     }
     
-    private void report(boolean gotStuck, long startTimeNs, String type) {
-        if (gotStuck == false) {
-            return;
-        }
+    /**
+     * Returns a stamp to pass to 'validate' after an optimistic read, or 0 if the write lock is held (by any thread, including this one), in which case the caller should get a read lock instead.
+     */
+    public long tryOptimisticRead() {
+        return lock.tryOptimisticRead();
+    }
+    
+    /**
+     * Returns true if no thread has had the write lock since 'stamp' was returned by 'tryOptimisticRead', meaning that what was read in between can be trusted.
+     */
+    public boolean validate(long stamp) {
+        return lock.validate(stamp);
+    }
+    
+    private void report(long startTimeNs, String type) {
         final long endTimeNs = System.nanoTime();
         final double duration = TimeUtilities.nsToS(endTimeNs - startTimeNs);
         if (duration < 0.1) {
@@ -137,13 +164,96 @@ public class PLock {
         Log.warn("PLock: " + Thread.currentThread() + " waited to get " + type + " lock for " + TimeUtilities.nsToString(endTimeNs - startTimeNs) + ".");
     }
     
-    private synchronized void dumpLocks() {
-        Log.warn("PLock dump...");
-        Log.warn("Write lock on " + writeLock + " (count=" + writeLockCount + ")");
-        Log.warn(readLocks.size() + " read locks:");
-        for (Thread thread : readLocks.keySet()) {
-            Log.warn("  on " + thread + " (count=" + readLocks.get(thread) + ")");
+    @Test private static void testReentrancy() {
+        final PLock lock = new PLock();
+        lock.getReadLock();
+        lock.getReadLock();
+        Assert.equals(lock.lock.getReadLockCount(), 1);
+        lock.relinquishReadLock();
+        Assert.equals(lock.lock.isReadLocked(), true);
+        lock.relinquishReadLock();
+        Assert.equals(lock.lock.isReadLocked(), false);
+        
+        lock.getWriteLock();
+        lock.getWriteLock();
+        // Reading while we're writing doesn't need another lock.
+        lock.getReadLock();
+        Assert.equals(lock.tryOptimisticRead(), 0L);
+        lock.relinquishReadLock();
+        lock.relinquishWriteLock();
+        Assert.equals(lock.lock.isWriteLocked(), true);
+        lock.relinquishWriteLock();
+        Assert.equals(lock.lock.isWriteLocked(), false);
+        Assert.equals(lock.tryOptimisticRead() != 0, true);
+    }
+    
+    @Test private static void testRelinquishingInTheWrongOrder() {
+        final PLock lock = new PLock();
+        // Upgrading, and then letting go of the read lock first, keeps the write lock until it's let go of too.
+        lock.getReadLock();
+        lock.getWriteLock();
+        lock.relinquishReadLock();
+        Assert.equals(lock.lock.isWriteLocked(), true);
+        lock.relinquishWriteLock();
+        Assert.equals(lock.lock.isWriteLocked() || lock.lock.isReadLocked(), false);
+        
+        // Reading while writing, and then letting go of the write lock first, leaves us with the read lock.
+        lock.getWriteLock();
+        lock.getReadLock();
+        lock.relinquishWriteLock();
+        Assert.equals(lock.lock.isWriteLocked(), false);
+        Assert.equals(lock.lock.getReadLockCount(), 1);
+        lock.relinquishReadLock();
+        Assert.equals(lock.lock.isWriteLocked() || lock.lock.isReadLocked(), false);
+        
+        // Letting go of a lock we don't have is an error, and doesn't disturb the lock.
+        try {
+            lock.relinquishReadLock();
+            Assert.failure("relinquishReadLock didn't fail");
+        } catch (RuntimeException ex) {
+        }
+        try {
+            lock.relinquishWriteLock();
+            Assert.failure("relinquishWriteLock didn't fail");
+        } catch (RuntimeException ex) {
         }
-        Log.warn("End of PLock dump.");
+        Assert.equals(lock.lock.isWriteLocked() || lock.lock.isReadLocked(), false);
+    }
+    
+    @Test private static void testUpgradeWithOtherReaders() throws Exception {
+        final PLock lock = new PLock();
+        final CountDownLatch upgraderReading = new CountDownLatch(1);
+        final CountDownLatch upgraderWriting = new CountDownLatch(1);
+        final CountDownLatch upgraderDone = new CountDownLatch(1);
+        Thread upgrader = new Thread(new Runnable() {
+            public void run() {
+                lock.getReadLock();
+                upgraderReading.countDown();
+                lock.getWriteLock();
+                upgraderWriting.countDown();
+                try {
+                    upgraderDone.await();
+                } catch (InterruptedException ex) {
+                }
+                lock.relinquishWriteLock();
+                lock.relinquishReadLock();
+            }
+        });
+        
+        // While we're reading too, the upgrade has to wait.
+        lock.getReadLock();
+        upgrader.start();
+        Assert.equals(upgraderReading.await(10, TimeUnit.SECONDS), true);
+        Assert.equals(upgraderWriting.await(100, TimeUnit.MILLISECONDS), false);
+        Assert.equals(lock.lock.isWriteLocked(), false);
+        
+        // Once we stop, it gets the write lock, and other readers have to wait for it.
+        lock.relinquishReadLock();
+        Assert.equals(upgraderWriting.await(10, TimeUnit.SECONDS), true);
+        Assert.equals(lock.lock.isWriteLocked(), true);
+        Assert.equals(lock.tryOptimisticRead(), 0L);
+        upgraderDone.countDown();
+        upgrader.join();
+        Assert.equals(lock.lock.isWriteLocked() || lock.lock.isReadLocked(), false);
     }
 }
@@ -0,0 +1,420 @@
+package e.ptextarea;
+
+import e.util.*;
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.util.*;
+import org.jessies.test.*;
+
+/**
+ * Stores a PTextBuffer's characters by memory-mapping the file they come from, decoding only the parts that are actually read.
+ * This is for huge files (logs, typically) that the user mostly just wants to look at: the file's bytes are never copied into the heap, and neither is the whole of its decoded text.
+ * A PMappedText can't be edited; PTextBuffer replaces it with an editable storage before the first edit.
+ *
+ * ASCII and ISO-8859-1 have one byte per character, so characters are read straight out of the mapping.
+ * UTF-8 is decoded a page at a time, and we keep the most recently used pages.
+ * So we know which page a character's in, 'map' decodes the whole file once, without keeping the result, noting the index of each page's first character.
+ *
+ * We don't map files we'd have to fix the line endings of, or UTF-16 files: see 'map'.
+ * Files bigger than 2GiB can't be mapped in one piece, but then neither could a PTextBuffer index their characters.
+ * If the file's truncated while we have it mapped, reading the missing part throws an InternalError.
+ */
+class PMappedText implements PTextStorage {
+    // In bytes. Big enough that decoding a page costs more than finding it, small enough that the pages on screen don't take much heap.
+    private static final int PAGE_SIZE = 64 * 1024;
+    private static final int MAX_CACHED_PAGES = 32;
+    // The low and high bit of every byte in a long.
+    private static final long LOW_BITS = 0x0101010101010101L;
+    private static final long HIGH_BITS = 0x8080808080808080L;
+    
+    private final MappedByteBuffer bytes;
+    private final String encoding;
+    private final int length;
+    // For UTF-8 only: pageByteStarts[i] is the offset of page i's first byte, and pageCharStarts[i] the index of its first character.
+    // Both have an extra element, marking the end.
+    private final int[] pageByteStarts;
+    private final int[] pageCharStarts;
+    
+    // The most recently decoded pages, least recently used first.
+    // Guarded by 'pageCache'.
+    private final LinkedHashMap<Integer, Page> pageCache = new LinkedHashMap<Integer, Page>(MAX_CACHED_PAGES, 0.75f, true) {
+        @Override protected boolean removeEldestEntry(Map.Entry<Integer, Page> eldest) {
+            return size() > MAX_CACHED_PAGES;
+        }
+    };
+    // The page that was last read from, so sequential access doesn't have to go through the cache for every character.
+    // Pages are immutable, so threads racing to set this at least always see a consistent Page.
+    private Page lastPage;
+    
+    /**
+     * A decoded page, holding the characters in [start, start + chars.length).
+     */
+    private static final class Page {
+        private final int start;
+        private final char[] chars;
+        
+        private Page(int start, char[] chars) {
+            this.start = start;
+            this.chars = chars;
+        }
+    }
+    
+    private PMappedText(MappedByteBuffer bytes, String encoding, int length, int[] pageByteStarts, int[] pageCharStarts) {
+        this.bytes = bytes;
+        this.encoding = encoding;
+        this.length = length;
+        this.pageByteStarts = pageByteStarts;
+        this.pageCharStarts = pageCharStarts;
+    }
+    
+    /**
+     * Maps 'file', recognizing the same encodings as ByteBufferDecoder.
+     * Returns null if the file's UTF-16, or contains carriage returns (which PTextBuffer.readFromFile would have to remove), or is too big to map, in which case the caller should read it the usual way.
+     */
+    public static PMappedText map(File file) throws IOException {
+        final MappedByteBuffer bytes;
+        try (FileChannel channel = FileChannel.open(file.toPath())) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                return null;
+            }
+            bytes = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        final int byteCount = bytes.capacity();
+        
+        // The same test for ASCII as ByteBufferDecoder's.
+        // We look at eight bytes at a time, only looking at them individually if any might be interesting.
+        boolean isAscii = true;
+        int i = 0;
+        for (; i + 8 <= byteCount; i += 8) {
+            final long word = bytes.getLong(i);
+            if (((word & HIGH_BITS) | zeroBytes(word) | zeroBytes(word ^ (Ascii.DEL * LOW_BITS)) | zeroBytes(word ^ ('\r' * LOW_BITS))) == 0) {
+                continue;
+            }
+            for (int j = i; j < i + 8; ++j) {
+                final byte b = bytes.get(j);
+                if (b == '\r') {
+                    return null;
+                }
+                isAscii = isAscii && isAscii(b);
+            }
+        }
+        for (; i < byteCount; ++i) {
+            final byte b = bytes.get(i);
+            if (b == '\r') {
+                return null;
+            }
+            isAscii = isAscii && isAscii(b);
+        }
+        if (isAscii) {
+            return new PMappedText(bytes, "UTF-8", byteCount, null, null);
+        }
+        if (byteCount > 1) {
+            final int possibleBom = bytes.getShort(0) & 0xffff;
+            if (possibleBom == 0xfeff || possibleBom == 0xfffe) {
+                return null;
+            }
+        }
+        PMappedText result = indexUtf8(bytes);
+        if (result == null) {
+            // Like ByteBufferDecoder, fall back to ISO-8859-1, which accepts anything.
+            result = new PMappedText(bytes, "ISO-8859-1", byteCount, null, null);
+        }
+        return result;
+    }
+    
+    private static boolean isAscii(byte b) {
+        return b != Ascii.NUL && b < Ascii.DEL && b > 0;
+    }
+    
+    /**
+     * Returns a word with the top bit set in (at least) the first of any zero bytes in 'word', and no bits set if there are none.
+     */
+    private static long zeroBytes(long word) {
+        return (word - LOW_BITS) & ~word & HIGH_BITS;
+    }
+    
+    /**
+     * Decodes all of 'bytes' as UTF-8 a page at a time, returning a PMappedText that knows where each page's characters start, or null if they're not valid UTF-8.
+     */
+    private static PMappedText indexUtf8(MappedByteBuffer bytes) {
+        final int byteCount = bytes.capacity();
+        final CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder();
+        final CharBuffer chars = CharBuffer.allocate(PAGE_SIZE);
+        final int maxPageCount = byteCount / (PAGE_SIZE - 3) + 2;
+        final int[] pageByteStarts = new int[maxPageCount];
+        final int[] pageCharStarts = new int[maxPageCount];
+        int pageCount = 0;
+        int byteStart = 0;
+        int charStart = 0;
+        while (byteStart < byteCount) {
+            final int byteEnd = findPageEnd(bytes, byteStart);
+            chars.clear();
+            decoder.reset();
+            if (decodePage(decoder, bytes, byteStart, byteEnd, chars) == false) {
+                return null;
+            }
+            pageByteStarts[pageCount] = byteStart;
+            pageCharStarts[pageCount] = charStart;
+            ++pageCount;
+            byteStart = byteEnd;
+            charStart += chars.position();
+        }
+        pageByteStarts[pageCount] = byteStart;
+        pageCharStarts[pageCount] = charStart;
+        return new PMappedText(bytes, "UTF-8", charStart, Arrays.copyOf(pageByteStarts, pageCount + 1), Arrays.copyOf(pageCharStarts, pageCount + 1));
+    }
+    
+    /**
+     * Returns where the page starting at 'byteStart' should end: no more than PAGE_SIZE bytes later, and not in the middle of a UTF-8 sequence.
+     */
+    private static int findPageEnd(ByteBuffer bytes, int byteStart) {
+        int byteEnd = byteStart + PAGE_SIZE;
+        if (byteEnd >= bytes.capacity()) {
+            return bytes.capacity();
+        }
+        // Back up over continuation bytes, of which there are at most three in a sequence.
+        while (byteEnd > byteStart + PAGE_SIZE - 3 && (bytes.get(byteEnd) & 0xc0) == 0x80) {
+            --byteEnd;
+        }
+        return byteEnd;
+    }
+    
+    private static boolean decodePage(CharsetDecoder decoder, MappedByteBuffer bytes, int byteStart, int byteEnd, CharBuffer chars) {
+        final ByteBuffer page = bytes.duplicate();
+        page.limit(byteEnd).position(byteStart);
+        return decoder.decode(page, chars, true).isError() == false && decoder.flush(chars).isError() == false;
+    }
+    
+    public String getEncodingName() {
+        return encoding;
+    }
+    
+    public int length() {
+        return length;
+    }
+    
+    public char charAt(int index) {
+        if (pageCharStarts == null) {
+            return (char) (bytes.get(index) & 0xff);
+        }
+        final Page page = getPage(index);
+        return page.chars[index - page.start];
+    }
+    
+    public void getChars(int start, int charCount, char[] destination, int destinationOffset) {
+        final int end = start + charCount;
+        if (pageCharStarts == null) {
+            for (int i = start; i < end; ++i) {
+                destination[destinationOffset++] = (char) (bytes.get(i) & 0xff);
+            }
+            return;
+        }
+        while (start < end) {
+            final Page page = getPage(start);
+            final int copyCount = Math.min(end, page.start + page.chars.length) - start;
+            System.arraycopy(page.chars, start - page.start, destination, destinationOffset, copyCount);
+            start += copyCount;
+            destinationOffset += copyCount;
+        }
+    }
+    
+    public CharSequence copy(int start, int charCount) {
+        final char[] result = new char[charCount];
+        getChars(start, charCount, result, 0);
+        return new CharArrayCharSequence(result);
+    }
+    
+    public PTextStorage getSnapshot() {
+        // We're never edited, so we can be our own snapshot.
+        return this;
+    }
+    
+    public int indexOf(char ch, int startIndex) {
+        if (pageCharStarts == null) {
+            if (ch > 0xff) {
+                return -1;
+            }
+            final byte b = (byte) ch;
+            for (int i = startIndex; i < length; ++i) {
+                if (bytes.get(i) == b) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+        int start = startIndex;
+        while (start < length) {
+            final Page page = getPage(start);
+            final char[] chars = page.chars;
+            for (int i = start - page.start; i < chars.length; ++i) {
+                if (chars[i] == ch) {
+                    return page.start + i;
+                }
+            }
+            start = page.start + chars.length;
+        }
+        return -1;
+    }
+    
+    public void insert(int position, CharSequence chars) {
+        throw new UnsupportedOperationException("mapped text is read-only");
+    }
+    
+    public void remove(int position, int charCount) {
+        throw new UnsupportedOperationException("mapped text is read-only");
+    }
+    
+    public void setText(char[] text) {
+        throw new UnsupportedOperationException("mapped text is read-only");
+    }
+    
+    public void writeTo(Writer writer) throws IOException {
+        final char[] chars = new char[PAGE_SIZE];
+        for (int start = 0; start < length; start += chars.length) {
+            final int charCount = Math.min(chars.length, length - start);
+            getChars(start, charCount, chars, 0);
+            writer.write(chars, 0, charCount);
+        }
+    }
+    
+    /**
+     * Returns the decoded page containing the character at 'index'.
+     */
+    private Page getPage(int index) {
+        final Page page = lastPage;
+        if (page != null && index >= page.start && index < page.start + page.chars.length) {
+            return page;
+        }
+        int pageIndex = Arrays.binarySearch(pageCharStarts, index);
+        if (pageIndex < 0) {
+            pageIndex = -pageIndex - 2;
+        }
+        Page result;
+        synchronized (pageCache) {
+            result = pageCache.get(pageIndex);
+            if (result == null) {
+                result = decodePage(pageIndex);
+                pageCache.put(pageIndex, result);
+            }
+        }
+        lastPage = result;
+        return result;
+    }
+    
+    private Page decodePage(int pageIndex) {
+        final int charStart = pageCharStarts[pageIndex];
+        final CharBuffer chars = CharBuffer.allocate(pageCharStarts[pageIndex + 1] - charStart);
+        // We decoded every page successfully in 'indexUtf8', so we can't fail now, unless the file's changed under us.
+        if (decodePage(StandardCharsets.UTF_8.newDecoder(), bytes, pageByteStarts[pageIndex], pageByteStarts[pageIndex + 1], chars) == false || chars.hasRemaining()) {
+            throw new RuntimeException("mapped file changed: page " + pageIndex + " no longer decodes to the same characters");
+        }
+        return new Page(charStart, chars.array());
+    }
+    
+    /**
+     * Returns 'bytes' mapped, or null if PMappedText won't map them.
+     */
+    private static PMappedText mapTestBytes(byte[] bytes) throws IOException {
+        File file = File.createTempFile("mapped", ".txt");
+        try {
+            java.nio.file.Files.write(file.toPath(), bytes);
+            return map(file);
+        } finally {
+            file.delete();
+        }
+    }
+    
+    /**
+     * Checks that 'bytes' map to the same characters and encoding as PTextBuffer.readFromFile gets, and that reading them in pieces gets the same characters too.
+     */
+    private static PMappedText checkAgainstReadFromFile(byte[] bytes) throws IOException {
+        final PMappedText text = mapTestBytes(bytes);
+        File file = File.createTempFile("read", ".txt");
+        final PTextBuffer buffer = new PTextBuffer();
+        try {
+            java.nio.file.Files.write(file.toPath(), bytes);
+            buffer.readFromFile(file);
+        } finally {
+            file.delete();
+        }
+        final String expected = buffer.toString();
+        Assert.equals(text.getEncodingName(), buffer.getProperty(PTextBuffer.CHARSET_PROPERTY));
+        Assert.equals(text.length(), expected.length());
+        Assert.equals(text.copy(0, text.length()).toString(), expected);
+        for (int i = 0; i < expected.length(); ++i) {
+            if (text.charAt(i) != expected.charAt(i)) {
+                Assert.failure("character " + i + " is " + (int) text.charAt(i) + " rather than " + (int) expected.charAt(i));
+            }
+        }
+        StringWriter writer = new StringWriter();
+        text.writeTo(writer);
+        Assert.equals(writer.toString(), expected);
+        return text;
+    }
+    
+    @Test private static void testPageBoundaries() throws IOException {
+        // Sequences of every length straddling the page boundaries at every point, with ASCII either side.
+        final String[] sequences = { "\u00e9", "\u20ac", "\ud83d\ude00" };
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        for (String sequence : sequences) {
+            final byte[] sequenceBytes = sequence.getBytes(StandardCharsets.UTF_8);
+            for (int offset = 1; offset < sequenceBytes.length; ++offset) {
+                while ((bytes.size() + offset) % PAGE_SIZE != 0) {
+                    bytes.write(bytes.size() % 80 == 79 ? '\n' : 'x');
+                }
+                bytes.write(sequenceBytes, 0, sequenceBytes.length);
+            }
+        }
+        bytes.write('y');
+        final PMappedText text = checkAgainstReadFromFile(bytes.toByteArray());
+        Assert.equals(text.pageCharStarts.length > 6, true);
+        // Each page ends at the start of the sequence that would have straddled it.
+        for (int i = 1; i < text.pageByteStarts.length - 1; ++i) {
+            Assert.equals((text.bytes.get(text.pageByteStarts[i]) & 0xc0) != 0x80, true);
+            Assert.equals(text.pageByteStarts[i] > text.pageByteStarts[i - 1] + PAGE_SIZE - 4, true);
+        }
+        
+        // Reads spanning pages, and searches that have to look in later pages.
+        final String expected = text.copy(0, text.length()).toString();
+        final int start = text.pageCharStarts[1] - 5;
+        final char[] chars = new char[3 * PAGE_SIZE];
+        text.getChars(start, chars.length, chars, 0);
+        Assert.equals(new String(chars), expected.substring(start, start + chars.length));
+        Assert.equals(text.indexOf('\u20ac', 0), expected.indexOf('\u20ac'));
+        Assert.equals(text.indexOf('\ude00', text.pageCharStarts[2]), expected.indexOf('\ude00', text.pageCharStarts[2]));
+        Assert.equals(text.indexOf('y', 0), expected.length() - 1);
+        Assert.equals(text.indexOf('z', 0), -1);
+    }
+    
+    @Test private static void testEncodings() throws IOException {
+        // ASCII is read straight out of the mapping.
+        PMappedText text = checkAgainstReadFromFile("hello, world\n".getBytes(StandardCharsets.US_ASCII));
+        Assert.equals(text.pageCharStarts == null, true);
+        Assert.equals(text.indexOf('w', 3), 7);
+        Assert.equals(text.indexOf('\u20ac', 0), -1);
+        
+        // Invalid UTF-8 (even after some valid UTF-8) falls back to ISO-8859-1.
+        final byte[] invalid = "caf\u00e9 \u00ff".getBytes(StandardCharsets.UTF_8);
+        invalid[invalid.length - 1] = (byte) 0xff;
+        text = checkAgainstReadFromFile(invalid);
+        Assert.equals(text.getEncodingName(), "ISO-8859-1");
+        Assert.equals(text.indexOf('\u00ff', 0), invalid.length - 1);
+        
+        // An empty file is fine too.
+        text = checkAgainstReadFromFile(new byte[0]);
+        Assert.equals(text.length(), 0);
+        Assert.equals(text.indexOf('x', 0), -1);
+    }
+    
+    @Test private static void testUnmappableFiles() throws IOException {
+        // Carriage returns would need removing, wherever they are.
+        Assert.equals(mapTestBytes("a\r\nb\n".getBytes(StandardCharsets.US_ASCII)), null);
+        Assert.equals(mapTestBytes("abcdefghijklmnopqrstuvwxyz\r".getBytes(StandardCharsets.US_ASCII)), null);
+        Assert.equals(mapTestBytes("caf\u00e9\r\n".getBytes(StandardCharsets.UTF_8)), null);
+        // UTF-16 of either byte order ("UTF-16" is big-endian, with a byte order mark).
+        Assert.equals(mapTestBytes("hello".getBytes(StandardCharsets.UTF_16)), null);
+        Assert.equals(mapTestBytes(new byte[] { (byte) 0xff, (byte) 0xfe, 'h', 0, 'i', 0 }), null);
+    }
+}
@@ -17,6 +17,58 @@ public class PPerlTextStyler extends PAbstractLanguageStyler {
         return (ch == '\'' || ch == '\"' || ch == '`');
     }
     
+    @Override protected String getHereDocumentRegularExpression() {
+        // "<<~" (Perl 5.26) lets the terminator be indented.
+        return "<<(?<indent>~?)(?<quote>[\"'`]?)(?<tag>[A-Za-z_]\\w*)\\k<quote>";
+    }
+    
+    @Override protected boolean canStartHereDocument(String line, int index) {
+        // After an operand, "<<" is a shift: "1<<FOO", "$x<<FOO", and "($x)<<FOO" don't start here documents.
+        // After anything else, including a bareword like "print", it's a here document.
+        // So is "print $fh <<EOF", where the variable's a filehandle rather than an operand.
+        int i = index - 1;
+        while (i >= 0 && Character.isWhitespace(line.charAt(i))) {
+            --i;
+        }
+        if (i < 0) {
+            return true;
+        }
+        final char ch = line.charAt(i);
+        if (ch == ')' || ch == ']' || ch == '}') {
+            return false;
+        }
+        if (Character.isLetterOrDigit(ch) == false && ch != '_') {
+            return true;
+        }
+        int wordStart = i;
+        while (wordStart > 0 && (Character.isLetterOrDigit(line.charAt(wordStart - 1)) || line.charAt(wordStart - 1) == '_')) {
+            --wordStart;
+        }
+        final boolean isNumber = Character.isDigit(line.charAt(wordStart));
+        final boolean isVariable = wordStart > 0 && "$@%".indexOf(line.charAt(wordStart - 1)) != -1;
+        if (isVariable && line.charAt(wordStart - 1) == '$' && isPrintFunctionBefore(line, wordStart - 1)) {
+            return true;
+        }
+        return (isNumber || isVariable) == false;
+    }
+    
+    // Returns true if the word before 'index' in 'line' is one of the functions that can take a filehandle.
+    private static boolean isPrintFunctionBefore(String line, int index) {
+        int end = index;
+        while (end > 0 && Character.isWhitespace(line.charAt(end - 1))) {
+            --end;
+        }
+        if (end == index) {
+            return false;
+        }
+        int start = end;
+        while (start > 0 && Character.isLetter(line.charAt(start - 1))) {
+            --start;
+        }
+        final String word = line.substring(start, end);
+        return word.equals("print") || word.equals("printf") || word.equals("say");
+    }
+    
     public String[] getKeywords() {
         return new String[] {
             // Find/Replaced into shape from the latest revision of "keywords.pl",
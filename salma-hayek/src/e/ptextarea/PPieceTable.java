@@ -0,0 +1,445 @@
+package e.ptextarea;
+
+import e.util.*;
+import java.io.*;
+import java.util.*;
+import org.jessies.test.*;
+
+/**
+ * Stores a PTextBuffer's characters as a sequence of pieces, each a run of characters in an array that never changes.
+ *
+ * The array given to setText (a file's decoded content, say) is used as it is, and never copied.
+ * Inserted characters are appended to "add" arrays, which are only ever appended to, so they can be shared too.
+ * An edit just rearranges pieces: however big the file, and however far apart the edits, no existing characters are moved.
+ *
+ * The pieces are the nodes of a treap (a binary tree kept balanced by giving each node a random priority), in document order, each node knowing how many characters are in its subtree.
+ * The nodes are immutable: an edit copies the nodes on the paths it changes, and shares all the others with the version before.
+ * So finding a character, making an edit, and taking a Snapshot of a range (for the undo buffer, say) are all O(log n) in the number of pieces.
+ * A Snapshot is unaffected by later edits, and inserting one (when an edit's undone, say) just splices its pieces back in.
+ * For the same reason, 'getSnapshot' is O(1).
+ */
+class PPieceTable implements PTextStorage {
+    // Big enough that typing rarely needs a new add array, small enough not to matter.
+    private static final int ADD_CHUNK_SIZE = 64 * 1024;
+    
+    private static final Random random = new Random();
+    
+    private Snapshot text = new Snapshot(null);
+    // The add array we're currently appending to, and how much of it's in use.
+    private char[] addChars = new char[0];
+    private int addCharsUsed = 0;
+    
+    /**
+     * A run of characters, and the root of a subtree of runs.
+     */
+    private static final class Node {
+        private final char[] chars;
+        private final int offset;
+        private final int length;
+        private final int priority;
+        private final Node left;
+        private final Node right;
+        // The number of characters in this subtree.
+        private final int size;
+        
+        private Node(char[] chars, int offset, int length, int priority, Node left, Node right) {
+            this.chars = chars;
+            this.offset = offset;
+            this.length = length;
+            this.priority = priority;
+            this.left = left;
+            this.right = right;
+            this.size = size(left) + length + size(right);
+        }
+        
+        private Node withChildren(Node newLeft, Node newRight) {
+            if (newLeft == left && newRight == right) {
+                return this;
+            }
+            return new Node(chars, offset, length, priority, newLeft, newRight);
+        }
+    }
+    
+    /**
+     * Remembers which piece a Snapshot last found a character in.
+     * The character at 'index', for 'start' <= 'index' < 'end', is chars[index - base].
+     */
+    private static final class Location {
+        private final char[] chars;
+        private final int base;
+        private final int start;
+        private final int end;
+        
+        private Location(Node piece, int start) {
+            this.chars = piece.chars;
+            this.base = start - piece.offset;
+            this.start = start;
+            this.end = start + piece.length;
+        }
+    }
+    
+    /**
+     * An immutable sequence of characters from a piece table, as they were when the Snapshot was taken.
+     */
+    static final class Snapshot implements CharSequence {
+        private final Node root;
+        // Sequential access would otherwise search the tree for every character.
+        // A Location is replaced rather than updated, so threads racing to use it always see a consistent one.
+        private Location lastLocation;
+        
+        private Snapshot(Node root) {
+            this.root = root;
+        }
+        
+        public int length() {
+            return size(root);
+        }
+        
+        public char charAt(int index) {
+            if (index < 0 || index >= length()) {
+                throw new IndexOutOfBoundsException("index " + index + " not in half-open range [0.." + length() + ")");
+            }
+            return charAtValidIndex(index);
+        }
+        
+        private char charAtValidIndex(int index) {
+            final Location location = lastLocation;
+            if (location != null && index >= location.start && index < location.end) {
+                return location.chars[index - location.base];
+            }
+            Node node = root;
+            int pieceStart = 0;
+            while (true) {
+                final int leftSize = size(node.left);
+                if (index < pieceStart + leftSize) {
+                    node = node.left;
+                    continue;
+                }
+                pieceStart += leftSize;
+                if (index < pieceStart + node.length) {
+                    lastLocation = new Location(node, pieceStart);
+                    return node.chars[node.offset + index - pieceStart];
+                }
+                pieceStart += node.length;
+                node = node.right;
+            }
+        }
+        
+        public CharSequence subSequence(int start, int end) {
+            if (start < 0 || end > length() || start > end) {
+                throw new IndexOutOfBoundsException("subSequence(" + start + ", " + end + ") of sequence of length " + length());
+            }
+            return new Snapshot(slice(root, start, end));
+        }
+        
+        public void getChars(int start, int charCount, char[] destination, int destinationOffset) {
+            PPieceTable.getChars(root, start, start + charCount, destination, destinationOffset);
+        }
+        
+        public String toString() {
+            final char[] chars = new char[length()];
+            getChars(0, chars.length, chars, 0);
+            return new String(chars);
+        }
+    }
+    
+    public int length() {
+        return text.length();
+    }
+    
+    public char charAt(int index) {
+        return text.charAtValidIndex(index);
+    }
+    
+    public void getChars(int start, int charCount, char[] destination, int destinationOffset) {
+        text.getChars(start, charCount, destination, destinationOffset);
+    }
+    
+    public CharSequence copy(int start, int charCount) {
+        return text.subSequence(start, start + charCount);
+    }
+    
+    public PTextStorage getSnapshot() {
+        // Our current Snapshot is already immutable, so this is O(1).
+        final PPieceTable result = new PPieceTable();
+        result.text = text;
+        return result;
+    }
+    
+    public int indexOf(char ch, int startIndex) {
+        return indexOf(text.root, ch, startIndex);
+    }
+    
+    public void insert(int position, CharSequence chars) {
+        final Node[] halves = new Node[2];
+        split(text.root, position, halves);
+        if (chars instanceof Snapshot) {
+            setRoot(merge(merge(halves[0], ((Snapshot) chars).root), halves[1]));
+            return;
+        }
+        final int charCount = chars.length();
+        if (charCount == 0) {
+            return;
+        }
+        // When typing, each keystroke's characters go straight after the last's in the add array, so we just make the last keystroke's piece longer.
+        final Node previous = lastPiece(halves[0]);
+        if (previous != null && previous.chars == addChars && previous.offset + previous.length == addCharsUsed && charCount <= addChars.length - addCharsUsed) {
+            append(chars);
+            setRoot(merge(extendLastPiece(halves[0], charCount), halves[1]));
+            return;
+        }
+        if (charCount > addChars.length - addCharsUsed) {
+            addChars = new char[Math.max(ADD_CHUNK_SIZE, charCount)];
+            addCharsUsed = 0;
+        }
+        final Node piece = new Node(addChars, addCharsUsed, charCount, random.nextInt(), null, null);
+        append(chars);
+        setRoot(merge(merge(halves[0], piece), halves[1]));
+    }
+    
+    public void remove(int position, int charCount) {
+        final Node[] halves = new Node[2];
+        split(text.root, position, halves);
+        final Node before = halves[0];
+        split(halves[1], charCount, halves);
+        setRoot(merge(before, halves[1]));
+    }
+    
+    public void setText(char[] chars) {
+        setRoot((chars.length == 0) ? null : new Node(chars, 0, chars.length, random.nextInt(), null, null));
+        // The old add arrays are only kept alive by the pieces (in the undo buffer, say) that still use them.
+        addChars = new char[0];
+        addCharsUsed = 0;
+    }
+    
+    public void writeTo(Writer writer) throws IOException {
+        writeTo(text.root, writer);
+    }
+    
+    private void setRoot(Node root) {
+        text = new Snapshot(root);
+    }
+    
+    /**
+     * Copies 'chars' to the end of the add array, which the caller has made sure has room.
+     */
+    private void append(CharSequence chars) {
+        final int charCount = chars.length();
+        if (chars instanceof CharArrayCharSequence) {
+            ((CharArrayCharSequence) chars).copyTo(addChars, addCharsUsed);
+        } else if (chars instanceof String) {
+            ((String) chars).getChars(0, charCount, addChars, addCharsUsed);
+        } else {
+            for (int i = 0; i < charCount; ++i) {
+                addChars[addCharsUsed + i] = chars.charAt(i);
+            }
+        }
+        addCharsUsed += charCount;
+    }
+    
+    private static int size(Node node) {
+        return (node == null) ? 0 : node.size;
+    }
+    
+    /**
+     * Splits 'node' into the characters before 'index', which go in halves[0], and those from 'index' on, which go in halves[1].
+     */
+    private static void split(Node node, int index, Node[] halves) {
+        if (node == null) {
+            halves[0] = null;
+            halves[1] = null;
+            return;
+        }
+        final int leftSize = size(node.left);
+        if (index <= leftSize) {
+            split(node.left, index, halves);
+            halves[1] = node.withChildren(halves[1], node.right);
+        } else if (index >= leftSize + node.length) {
+            split(node.right, index - leftSize - node.length, halves);
+            halves[0] = node.withChildren(node.left, halves[0]);
+        } else {
+            // Cut the piece in two.
+            // The second half gets a new priority: if all the pieces of a much-edited piece shared one, the tree would degenerate into a list.
+            final int cut = index - leftSize;
+            halves[0] = new Node(node.chars, node.offset, cut, node.priority, node.left, null);
+            halves[1] = merge(new Node(node.chars, node.offset + cut, node.length - cut, random.nextInt(), null, null), node.right);
+        }
+    }
+    
+    /**
+     * Joins two trees, all of whose characters come before all of the second's.
+     */
+    private static Node merge(Node left, Node right) {
+        if (left == null) {
+            return right;
+        }
+        if (right == null) {
+            return left;
+        }
+        if (left.priority > right.priority) {
+            return left.withChildren(left.left, merge(left.right, right));
+        }
+        return right.withChildren(merge(left, right.left), right.right);
+    }
+    
+    private static Node slice(Node node, int start, int end) {
+        final Node[] halves = new Node[2];
+        split(node, end, halves);
+        split(halves[0], start, halves);
+        return halves[1];
+    }
+    
+    private static Node lastPiece(Node node) {
+        if (node == null) {
+            return null;
+        }
+        while (node.right != null) {
+            node = node.right;
+        }
+        return node;
+    }
+    
+    private static Node extendLastPiece(Node node, int extraLength) {
+        if (node.right != null) {
+            return node.withChildren(node.left, extendLastPiece(node.right, extraLength));
+        }
+        return new Node(node.chars, node.offset, node.length + extraLength, node.priority, node.left, null);
+    }
+    
+    /**
+     * Copies the characters in [start, end) of the subtree at 'node'.
+     */
+    private static void getChars(Node node, int start, int end, char[] destination, int destinationOffset) {
+        while (node != null && start < end) {
+            final int leftSize = size(node.left);
+            if (start < leftSize) {
+                final int leftEnd = Math.min(end, leftSize);
+                getChars(node.left, start, leftEnd, destination, destinationOffset);
+                destinationOffset += leftEnd - start;
+                start = leftEnd;
+            }
+            final int pieceEnd = leftSize + node.length;
+            if (start < end && start < pieceEnd) {
+                final int copyEnd = Math.min(end, pieceEnd);
+                System.arraycopy(node.chars, node.offset + start - leftSize, destination, destinationOffset, copyEnd - start);
+                destinationOffset += copyEnd - start;
+                start = copyEnd;
+            }
+            start -= pieceEnd;
+            end -= pieceEnd;
+            node = node.right;
+        }
+    }
+    
+    /**
+     * Returns the index within the subtree at 'node' of the first 'ch' at or after 'start', or -1.
+     */
+    private static int indexOf(Node node, char ch, int start) {
+        if (node == null || start >= node.size) {
+            return -1;
+        }
+        final int leftSize = size(node.left);
+        if (start < leftSize) {
+            final int result = indexOf(node.left, ch, start);
+            if (result != -1) {
+                return result;
+            }
+            start = leftSize;
+        }
+        final int pieceEnd = leftSize + node.length;
+        for (int i = start; i < pieceEnd; ++i) {
+            if (node.chars[node.offset + i - leftSize] == ch) {
+                return i;
+            }
+        }
+        final int result = indexOf(node.right, ch, Math.max(0, start - pieceEnd));
+        return (result == -1) ? -1 : pieceEnd + result;
+    }
+    
+    private static void writeTo(Node node, Writer writer) throws IOException {
+        if (node == null) {
+            return;
+        }
+        writeTo(node.left, writer);
+        writer.write(node.chars, node.offset, node.length);
+        writeTo(node.right, writer);
+    }
+    
+    private static int pieceCount(Node node) {
+        return (node == null) ? 0 : pieceCount(node.left) + 1 + pieceCount(node.right);
+    }
+    
+    private static int depth(Node node) {
+        return (node == null) ? 0 : 1 + Math.max(depth(node.left), depth(node.right));
+    }
+    
+    private String contents() {
+        return text.toString();
+    }
+    
+    @Test private static void testEdits() {
+        final Random random = new Random(1);
+        final PPieceTable table = new PPieceTable();
+        table.setText("hello, world\n".toCharArray());
+        final StringBuilder expected = new StringBuilder("hello, world\n");
+        for (int i = 0; i < 2000; ++i) {
+            final int position = random.nextInt(expected.length() + 1);
+            if (random.nextInt(3) == 0 && position < expected.length()) {
+                final int charCount = random.nextInt(Math.min(10, expected.length() - position)) + 1;
+                table.remove(position, charCount);
+                expected.delete(position, position + charCount);
+            } else {
+                final String chars = "x\n".substring(random.nextInt(2)) + i;
+                table.insert(position, chars);
+                expected.insert(position, chars);
+            }
+            Assert.equals(table.length(), expected.length());
+        }
+        Assert.equals(table.contents(), expected.toString());
+        for (int i = 0; i < expected.length(); i += 7) {
+            Assert.equals(table.charAt(i), expected.charAt(i));
+            Assert.equals(table.indexOf('\n', i), expected.indexOf("\n", i));
+        }
+        final StringWriter writer = new StringWriter();
+        try {
+            table.writeTo(writer);
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+        Assert.equals(writer.toString(), expected.toString());
+    }
+    
+    @Test private static void testSnapshots() {
+        final PPieceTable table = new PPieceTable();
+        table.setText("the quick brown fox".toCharArray());
+        final CharSequence quick = table.copy(4, 5);
+        table.remove(4, 6);
+        Assert.equals(table.contents(), "the brown fox");
+        Assert.equals(quick.toString(), "quick");
+        Assert.equals(quick.subSequence(1, 3).toString(), "ui");
+        // Undoing the removal splices the same pieces back in.
+        table.insert(4, " ");
+        table.insert(4, quick);
+        Assert.equals(table.contents(), "the quick brown fox");
+    }
+    
+    @Test private static void testTypingExtendsOnePiece() {
+        final PPieceTable table = new PPieceTable();
+        table.setText("()".toCharArray());
+        for (int i = 0; i < 100; ++i) {
+            table.insert(1 + i, "a");
+        }
+        Assert.equals(pieceCount(table.text.root), 3);
+    }
+    
+    @Test private static void testBalance() {
+        final Random random = new Random(2);
+        final PPieceTable table = new PPieceTable();
+        table.setText(new char[1000000]);
+        for (int i = 0; i < 10000; ++i) {
+            table.insert(random.nextInt(table.length() + 1), "x");
+        }
+        // A treap's expected depth is about 3 log2(n), which is about 45 here.
+        Assert.equals(depth(table.text.root) < 100, true);
+    }
+}
@@ -42,6 +42,27 @@ public class PRubyTextStyler extends PAbstractLanguageStyler {
         return (ch == '\'' || ch == '\"' || ch == '`');
     }
     
+    @Override protected String getHereDocumentRegularExpression() {
+        // Both "<<-" and "<<~" let the terminator be indented.
+        // "class <<self" opens a singleton class, not a here document.
+        return "(?<!\\bclass\\s{1,8})<<(?<indent>[-~]?)(?<quote>[\"'`]?)(?<tag>[A-Za-z_]\\w*)\\k<quote>";
+    }
+    
+    @Override protected boolean canStartHereDocument(String line, int index) {
+        // Like Ruby itself, we take "<<" right after an operand to be a shift (or an append): "out<<line", "1<<BITS", and "a[0]<<x" don't start here documents.
+        // So is "<<" with a space after it, as in "x << y".
+        // With a space before and not after, as in "puts <<EOF", it's a here document.
+        if (index + 2 < line.length() && Character.isWhitespace(line.charAt(index + 2))) {
+            return false;
+        }
+        if (index == 0) {
+            return true;
+        }
+        final char ch = line.charAt(index - 1);
+        final boolean isOperand = Character.isLetterOrDigit(ch) || ch == '_' || ch == ')' || ch == ']' || ch == '}' || isQuote(ch);
+        return (isOperand == false);
+    }
+    
     // http://www.rubycentral.com/book/language.html table 18.3 "Reserved Words":
     public String[] getKeywords() {
         return new String[] {
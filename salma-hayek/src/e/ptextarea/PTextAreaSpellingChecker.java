@@ -171,12 +171,30 @@ public class PTextAreaSpellingChecker implements PTextListener, MenuItemProvider
     /**
      * Checks the spelling of all the text. Runs in a new thread, because
      * it can take a second or more for a large file.
+     * The thread checks a snapshot, so the user can carry on typing, and
+     * the misspellings it finds are then moved to where the user's edits
+     * have left them. Any the user's edited in the meantime are left to
+     * the checks of those edits.
      */
     public void checkSpelling() {
+        final PTextBuffer.Snapshot snapshot = component.getTextBuffer().getSnapshot();
+        removeExistingHighlightsForRange(0, snapshot.length() + 1);
         new Thread(new Runnable() {
             public void run() {
-                PTextBuffer buffer = component.getTextBuffer();
-                checkSpelling(buffer, 0, buffer.length());
+                final List<Range> misspellings = findMisspellings(snapshot, 0, snapshot.length());
+                EventQueue.invokeLater(new Runnable() {
+                    public void run() {
+                        for (Range misspelling : misspellings) {
+                            final int start = snapshot.toLiveOffset(misspelling.getStart(), misspelling.getEnd());
+                            if (start != -1) {
+                                final int end = start + misspelling.getEnd() - misspelling.getStart();
+                                // The check of an edit may already have found this one.
+                                removeExistingHighlightsForRange(start, end);
+                                component.addHighlight(new UnderlineHighlight(component, start, end));
+                            }
+                        }
+                    }
+                });
             }
         }, "Spell-Checker Thread").start();
     }
@@ -228,13 +246,22 @@ public class PTextAreaSpellingChecker implements PTextListener, MenuItemProvider
     }
     
     private void checkSpelling(PTextBuffer buffer, int fromIndex, int toIndex) {
+        removeExistingHighlightsForRange(fromIndex, toIndex);
+        for (Range misspelling : findMisspellings(buffer, fromIndex, toIndex)) {
+            component.addHighlight(new UnderlineHighlight(component, misspelling.getStart(), misspelling.getEnd()));
+        }
+    }
+    
+    /**
+     * Returns the ranges of the misspelled words in [fromIndex, toIndex) of 'buffer'.
+     */
+    private List<Range> findMisspellings(CharSequence buffer, int fromIndex, int toIndex) {
+        ArrayList<Range> result = new ArrayList<>();
         int checkCount = 0;
         int misspellingCount = 0;
         
         SpellingChecker spellingChecker = SpellingChecker.getSharedSpellingCheckerInstance();
         
-        removeExistingHighlightsForRange(fromIndex, toIndex);
-        
         // Breaks the given range up into words, where a changeOfCase or the presence_of_underscores constitutes a word boundary.
         int start = fromIndex;
         int rememberedCase = UNKNOWN_CASE;
@@ -313,11 +340,12 @@ public class PTextAreaSpellingChecker implements PTextListener, MenuItemProvider
             if (spellingChecker.isMisspelledWord(word, component.getFileType())) {
                 misspellingCount++;
                 //System.err.println("Misspelled word \"" + word + "\"");
-                component.addHighlight(new UnderlineHighlight(component, start, finish));
+                result.add(new Range(start, finish));
             }
             
             start = finish;
         }
+        return result;
     }
     
     /**
@@ -4,9 +4,16 @@ import e.util.*;
 import java.io.*;
 import java.nio.*;
 import java.nio.charset.*;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFileAttributes;
 import java.util.*;
 import javax.swing.event.ChangeEvent;
 import javax.swing.event.ChangeListener;
+import org.jessies.test.*;
 
 /**
  * The PTextArea's model. It can be used as a CharSequence, for efficient
@@ -37,6 +44,14 @@ import javax.swing.event.ChangeListener;
  * CHARSET_PROPERTY, which will have been initialized to correspond to the
  * encoding the file had when read from disk, or UTF-8 if this is a new file.
  * 
+ * The characters themselves are kept in a PGapBuffer, or a PPieceTable if
+ * the buffer's been told to 'setUsePieceTable'. A huge file can instead be
+ * read with 'readFromMappedFile', in which case they stay in the file until
+ * the first edit.
+ * 
+ * Background threads that need to read all the text (to check its spelling,
+ * say) should use 'getSnapshot' rather than holding the lock all the while.
+ * 
  * @author Elliott Hughes
  * @author Phil Norman
  */
@@ -45,12 +60,20 @@ public class PTextBuffer implements CharSequence {
     public static final String INDENTATION_PROPERTY = "IndentationProperty";
     public static final String LINE_ENDING_PROPERTY = "LineEndingProperty";
     
-    private static final int MIN_BUFFER_EXTENSION = 100;
-    private static final int MAX_GAP_SIZE = 1024 * 2;
+    // Enough for a Snapshot taken before a long spelling check or ctags run to map its offsets, however fast the user types.
+    private static final int MAX_LOGGED_EDITS = 10000;
     
-    private char[] text = new char[0];
-    private int gapPosition;
-    private int gapLength;
+    private PTextStorage storage = new PGapBuffer();
+    private boolean usePieceTable = false;
+    // The canonical name of the file 'readFromMappedFile' last mapped, which our PMappedText (or a Snapshot of it) may still be reading; see 'writeToFile'.
+    private File mappedFile;
+    // Bumped by every change to the text, so a Snapshot knows which of the logged edits came after it.
+    private int version = 0;
+    // The edits that took the text from 'firstLoggedVersion' to 'version', oldest first, so Snapshots can map their offsets to the live text.
+    private ArrayList<Edit> editLog = new ArrayList<>();
+    private int firstLoggedVersion = 0;
+    // A Snapshot of the current version, if anyone's asked for one since the last edit.
+    private Snapshot snapshot;
     private ArrayList<PTextListener> textListeners = new ArrayList<>();
     private PAnchorSet anchorSet = new PAnchorSet();
     private Undoer undoBuffer = new Undoer();
@@ -71,6 +94,43 @@ public class PTextBuffer implements CharSequence {
         return lock;
     }
     
+    /**
+     * Chooses whether this buffer keeps its characters in a piece table rather than a gap buffer.
+     * A piece table suits huge files: the file's characters aren't copied, and edits (and their undo) cost O(log n) however far apart they are.
+     * A gap buffer is faster for everything else.
+     * Switching copies the current text, so it's best done before 'readFromFile'.
+     */
+    public void setUsePieceTable(boolean usePieceTable) {
+        getLock().getWriteLock();
+        try {
+            this.usePieceTable = usePieceTable;
+            if (storage instanceof PMappedText || usePieceTable == (storage instanceof PPieceTable)) {
+                return;
+            }
+            PTextStorage newStorage = makeEditableStorage();
+            newStorage.setText(copyCharArray(0, length()));
+            storage = newStorage;
+        } finally {
+            getLock().relinquishWriteLock();
+        }
+    }
+    
+    private PTextStorage makeEditableStorage() {
+        return usePieceTable ? new PPieceTable() : new PGapBuffer();
+    }
+    
+    /**
+     * Replaces a PMappedText with editable storage holding the same characters.
+     * This decodes the whole file, so we put it off until the first edit.
+     */
+    private void makeEditable() {
+        if (storage instanceof PMappedText) {
+            PTextStorage newStorage = makeEditableStorage();
+            newStorage.setText(copyCharArray(0, length()));
+            storage = newStorage;
+        }
+    }
+    
     private void initDefaultProperties() {
         putProperty(CHARSET_PROPERTY, "UTF-8");
         putProperty(LINE_ENDING_PROPERTY, "\n");
@@ -162,6 +222,34 @@ public class PTextBuffer implements CharSequence {
             // Use the characters and the inferred encoding.
             putProperty(CHARSET_PROPERTY, encoding);
             setText(chars);
+            mappedFile = null;
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        } finally {
+            getLock().relinquishWriteLock();
+        }
+    }
+    
+    /**
+     * Like 'readFromFile', but for huge files that the user will probably only look at.
+     * The file is memory-mapped rather than read, and only the parts that are looked at are decoded (see PMappedText).
+     * The first edit decodes the whole file, as 'readFromFile' would have.
+     * Files PMappedText can't map are read with 'readFromFile'.
+     */
+    public void readFromMappedFile(File file) {
+        getLock().getWriteLock();
+        try {
+            final PMappedText mappedText = PMappedText.map(file);
+            if (mappedText == null) {
+                readFromFile(file);
+                return;
+            }
+            putProperty(LINE_ENDING_PROPERTY, "\n");
+            putProperty(CHARSET_PROPERTY, mappedText.getEncodingName());
+            storage = mappedText;
+            mappedFile = file.getCanonicalFile();
+            forgetEdits();
+            fireTextEvent(new PTextEvent(this, PTextEvent.COMPLETE_REPLACEMENT, 0, this));
         } catch (IOException ex) {
             throw new RuntimeException(ex);
         } finally {
@@ -179,8 +267,99 @@ public class PTextBuffer implements CharSequence {
     /**
      * Writes the contents of this buffer into the given file, replacing
      * whatever's already there.
+     * 
+     * The file we were read from with 'readFromMappedFile' isn't simply
+     * rewritten in place: truncating it would pull the text out from under the
+     * mapping (which, for as long as there are snapshots of it, may outlive the
+     * first edit), and reading a truncated mapping crashes. Where we can, we
+     * write a new file next to it and rename that over it, leaving the mapping
+     * reading the old file, which the system keeps until it's unmapped. That
+     * would lose something if the file has other names, or an owner or group
+     * we can't give the new file, or is in a directory we can't write, so then
+     * we decode the whole file into editable storage and rewrite it in place
+     * after all.
      */
     public void writeToFile(File file) {
+        getLock().getReadLock();
+        try {
+            if (isMappedFile(file)) {
+                if (replaceFile(file, storage)) {
+                    return;
+                }
+                // Stop reading the mapping ourselves before we truncate the file.
+                getLock().getWriteLock();
+                try {
+                    makeEditable();
+                } finally {
+                    getLock().relinquishWriteLock();
+                }
+            }
+            writeToFile(file, storage);
+        } finally {
+            getLock().relinquishReadLock();
+        }
+    }
+    
+    // Compares canonical names, so saving through a symbolic link to the mapped file counts.
+    private boolean isMappedFile(File file) {
+        if (mappedFile == null) {
+            return false;
+        }
+        try {
+            return file.getCanonicalFile().equals(mappedFile);
+        } catch (IOException ex) {
+            // Better to take the careful route for nothing.
+            return true;
+        }
+    }
+    
+    /**
+     * Replaces 'file' (or, if it's a symbolic link, the file it links to) with a new file holding 'chars', returning false without touching anything if the new file couldn't be just like the old one.
+     */
+    private boolean replaceFile(File file, PTextStorage chars) {
+        final Path path;
+        final PosixFileAttributes attributes;
+        try {
+            path = file.toPath().toRealPath();
+            attributes = Files.readAttributes(path, PosixFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+            final Integer linkCount = (Integer) Files.getAttribute(path, "unix:nlink", LinkOption.NOFOLLOW_LINKS);
+            if (attributes.isRegularFile() == false || linkCount.intValue() != 1 || Files.isWritable(path.getParent()) == false) {
+                return false;
+            }
+        } catch (IOException | UnsupportedOperationException | IllegalArgumentException ex) {
+            // Either the file's gone, or this isn't a Unix file system, where we can't tell whether the file has other names.
+            return false;
+        }
+        File newFile = null;
+        try {
+            newFile = File.createTempFile(path.getFileName().toString(), ".new", path.getParent().toFile());
+            final Path newPath = newFile.toPath();
+            PosixFileAttributeView newAttributes = Files.getFileAttributeView(newPath, PosixFileAttributeView.class);
+            if (newAttributes.readAttributes().owner().equals(attributes.owner()) == false) {
+                // Only the superuser can give a file away.
+                return false;
+            }
+            try {
+                newAttributes.setGroup(attributes.group());
+            } catch (IOException ex) {
+                // We're not in the file's group.
+                return false;
+            }
+            newAttributes.setPermissions(attributes.permissions());
+            writeToFile(newFile, chars);
+            Files.move(newPath, path, StandardCopyOption.REPLACE_EXISTING);
+            newFile = null;
+            return true;
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        } finally {
+            if (newFile != null) {
+                newFile.delete();
+            }
+        }
+    }
+    
+    private void writeToFile(File file, PTextStorage chars) {
         FileOutputStream openFile = null;
         try {
             openFile = new FileOutputStream(file);
@@ -189,7 +368,7 @@ public class PTextBuffer implements CharSequence {
             // be encoded with question marks.
             // This will currently happen if, for example, you have a file "recognized" as ISO-8859-1
             // into which you paste a UTF-8 character which isn't Latin1.
-            writeToStream(new OutputStreamWriter(openFile, charsetName));
+            writeToStream(chars, new OutputStreamWriter(openFile, charsetName));
         } catch (IOException ex) {
             throw new RuntimeException(ex);
         } finally {
@@ -226,24 +405,27 @@ public class PTextBuffer implements CharSequence {
     
     private void writeToStream(OutputStreamWriter outputStreamWriter) {
         getLock().getReadLock();
+        try {
+            writeToStream(storage, outputStreamWriter);
+        } finally {
+            getLock().relinquishReadLock();
+        }
+    }
+    
+    private void writeToStream(PTextStorage chars, OutputStreamWriter outputStreamWriter) {
         try {
             Writer writer = new BufferedWriter(outputStreamWriter);
             
             String lineEnding = (String) getProperty(LINE_ENDING_PROPERTY);
             if (lineEnding.equals("\n")) {
-                // Just write out the two halves as they are.
-                if (gapPosition != 0) {
-                    writer.write(text, 0, gapPosition);
-                }
-                final int gapEnd = gapPosition + gapLength;
-                if (gapEnd < text.length) {
-                    writer.write(text, gapEnd, text.length - gapEnd);
-                }
+                chars.writeTo(writer);
             } else {
                 // Split our internal content into lines, and write them
                 // out individually. Expensive, but why aren't you using
                 // Unix line-endings, crazy person?
-                String[] lines = toString().split("\n");
+                char[] content = new char[chars.length()];
+                chars.getChars(0, content.length, content, 0);
+                String[] lines = new String(content).split("\n");
                 for (String line : lines) {
                     writer.write(line);
                     writer.write(lineEnding);
@@ -252,8 +434,6 @@ public class PTextBuffer implements CharSequence {
             writer.flush();
         } catch (IOException ex) {
             throw new RuntimeException(ex);
-        } finally {
-            getLock().relinquishReadLock();
         }
     }
     
@@ -264,9 +444,11 @@ public class PTextBuffer implements CharSequence {
     private void setText(char[] text) {
         getLock().getWriteLock();
         try {
-            this.text = text;
-            gapPosition = 0;
-            gapLength = 0;
+            if (storage instanceof PMappedText) {
+                storage = makeEditableStorage();
+            }
+            storage.setText(text);
+            forgetEdits();
             fireTextEvent(new PTextEvent(this, PTextEvent.COMPLETE_REPLACEMENT, 0, new CharArrayCharSequence(text)));
         } finally {
             getLock().relinquishWriteLock();
@@ -280,7 +462,15 @@ public class PTextBuffer implements CharSequence {
      * If not, use the CharSequence interface instead.
      */
     private CharSequence copyChars(int start, int charCount) {
-        return new CharArrayCharSequence(copyCharArray(start, charCount));
+        checkRange(start, charCount);
+        // A PPieceTable can do this without copying.
+        return storage.copy(start, charCount);
+    }
+    
+    private void checkRange(int start, int charCount) {
+        if (start < 0 || charCount < 0 || start + charCount > length()) {
+            throw new IllegalArgumentException("start=" + start + " charCount=" + charCount + " length()=" + length());
+        }
     }
     
     /**
@@ -289,20 +479,10 @@ public class PTextBuffer implements CharSequence {
     private char[] copyCharArray(int start, int charCount) {
         getLock().getReadLock();
         try {
-            if (start < 0 || charCount < 0 || start + charCount > length()) {
-                throw new IllegalArgumentException("start=" + start + " charCount=" + charCount + " length()=" + length());
-            }
+            checkRange(start, charCount);
             char[] result = new char[charCount];
             try {
-                int copyCount = 0;
-                if (start < gapPosition) {
-                    copyCount = Math.min(charCount, gapPosition - start);
-                    System.arraycopy(text, start, result, 0, copyCount);
-                }
-                if (start + charCount >= gapPosition) {
-                    int textPosition = Math.max(start, gapPosition) + gapLength;
-                    System.arraycopy(text, textPosition, result, copyCount, result.length - copyCount);
-                }
+                storage.getChars(start, charCount, result, 0);
             } catch (ArrayIndexOutOfBoundsException ex) {
                 Log.warn("Requested get text from " + start + ", length " + charCount + "; size is " + length() +".", ex);
             }
@@ -312,42 +492,6 @@ public class PTextBuffer implements CharSequence {
         }
     }
     
-    /** Moves the gap to the specified position. */
-    private void moveGap(int newPosition) {
-        if (gapPosition == newPosition) {
-            return;
-        }
-        if (newPosition < gapPosition) {
-            System.arraycopy(text, newPosition, text, newPosition + gapLength, gapPosition - newPosition);
-        } else {
-            System.arraycopy(text, gapPosition + gapLength, text, gapPosition, newPosition - gapPosition);
-        }
-        gapPosition = newPosition;
-    }
-    
-    private void changeBufferLength(int lengthChange) {
-        char[] newText = new char[text.length + lengthChange];
-        System.arraycopy(text, 0, newText, 0, gapPosition);
-        int endOffset = gapPosition + gapLength;
-        System.arraycopy(text, endOffset, newText, endOffset + lengthChange, text.length - endOffset);
-        gapLength += lengthChange;
-        text = newText;
-    }
-    
-    /** Expands the buffer. */
-    private void expandBuffer(int requiredGapLength) {
-        int desiredGapIncrease = requiredGapLength + Math.min(MAX_GAP_SIZE, requiredGapLength);
-        changeBufferLength(Math.max(MIN_BUFFER_EXTENSION, desiredGapIncrease));
-    }
-    
-    /** Shrinks the buffer. */
-    private void shrinkBuffer() {
-        if (gapLength > MAX_GAP_SIZE) {
-            int desiredGapLength = Math.max(MIN_BUFFER_EXTENSION, gapLength - MAX_GAP_SIZE);
-            changeBufferLength(desiredGapLength - gapLength);
-        }
-    }
-    
     public void replace(SelectionSetter beforeCaret, int position, int removeCount, CharSequence add, SelectionSetter afterCaret) {
         getLock().getWriteLock();
         try {
@@ -367,41 +511,104 @@ public class PTextBuffer implements CharSequence {
         }
     }
     
+    private void logEdit(int position, int removeCount, int insertCount) {
+        if (editLog.size() == MAX_LOGGED_EDITS) {
+            // Forget the oldest half, which only Snapshots taken long ago could want.
+            editLog.subList(0, MAX_LOGGED_EDITS / 2).clear();
+            firstLoggedVersion += MAX_LOGGED_EDITS / 2;
+        }
+        editLog.add(new Edit(position, removeCount, insertCount));
+        ++version;
+        snapshot = null;
+    }
+    
+    /**
+     * Called when the text's been completely replaced, after which no older Snapshot's offsets mean anything.
+     */
+    private void forgetEdits() {
+        editLog.clear();
+        ++version;
+        firstLoggedVersion = version;
+        snapshot = null;
+    }
+    
+    /**
+     * Returns an immutable copy of the current text, which a background thread can read without locking, however long it takes, without holding up the user's typing.
+     * Use 'Snapshot.toLiveOffset' to find where something found in the snapshot is now.
+     * Snapshots are shared until the next edit.
+     * They're O(1) with a PPieceTable or PMappedText, but a PGapBuffer has to copy its text (which is why large files should use a piece table).
+     */
+    public Snapshot getSnapshot() {
+        getLock().getReadLock();
+        try {
+            Snapshot result = snapshot;
+            if (result == null) {
+                result = new Snapshot(version, storage.getSnapshot());
+                snapshot = result;
+            }
+            return result;
+        } finally {
+            getLock().relinquishReadLock();
+        }
+    }
+    
     /** Special remove method used by the undo buffer. */
     private void removeWithoutUndo(int position, CharSequence chars) {
-        moveGap(position + chars.length());
-        gapPosition -= chars.length();
-        gapLength += chars.length();
-        shrinkBuffer();
+        makeEditable();
+        storage.remove(position, chars.length());
+        logEdit(position, chars.length(), 0);
         fireTextEvent(new PTextEvent(this, PTextEvent.REMOVE, position, chars));
     }
     
     /** Special insertion method used by the undo buffer. */
     private void insertWithoutUndo(int position, CharSequence chars) {
-        moveGap(position);
-        int textLength = chars.length();
-        while (textLength > gapLength) {
-            expandBuffer(textLength);
-        }
-        if (chars instanceof CharArrayCharSequence) {
-            ((CharArrayCharSequence) chars).copyTo(text, gapPosition);
-        } else {
-            // This is the price you pay for giving us a String.
-            for (int i = 0; i < chars.length(); ++i) {
-                text[gapPosition + i] = chars.charAt(i);
-            }
-        }
-        gapPosition += textLength;
-        gapLength -= textLength;
+        makeEditable();
+        storage.insert(position, chars);
+        logEdit(position, 0, chars.length());
         fireTextEvent(new PTextEvent(this, PTextEvent.INSERT, position, chars));
     }
     
     /** Returns the character at the given index.  Part of the CharSequence interface. */
     public char charAt(int index) {
-        if (index < 0 || index >= length()) {
-            throwIOOBE(index);
+        // Reads hardly ever overlap an edit, so we try without locking first (see PLock.tryOptimisticRead).
+        final long stamp = lock.tryOptimisticRead();
+        if (stamp != 0) {
+            boolean inRange = false;
+            char ch = 0;
+            Throwable failure = null;
+            try {
+                inRange = (index >= 0 && index < storage.length());
+                if (inRange) {
+                    ch = storage.charAt(index);
+                }
+            } catch (Throwable th) {
+                // Overlapping an edit can leave us looking at a half-moved PGapBuffer, in which case we'll fail to validate.
+                // That's not always a RuntimeException: we might have been reading a PMappedText that's since been replaced, which throws an InternalError if its file's been truncated.
+                failure = th;
+            }
+            if (lock.validate(stamp)) {
+                if (failure instanceof RuntimeException) {
+                    throw (RuntimeException) failure;
+                } else if (failure instanceof Error) {
+                    throw (Error) failure;
+                } else if (failure != null) {
+                    throw new RuntimeException(failure);
+                }
+                if (inRange == false) {
+                    throwIOOBE(index);
+                }
+                return ch;
+            }
+        }
+        getLock().getReadLock();
+        try {
+            if (index < 0 || index >= storage.length()) {
+                throwIOOBE(index);
+            }
+            return storage.charAt(index);
+        } finally {
+            getLock().relinquishReadLock();
         }
-        return (index < gapPosition) ? text[index] : text[index + gapLength];
     }
     
     private void throwIOOBE(int index) {
@@ -421,24 +628,28 @@ public class PTextBuffer implements CharSequence {
         } else if (startIndex >= length()) {
             return -1;
         }
-        
-        int gapBufferIndex = (startIndex < gapPosition) ? startIndex : (startIndex + gapLength);
-        for (int i = startIndex; i < length(); ++i) {
-            if (text[gapBufferIndex++] == ch) {
-                return i;
-            }
-        }
-        return -1;
+        return storage.indexOf(ch, startIndex);
     }
     
     /** Returns the number of characters in the text area.  Part of the CharSequence interface. */
     public int length() {
-        return text.length - gapLength;
+        final long stamp = lock.tryOptimisticRead();
+        final int length = storage.length();
+        if (stamp != 0 && lock.validate(stamp)) {
+            return length;
+        }
+        getLock().getReadLock();
+        try {
+            return storage.length();
+        } finally {
+            getLock().relinquishReadLock();
+        }
     }
     
     /**
      * Returns a CharSequence which holds the specified section of the PTextBuffer's text.  Part of the
      * CharSequence interface.
+     * The result is a view rather than a copy, and reads through 'charAt', so it doesn't need locking either.
      */
     public CharSequence subSequence(int start, int end) {
         return new SubSequence(start, end);
@@ -451,10 +662,7 @@ public class PTextBuffer implements CharSequence {
     public String toString() {
         getLock().getReadLock();
         try {
-            StringBuilder result = new StringBuilder();
-            result.append(text, 0, gapPosition);
-            result.append(text, gapPosition + gapLength, text.length - gapPosition - gapLength);
-            return result.toString();
+            return new String(copyCharArray(0, length()));
         } finally {
             getLock().relinquishReadLock();
         }
@@ -495,6 +703,112 @@ public class PTextBuffer implements CharSequence {
         }
     }
     
+    /**
+     * An immutable copy of the text as it was at some version, which any thread can read without locking.
+     * See 'getSnapshot'.
+     */
+    public class Snapshot implements CharSequence {
+        private final int snapshotVersion;
+        private final PTextStorage chars;
+        
+        private Snapshot(int snapshotVersion, PTextStorage chars) {
+            this.snapshotVersion = snapshotVersion;
+            this.chars = chars;
+        }
+        
+        public int length() {
+            return chars.length();
+        }
+        
+        public char charAt(int index) {
+            if (index < 0 || index >= chars.length()) {
+                throw new IndexOutOfBoundsException("index " + index + " not in half-open range [0.." + chars.length() + ")");
+            }
+            return chars.charAt(index);
+        }
+        
+        public CharSequence subSequence(int start, int end) {
+            if (start < 0 || end > chars.length() || start > end) {
+                throw new IndexOutOfBoundsException("subSequence(" + start + ", " + end + ") of snapshot of length " + chars.length());
+            }
+            return chars.copy(start, end - start);
+        }
+        
+        public String toString() {
+            char[] result = new char[chars.length()];
+            chars.getChars(0, result.length, result, 0);
+            return new String(result);
+        }
+        
+        /**
+         * Like PTextBuffer.writeToFile, but writes this snapshot's text.
+         */
+        public void writeToFile(File file) {
+            PTextBuffer.this.writeToFile(file, chars);
+        }
+        
+        /**
+         * Returns where the position 'offset' in this snapshot is in the live text, or -1 if the characters either side of it have been removed or it's otherwise been lost.
+         * Text inserted at the position goes before it.
+         */
+        public int toLiveOffset(int offset) {
+            return toLiveOffset(offset, offset);
+        }
+        
+        /**
+         * Returns where the range [start, end) in this snapshot starts in the live text, or -1 if any of it's been removed, or something's been inserted inside it, or it's otherwise been lost.
+         * If the result isn't -1, the range is still 'end - start' characters long, and they're unchanged.
+         */
+        public int toLiveOffset(int start, int end) {
+            getLock().getReadLock();
+            try {
+                if (snapshotVersion < firstLoggedVersion) {
+                    // Either the text's been completely replaced since, or so much has changed that we've forgotten what.
+                    return -1;
+                }
+                for (int i = snapshotVersion - firstLoggedVersion; i < editLog.size(); ++i) {
+                    final Edit edit = editLog.get(i);
+                    final int position = edit.position;
+                    if (edit.removeCount > 0) {
+                        if (position < end && position + edit.removeCount > start) {
+                            return -1;
+                        }
+                        if (position + edit.removeCount <= start) {
+                            start -= edit.removeCount;
+                            end -= edit.removeCount;
+                        }
+                    } else {
+                        if (position > start && position < end) {
+                            return -1;
+                        }
+                        if (position <= start) {
+                            start += edit.insertCount;
+                            end += edit.insertCount;
+                        }
+                    }
+                }
+                return start;
+            } finally {
+                getLock().relinquishReadLock();
+            }
+        }
+    }
+    
+    /**
+     * An entry in the log of edits: either 'removeCount' characters removed at 'position', or 'insertCount' characters inserted there.
+     */
+    private static class Edit {
+        private final int position;
+        private final int removeCount;
+        private final int insertCount;
+        
+        private Edit(int position, int removeCount, int insertCount) {
+            this.position = position;
+            this.removeCount = removeCount;
+            this.insertCount = insertCount;
+        }
+    }
+    
     public class Undoer implements PUndoBuffer {
         private ArrayList<Doable> undoList;
         private int undoPosition;
@@ -689,4 +1003,164 @@ public class PTextBuffer implements CharSequence {
             }
         }
     }
+    
+    @Test private static void testSnapshots() {
+        final PTextBuffer buffer = new PTextBuffer();
+        final SelectionSetter noSelection = new SelectionSetter() {
+            public void modifySelection() {
+            }
+        };
+        buffer.replace(noSelection, 0, 0, "one two three four", noSelection);
+        final Snapshot snapshot = buffer.getSnapshot();
+        Assert.equals(buffer.getSnapshot() == snapshot, true);
+        buffer.replace(noSelection, 0, 3, "1", noSelection);
+        buffer.replace(noSelection, 7, 0, "X", noSelection);
+        Assert.equals(buffer.toString(), "1 two tXhree four");
+        Assert.equals(snapshot.toString(), "one two three four");
+        // "two" has moved left, "three" has been inserted into, and "four" has moved left and then right.
+        Assert.equals(snapshot.toLiveOffset(4, 7), 2);
+        Assert.equals(snapshot.toLiveOffset(8, 13), -1);
+        Assert.equals(snapshot.toLiveOffset(14, 18), 13);
+        Assert.equals(snapshot.toLiveOffset(1), -1);
+        Assert.equals(snapshot.toLiveOffset(3), 1);
+        // Undoing the insertion doesn't make "three" the same characters again.
+        buffer.getUndoBuffer().undo();
+        Assert.equals(snapshot.toLiveOffset(8, 13), -1);
+        Assert.equals(buffer.getSnapshot().toLiveOffset(6, 11), 6);
+    }
+    
+    private static String makeMappableTestText() {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 10000; ++i) {
+            text.append("line ").append(i).append('\n');
+        }
+        return text.toString();
+    }
+    
+    private static void replaceTestText(PTextBuffer buffer, int start, int end, String text) {
+        final SelectionSetter noSelection = new SelectionSetter() {
+            public void modifySelection() {
+            }
+        };
+        buffer.replace(noSelection, start, end, text, noSelection);
+    }
+    
+    @Test private static void testSavingMappedFile() throws IOException {
+        File file = File.createTempFile("mapped", ".txt");
+        try {
+            final String text = makeMappableTestText();
+            final byte[] bytes = text.getBytes("UTF-8");
+            Files.write(file.toPath(), bytes);
+            final PTextBuffer buffer = new PTextBuffer();
+            buffer.readFromMappedFile(file);
+            Assert.equals(buffer.storage instanceof PMappedText, true);
+            final Snapshot snapshot = buffer.getSnapshot();
+            
+            // Saving an unedited mapped buffer over its own file leaves both the file and the mapping intact.
+            buffer.writeToFile(file);
+            Assert.equals(Arrays.equals(Files.readAllBytes(file.toPath()), bytes), true);
+            Assert.equals(buffer.storage instanceof PMappedText, true);
+            Assert.equals(buffer.toString(), text);
+            
+            // As do saving after an edit, and reading a snapshot of the mapping afterwards.
+            replaceTestText(buffer, 0, 4, "LINE");
+            buffer.writeToFile(file);
+            Assert.equals(new String(Files.readAllBytes(file.toPath()), "UTF-8"), "LINE" + text.substring(4));
+            Assert.equals(snapshot.toString(), text);
+            Assert.equals(file.getParentFile().listFiles(new FilenameFilter() {
+                public boolean accept(File directory, String name) {
+                    return name.startsWith(file.getName()) && name.endsWith(".new");
+                }
+            }).length, 0);
+        } finally {
+            file.delete();
+        }
+    }
+    
+    @Test private static void testSavingMappedFileThroughLinks() throws IOException {
+        final Path directory = Files.createTempDirectory("mapped");
+        final Path target = directory.resolve("target.txt");
+        final Path symbolicLink = directory.resolve("symbolic.txt");
+        final Path hardLink = directory.resolve("hard.txt");
+        try {
+            final String text = makeMappableTestText();
+            Files.write(target, text.getBytes("UTF-8"));
+            Files.createSymbolicLink(symbolicLink, target.getFileName());
+            
+            // Saving through a symbolic link replaces the file it links to, and leaves the link alone.
+            PTextBuffer buffer = new PTextBuffer();
+            buffer.readFromMappedFile(symbolicLink.toFile());
+            final Snapshot snapshot = buffer.getSnapshot();
+            replaceTestText(buffer, 0, 4, "LINE");
+            buffer.writeToFile(symbolicLink.toFile());
+            Assert.equals(Files.isSymbolicLink(symbolicLink), true);
+            Assert.equals(new String(Files.readAllBytes(target), "UTF-8"), "LINE" + text.substring(4));
+            Assert.equals(snapshot.toString(), text);
+            
+            // Saving to the target by its own name counts as saving the mapped file too.
+            buffer = new PTextBuffer();
+            buffer.readFromMappedFile(symbolicLink.toFile());
+            buffer.writeToFile(target.toFile());
+            Assert.equals(buffer.storage instanceof PMappedText, true);
+            Assert.equals(buffer.toString(), "LINE" + text.substring(4));
+            
+            // A file with another name can't be replaced without that name keeping the old text, so it's decoded and rewritten in place.
+            Files.createLink(hardLink, target);
+            buffer = new PTextBuffer();
+            buffer.readFromMappedFile(target.toFile());
+            replaceTestText(buffer, 0, 4, "Line");
+            buffer.writeToFile(target.toFile());
+            Assert.equals(buffer.storage instanceof PMappedText, false);
+            Assert.equals(new String(Files.readAllBytes(hardLink), "UTF-8"), "Line" + text.substring(4));
+            Assert.equals(Files.isSameFile(hardLink, target), true);
+        } finally {
+            Files.deleteIfExists(hardLink);
+            Files.deleteIfExists(symbolicLink);
+            Files.deleteIfExists(target);
+            Files.delete(directory);
+        }
+    }
+    
+    @Test private static void testOptimisticReadFailures() throws Exception {
+        final PTextBuffer buffer = new PTextBuffer();
+        // An Error from storage an edit's changed under us is retried with the lock, like any other failure.
+        buffer.storage = new PGapBuffer() {
+            private boolean failed = false;
+            
+            @Override public char charAt(int index) {
+                if (failed) {
+                    return super.charAt(index);
+                }
+                failed = true;
+                Thread writer = new Thread(new Runnable() {
+                    public void run() {
+                        buffer.getLock().getWriteLock();
+                        buffer.getLock().relinquishWriteLock();
+                    }
+                });
+                writer.start();
+                try {
+                    writer.join();
+                } catch (InterruptedException ex) {
+                }
+                throw new InternalError("test");
+            }
+        };
+        buffer.storage.setText("hello".toCharArray());
+        Assert.equals(buffer.charAt(1), 'e');
+        
+        // A failure that isn't down to overlapping an edit is passed on, whatever it is.
+        buffer.storage = new PGapBuffer() {
+            @Override public char charAt(int index) {
+                throw new InternalError("test");
+            }
+        };
+        buffer.storage.setText("hello".toCharArray());
+        try {
+            buffer.charAt(1);
+            Assert.failure("charAt didn't fail");
+        } catch (InternalError ex) {
+            Assert.equals(ex.getMessage(), "test");
+        }
+    }
 }
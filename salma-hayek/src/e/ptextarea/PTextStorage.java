@@ -0,0 +1,63 @@
+package e.ptextarea;
+
+import java.io.*;
+
+/**
+ * Holds a PTextBuffer's characters.
+ * The PTextBuffer does the locking, the undo, and the notification; a PTextStorage just stores.
+ *
+ * PGapBuffer is the default, and suits the files people usually edit.
+ * PPieceTable suits huge files, where PGapBuffer's copying hurts.
+ */
+interface PTextStorage {
+    /**
+     * Returns the number of characters stored.
+     */
+    public int length();
+    
+    /**
+     * Returns the character at the given index, which the caller has already checked.
+     */
+    public char charAt(int index);
+    
+    /**
+     * Copies the characters in [start, start + charCount) into 'destination', starting at 'destinationOffset'.
+     */
+    public void getChars(int start, int charCount, char[] destination, int destinationOffset);
+    
+    /**
+     * Returns the characters in [start, start + charCount) as a sequence unaffected by future edits.
+     */
+    public CharSequence copy(int start, int charCount);
+    
+    /**
+     * Returns a storage holding the current characters that's unaffected by future edits, and mustn't itself be edited.
+     * This is what a PTextBuffer.Snapshot reads from.
+     */
+    public PTextStorage getSnapshot();
+    
+    /**
+     * Returns the index of the first occurrence of 'ch' at or after 'startIndex', which is in range, or -1.
+     */
+    public int indexOf(char ch, int startIndex);
+    
+    /**
+     * Inserts 'chars' at 'position'.
+     */
+    public void insert(int position, CharSequence chars);
+    
+    /**
+     * Removes 'charCount' characters starting at 'position'.
+     */
+    public void remove(int position, int charCount);
+    
+    /**
+     * Replaces everything with 'text', which is not copied, and mustn't be modified by the caller afterwards.
+     */
+    public void setText(char[] text);
+    
+    /**
+     * Writes all the characters to 'writer'.
+     */
+    public void writeTo(Writer writer) throws IOException;
+}
@@ -48,13 +48,14 @@ public class GuiUtilities {
     // that we need. (Reported by Tanel Poder.)
     // All of this can be replaced by just getMenuShortcutKeyMaskEx() >= Java 10.
     @SuppressWarnings("deprecation") // getMenuShortcutKeyMaskEx requires Java 10.
-    private static final int defaultKeyStrokeModifier = GuiUtilities.isMacOs() ? InputEvent.META_DOWN_MASK : Toolkit.getDefaultToolkit().getMenuShortcutKeyMask();
+    // A headless toolkit (as used by benchmarks) can't tell us, but then there's no keyboard either.
+    private static final int defaultKeyStrokeModifier = GuiUtilities.isMacOs() ? InputEvent.META_DOWN_MASK : (GraphicsEnvironment.isHeadless() ? InputEvent.CTRL_MASK : Toolkit.getDefaultToolkit().getMenuShortcutKeyMask());
     
     /**
      * An invisible cursor, useful if you want to hide the cursor when the
      * user is typing.
      */
-    public static final Cursor INVISIBLE_CURSOR = Toolkit.getDefaultToolkit().createCustomCursor(new BufferedImage(1, 1, BufferedImage.TYPE_4BYTE_ABGR), new Point(0, 0), "invisible");
+    public static final Cursor INVISIBLE_CURSOR = GraphicsEnvironment.isHeadless() ? Cursor.getDefaultCursor() : Toolkit.getDefaultToolkit().createCustomCursor(new BufferedImage(1, 1, BufferedImage.TYPE_4BYTE_ABGR), new Point(0, 0), "invisible");
     
     private static final Color MAC_OS_ALTERNATE_ROW_COLOR = new Color(0.92f, 0.95f, 0.99f);
     
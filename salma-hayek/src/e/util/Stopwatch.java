@@ -2,6 +2,7 @@ package e.util;
 
 import static e.util.TimeUtilities.nsToString;
 import java.util.*;
+import org.jessies.test.*;
 
 /**
  * Collects timing data.
@@ -16,6 +17,11 @@ import java.util.*;
  *     } finally {
  *         timer.stop();
  *     }
+ * 
+ * A duration measured some other way (because it starts on one thread and ends on another, say) can be recorded with addSample.
+ * 
+ * As well as the minimum, maximum, and mean, we keep a histogram, so we can report percentiles.
+ * The histogram's buckets grow exponentially, four to each power of two, so each is accurate to within 25%.
  */
 public class Stopwatch {
     private static final Map<String, Stopwatch> stopwatches = new HashMap<>();
@@ -26,6 +32,10 @@ public class Stopwatch {
     private long maxDuration_ns = 0;
     private long totalDuration_ns = 0;
     
+    // Bucket i counts the durations d with bucketLowerBound(i) <= d < bucketLowerBound(i + 1).
+    private static final int BUCKET_COUNT = 4 + 61 * 4;
+    private final long[] histogram = new long[BUCKET_COUNT];
+    
     private Stopwatch(String name) {
         this.name = name;
     }
@@ -41,7 +51,12 @@ public class Stopwatch {
         }
     }
     
-    private synchronized void recordTiming(long duration_ns) {
+    /**
+     * Records a duration measured without a Timer.
+     */
+    public synchronized void addSample(long duration_ns) {
+        duration_ns = Math.max(0, duration_ns);
+        ++histogram[bucketIndex(duration_ns)];
         ++sampleCount;
         if (minDuration_ns > duration_ns) {
             minDuration_ns = duration_ns;
@@ -52,6 +67,50 @@ public class Stopwatch {
         totalDuration_ns += duration_ns;
     }
     
+    private static int bucketIndex(long duration_ns) {
+        if (duration_ns < 4) {
+            return (int) duration_ns;
+        }
+        // The top two bits below the most significant one choose the bucket within its power of two.
+        final int log2 = 63 - Long.numberOfLeadingZeros(duration_ns);
+        return 4 + (log2 - 2) * 4 + (int) ((duration_ns >>> (log2 - 2)) & 3);
+    }
+    
+    private static long bucketLowerBound(int index) {
+        if (index < 4) {
+            return index;
+        }
+        final int log2 = 2 + (index - 4) / 4;
+        return (long) (4 + (index - 4) % 4) << (log2 - 2);
+    }
+    
+    /**
+     * Returns (an upper bound on) the duration that the given fraction of the samples didn't exceed.
+     */
+    public synchronized long getPercentile(double fraction) {
+        if (sampleCount == 0) {
+            return 0;
+        }
+        final long target = (long) Math.ceil(fraction * sampleCount);
+        long count = 0;
+        for (int i = 0; i < BUCKET_COUNT; ++i) {
+            count += histogram[i];
+            if (count >= Math.max(1, target)) {
+                // The bucket's upper bound might be more than we've ever seen.
+                return Math.min(maxDuration_ns, (i + 1 < BUCKET_COUNT) ? bucketLowerBound(i + 1) - 1 : Long.MAX_VALUE);
+            }
+        }
+        return maxDuration_ns;
+    }
+    
+    public synchronized void reset() {
+        sampleCount = 0;
+        minDuration_ns = Long.MAX_VALUE;
+        maxDuration_ns = 0;
+        totalDuration_ns = 0;
+        Arrays.fill(histogram, 0);
+    }
+    
     public Timer start() {
         return new Timer();
     }
@@ -62,20 +121,60 @@ public class Stopwatch {
         if (sampleCount == 0) {
             result += " (no samples)";
         } else {
-            result += StringUtilities.pluralize(sampleCount, "sample", "samples") + ", " + nsToString(totalDuration_ns) + " total, " + nsToString(minDuration_ns) + ".." + nsToString(maxDuration_ns) + " (mean " + nsToString(totalDuration_ns/sampleCount) + ")";
+            result += StringUtilities.pluralize(sampleCount, "sample", "samples") + ", " + nsToString(totalDuration_ns) + " total, " + nsToString(minDuration_ns) + ".." + nsToString(maxDuration_ns) + " (mean " + nsToString(totalDuration_ns/sampleCount) + ", p50 " + nsToString(getPercentile(0.5)) + ", p90 " + nsToString(getPercentile(0.9)) + ", p99 " + nsToString(getPercentile(0.99)) + ")";
         }
         return result;
     }
     
-    public static String toStringAll() {
-        Stopwatch[] all;
-        synchronized (stopwatches) {
-            all = stopwatches.values().toArray(new Stopwatch[stopwatches.size()]);
+    /**
+     * Returns our summary followed by a bar chart of our histogram, one line per non-empty bucket.
+     */
+    public synchronized String toStringWithHistogram() {
+        StringBuilder result = new StringBuilder(toString());
+        result.append("\n");
+        long maxCount = 0;
+        for (long count : histogram) {
+            maxCount = Math.max(maxCount, count);
+        }
+        for (int i = 0; i < BUCKET_COUNT; ++i) {
+            if (histogram[i] == 0) {
+                continue;
+            }
+            final int barLength = (int) Math.max(1, (50 * histogram[i]) / maxCount);
+            result.append(String.format("  %8s..%-8s %8d ", boundToString(bucketLowerBound(i)), boundToString(bucketLowerBound(i + 1)), histogram[i]));
+            for (int j = 0; j < barLength; ++j) {
+                result.append('#');
+            }
+            result.append("\n");
+        }
+        return result.toString();
+    }
+    
+    // nsToString truncates to whole units, which would make neighboring buckets look the same.
+    private static String boundToString(long ns) {
+        if (ns < 1000L) {
+            return ns + "ns";
+        } else if (ns < 1000000L) {
+            return String.format("%.3gus", ns / 1e3);
+        } else if (ns < 1000000000L) {
+            return String.format("%.3gms", ns / 1e6);
+        } else {
+            return String.format("%.3gs", ns / 1e9);
         }
-        
+    }
+    
+    public static String toStringAll() {
+        return toStringAll(false);
+    }
+    
+    /**
+     * Describes every stopwatch, in order of name, optionally with its histogram.
+     */
+    public static String toStringAll(boolean withHistograms) {
+        Stopwatch[] all = getAll();
         StringBuilder result = new StringBuilder();
         for (Stopwatch stopwatch : all) {
-            result.append(stopwatch.toString());
+            result.append(withHistograms ? stopwatch.toStringWithHistogram() : stopwatch.toString());
             result.append("\n");
         }
         if (all.length == 0) {
@@ -84,6 +183,49 @@ public class Stopwatch {
         return result.toString();
     }
     
+    public static void resetAll() {
+        for (Stopwatch stopwatch : getAll()) {
+            stopwatch.reset();
+        }
+    }
+    
+    private static Stopwatch[] getAll() {
+        Stopwatch[] all;
+        synchronized (stopwatches) {
+            all = stopwatches.values().toArray(new Stopwatch[stopwatches.size()]);
+        }
+        Arrays.sort(all, new Comparator<Stopwatch>() {
+            public int compare(Stopwatch lhs, Stopwatch rhs) {
+                return lhs.name.compareTo(rhs.name);
+            }
+        });
+        return all;
+    }
+    
+    @Test private static void testBuckets() {
+        for (int i = 0; i < BUCKET_COUNT; ++i) {
+            Assert.equals(bucketIndex(bucketLowerBound(i)), i);
+            if (i > 0) {
+                Assert.equals(bucketIndex(bucketLowerBound(i) - 1), i - 1);
+            }
+        }
+        Assert.equals(bucketIndex(Long.MAX_VALUE), BUCKET_COUNT - 1);
+    }
+    
+    @Test private static void testPercentiles() {
+        Stopwatch stopwatch = new Stopwatch("test");
+        Assert.equals(stopwatch.getPercentile(0.5), 0L);
+        for (long i = 1; i <= 100; ++i) {
+            stopwatch.addSample(i * 1000);
+        }
+        // The buckets are only accurate to 25%.
+        Assert.equals(stopwatch.getPercentile(0.5) >= 50000 && stopwatch.getPercentile(0.5) < 50000 * 5 / 4, true);
+        Assert.equals(stopwatch.getPercentile(0.9) >= 90000 && stopwatch.getPercentile(0.9) < 90000 * 5 / 4, true);
+        Assert.equals(stopwatch.getPercentile(1.0), 100000L);
+        stopwatch.reset();
+        Assert.equals(stopwatch.getPercentile(0.5), 0L);
+    }
+    
     public class Timer {
         final long t0_ns = System.nanoTime();
         long t1_ns;
@@ -91,7 +233,7 @@ public class Stopwatch {
         }
         public void stop() {
             t1_ns = System.nanoTime();
-            recordTiming(ns());
+            addSample(ns());
         }
         public long ns() {
             return t1_ns - t0_ns;
@@ -0,0 +1,96 @@
+package e.util;
+
+import static e.util.TimeUtilities.nsToString;
+import java.util.*;
+
+/**
+ * Counts things going past, and how fast they went.
+ *
+ * Use it like this:
+ *
+ *   private static final ThroughputCounter bytesCounter = ThroughputCounter.get("bytes read");
+ *
+ *     bytesCounter.add(byteCount);
+ *
+ * The rate is measured over the time between the first and the most recent samples, so idle time before or after a burst doesn't count.
+ * It's not measured between samples, though, so something that's only busy now and then will look slower than it is.
+ */
+public class ThroughputCounter {
+    private static final Map<String, ThroughputCounter> counters = new HashMap<>();
+    
+    private String name;
+    private int sampleCount = 0;
+    private long total = 0;
+    private long maxSample = 0;
+    private long firstSample_ns;
+    private long lastSample_ns;
+    
+    private ThroughputCounter(String name) {
+        this.name = name;
+    }
+    
+    public static ThroughputCounter get(String name) {
+        synchronized (counters) {
+            ThroughputCounter counter = counters.get(name);
+            if (counter == null) {
+                counter = new ThroughputCounter(name);
+                counters.put(name, counter);
+            }
+            return counter;
+        }
+    }
+    
+    public synchronized void add(long count) {
+        final long now_ns = System.nanoTime();
+        if (sampleCount == 0) {
+            firstSample_ns = now_ns;
+        }
+        lastSample_ns = now_ns;
+        ++sampleCount;
+        total += count;
+        if (maxSample < count) {
+            maxSample = count;
+        }
+    }
+    
+    public synchronized long getTotal() {
+        return total;
+    }
+    
+    @Override
+    public synchronized String toString() {
+        String result = "\"" + name + "\": ";
+        if (sampleCount == 0) {
+            result += " (no samples)";
+        } else {
+            result += total + " total in " + StringUtilities.pluralize(sampleCount, "sample", "samples") + " (max " + maxSample + ", mean " + (total / sampleCount) + ")";
+            final long duration_ns = lastSample_ns - firstSample_ns;
+            if (duration_ns > 0) {
+                result += ", " + ((long) (total / TimeUtilities.nsToS(duration_ns))) + "/s over " + nsToString(duration_ns);
+            }
+        }
+        return result;
+    }
+    
+    public static String toStringAll() {
+        ThroughputCounter[] all;
+        synchronized (counters) {
+            all = counters.values().toArray(new ThroughputCounter[counters.size()]);
+        }
+        Arrays.sort(all, new Comparator<ThroughputCounter>() {
+            public int compare(ThroughputCounter lhs, ThroughputCounter rhs) {
+                return lhs.name.compareTo(rhs.name);
+            }
+        });
+        
+        StringBuilder result = new StringBuilder();
+        for (ThroughputCounter counter : all) {
+            result.append(counter.toString());
+            result.append("\n");
+        }
+        if (all.length == 0) {
+            result.append("(No throughput counters.)");
+        }
+        return result.toString();
+    }
+}
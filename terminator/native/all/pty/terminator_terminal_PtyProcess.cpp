@@ -11,6 +11,8 @@
 #include "toString.h"
 #include "unix_exception.h"
 
+#include <fcntl.h>
+#include <poll.h>
 #include <stdlib.h>
 #include <string.h>
 #include <sys/stat.h>
@@ -19,6 +21,7 @@
 #endif
 #include <sys/types.h>
 #include <termios.h>
+#include <unistd.h>
 
 // Deque is the default choice of container in C++.
 // Using vector connotes a requirement for contiguity.
@@ -92,6 +95,82 @@ void terminator_terminal_PtyProcess::nativeStartProcess(jstring javaExecutable,
     slavePtyName = newStringUtf8(ptyGenerator.getSlavePtyName());
 }
 
+jint terminator_terminal_PtyProcess::nativeRead(jobject buffer, jint offset, jint byteCount) {
+    // PtyProcess.read has already checked that this is a direct buffer, so we can read straight into it.
+    char* bytes = static_cast<char*>(m_env->GetDirectBufferAddress(buffer));
+    ssize_t n;
+    do {
+        n = ::read(fd.get(), bytes + offset, byteCount);
+    } while (n == -1 && errno == EINTR);
+    if (n == -1 && (errno == EAGAIN || errno == EWOULDBLOCK)) {
+        // We're non-blocking, and there's nothing to read yet.
+        return -1;
+    }
+    if (n == -1) {
+        throw unix_exception("read(" + toString(fd.get()) + ", buffer, " + toString(byteCount) + ") failed");
+    }
+    return n;
+}
+
+static void setNonBlocking(int fd) {
+    int flags = ::fcntl(fd, F_GETFL);
+    if (flags == -1 || ::fcntl(fd, F_SETFL, flags | O_NONBLOCK) == -1) {
+        throw unix_exception("fcntl(" + toString(fd) + ", F_SETFL, O_NONBLOCK) failed");
+    }
+}
+
+void terminator_terminal_PtyProcess::nativeSetNonBlocking() {
+    setNonBlocking(fd.get());
+}
+
+// These must match PtyProcess' POLL_ constants (whose names the generated header's fields would hide).
+static const jint JAVA_POLL_READABLE = 1;
+static const jint JAVA_POLL_WRITABLE = 2;
+static const jint JAVA_POLL_HANGUP = 4;
+
+jint terminator_terminal_PtyProcess::nativePoll(jintArray javaFds, jintArray javaEvents, jintArray javaRevents, jint fdCount, jint timeout_ms) {
+    std::vector<jint> fds(fdCount);
+    std::vector<jint> events(fdCount);
+    m_env->GetIntArrayRegion(javaFds, 0, fdCount, &fds[0]);
+    m_env->GetIntArrayRegion(javaEvents, 0, fdCount, &events[0]);
+    
+    std::vector<struct pollfd> pollFds(fdCount);
+    for (jint i = 0; i != fdCount; ++i) {
+        pollFds[i].fd = fds[i];
+        pollFds[i].events = ((events[i] & JAVA_POLL_READABLE) ? POLLIN : 0) | ((events[i] & JAVA_POLL_WRITABLE) ? POLLOUT : 0);
+        pollFds[i].revents = 0;
+    }
+    int rc;
+    do {
+        rc = ::poll(&pollFds[0], fdCount, timeout_ms);
+    } while (rc == -1 && errno == EINTR);
+    if (rc == -1) {
+        throw unix_exception("poll(fds, " + toString(fdCount) + ", " + toString(timeout_ms) + ") failed");
+    }
+    
+    std::vector<jint> revents(fdCount);
+    for (jint i = 0; i != fdCount; ++i) {
+        short r = pollFds[i].revents;
+        revents[i] = ((r & POLLIN) ? JAVA_POLL_READABLE : 0) | ((r & POLLOUT) ? JAVA_POLL_WRITABLE : 0) | ((r & (POLLHUP | POLLERR | POLLNVAL)) ? JAVA_POLL_HANGUP : 0);
+    }
+    m_env->SetIntArrayRegion(javaRevents, 0, fdCount, &revents[0]);
+    return rc;
+}
+
+void terminator_terminal_PtyProcess::nativeMakePipe(jintArray javaFds) {
+    int fds[2];
+    if (::pipe(fds) == -1) {
+        throw unix_exception("pipe(fds) failed");
+    }
+    for (int i = 0; i != 2; ++i) {
+        setNonBlocking(fds[i]);
+        // Our children have no business with the pipe.
+        ::fcntl(fds[i], F_SETFD, FD_CLOEXEC);
+    }
+    jint javaFdValues[2] = { fds[0], fds[1] };
+    m_env->SetIntArrayRegion(javaFds, 0, 2, javaFdValues);
+}
+
 void terminator_terminal_PtyProcess::sendResizeNotification(jobject sizeInChars, jobject sizeInPixels) {
     if (fd.get() == -1) {
         // We shouldn't read or write from a closed pty, but this will happen if the user resizes a window whose child has died.
@@ -67,7 +67,9 @@ public class InfoDialog {
             JButton showInFinderButton = new JButton(GuiUtilities.isMacOs() ? "Show in Finder" : "Show in Explorer");
             showInFinderButton.addActionListener(new ActionListener() {
                 public void actionPerformed(ActionEvent e) {
-                    terminal.getControl().getTerminalLogWriter().flush();
+                    if (terminal.getControl().getTerminalLogWriter() != null) {
+                        terminal.getControl().getTerminalLogWriter().flush();
+                    }
                     GuiUtilities.selectFileInFileViewer(logFilename.getText());
                 }
             });
@@ -96,6 +98,13 @@ public class InfoDialog {
         }
         
         final TerminalLogWriter terminalLogWriter = terminal.getControl().getTerminalLogWriter();
+        if (terminalLogWriter == null) {
+            // A terminal showing a log doesn't log.
+            logFilename.setText("(not logging)");
+            suspendLogging.setSelected(false);
+            suspendLogging.setEnabled(false);
+            return;
+        }
         logFilename.setText(terminalLogWriter.getInfo());
         suspendLogging.setSelected(terminalLogWriter.isSuspended());
         suspendLogging.setEnabled(Terminator.getPreferences().getBoolean(TerminatorPreferences.LOG_TERMINAL_ACTIVITY));
@@ -0,0 +1,1008 @@
+package terminator;
+
+import e.util.*;
+import java.io.*;
+import java.nio.charset.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.*;
+import org.jessies.test.*;
+
+/**
+ * An inverted index of the words in the terminal logs, so the user can search all of them at once (see LogSearchDialog).
+ *
+ * Each log is divided into blocks of BLOCK_LINE_COUNT lines, and each word maps to the list of blocks it appears in.
+ * A word is a run of letters, digits, and underscores, folded to lower case; escape sequences aren't part of any word.
+ * The lists are kept compressed, as variable-length differences between successive block numbers.
+ * Searching intersects the lists for the query's words, and then reads just the candidate blocks of the logs to find the lines that contain all the words.
+ * For that we remember where in the (uncompressed) log each block starts; this assumes the logs are UTF-8.
+ *
+ * New output is indexed as the TerminalLogWriter writes it, on the log writer's background thread.
+ * Logs we haven't seen (because they were written by a Terminator that wasn't indexing, say), and the ends of logs that were still being written when the index was last saved, are indexed by a background scan of the logs directory when the index is loaded.
+ * The index is saved in the logs directory every few minutes, and when Terminator exits.
+ * Logs that have been deleted are dropped from the index when it's loaded.
+ *
+ * Only logs are indexed: files whose names end in ".txt" (including the later parts of a split log, "x.2.txt" and so on), or ".txt.gz" if they're compressed.
+ * Anything else in the logs directory (session recordings, the index itself, or whatever the user's put there) is ignored, as is a log whose name doesn't follow that convention.
+ */
+class LogIndex {
+    private static final int BLOCK_LINE_COUNT = 64;
+    private static final int MIN_WORD_LENGTH = 2;
+    private static final int MAX_WORD_LENGTH = 32;
+    private static final int MAX_HIT_COUNT = 1000;
+    private static final long SAVE_INTERVAL_MINUTES = 5;
+    
+    private static final String INDEX_FILENAME = "log-index";
+    private static final String MAGIC = "terminator-log-index";
+    private static final int FORMAT_VERSION = 1;
+    
+    private static LogIndex instance;
+    
+    private final File directory;
+    private final ScheduledExecutorService executor = ThreadUtilities.newSingleThreadScheduledExecutor("Log Indexer");
+    
+    // Everything below is guarded by 'this'.
+    // Documents that have been deleted are left in the list (as null) so that the indexes of the others don't change.
+    private final ArrayList<Document> documents = new ArrayList<>();
+    private final HashMap<String, Document> documentsByName = new HashMap<>();
+    private final HashMap<String, Postings> postings = new HashMap<>();
+    // What each block of every document is: its document's index, and its number within that document.
+    private int blockCount = 0;
+    private int[] blockDocuments = new int[1024];
+    private int[] blockNumbers = new int[1024];
+    private boolean dirty = false;
+    // Held while saving, so two saves (the periodic one, and the one when Terminator exits) don't write the same temporary file.
+    private final Object saveLock = new Object();
+    
+    /**
+     * What we know about one log file.
+     * A log that's being split into parts (see TerminatorPreferences.LOG_ROTATION_MEGABYTES) has a Document per part.
+     */
+    static class Document {
+        private final String name;
+        private final int index;
+        // True while the TerminalLogWriter is still feeding us the log's text, so the scan leaves it alone.
+        private boolean live;
+        // The lines and bytes indexed, up to the end of the last complete line.
+        private int lineCount = 0;
+        private long byteCount = 0;
+        // The length of the file when we'd indexed all of it, or -1 if we haven't (yet).
+        private long fileLength = -1;
+        private int blockCount = 0;
+        private int[] blockIds = new int[4];
+        private long[] blockOffsets = new long[4];
+        
+        // The tokenizer's state.
+        private long partialLineByteCount = 0;
+        private final StringBuilder word = new StringBuilder();
+        private int escapeState = NORMAL;
+        private final HashSet<String> blockWords = new HashSet<>();
+        
+        private Document(String name, int index) {
+            this.name = name;
+            this.index = index;
+        }
+    }
+    
+    // The tokenizer's escape-sequence states.
+    private static final int NORMAL = 0;
+    private static final int ESCAPE = 1;
+    private static final int CSI = 2;
+    private static final int OSC = 3;
+    
+    /**
+     * The blocks a word appears in.
+     * Blocks are numbered in the order they were started, but several logs can be being written at once, so a list isn't necessarily in order; the differences are zig-zag encoded so they can be negative.
+     */
+    private static class Postings {
+        private byte[] bytes = new byte[4];
+        private int length = 0;
+        private int lastBlockId = 0;
+        
+        private void add(int blockId) {
+            final int delta = blockId - lastBlockId;
+            int value = (delta << 1) ^ (delta >> 31);
+            if (length + 5 > bytes.length) {
+                bytes = Arrays.copyOf(bytes, 2 * bytes.length + 5);
+            }
+            while ((value & ~0x7f) != 0) {
+                bytes[length++] = (byte) ((value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            bytes[length++] = (byte) value;
+            lastBlockId = blockId;
+        }
+        
+        /** Returns the blocks, sorted and without duplicates. */
+        private int[] toSortedArray() {
+            int[] result = new int[length];
+            int count = 0;
+            int blockId = 0;
+            for (int i = 0; i < length; ) {
+                int value = 0;
+                int shift = 0;
+                byte b;
+                do {
+                    b = bytes[i++];
+                    value |= (b & 0x7f) << shift;
+                    shift += 7;
+                } while ((b & 0x80) != 0);
+                blockId += (value >>> 1) ^ -(value & 1);
+                result[count++] = blockId;
+            }
+            Arrays.sort(result, 0, count);
+            int uniqueCount = 0;
+            for (int i = 0; i < count; ++i) {
+                if (uniqueCount == 0 || result[uniqueCount - 1] != result[i]) {
+                    result[uniqueCount++] = result[i];
+                }
+            }
+            return Arrays.copyOf(result, uniqueCount);
+        }
+    }
+    
+    /**
+     * A line of a log that contains all the words searched for.
+     */
+    static class Hit {
+        private final File file;
+        private final int lineIndex;
+        private final String text;
+        
+        private Hit(File file, int lineIndex, String text) {
+            this.file = file;
+            this.lineIndex = lineIndex;
+            this.text = text;
+        }
+        
+        File getFile() {
+            return file;
+        }
+        
+        /** Returns the index of the line in its log, counting from 0. */
+        int getLineIndex() {
+            return lineIndex;
+        }
+        
+        @Override public String toString() {
+            return file.getName() + ":" + (lineIndex + 1) + ": " + text;
+        }
+    }
+    
+    /**
+     * Returns the index of the logs directory, loading it (and starting the scan of the directory) if necessary.
+     * Returns null if there's no logs directory.
+     */
+    static synchronized LogIndex getInstance() {
+        if (instance == null) {
+            String logsDirectoryName = System.getProperty("org.jessies.terminator.logDirectory");
+            if (logsDirectoryName == null || new File(logsDirectoryName).isDirectory() == false) {
+                return null;
+            }
+            instance = new LogIndex(new File(logsDirectoryName));
+        }
+        return instance;
+    }
+    
+    /**
+     * Saves the index, if it's been loaded; for when Terminator's exiting.
+     */
+    static void saveIfLoaded() {
+        LogIndex index;
+        synchronized (LogIndex.class) {
+            index = instance;
+        }
+        if (index != null) {
+            index.save();
+        }
+    }
+    
+    private LogIndex(File directory) {
+        this.directory = directory;
+        load();
+        executor.execute(new Runnable() {
+            public void run() {
+                scan();
+            }
+        });
+        executor.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                save();
+            }
+        }, SAVE_INTERVAL_MINUTES, SAVE_INTERVAL_MINUTES, TimeUnit.MINUTES);
+    }
+    
+    /**
+     * Returns the Document for the given log, which the caller will be feeding us the text of.
+     */
+    synchronized Document startLiveDocument(File file) {
+        final String name = file.getName();
+        Document old = documentsByName.get(name);
+        if (old != null) {
+            // The caller feeds us the log from its start, so we forget anything the scan has indexed of it (because it found the new file in the directory before the caller got here).
+            // The scan notices it's been replaced, and stops.
+            documents.set(old.index, null);
+            documentsByName.remove(name);
+        }
+        Document document = getDocument(name);
+        document.live = true;
+        return document;
+    }
+    
+    /**
+     * Records that the given log is complete.
+     */
+    synchronized void finishLiveDocument(Document document, File file) {
+        endWord(document);
+        document.live = false;
+        document.fileLength = file.length();
+        dirty = true;
+    }
+    
+    private Document getDocument(String name) {
+        Document document = documentsByName.get(name);
+        if (document == null) {
+            document = new Document(name, documents.size());
+            documents.add(document);
+            documentsByName.put(name, document);
+            startBlock(document);
+        }
+        return document;
+    }
+    
+    /**
+     * Indexes some more of the given log's text.
+     */
+    synchronized void add(Document document, char[] chars, int offset, int count) {
+        final int end = offset + count;
+        for (int i = offset; i < end; ++i) {
+            final char ch = chars[i];
+            document.partialLineByteCount += (ch < 0x80) ? 1 : (ch < 0x800 || Character.isSurrogate(ch)) ? 2 : 3;
+            if (ch == '\n') {
+                // Even in the middle of an escape sequence, a newline is a newline (as it is to the terminal).
+                endWord(document);
+                endLine(document);
+                continue;
+            }
+            switch (document.escapeState) {
+            case NORMAL:
+                if (ch == Ascii.ESC) {
+                    endWord(document);
+                    document.escapeState = ESCAPE;
+                } else if (isWordCharacter(ch)) {
+                    // We don't need the whole of an over-long word to know we're going to ignore it.
+                    if (document.word.length() <= MAX_WORD_LENGTH) {
+                        document.word.append(Character.toLowerCase(ch));
+                    }
+                } else {
+                    endWord(document);
+                }
+                break;
+            case ESCAPE:
+                document.escapeState = (ch == '[') ? CSI : (ch == ']') ? OSC : NORMAL;
+                break;
+            case CSI:
+                if (ch >= 0x40 && ch <= 0x7e) {
+                    document.escapeState = NORMAL;
+                }
+                break;
+            case OSC:
+                if (ch == Ascii.BEL) {
+                    document.escapeState = NORMAL;
+                } else if (ch == Ascii.ESC) {
+                    document.escapeState = ESCAPE;
+                }
+                break;
+            }
+        }
+        dirty = true;
+    }
+    
+    private static boolean isWordCharacter(char ch) {
+        return Character.isLetterOrDigit(ch) || ch == '_';
+    }
+    
+    private void endWord(Document document) {
+        final int length = document.word.length();
+        if (length >= MIN_WORD_LENGTH && length <= MAX_WORD_LENGTH) {
+            final String word = document.word.toString();
+            if (document.blockWords.add(word)) {
+                Postings list = postings.get(word);
+                if (list == null) {
+                    list = new Postings();
+                    postings.put(word, list);
+                }
+                list.add(document.blockIds[document.blockCount - 1]);
+            }
+        }
+        document.word.setLength(0);
+    }
+    
+    private void endLine(Document document) {
+        document.byteCount += document.partialLineByteCount;
+        document.partialLineByteCount = 0;
+        ++document.lineCount;
+        if (document.lineCount % BLOCK_LINE_COUNT == 0) {
+            startBlock(document);
+        }
+    }
+    
+    private void startBlock(Document document) {
+        if (blockCount == blockDocuments.length) {
+            blockDocuments = Arrays.copyOf(blockDocuments, 2 * blockCount);
+            blockNumbers = Arrays.copyOf(blockNumbers, 2 * blockCount);
+        }
+        if (document.blockCount == document.blockIds.length) {
+            document.blockIds = Arrays.copyOf(document.blockIds, 2 * document.blockCount);
+            document.blockOffsets = Arrays.copyOf(document.blockOffsets, 2 * document.blockCount);
+        }
+        blockDocuments[blockCount] = document.index;
+        blockNumbers[blockCount] = document.blockCount;
+        document.blockIds[document.blockCount] = blockCount;
+        document.blockOffsets[document.blockCount] = document.byteCount;
+        ++document.blockCount;
+        ++blockCount;
+        document.blockWords.clear();
+    }
+    
+    /**
+     * Indexes any logs (or the ends of any logs) we haven't already, and forgets any that have been deleted.
+     * Runs on our background thread.
+     */
+    private void scan() {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files);
+        HashSet<String> names = new HashSet<>();
+        for (File file : files) {
+            final String name = file.getName();
+            if (isLogName(name) == false) {
+                continue;
+            }
+            names.add(name);
+            final Document document;
+            synchronized (this) {
+                document = getDocument(name);
+                if (document.live || document.fileLength == file.length()) {
+                    continue;
+                }
+            }
+            try {
+                indexFile(document, file);
+            } catch (IOException ex) {
+                Log.warn("Problem indexing log \"" + file + "\"", ex);
+            }
+        }
+        removeDocumentsOtherThan(names);
+    }
+    
+    /**
+     * Returns true if the given file name is one TerminalLogWriter would give a log.
+     * TerminalLogWriter.openLog relies on compressed logs, and only compressed logs, ending in ".gz".
+     */
+    static boolean isLogName(String name) {
+        return name.endsWith(".txt") || name.endsWith(".txt.gz");
+    }
+    
+    private void indexFile(Document document, File file) throws IOException {
+        try (InputStream in = openLog(file)) {
+            final long byteCount;
+            synchronized (this) {
+                // Anything after the last complete line will be indexed again, but that's harmless.
+                byteCount = document.byteCount;
+                document.partialLineByteCount = 0;
+                document.word.setLength(0);
+                document.escapeState = NORMAL;
+            }
+            skipFully(in, byteCount);
+            Reader reader = new InputStreamReader(in, StandardCharsets.UTF_8);
+            char[] chars = new char[8192];
+            int charCount;
+            while ((charCount = reader.read(chars)) != -1) {
+                synchronized (this) {
+                    if (isBeingScanned(document) == false) {
+                        return;
+                    }
+                    add(document, chars, 0, charCount);
+                }
+            }
+        }
+        synchronized (this) {
+            if (isBeingScanned(document)) {
+                endWord(document);
+                document.fileLength = file.length();
+            }
+        }
+    }
+    
+    // Returns false if the document's writer has started feeding us its text since the scan started on it.
+    // Must be called with our lock held.
+    private boolean isBeingScanned(Document document) {
+        return document.live == false && documents.get(document.index) == document;
+    }
+    
+    private synchronized void removeDocumentsOtherThan(Set<String> names) {
+        boolean removedAny = false;
+        for (int i = 0; i < documents.size(); ++i) {
+            Document document = documents.get(i);
+            if (document != null && document.live == false && names.contains(document.name) == false) {
+                documents.set(i, null);
+                documentsByName.remove(document.name);
+                removedAny = true;
+            }
+        }
+        if (removedAny == false) {
+            return;
+        }
+        // Rewrite the postings without the deleted documents' blocks.
+        for (Iterator<Postings> it = postings.values().iterator(); it.hasNext(); ) {
+            Postings list = it.next();
+            Postings newList = new Postings();
+            for (int blockId : list.toSortedArray()) {
+                if (documents.get(blockDocuments[blockId]) != null) {
+                    newList.add(blockId);
+                }
+            }
+            if (newList.length == 0) {
+                it.remove();
+            } else {
+                list.bytes = newList.bytes;
+                list.length = newList.length;
+                list.lastBlockId = newList.lastBlockId;
+            }
+        }
+        dirty = true;
+    }
+    
+    /**
+     * Returns the lines of the logs that contain all the words in the query, most recent logs first.
+     * At most MAX_HIT_COUNT lines are returned.
+     * Output that's been indexed but not yet written to its log (which the TerminalLogWriter does within a second or so) isn't found.
+     */
+    List<Hit> search(String query) throws IOException {
+        final Set<String> words = getWords(query);
+        ArrayList<Hit> hits = new ArrayList<>();
+        if (words.isEmpty()) {
+            return hits;
+        }
+        
+        // Find the blocks that contain all the words, and where they are, while we've got the lock.
+        // The file I/O comes later, without it.
+        ArrayList<File> candidateFiles = new ArrayList<>();
+        ArrayList<long[]> candidateBlocks = new ArrayList<>();
+        synchronized (this) {
+            int[] blockIds = null;
+            for (String word : words) {
+                Postings list = postings.get(word);
+                if (list == null) {
+                    return hits;
+                }
+                blockIds = (blockIds == null) ? list.toSortedArray() : intersect(blockIds, list.toSortedArray());
+            }
+            // Group the blocks by document, most recent document (by name, which starts with a timestamp) first.
+            TreeMap<String, ArrayList<long[]>> blocksByName = new TreeMap<>(Collections.reverseOrder());
+            for (int blockId : blockIds) {
+                Document document = documents.get(blockDocuments[blockId]);
+                if (document == null) {
+                    continue;
+                }
+                ArrayList<long[]> blocks = blocksByName.get(document.name);
+                if (blocks == null) {
+                    blocks = new ArrayList<>();
+                    blocksByName.put(document.name, blocks);
+                }
+                final int blockNumber = blockNumbers[blockId];
+                blocks.add(new long[] { document.blockOffsets[blockNumber], (long) blockNumber * BLOCK_LINE_COUNT });
+            }
+            for (Map.Entry<String, ArrayList<long[]>> entry : blocksByName.entrySet()) {
+                for (long[] block : entry.getValue()) {
+                    candidateFiles.add(new File(directory, entry.getKey()));
+                    candidateBlocks.add(block);
+                }
+            }
+        }
+        
+        // Check the candidate blocks' lines.
+        InputStream in = null;
+        File currentFile = null;
+        long position = 0;
+        try {
+            for (int i = 0; i < candidateFiles.size() && hits.size() < MAX_HIT_COUNT; ++i) {
+                final File file = candidateFiles.get(i);
+                final long offset = candidateBlocks.get(i)[0];
+                int lineIndex = (int) candidateBlocks.get(i)[1];
+                if (file.equals(currentFile) == false || offset < position) {
+                    if (in != null) {
+                        in.close();
+                    }
+                    in = openLog(file);
+                    currentFile = file;
+                    position = 0;
+                }
+                skipFully(in, offset - position);
+                position = offset;
+                ByteArrayOutputStream line = new ByteArrayOutputStream();
+                for (int j = 0; j < BLOCK_LINE_COUNT && hits.size() < MAX_HIT_COUNT; ++j, ++lineIndex) {
+                    line.reset();
+                    final int byteCount = readLine(in, line);
+                    if (byteCount == 0) {
+                        // The end of the file; the rest of the block hasn't been flushed yet.
+                        break;
+                    }
+                    position += byteCount;
+                    final String text = getVisibleText(new String(line.toByteArray(), StandardCharsets.UTF_8));
+                    if (getWords(text).containsAll(words)) {
+                        hits.add(new Hit(file, lineIndex, text.trim()));
+                    }
+                }
+            }
+        } catch (FileNotFoundException ex) {
+            // The log's been deleted since we last scanned the directory.
+        } finally {
+            if (in != null) {
+                in.close();
+            }
+        }
+        return hits;
+    }
+    
+    private static int[] intersect(int[] lhs, int[] rhs) {
+        int[] result = new int[Math.min(lhs.length, rhs.length)];
+        int count = 0;
+        for (int i = 0, j = 0; i < lhs.length && j < rhs.length; ) {
+            if (lhs[i] < rhs[j]) {
+                ++i;
+            } else if (lhs[i] > rhs[j]) {
+                ++j;
+            } else {
+                result[count++] = lhs[i];
+                ++i;
+                ++j;
+            }
+        }
+        return Arrays.copyOf(result, count);
+    }
+    
+    /**
+     * Returns the distinct words in the given text, as we'd index them.
+     */
+    static Set<String> getWords(String text) {
+        LinkedHashSet<String> words = new LinkedHashSet<>();
+        final int length = text.length();
+        for (int start = 0; start < length; ) {
+            if (isWordCharacter(text.charAt(start)) == false) {
+                ++start;
+                continue;
+            }
+            int end = start;
+            while (end < length && isWordCharacter(text.charAt(end))) {
+                ++end;
+            }
+            if (end - start >= MIN_WORD_LENGTH && end - start <= MAX_WORD_LENGTH) {
+                words.add(toLowerCase(text, start, end));
+            }
+            start = end;
+        }
+        return words;
+    }
+    
+    /**
+     * Folds a word to lower case a character at a time, as 'add' does.
+     * String.toLowerCase would use the default locale, so that in a Turkish locale "I" would become a dotless 'ı', and never match; even in the root locale, it turns some characters (such as 'İ') into more than one.
+     */
+    private static String toLowerCase(String text, int start, int end) {
+        final char[] chars = new char[end - start];
+        for (int i = start; i < end; ++i) {
+            chars[i - start] = Character.toLowerCase(text.charAt(i));
+        }
+        return new String(chars);
+    }
+    
+    /**
+     * Returns the given line of a log without its escape sequences and control characters.
+     */
+    static String getVisibleText(String line) {
+        StringBuilder result = new StringBuilder(line.length());
+        int state = NORMAL;
+        for (int i = 0; i < line.length(); ++i) {
+            final char ch = line.charAt(i);
+            switch (state) {
+            case NORMAL:
+                if (ch == Ascii.ESC) {
+                    state = ESCAPE;
+                } else if (ch >= ' ' || ch == '\t') {
+                    result.append(ch);
+                }
+                break;
+            case ESCAPE:
+                state = (ch == '[') ? CSI : (ch == ']') ? OSC : NORMAL;
+                break;
+            case CSI:
+                if (ch >= 0x40 && ch <= 0x7e) {
+                    state = NORMAL;
+                }
+                break;
+            case OSC:
+                if (ch == Ascii.BEL) {
+                    state = NORMAL;
+                } else if (ch == Ascii.ESC) {
+                    state = ESCAPE;
+                }
+                break;
+            }
+        }
+        return result.toString();
+    }
+    
+    // The stream's buffered, which we need because we read lines a byte at a time.
+    private static InputStream openLog(File file) throws IOException {
+        return TerminalLogWriter.openLog(file);
+    }
+    
+    private static void skipFully(InputStream in, long byteCount) throws IOException {
+        while (byteCount > 0) {
+            final long skipped = in.skip(byteCount);
+            if (skipped <= 0) {
+                // InputStream.skip may return 0 before the end of the stream, so check with a read.
+                if (in.read() == -1) {
+                    return;
+                }
+                --byteCount;
+            } else {
+                byteCount -= skipped;
+            }
+        }
+    }
+    
+    /**
+     * Reads the bytes up to and including the next newline into 'line' (without the newline).
+     * Returns the number of bytes read, or 0 at the end of the stream.
+     */
+    private static int readLine(InputStream in, ByteArrayOutputStream line) throws IOException {
+        int byteCount = 0;
+        int b;
+        while ((b = in.read()) != -1) {
+            ++byteCount;
+            if (b == '\n') {
+                break;
+            }
+            line.write(b);
+        }
+        return byteCount;
+    }
+    
+    private File getIndexFile() {
+        return new File(directory, INDEX_FILENAME);
+    }
+    
+    private synchronized void load() {
+        File file = getIndexFile();
+        if (file.exists() == false) {
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024))) {
+            if (in.readUTF().equals(MAGIC) == false || in.readInt() != FORMAT_VERSION) {
+                Log.warn("Ignoring log index \"" + file + "\" in an unknown format");
+                return;
+            }
+            final int documentCount = in.readInt();
+            for (int i = 0; i < documentCount; ++i) {
+                final String name = in.readUTF();
+                Document document = new Document(name, i);
+                document.lineCount = in.readInt();
+                document.byteCount = in.readLong();
+                document.fileLength = in.readLong();
+                document.blockCount = in.readInt();
+                document.blockIds = new int[Math.max(4, document.blockCount)];
+                document.blockOffsets = new long[Math.max(4, document.blockCount)];
+                for (int j = 0; j < document.blockCount; ++j) {
+                    document.blockIds[j] = in.readInt();
+                    document.blockOffsets[j] = in.readLong();
+                }
+                documents.add(name.isEmpty() ? null : document);
+                if (name.isEmpty() == false) {
+                    documentsByName.put(name, document);
+                }
+            }
+            blockCount = in.readInt();
+            blockDocuments = new int[Math.max(1024, blockCount)];
+            blockNumbers = new int[Math.max(1024, blockCount)];
+            for (int i = 0; i < blockCount; ++i) {
+                blockDocuments[i] = in.readInt();
+                blockNumbers[i] = in.readInt();
+            }
+            final int wordCount = in.readInt();
+            for (int i = 0; i < wordCount; ++i) {
+                final String word = in.readUTF();
+                Postings list = new Postings();
+                list.lastBlockId = in.readInt();
+                list.length = in.readInt();
+                list.bytes = new byte[list.length + 5];
+                in.readFully(list.bytes, 0, list.length);
+                postings.put(word, list);
+            }
+        } catch (IOException ex) {
+            Log.warn("Problem reading log index \"" + file + "\"; starting again", ex);
+            documents.clear();
+            documentsByName.clear();
+            postings.clear();
+            blockCount = 0;
+        }
+    }
+    
+    /**
+     * Writes the index to a temporary file, and then renames it, so a crash while saving doesn't lose the old index.
+     * Only the copying of the index into memory is done with the lock held, so the log writer's thread, adding to the index, doesn't wait for the disk.
+     */
+    private void save() {
+        synchronized (saveLock) {
+            final byte[] bytes;
+            synchronized (this) {
+                if (dirty == false) {
+                    return;
+                }
+                bytes = serialize();
+                dirty = false;
+            }
+            File file = getIndexFile();
+            File newFile = new File(file.getPath() + ".new");
+            try (OutputStream out = new FileOutputStream(newFile)) {
+                out.write(bytes);
+            } catch (IOException ex) {
+                Log.warn("Problem writing log index \"" + newFile + "\"", ex);
+                newFile.delete();
+                synchronized (this) {
+                    dirty = true;
+                }
+                return;
+            }
+            if (newFile.renameTo(file) == false) {
+                // Windows won't rename over an existing file.
+                file.delete();
+                newFile.renameTo(file);
+            }
+        }
+    }
+    
+    // Must be called with our lock held.
+    private byte[] serialize() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeUTF(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeInt(documents.size());
+            for (Document document : documents) {
+                if (document == null) {
+                    out.writeUTF("");
+                    document = new Document("", 0);
+                } else {
+                    out.writeUTF(document.name);
+                }
+                out.writeInt(document.lineCount);
+                out.writeLong(document.byteCount);
+                // A log that's still being written will need the rest of it indexing next time.
+                out.writeLong(document.live ? -1 : document.fileLength);
+                out.writeInt(document.blockCount);
+                for (int j = 0; j < document.blockCount; ++j) {
+                    out.writeInt(document.blockIds[j]);
+                    out.writeLong(document.blockOffsets[j]);
+                }
+            }
+            out.writeInt(blockCount);
+            for (int i = 0; i < blockCount; ++i) {
+                out.writeInt(blockDocuments[i]);
+                out.writeInt(blockNumbers[i]);
+            }
+            out.writeInt(postings.size());
+            for (Map.Entry<String, Postings> entry : postings.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeInt(entry.getValue().lastBlockId);
+                out.writeInt(entry.getValue().length);
+                out.write(entry.getValue().bytes, 0, entry.getValue().length);
+            }
+        } catch (IOException ex) {
+            // A ByteArrayOutputStream doesn't throw.
+            throw new RuntimeException(ex);
+        }
+        return bytes.toByteArray();
+    }
+    
+    @Test private static void testPostings() {
+        // Block numbers out of order (as when several logs are being written at once), repeated, and far apart, so we need negative and multi-byte differences.
+        final int[] blockIds = { 0, 5, 3, 3, 127, 128, 16384, 1, Integer.MAX_VALUE, 0, 200000, 64 };
+        Postings list = new Postings();
+        for (int blockId : blockIds) {
+            list.add(blockId);
+        }
+        Assert.equals(Arrays.toString(list.toSortedArray()), "[0, 1, 3, 5, 64, 127, 128, 16384, 200000, " + Integer.MAX_VALUE + "]");
+        Assert.equals(list.lastBlockId, 64);
+        
+        // Small differences take a byte; a difference of 64 or more needs two, once zig-zag encoded.
+        Postings small = new Postings();
+        small.add(63);
+        Assert.equals(small.length, 1);
+        small.add(0);
+        Assert.equals(small.length, 2);
+        small.add(64);
+        Assert.equals(small.length, 4);
+        Assert.equals(Arrays.toString(small.toSortedArray()), "[0, 63, 64]");
+    }
+    
+    private static File makeTestDirectory() throws IOException {
+        return java.nio.file.Files.createTempDirectory("log-index").toFile();
+    }
+    
+    private static void deleteTestDirectory(File directory) {
+        for (File file : directory.listFiles()) {
+            file.delete();
+        }
+        directory.delete();
+    }
+    
+    private static void writeTestLog(File file, String text) throws IOException {
+        OutputStream out = new FileOutputStream(file);
+        if (file.getName().endsWith(".gz")) {
+            out = new GZIPOutputStream(out);
+        }
+        try (Writer writer = new OutputStreamWriter(out, StandardCharsets.UTF_8)) {
+            writer.write(text);
+        }
+    }
+    
+    // Returns an index of the given directory once it's finished scanning the directory.
+    private static LogIndex makeTestIndex(File directory) throws Exception {
+        LogIndex index = new LogIndex(directory);
+        waitForTestIndex(index);
+        return index;
+    }
+    
+    private static void waitForTestIndex(LogIndex index) throws Exception {
+        index.executor.submit(new Runnable() {
+            public void run() {
+            }
+        }).get();
+    }
+    
+    // A few blocks' worth of lines, with non-ASCII text before the first block boundary (so the offsets of the later blocks aren't their character counts), and the interesting lines either side of it.
+    private static String makeTestLogText() {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 3 * BLOCK_LINE_COUNT; ++i) {
+            if (i == BLOCK_LINE_COUNT - 1) {
+                text.append("alpha needle");
+            } else if (i == BLOCK_LINE_COUNT) {
+                text.append("\u001b[1mbeta\u001b[0m needle");
+            } else if (i == 2 * BLOCK_LINE_COUNT + 2) {
+                text.append("needle alpha");
+            } else if (i == 10) {
+                text.append("caf\u00e9 \u2603 \ud83d\ude00");
+            } else {
+                text.append("line ").append(i);
+            }
+            text.append('\n');
+        }
+        return text.toString();
+    }
+    
+    private static String search(LogIndex index, String query) throws IOException {
+        return index.search(query).toString();
+    }
+    
+    @Test private static void testBlockBoundaries() throws Exception {
+        File directory = makeTestDirectory();
+        try {
+            final String text = makeTestLogText();
+            writeTestLog(new File(directory, "a.txt"), text);
+            LogIndex index = makeTestIndex(directory);
+            Assert.equals(search(index, "needle"), "[a.txt:64: alpha needle, a.txt:65: beta needle, a.txt:131: needle alpha]");
+            Assert.equals(search(index, "ALPHA needle"), "[a.txt:64: alpha needle, a.txt:131: needle alpha]");
+            // The words are on adjacent lines, but in different blocks.
+            Assert.equals(search(index, "alpha beta"), "[]");
+            // The words are in the same block, but not on the same line.
+            Assert.equals(search(index, "line needle"), "[]");
+            Assert.equals(search(index, "caf\u00e9"), "[a.txt:11: caf\u00e9 \u2603 \ud83d\ude00]");
+            Assert.equals(search(index, "line 129"), "[a.txt:130: line 129]");
+            // Escape sequences aren't part of words.
+            Assert.equals(search(index, "1mbeta"), "[]");
+            
+            // Output indexed as it's logged, in pieces that don't line up with lines or blocks, is indexed the same.
+            File liveFile = new File(directory, "b.txt");
+            writeTestLog(liveFile, text);
+            Document document = index.startLiveDocument(liveFile);
+            final char[] chars = text.toCharArray();
+            for (int offset = 0; offset < chars.length; offset += 7) {
+                index.add(document, chars, offset, Math.min(7, chars.length - offset));
+            }
+            index.finishLiveDocument(document, liveFile);
+            Assert.equals(search(index, "beta"), "[b.txt:65: beta needle, a.txt:65: beta needle]");
+            Assert.equals(search(index, "line 129"), "[b.txt:130: line 129, a.txt:130: line 129]");
+            
+            // Saving and loading the index doesn't change what we find.
+            index.save();
+            index.executor.shutdownNow();
+            index = makeTestIndex(directory);
+            Assert.equals(search(index, "alpha needle"), "[b.txt:64: alpha needle, b.txt:131: needle alpha, a.txt:64: alpha needle, a.txt:131: needle alpha]");
+            index.executor.shutdownNow();
+        } finally {
+            deleteTestDirectory(directory);
+        }
+    }
+    
+    @Test private static void testCompressedLogs() throws Exception {
+        File directory = makeTestDirectory();
+        try {
+            writeTestLog(new File(directory, "a.txt.gz"), makeTestLogText());
+            writeTestLog(new File(directory, "a.session"), "needle\n");
+            writeTestLog(new File(directory, "notes"), "needle\n");
+            LogIndex index = makeTestIndex(directory);
+            Assert.equals(search(index, "needle"), "[a.txt.gz:64: alpha needle, a.txt.gz:65: beta needle, a.txt.gz:131: needle alpha]");
+            Assert.equals(search(index, "line 129"), "[a.txt.gz:130: line 129]");
+            Assert.equals(index.documentsByName.keySet().toString(), "[a.txt.gz]");
+            index.executor.shutdownNow();
+        } finally {
+            deleteTestDirectory(directory);
+        }
+    }
+    
+    @Test private static void testUnfinishedCompressedLogs() throws Exception {
+        File directory = makeTestDirectory();
+        try {
+            // What a compressed log that's still being written looks like: flushed, but without the gzip trailer.
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            Writer writer = new OutputStreamWriter(new GZIPOutputStream(bytes, true), StandardCharsets.UTF_8);
+            writer.write(makeTestLogText());
+            writer.flush();
+            File file = new File(directory, "a.txt.gz");
+            try (OutputStream out = new FileOutputStream(file)) {
+                bytes.writeTo(out);
+            }
+            LogIndex index = makeTestIndex(directory);
+            Assert.equals(index.documentsByName.get("a.txt.gz").fileLength, file.length());
+            Assert.equals(search(index, "needle"), "[a.txt.gz:64: alpha needle, a.txt.gz:65: beta needle, a.txt.gz:131: needle alpha]");
+            // The last block of the log, which we read to the end of.
+            Assert.equals(search(index, "line 191"), "[a.txt.gz:192: line 191]");
+            index.executor.shutdownNow();
+        } finally {
+            deleteTestDirectory(directory);
+        }
+    }
+    
+    @Test private static void testLogGoingLiveDuringScan() throws Exception {
+        File directory = makeTestDirectory();
+        try {
+            // The scan finds a new log (and starts indexing it) before its writer starts feeding us its text.
+            final String text = makeTestLogText();
+            File file = new File(directory, "a.txt");
+            writeTestLog(file, text);
+            LogIndex index = makeTestIndex(directory);
+            Document scanned = index.documentsByName.get("a.txt");
+            Document document = index.startLiveDocument(file);
+            final char[] chars = text.toCharArray();
+            index.add(document, chars, 0, chars.length);
+            // A scan that's still going stops indexing the log.
+            index.indexFile(scanned, file);
+            index.finishLiveDocument(document, file);
+            Assert.equals(search(index, "needle"), "[a.txt:64: alpha needle, a.txt:65: beta needle, a.txt:131: needle alpha]");
+            Assert.equals(document.lineCount, 3 * BLOCK_LINE_COUNT);
+            index.executor.shutdownNow();
+        } finally {
+            deleteTestDirectory(directory);
+        }
+    }
+    
+    @Test private static void testCaseFolding() throws Exception {
+        // Queries are folded the way the logs were, whatever the locale.
+        Assert.equals(getWords("IRC \u0130stanbul Stra\u00dfe").toString(), "[irc, istanbul, stra\u00dfe]");
+        File directory = makeTestDirectory();
+        try {
+            writeTestLog(new File(directory, "a.txt"), "Joined #Istanbul on \u0130RC\n");
+            LogIndex index = makeTestIndex(directory);
+            Assert.equals(search(index, "istanbul IRC"), "[a.txt:1: Joined #Istanbul on \u0130RC]");
+            Assert.equals(search(index, "\u0130STANBUL irc"), "[a.txt:1: Joined #Istanbul on \u0130RC]");
+            index.executor.shutdownNow();
+        } finally {
+            deleteTestDirectory(directory);
+        }
+    }
+}
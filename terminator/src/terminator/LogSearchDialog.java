@@ -0,0 +1,122 @@
+package terminator;
+
+import e.forms.*;
+import e.gui.*;
+import e.util.*;
+import java.awt.event.*;
+import java.util.List;
+import javax.swing.*;
+import terminator.view.*;
+
+/**
+ * Asks the user for words to search the terminal logs for, and which of the lines containing them to show.
+ * Used by the "Search Logs..." menu item.
+ */
+public class LogSearchDialog {
+    private FormBuilder form;
+    private JTextField queryField;
+    private JList<LogIndex.Hit> hitsList;
+    private ELabel statusLabel;
+    
+    public LogSearchDialog() {
+        this.queryField = new JTextField(40);
+        this.statusLabel = new ELabel();
+        this.form = new FormBuilder(TerminatorMenuBar.getFocusedTerminatorFrame(), "Search Logs");
+        
+        initHitsList();
+        
+        form.setTypingTimeoutActionListener(new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                showHits();
+            }
+        });
+        FormPanel formPanel = form.getFormPanel();
+        formPanel.addRow("Words:", queryField);
+        formPanel.addRow("Lines:", new JScrollPane(hitsList));
+        form.setStatusBar(statusLabel);
+        form.getFormDialog().setRememberBounds(false);
+        form.getFormDialog().setShouldRestoreFocus(false);
+    }
+    
+    private void initHitsList() {
+        hitsList = new JList<LogIndex.Hit>();
+        hitsList.setCellRenderer(new EListCellRenderer<LogIndex.Hit>(true));
+        hitsList.setVisibleRowCount(16);
+        
+        // If the user double-clicks on a line, or hits enter while the list has focus, show it without further ado.
+        ComponentUtilities.bindDoubleClickAndEnter(hitsList, new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                form.getFormDialog().acceptDialog();
+            }
+        });
+        
+        ComponentUtilities.divertPageScrollingFromTo(queryField, hitsList);
+    }
+    
+    private void showHits() {
+        new HitFinder(queryField.getText()).execute();
+    }
+    
+    private class HitFinder extends SwingWorker<Object, Object> {
+        private String query;
+        private DefaultListModel<LogIndex.Hit> model;
+        private String statusText;
+        
+        private HitFinder(String query) {
+            this.query = query;
+        }
+        
+        @Override
+        protected Object doInBackground() {
+            model = new DefaultListModel<LogIndex.Hit>();
+            if (query.trim().isEmpty()) {
+                statusText = "";
+                return null;
+            }
+            try {
+                final long startTime = System.nanoTime();
+                List<LogIndex.Hit> hits = LogIndex.getInstance().search(query);
+                for (LogIndex.Hit hit : hits) {
+                    model.addElement(hit);
+                }
+                statusText = StringUtilities.pluralize(hits.size(), "line", "lines") + " found in " + TimeUtilities.nsToString(System.nanoTime() - startTime);
+            } catch (Exception ex) {
+                Log.warn("Problem searching logs for \"" + query + "\"", ex);
+                statusText = "Couldn't search logs: " + ex.getMessage();
+            }
+            return null;
+        }
+        
+        @Override
+        public void done() {
+            // Typing may have moved on since we started; only the latest search should be shown.
+            if (query.equals(queryField.getText()) == false) {
+                return;
+            }
+            hitsList.setModel(model);
+            statusLabel.setText(statusText);
+            // If we don't set the selected index, the user won't be able to cycle the focus into the list with the Tab key.
+            if (model.getSize() > 0) {
+                hitsList.setSelectedIndex(0);
+            }
+        }
+    }
+    
+    /**
+     * Returns a read-only terminal showing the log line the user chose, or null if they didn't choose one.
+     */
+    public JTerminalPane askForLogToOpen() {
+        if (Terminator.getPreferences().getBoolean(TerminatorPreferences.INDEX_LOGS) == false || LogIndex.getInstance() == null) {
+            SimpleDialog.showAlert(TerminatorMenuBar.getFocusedTerminatorFrame(), "Can't Search Logs", "Logs are only searchable if they're being indexed, which is an option in the preferences, and written to a logs directory that exists.");
+            return null;
+        }
+        while (form.show("Open")) {
+            LogIndex.Hit hit = hitsList.getSelectedValue();
+            if (hit == null) {
+                continue;
+            }
+            return JTerminalPane.newLogViewer(hit.getFile(), hit.getLineIndex(), queryField.getText());
+        }
+        return null;
+    }
+}
@@ -1,6 +1,7 @@
 package terminator;
 
 import java.awt.Color;
+import java.nio.ByteBuffer;
 import java.util.*;
 
 public class Palettes {
@@ -211,9 +212,67 @@ public class Palettes {
             return getColor(index);
         }
         
+        // Inks are compared by what they refer to rather than by identity, so that scrollback can share one Ink among many lines.
+        @Override public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (obj instanceof Ink == false) {
+                return false;
+            }
+            Ink other = (Ink) obj;
+            return index == other.index && Objects.equals(fixedColor, other.fixedColor) && Objects.equals(colorSetting, other.colorSetting);
+        }
+        
+        @Override public int hashCode() {
+            int result = 17;
+            result = 31 * result + index;
+            result = 31 * result + (fixedColor != null ? fixedColor.hashCode() : 0);
+            result = 31 * result + (colorSetting != null ? colorSetting.hashCode() : 0);
+            return result;
+        }
+        
         @Override public String toString() {
             return "Ink[" + get() + "]";
         }
+        
+        /** Writes a representation of this Ink (rather than its current color) that readInk can turn back into an equal Ink. */
+        public void writeTo(ByteBuffer buffer) {
+            if (fixedColor != null) {
+                buffer.put(FIXED_INK);
+                buffer.putInt(fixedColor.getRGB());
+            } else if (colorSetting != null) {
+                buffer.put(SETTING_INK);
+                buffer.putShort((short) colorSetting.length());
+                for (int i = 0; i < colorSetting.length(); ++i) {
+                    buffer.putChar(colorSetting.charAt(i));
+                }
+            } else {
+                buffer.put(INDEX_INK);
+                buffer.putShort((short) index);
+            }
+        }
+    }
+    
+    private static final byte INDEX_INK = 0;
+    private static final byte FIXED_INK = 1;
+    private static final byte SETTING_INK = 2;
+    
+    /** Reads an Ink written by Ink.writeTo. */
+    public static Ink readInk(ByteBuffer buffer) {
+        byte kind = buffer.get();
+        if (kind == FIXED_INK) {
+            return new Ink(new Color(buffer.getInt(), true));
+        } else if (kind == SETTING_INK) {
+            char[] chars = new char[buffer.getShort()];
+            for (int i = 0; i < chars.length; ++i) {
+                chars[i] = buffer.getChar();
+            }
+            return new Ink(new String(chars));
+        } else if (kind == INDEX_INK) {
+            return new Ink(buffer.getShort());
+        }
+        throw new IllegalArgumentException("unknown Ink kind " + kind);
     }
     
     public static Ink getInk(int index) {
@@ -2,41 +2,101 @@ package terminator;
 
 import e.gui.*;
 import e.util.*;
-import java.awt.event.*;
 import java.io.*;
 import java.text.*;
 import java.util.*;
-import javax.swing.Timer;
+import java.util.concurrent.*;
+import java.util.zip.*;
 
 /**
  * Logs terminal output to a file.
  * Logging can be temporarily suspended.
- * If the terminal logs directory does not exist or we can't open the log file for some other reason, logging is automatically suspended, and can't be un-suspended.
+ * If the terminal logs directory does not exist or we can't open the log file for some other reason, we don't log anything, suspended or not.
+ *
+ * The reader thread only copies the output into a buffer; all the file I/O happens on a single background thread shared by every terminal's log.
+ * That way a slow file system (an NFS home directory, say) can't hold up the terminal.
+ * There are two buffers per log: the reader thread fills one while the background thread writes the other out.
+ * If the background thread falls so far behind that the buffer the reader's filling is full, we either drop output (leaving a note in the log saying how much) or make the reader thread wait, depending on TerminatorPreferences.LOG_BACK_PRESSURE.
+ * (The reader thread is shared by all the terminals, so it asks getSpace before reading, rather than wait here.)
+ *
+ * Logs can be gzip-compressed as they're written, and can be split into parts of a limited size.
+ * The log is flushed a second after output containing a newline, so it's never far behind what's on the screen; compressed logs are flushed in a way that lets gzip(1) read everything written so far.
  */
 public class TerminalLogWriter {
     // We can't use ':' to separate the hours, minutes, and seconds because it's not allowed on all file systems.
     private static final DateFormat FILENAME_TIMESTAMP_FORMATTER = new SimpleDateFormat("yyyy-MM-dd'T'HHmmss.SSSZ");
     
-    private String info = "(not logging)";
-    private Writer writer;
-    private Writer suspendedWriter;
-    private Timer flushTimer;
+    // Enough for a few hundred full screens of output, which takes even a slow disk a while to fall behind by.
+    private static final int BUFFER_CHAR_COUNT = 256 * 1024;
+    // Output isn't worth reading in smaller pieces than this; see getSpace.
+    private static final int MIN_SPACE = 1024;
+    private static final long FLUSH_DELAY_MS = 1000;
     
-    public TerminalLogWriter(List<String> command) {
-        // Establish the invariant that writer != null.
-        // suspendedWriter is still null - when we're not suspended.
-        this.writer = NullWriter.INSTANCE;
-        this.flushTimer = new Timer(1000, new ActionListener() {
-            public void actionPerformed(ActionEvent e) {
-                flush();
+    private static final ScheduledExecutorService executor = ThreadUtilities.newSingleThreadScheduledExecutor("Terminal Log Writer");
+    // The logs that haven't been closed, so we can close them (and so finish writing them) when the JVM exits.
+    private static final Set<TerminalLogWriter> openLogs = new HashSet<>();
+    
+    static {
+        Runtime.getRuntime().addShutdownHook(new Thread("Terminal Log Writer Shutdown") {
+            @Override public void run() {
+                closeAll();
             }
         });
-        flushTimer.setRepeats(false);
-        // If the user has chosen to disable terminal logging, just leave the NullWriter in place.
-        // Note that this has to occur after the 'flushTimer' initialisation has taken place, otherwise the
-        // 'append' method will throw a null pointer exception, which will prevent the terminal from being
-        // redrawn correctly.
-        if (!Terminator.getPreferences().getBoolean(TerminatorPreferences.LOG_TERMINAL_ACTIVITY)) {
+    }
+    
+    // These are written on the thread that created us (at first) or the background thread (after rotation), but read on any thread.
+    private volatile String info = "(not logging)";
+    private volatile File logFile;
+    
+    private volatile boolean suspended = false;
+    private final boolean backPressure;
+    
+    // Guarded by 'this'.
+    // The buffer the reader thread appends to, and the one the background thread isn't using; both null if we're not logging.
+    private char[] buffer;
+    private int bufferCharCount = 0;
+    private char[] spareBuffer;
+    // Output dropped since the buffer filled up; more output will be dropped until the background thread has taken the full buffer.
+    private long droppedCharCount = 0;
+    private boolean sawNewline = false;
+    private boolean drainScheduled = false;
+    private boolean closed = false;
+    // Run once there's space in the buffer again, if getSpace has said there wasn't.
+    private Runnable spaceListener;
+    
+    // Only touched on the background thread, once we've been constructed.
+    private Writer writer;
+    private CountingOutputStream fileOut;
+    private File firstPartFile;
+    private int partNumber = 1;
+    private boolean flushScheduled = false;
+    private final boolean compress;
+    private final long rotationByteCount;
+    // Everything written to the current part is also indexed, so the logs can be searched (see LogIndex).
+    private final boolean index;
+    private LogIndex.Document indexDocument;
+    
+    private final Runnable drainRunnable = new Runnable() {
+        public void run() {
+            drain();
+        }
+    };
+    
+    private final Runnable flushRunnable = new Runnable() {
+        public void run() {
+            flushScheduled = false;
+            flushWriter();
+        }
+    };
+    
+    public TerminalLogWriter(List<String> command) {
+        Preferences preferences = Terminator.getPreferences();
+        this.backPressure = preferences.getBoolean(TerminatorPreferences.LOG_BACK_PRESSURE);
+        this.compress = preferences.getBoolean(TerminatorPreferences.COMPRESS_LOGS);
+        this.rotationByteCount = preferences.getInt(TerminatorPreferences.LOG_ROTATION_MEGABYTES) * 1024L * 1024L;
+        this.index = preferences.getBoolean(TerminatorPreferences.INDEX_LOGS);
+        // If the user has chosen to disable terminal logging, we leave the buffers null, and everything's a no-op.
+        if (preferences.getBoolean(TerminatorPreferences.LOG_TERMINAL_ACTIVITY) == false) {
             return;
         }
         try {
@@ -44,6 +104,13 @@ public class TerminalLogWriter {
         } catch (Throwable th) {
             SimpleDialog.showDetails(null, "Couldn't Open Log File", th);
         }
+        if (writer != null) {
+            this.buffer = new char[BUFFER_CHAR_COUNT];
+            this.spareBuffer = new char[BUFFER_CHAR_COUNT];
+            synchronized (openLogs) {
+                openLogs.add(this);
+            }
+        }
     }
     
     private synchronized static File makeLogFilename(File logsDirectory, String commandLine, int truncationLength) {
@@ -78,11 +145,10 @@ public class TerminalLogWriter {
         // We'll keep truncating the name until we either succeed or there's no name left.
         // This avoids assumptions about maximum filename or path lengths.
         for (int truncationLength = commandLine.length(); truncationLength >= 0; --truncationLength) {
-            File logFile = makeLogFilename(logsDirectory, commandLine, truncationLength);
+            File file = makeLogFilename(logsDirectory, commandLine, truncationLength);
             try {
-                this.info = "(\"" + logFile + "\" could not be opened for writing)";
-                this.writer = new BufferedWriter(new FileWriter(logFile));
-                this.info = logFile.toString();
+                openPart(file);
+                this.firstPartFile = file;
                 return;
             } catch (IOException ex) {
                 if (truncationLength == 0) {
@@ -93,69 +159,378 @@ public class TerminalLogWriter {
         }
     }
     
-    public void append(char[] chars, int charCount, boolean sawNewline) throws IOException {
-        writer.write(chars, 0, charCount);
-        if (sawNewline) {
-            flushTimer.restart();
+    /**
+     * Opens the given (uncompressed) filename, or its compressed equivalent, as the log file.
+     */
+    private void openPart(File file) throws IOException {
+        if (compress) {
+            file = new File(file.getPath() + ".gz");
+        }
+        this.info = "(\"" + file + "\" could not be opened for writing)";
+        this.fileOut = new CountingOutputStream(new FileOutputStream(file));
+        OutputStream out = new BufferedOutputStream(fileOut, 64 * 1024);
+        if (compress) {
+            // Syncing on flush costs a little compression, but means a log can be read while it's still being written.
+            out = new GZIPOutputStream(out, 64 * 1024, true);
         }
+        this.writer = new OutputStreamWriter(out, "UTF-8");
+        this.info = file.toString();
+        this.logFile = file;
     }
     
-    public void flush() {
+    /**
+     * Queues the given output to be written to the log, usually without waiting.
+     */
+    public void append(char[] chars, int charCount, boolean sawNewline) {
+        if (suspended) {
+            return;
+        }
+        synchronized (this) {
+            if (buffer == null || closed) {
+                return;
+            }
+            int offset = 0;
+            while (offset < charCount) {
+                if (droppedCharCount > 0) {
+                    // We're already dropping output, and the background thread hasn't caught up yet.
+                    droppedCharCount += charCount - offset;
+                    break;
+                }
+                final int space = buffer.length - bufferCharCount;
+                if (space == 0) {
+                    if (backPressure == false) {
+                        droppedCharCount += charCount - offset;
+                        break;
+                    }
+                    scheduleDrain();
+                    try {
+                        wait();
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                    if (closed) {
+                        return;
+                    }
+                    continue;
+                }
+                final int count = Math.min(space, charCount - offset);
+                System.arraycopy(chars, offset, buffer, bufferCharCount, count);
+                bufferCharCount += count;
+                offset += count;
+            }
+            this.sawNewline |= sawNewline;
+            scheduleDrain();
+        }
+    }
+    
+    /**
+     * Returns how many more characters append could certainly take without waiting, or Integer.MAX_VALUE if it never waits (because we're not logging, or would drop output rather than wait).
+     * If that's too few to be worth reading, returns 0, and the given Runnable will be run (on the background thread) once there's space.
+     */
+    public synchronized int getSpace(Runnable spaceListener) {
+        if (backPressure == false || buffer == null || closed || suspended) {
+            return Integer.MAX_VALUE;
+        }
+        final int space = buffer.length - bufferCharCount;
+        if (space < MIN_SPACE) {
+            this.spaceListener = spaceListener;
+            scheduleDrain();
+            return 0;
+        }
+        return space;
+    }
+    
+    // Must be called with our lock held.
+    private void spaceMade() {
+        notifyAll();
+        if (spaceListener != null) {
+            final Runnable listener = spaceListener;
+            spaceListener = null;
+            listener.run();
+        }
+    }
+    
+    // Must be called with our lock held.
+    private void scheduleDrain() {
+        if (drainScheduled == false) {
+            drainScheduled = true;
+            executor.execute(drainRunnable);
+        }
+    }
+    
+    /**
+     * Swaps the buffers, and writes out the one that was being filled.
+     * Runs on the background thread.
+     */
+    private void drain() {
+        final char[] chars;
+        final int charCount;
+        final long dropped;
+        final boolean newline;
+        synchronized (this) {
+            drainScheduled = false;
+            chars = buffer;
+            charCount = bufferCharCount;
+            dropped = droppedCharCount;
+            newline = sawNewline;
+            buffer = spareBuffer;
+            spareBuffer = chars;
+            bufferCharCount = 0;
+            droppedCharCount = 0;
+            sawNewline = false;
+            // Anyone waiting for space now has a whole buffer.
+            spaceMade();
+        }
+        if (writer == null || (charCount == 0 && dropped == 0)) {
+            return;
+        }
+        try {
+            writer.write(chars, 0, charCount);
+            addToIndex(chars, charCount);
+            if (dropped > 0) {
+                final char[] note = ("\n[Terminator didn't log " + StringUtilities.pluralize((int) Math.min(dropped, Integer.MAX_VALUE), "character", "characters") + " of output here, because the log couldn't be written quickly enough.]\n").toCharArray();
+                writer.write(note);
+                // The index needs to see exactly what's in the file, to know where its lines start.
+                addToIndex(note, note.length);
+            }
+            if (rotationByteCount > 0 && fileOut.getByteCount() >= rotationByteCount) {
+                rotate();
+            } else if (newline && flushScheduled == false) {
+                flushScheduled = true;
+                executor.schedule(flushRunnable, FLUSH_DELAY_MS, TimeUnit.MILLISECONDS);
+            }
+        } catch (IOException ex) {
+            failed(ex);
+        }
+    }
+    
+    /**
+     * Finishes the current part of the log, and starts the next.
+     * The second part of "x.txt" is "x.2.txt", and so on.
+     */
+    private void rotate() throws IOException {
+        writer.close();
+        writer = null;
+        finishIndexing();
+        ++partNumber;
+        openPart(new File(firstPartFile.getPath().replaceAll("\\.txt$", "." + partNumber + ".txt")));
+    }
+    
+    private void addToIndex(char[] chars, int charCount) {
+        if (index == false) {
+            return;
+        }
+        if (indexDocument == null) {
+            LogIndex logIndex = LogIndex.getInstance();
+            if (logIndex == null) {
+                return;
+            }
+            indexDocument = logIndex.startLiveDocument(logFile);
+        }
+        LogIndex.getInstance().add(indexDocument, chars, 0, charCount);
+    }
+    
+    // Must be called after the writer's been closed, so the file's length is final.
+    private void finishIndexing() {
+        if (indexDocument != null) {
+            LogIndex.getInstance().finishLiveDocument(indexDocument, logFile);
+            indexDocument = null;
+        }
+    }
+    
+    private void flushWriter() {
+        if (writer == null) {
+            return;
+        }
         try {
             writer.flush();
-        } catch (Throwable th) {
-            Log.warn("Exception occurred flushing log writer \"" + info + "\".", th);
+        } catch (IOException ex) {
+            failed(ex);
         }
     }
     
-    public void close() {
+    private void closeWriter() {
+        if (writer == null) {
+            return;
+        }
         try {
-            suspend(false);
             writer.close();
-            writer = NullWriter.INSTANCE;
-        } catch (Throwable th) {
-            Log.warn("Exception occurred closing log writer \"" + info + "\".", th);
+        } catch (IOException ex) {
+            Log.warn("Exception occurred closing log writer \"" + info + "\".", ex);
+        }
+        writer = null;
+        finishIndexing();
+    }
+    
+    // Runs on the background thread.
+    private void failed(IOException ex) {
+        Log.warn("Exception occurred writing log \"" + info + "\"; no more output will be logged.", ex);
+        this.info = "(writing \"" + info + "\" failed)";
+        closeWriter();
+        synchronized (this) {
+            closed = true;
+            spaceMade();
         }
     }
     
+    /**
+     * Asks the background thread to write out everything logged so far.
+     */
+    public void flush() {
+        executor.execute(new Runnable() {
+            public void run() {
+                drain();
+                flushWriter();
+            }
+        });
+    }
+    
+    /**
+     * Stops logging, and asks the background thread to finish writing the log.
+     */
+    public void close() {
+        synchronized (this) {
+            if (buffer == null || closed) {
+                return;
+            }
+            closed = true;
+            spaceMade();
+        }
+        synchronized (openLogs) {
+            openLogs.remove(this);
+        }
+        executor.execute(new Runnable() {
+            public void run() {
+                drain();
+                closeWriter();
+            }
+        });
+    }
+    
+    /**
+     * Closes every open log, and waits (briefly) for them to be written.
+     * Without this, whatever hadn't been written when the JVM exited would be lost, and compressed logs would be truncated.
+     */
+    private static void closeAll() {
+        ArrayList<TerminalLogWriter> logs;
+        synchronized (openLogs) {
+            logs = new ArrayList<>(openLogs);
+        }
+        for (TerminalLogWriter log : logs) {
+            log.close();
+        }
+        executor.shutdown();
+        try {
+            executor.awaitTermination(2, TimeUnit.SECONDS);
+        } catch (InterruptedException ex) {
+            // We're exiting anyway.
+        }
+        LogIndex.saveIfLoaded();
+    }
+    
     public String getInfo() {
         return info;
     }
     
-    public void suspend(boolean shouldSuspend) {
-        flush();
-        if (shouldSuspend == isSuspended()) {
-            return;
+    /**
+     * Returns the file we're logging to (the current part, if the log's being split), or null if we're not logging.
+     */
+    public File getLogFile() {
+        return logFile;
+    }
+    
+    /**
+     * Opens a log for reading, decompressing it if it's compressed.
+     * A compressed log that's still being written (or whose Terminator crashed) has no gzip trailer, so reading it to the end would throw EOFException; instead the stream ends after the last thing flushed.
+     */
+    public static InputStream openLog(File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        if (file.getName().endsWith(".gz")) {
+            in = new UnfinishedGzipInputStream(new GZIPInputStream(in, 64 * 1024));
+        }
+        return new BufferedInputStream(in, 64 * 1024);
+    }
+    
+    /**
+     * Treats running out of compressed data as the end of the stream.
+     * GZIPInputStream only throws EOFException when it's got nothing more to return, so nothing that was flushed is lost.
+     */
+    private static class UnfinishedGzipInputStream extends FilterInputStream {
+        private boolean ended = false;
+        
+        private UnfinishedGzipInputStream(InputStream in) {
+            super(in);
+        }
+        
+        @Override public int read() throws IOException {
+            if (ended) {
+                return -1;
+            }
+            try {
+                return in.read();
+            } catch (EOFException ex) {
+                ended = true;
+                return -1;
+            }
         }
-        if (shouldSuspend) {
-            suspendedWriter = writer;
-            writer = NullWriter.INSTANCE;
-        } else {
-            writer = suspendedWriter;
-            suspendedWriter = null;
+        
+        @Override public int read(byte[] bytes, int offset, int length) throws IOException {
+            if (ended) {
+                return -1;
+            }
+            try {
+                return in.read(bytes, offset, length);
+            } catch (EOFException ex) {
+                ended = true;
+                return -1;
+            }
+        }
+        
+        @Override public long skip(long byteCount) throws IOException {
+            if (ended) {
+                return 0;
+            }
+            try {
+                return in.skip(byteCount);
+            } catch (EOFException ex) {
+                ended = true;
+                return 0;
+            }
         }
     }
     
+    public void suspend(boolean shouldSuspend) {
+        flush();
+        suspended = shouldSuspend;
+    }
+    
     public boolean isSuspended() {
-        return (suspendedWriter != null);
+        return suspended;
     }
     
-    public static class NullWriter extends Writer {
-        public static final Writer INSTANCE = new NullWriter();
-        
-        private NullWriter() {
-        }
+    /**
+     * Counts the bytes that actually reach the file, after any compression, so we know when to start the next part.
+     */
+    private static class CountingOutputStream extends FilterOutputStream {
+        private long byteCount = 0;
         
-        @Override public void close() {
+        private CountingOutputStream(OutputStream out) {
+            super(out);
         }
         
-        @Override public void flush() {
+        @Override public void write(int b) throws IOException {
+            out.write(b);
+            ++byteCount;
         }
         
-        @Override public void write(int c) {
+        @Override public void write(byte[] bytes, int offset, int length) throws IOException {
+            out.write(bytes, offset, length);
+            byteCount += length;
         }
         
-        @Override public void write(char[] buffer, int offset, int byteCount) {
+        private long getByteCount() {
+            return byteCount;
         }
     }
 }
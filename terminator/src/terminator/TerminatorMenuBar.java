@@ -47,6 +47,7 @@ public class TerminatorMenuBar extends EMenuBar {
         
         menu.addSeparator();
         menu.add(new ShowInfoAction());
+        menu.add(new SearchLogsAction());
         menu.add(new ResetAction());
         
         return menu;
@@ -421,6 +422,30 @@ public class TerminatorMenuBar extends EMenuBar {
         }
     }
     
+    public static class SearchLogsAction extends AbstractAction {
+        public SearchLogsAction() {
+            super("Search Logs...");
+        }
+        
+        public void actionPerformed(ActionEvent e) {
+            final TerminatorFrame frame = getFocusedTerminatorFrame();
+            final JTerminalPane terminalPane = new LogSearchDialog().askForLogToOpen();
+            if (terminalPane == null) {
+                return;
+            }
+            // As with "New Command...", we invokeLater so the VK_ENTER that closed the dialog doesn't reach the new terminal.
+            EventQueue.invokeLater(new Runnable() {
+                public void run() {
+                    if (frame != null) {
+                        frame.addTab(terminalPane);
+                    } else {
+                        Terminator.getSharedInstance().openFrame(terminalPane);
+                    }
+                }
+            });
+        }
+    }
+    
     public static class CopyAction extends AbstractPaneAction {
         public CopyAction() {
             super("Copy");
@@ -49,6 +49,49 @@ public class TerminatorPreferences extends Preferences {
      */
     public static final String LOG_TERMINAL_ACTIVITY = "logTerminalActivity";
     
+    /**
+     * Whether or not to also record the raw output of each terminal, with timings and size changes, next to its log.
+     * A recording can be replayed (see SessionReplay) to reproduce a bug or measure a slow session.
+     */
+    public static final String RECORD_SESSIONS = "recordSessions";
+    
+    /**
+     * How logs are written: whether they're gzip-compressed, and the size at which we start a new file (0 meaning "never").
+     */
+    public static final String COMPRESS_LOGS = "compressLogs";
+    public static final String LOG_ROTATION_MEGABYTES = "logRotationMegabytes";
+    
+    /**
+     * Whether the terminal should wait for its log to be written, rather than leave output out of the log, if the disk can't keep up.
+     */
+    public static final String LOG_BACK_PRESSURE = "logBackPressure";
+    
+    /**
+     * Whether logs are indexed as they're written, so they can be searched with "Search Logs...".
+     */
+    public static final String INDEX_LOGS = "indexLogs";
+    
+    /**
+     * Limits on the scrollback kept by each terminal, beyond which the oldest lines are discarded.
+     * Zero means "unlimited".
+     */
+    public static final String SCROLLBACK_LINES = "scrollbackLines";
+    public static final String SCROLLBACK_MEGABYTES = "scrollbackMegabytes";
+    
+    /**
+     * Whether scrollback beyond the limits above should be kept in files in $HOME/.terminator/logs/ rather than discarded.
+     * The files are deleted when the terminal is closed.
+     */
+    public static final String SCROLLBACK_SPILL_TO_DISK = "scrollbackSpillToDisk";
+    
+    /**
+     * How many bytes we ask for each time we read the child's output.
+     * This should be around your system's pipe size.
+     * Too much larger and you'll waste time and memory on buffer space that's never used; too much smaller and you'll waste time making excessive system calls reading just part of what's available.
+     * Changes take effect at the next read.
+     */
+    public static final String READ_BUFFER_SIZE = "readBufferSize";
+    
     private static final Color CREAM = new Color(0xfefaea);
     private static final Color LIGHT_BLUE = new Color(0xb3d4ff);
     private static final Color NEAR_BLACK = new Color(0x181818);
@@ -80,7 +123,16 @@ public class TerminatorPreferences extends Preferences {
         addPreference("Behavior", VISUAL_BELL, Boolean.TRUE, "Visual bell (as opposed to no bell)");
         addPreference("Behavior", USE_ALT_AS_META, Boolean.FALSE, "Use alt key as meta key (for Emacs)");
         addPreference("Behavior", LOG_TERMINAL_ACTIVITY, Boolean.TRUE, "Log terminal activity in $HOME/.terminator/logs/");
+        addPreference("Behavior", COMPRESS_LOGS, Boolean.FALSE, "Compress logs with gzip");
+        addPreference("Behavior", LOG_ROTATION_MEGABYTES, Integer.valueOf(0), "Log file megabytes before starting another (0 for unlimited)");
+        addPreference("Behavior", LOG_BACK_PRESSURE, Boolean.FALSE, "Slow output rather than leave it out of the log");
+        addPreference("Behavior", INDEX_LOGS, Boolean.TRUE, "Index logs so they can be searched");
+        addPreference("Behavior", RECORD_SESSIONS, Boolean.FALSE, "Also record raw output with timings, for replay");
         addPreference("Behavior", ERROR_LINK_CMD, "", "Error link handling script");
+        addPreference("Behavior", SCROLLBACK_LINES, Integer.valueOf(1000000), "Scrollback lines (0 for unlimited)");
+        addPreference("Behavior", SCROLLBACK_MEGABYTES, Integer.valueOf(128), "Scrollback megabytes (0 for unlimited)");
+        addPreference("Behavior", SCROLLBACK_SPILL_TO_DISK, Boolean.TRUE, "Keep scrollback beyond those limits in $HOME/.terminator/logs/");
+        addPreference("Behavior", READ_BUFFER_SIZE, Integer.valueOf(8192), "Output read buffer size (bytes)");
         
         addPreference("Appearance", ANTI_ALIAS, Boolean.TRUE, "Anti-alias text");
         addPreference("Appearance", BLINK_CURSOR, Boolean.TRUE, "Blink cursor");
@@ -0,0 +1,236 @@
+package terminator.model;
+
+import java.util.*;
+import org.jessies.test.*;
+
+/**
+ * A list of line lengths that can say where each line starts, and which line a given character is on, in logarithmic time.
+ *
+ * This is a Fenwick (binary indexed) tree over the lengths.
+ * Changing a length or appending a line is logarithmic too.
+ * Inserting or removing anywhere else shifts the lengths and leaves the tree to be rebuilt (in linear time) by the next query, which suits the ScrollbackBuffer's hot lines: there are only a few screenfuls of them, and they're usually changed in bursts between queries.
+ */
+class LineLengthIndex {
+    private int[] lengths = new int[16];
+    // tree[i] is the sum of the lengths of lines [i - lowestOneBit(i), i), for i from 1 to size.
+    private int[] tree = new int[17];
+    private int size = 0;
+    private boolean treeValid = true;
+    
+    int size() {
+        return size;
+    }
+    
+    int get(int index) {
+        checkIndex(index);
+        return lengths[index];
+    }
+    
+    void set(int index, int length) {
+        checkIndex(index);
+        final int delta = length - lengths[index];
+        lengths[index] = length;
+        if (treeValid && delta != 0) {
+            for (int i = index + 1; i <= size; i += Integer.lowestOneBit(i)) {
+                tree[i] += delta;
+            }
+        }
+    }
+    
+    void add(int length) {
+        ensureCapacity(size + 1);
+        lengths[size] = length;
+        ++size;
+        if (treeValid) {
+            // The new node covers the new line and the nodes just before it that it's responsible for.
+            int sum = length;
+            final int first = size - Integer.lowestOneBit(size);
+            for (int i = size - 1; i > first; i -= Integer.lowestOneBit(i)) {
+                sum += tree[i];
+            }
+            tree[size] = sum;
+        }
+    }
+    
+    void add(int index, int length) {
+        if (index == size) {
+            add(length);
+            return;
+        }
+        checkIndex(index);
+        ensureCapacity(size + 1);
+        System.arraycopy(lengths, index, lengths, index + 1, size - index);
+        lengths[index] = length;
+        ++size;
+        treeValid = false;
+    }
+    
+    void remove(int index) {
+        removeRange(index, index + 1);
+    }
+    
+    /** Removes the lengths from 'start' (inclusive) to 'end' (exclusive). */
+    void removeRange(int start, int end) {
+        if (start < 0 || end > size || start > end) {
+            throw new IndexOutOfBoundsException("range [" + start + ", " + end + ") of " + size);
+        }
+        System.arraycopy(lengths, end, lengths, start, size - end);
+        size -= (end - start);
+        treeValid = false;
+    }
+    
+    /** Returns the sum of the lengths of all lines before 'index'. */
+    int sumBefore(int index) {
+        if (index < 0 || index > size) {
+            throw new IndexOutOfBoundsException("index " + index + " of " + size);
+        }
+        ensureTreeValid();
+        int sum = 0;
+        for (int i = index; i > 0; i -= Integer.lowestOneBit(i)) {
+            sum += tree[i];
+        }
+        return sum;
+    }
+    
+    int getTotal() {
+        return sumBefore(size);
+    }
+    
+    /**
+     * Returns the index of the line containing the given offset, which is the last line whose sumBefore is no greater than it.
+     * Offsets beyond the end are treated as being on the last line, and negative offsets as being on the first.
+     * There must be at least one line.
+     */
+    int indexOf(int offset) {
+        if (size == 0) {
+            throw new IllegalStateException("no lines");
+        }
+        ensureTreeValid();
+        // Walk down the tree, skipping over each node whose lines all start at or before 'offset'.
+        int index = 0;
+        for (int step = Integer.highestOneBit(size); step > 0; step >>= 1) {
+            final int next = index + step;
+            if (next <= size && tree[next] <= offset) {
+                index = next;
+                offset -= tree[next];
+            }
+        }
+        // 'index' is now the largest k for which sumBefore(k) <= offset, which is the line we want (or one past the last line).
+        return Math.max(0, Math.min(index, size - 1));
+    }
+    
+    private void ensureTreeValid() {
+        if (treeValid) {
+            return;
+        }
+        // The standard linear-time construction: each node passes its sum on to its parent.
+        Arrays.fill(tree, 0, size + 1, 0);
+        for (int i = 1; i <= size; ++i) {
+            tree[i] += lengths[i - 1];
+            final int parent = i + Integer.lowestOneBit(i);
+            if (parent <= size) {
+                tree[parent] += tree[i];
+            }
+        }
+        treeValid = true;
+    }
+    
+    private void ensureCapacity(int capacity) {
+        if (capacity > lengths.length) {
+            final int newCapacity = Math.max(capacity, lengths.length + lengths.length / 2);
+            lengths = Arrays.copyOf(lengths, newCapacity);
+            tree = Arrays.copyOf(tree, newCapacity + 1);
+        }
+    }
+    
+    private void checkIndex(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("index " + index + " of " + size);
+        }
+    }
+    
+    private static LineLengthIndex makeTestIndex(int... lengths) {
+        LineLengthIndex index = new LineLengthIndex();
+        for (int length : lengths) {
+            index.add(length);
+        }
+        return index;
+    }
+    
+    @Test private static void testSums() {
+        LineLengthIndex index = makeTestIndex(3, 1, 4, 1, 5, 9, 2, 6);
+        Assert.equals(index.sumBefore(0), 0);
+        Assert.equals(index.sumBefore(1), 3);
+        Assert.equals(index.sumBefore(5), 14);
+        Assert.equals(index.getTotal(), 31);
+        index.set(2, 10);
+        Assert.equals(index.sumBefore(2), 4);
+        Assert.equals(index.sumBefore(3), 14);
+        Assert.equals(index.getTotal(), 37);
+    }
+    
+    @Test private static void testIndexOf() {
+        LineLengthIndex index = makeTestIndex(3, 1, 0, 4);
+        Assert.equals(index.indexOf(-1), 0);
+        Assert.equals(index.indexOf(0), 0);
+        Assert.equals(index.indexOf(2), 0);
+        Assert.equals(index.indexOf(3), 1);
+        Assert.equals(index.indexOf(4), 3);
+        Assert.equals(index.indexOf(7), 3);
+        Assert.equals(index.indexOf(100), 3);
+    }
+    
+    @Test private static void testInsertAndRemove() {
+        LineLengthIndex index = makeTestIndex(1, 2, 3);
+        index.add(1, 10);
+        Assert.equals(index.sumBefore(2), 11);
+        index.remove(0);
+        Assert.equals(index.sumBefore(1), 10);
+        Assert.equals(index.indexOf(11), 1);
+        Assert.equals(index.indexOf(12), 2);
+        index.removeRange(0, 2);
+        Assert.equals(index.size(), 1);
+        Assert.equals(index.getTotal(), 3);
+        // Appending after a removal has to work whether or not the tree's been rebuilt.
+        index.add(4);
+        Assert.equals(index.getTotal(), 7);
+    }
+    
+    @Test private static void testAgainstLinearSums() {
+        Random random = new Random(42);
+        LineLengthIndex index = new LineLengthIndex();
+        ArrayList<Integer> expected = new ArrayList<>();
+        for (int i = 0; i < 2000; ++i) {
+            final int length = random.nextInt(80);
+            final int operation = random.nextInt(10);
+            if (operation < 5 || expected.isEmpty()) {
+                index.add(length);
+                expected.add(length);
+            } else if (operation < 7) {
+                final int position = random.nextInt(expected.size());
+                index.set(position, length);
+                expected.set(position, length);
+            } else if (operation < 8) {
+                final int position = random.nextInt(expected.size() + 1);
+                index.add(position, length);
+                expected.add(position, length);
+            } else {
+                final int position = random.nextInt(expected.size());
+                index.remove(position);
+                expected.remove(position);
+            }
+            if (expected.isEmpty()) {
+                continue;
+            }
+            final int line = random.nextInt(expected.size());
+            int sum = 0;
+            for (int j = 0; j < line; ++j) {
+                sum += expected.get(j);
+            }
+            Assert.equals(index.sumBefore(line), sum);
+            if (expected.get(line) > 0) {
+                Assert.equals(index.indexOf(sum + expected.get(line) - 1), line);
+            }
+        }
+    }
+}
@@ -0,0 +1,542 @@
+package terminator.model;
+
+import e.util.*;
+import java.io.*;
+import java.util.*;
+import org.jessies.test.*;
+import terminator.Palettes;
+
+/**
+ * The lines of a terminal, in order, from the oldest line of scrollback to the bottom line of the display.
+ *
+ * The most recent lines are "hot": they're ordinary TextLines that can be changed, inserted, and removed.
+ * Older lines get frozen into ScrollbackChunks, which are much more compact, and which are decoded back into TextLines on demand.
+ * Frozen lines are read-only: changes made to a TextLine returned by get for a frozen line may be lost at any time.
+ *
+ * The oldest chunks can be moved to disk (see ScrollbackSpill) or discarded to keep the scrollback within limits.
+ * This renumbers all the remaining lines, so the caller needs to tell anyone else holding line indexes.
+ *
+ * Every chunk but the last is always full, which means we can find a frozen line's chunk with a division.
+ * Going the other way, from a character index to a line, is a binary search over the chunks' first character indexes (which doesn't need to read spilled chunks back in) followed by one within the chunk.
+ * The hot lines' lengths are kept in a LineLengthIndex so that character indexes within them are cheap to find too.
+ * Character indexes are longs: with spilling, the scrollback can hold more than 2^31 characters, and the counts of characters evicted keep growing for as long as the terminal runs.
+ * Hot lines can be changed behind our back, so whoever changes one must tell us with lineLengthChanged.
+ */
+class ScrollbackBuffer {
+    private static final int LINES_PER_CHUNK = ScrollbackChunk.LINES_PER_CHUNK;
+    
+    // Decoded frozen lines, so that repainting or searching the same lines repeatedly doesn't mean decoding them repeatedly.
+    // This is direct-mapped, keyed by a line's serial number (which doesn't change when we evict).
+    private static final int CACHE_SIZE = 512;
+    private final TextLine[] cachedLines = new TextLine[CACHE_SIZE];
+    private final long[] cachedSerials = new long[CACHE_SIZE];
+    
+    // Chunks before firstChunk have been evicted, and are just waiting for us to get around to removing them from the list.
+    // This way, evicting the oldest chunk doesn't cost a copy of all the others.
+    private final ArrayList<ScrollbackChunk> chunks = new ArrayList<>();
+    private int firstChunk = 0;
+    private int frozenLineCount = 0;
+    // The bytes used by all but the last chunk, whose size can still change.
+    private long frozenByteCount = 0;
+    
+    // Frozen lines that didn't fit within the in-memory limits, or null if there haven't been any (or spilling is disabled).
+    // Spilled lines always come before any in-memory chunks.
+    private ScrollbackSpill spill;
+    private boolean spillFailed = false;
+    
+    private final ArrayList<TextLine> hotLines = new ArrayList<>();
+    // The length of each hot line, including its newline.
+    private final LineLengthIndex hotLineLengths = new LineLengthIndex();
+    
+    // The terminal's StyleTable, which lines we thaw or decode will use.
+    private final StyleTable styleTable;
+    
+    private long evictedLineCount = 0;
+    private long evictedCharCount = 0;
+    
+    ScrollbackBuffer(StyleTable styleTable) {
+        this.styleTable = styleTable;
+        Arrays.fill(cachedSerials, -1);
+    }
+    
+    int size() {
+        return frozenLineCount + hotLines.size();
+    }
+    
+    TextLine get(int index) {
+        if (index >= frozenLineCount) {
+            return hotLines.get(index - frozenLineCount);
+        }
+        if (index < 0) {
+            throw new IndexOutOfBoundsException("index " + index + " < 0");
+        }
+        final long serial = evictedLineCount + index;
+        final int slot = (int) (serial % CACHE_SIZE);
+        if (cachedSerials[slot] != serial) {
+            cachedLines[slot] = chunkForLine(index).getTextLine(index % LINES_PER_CHUNK, styleTable);
+            cachedSerials[slot] = serial;
+        }
+        return cachedLines[slot];
+    }
+    
+    void set(int index, TextLine line) {
+        final int hotIndex = hotIndex(index);
+        hotLines.set(hotIndex, line);
+        hotLineLengths.set(hotIndex, line.lengthIncludingNewline());
+    }
+    
+    void add(TextLine line) {
+        hotLines.add(line);
+        hotLineLengths.add(line.lengthIncludingNewline());
+    }
+    
+    void add(int index, TextLine line) {
+        final int hotIndex = hotIndex(index);
+        hotLines.add(hotIndex, line);
+        hotLineLengths.add(hotIndex, line.lengthIncludingNewline());
+    }
+    
+    void remove(int index) {
+        final int hotIndex = hotIndex(index);
+        hotLines.remove(hotIndex);
+        hotLineLengths.remove(hotIndex);
+    }
+    
+    /** Updates our record of the given hot line's length, which its owner has just changed. */
+    void lineLengthChanged(int index) {
+        final int hotIndex = hotIndex(index);
+        hotLineLengths.set(hotIndex, hotLines.get(hotIndex).lengthIncludingNewline());
+    }
+    
+    private int hotIndex(int index) {
+        if (index < frozenLineCount) {
+            throw new IllegalArgumentException("line " + index + " is frozen; only lines from " + frozenLineCount + " can be changed");
+        }
+        return index - frozenLineCount;
+    }
+    
+    /** Adds the lines that refer to our StyleTable by index (the hot lines, and the frozen lines we've decoded) to 'lines'; see StyleTable.compact. */
+    void addLinesUsingStyleTable(Collection<TextLine> lines) {
+        lines.addAll(hotLines);
+        for (int i = 0; i < CACHE_SIZE; ++i) {
+            if (cachedLines[i] != null) {
+                lines.add(cachedLines[i]);
+            }
+        }
+    }
+    
+    /** Returns the number of lines (all at the start) that are frozen. */
+    int getFrozenLineCount() {
+        return frozenLineCount;
+    }
+    
+    private int getSpilledLineCount() {
+        return (spill == null) ? 0 : spill.getLineCount();
+    }
+    
+    /** Returns the last in-memory chunk, or null if all frozen lines (if any) are on disk. */
+    private ScrollbackChunk getLastChunk() {
+        return (chunks.size() > firstChunk) ? chunks.get(chunks.size() - 1) : null;
+    }
+    
+    /** Returns the number of characters in the frozen lines, counting a newline at the end of each. */
+    long getFrozenCharCount() {
+        if (frozenLineCount == 0) {
+            return 0;
+        }
+        ScrollbackChunk lastChunk = getLastChunk();
+        if (lastChunk == null) {
+            return spill.getEndCharIndex() - evictedCharCount;
+        }
+        return lastChunk.getFirstCharIndex() + lastChunk.getCharCount() - evictedCharCount;
+    }
+    
+    /** Returns the index of the first character of the given frozen line, in the same terms as getFrozenCharCount. */
+    long getFrozenLineStartIndex(int index) {
+        ScrollbackChunk chunk = chunkForLine(index);
+        return chunk.getFirstCharIndex() - evictedCharCount + chunk.getLineStartIndex(index % LINES_PER_CHUNK);
+    }
+    
+    /** Returns the index of the first character of the given line (frozen or hot), counting a newline at the end of each line. */
+    long getLineStartIndex(int index) {
+        if (index < frozenLineCount) {
+            return getFrozenLineStartIndex(index);
+        }
+        return getFrozenCharCount() + hotLineLengths.sumBefore(hotIndex(index));
+    }
+    
+    /** Returns the number of characters in all the lines, counting a newline at the end of each. */
+    long getCharCount() {
+        return getFrozenCharCount() + hotLineLengths.getTotal();
+    }
+    
+    /**
+     * Returns the index of the line containing the given character index.
+     * Indexes past the end are on the last line, and negative indexes on the first.
+     */
+    int getLineIndex(long charIndex) {
+        final long frozenCharCount = getFrozenCharCount();
+        if (charIndex >= frozenCharCount && hotLines.isEmpty() == false) {
+            // The hot lines' total length fits in an int, so anything further on is just past the end.
+            return frozenLineCount + hotLineLengths.indexOf((int) Math.min(charIndex - frozenCharCount, Integer.MAX_VALUE));
+        }
+        if (frozenLineCount == 0) {
+            return 0;
+        }
+        
+        // Find the last chunk starting at or before the index...
+        final long absoluteCharIndex = evictedCharCount + charIndex;
+        final int spilledChunkCount = (spill == null) ? 0 : spill.getChunkCount();
+        int low = 0;
+        int high = spilledChunkCount + (chunks.size() - firstChunk);
+        while (high - low > 1) {
+            final int mid = (low + high) >>> 1;
+            final long midFirstCharIndex = (mid < spilledChunkCount) ? spill.getChunkFirstCharIndex(mid) : chunks.get(firstChunk + mid - spilledChunkCount).getFirstCharIndex();
+            if (midFirstCharIndex <= absoluteCharIndex) {
+                low = mid;
+            } else {
+                high = mid;
+            }
+        }
+        
+        // ...and then the last line within it starting at or before the index.
+        // A chunk's characters are few enough for an int, but a negative index can be arbitrarily far before the first chunk.
+        final int firstLine = low * LINES_PER_CHUNK;
+        ScrollbackChunk chunk = chunkForLine(firstLine);
+        final int offset = (int) Math.max(absoluteCharIndex - chunk.getFirstCharIndex(), -1);
+        int lowLine = 0;
+        int highLine = chunk.getLineCount();
+        while (highLine - lowLine > 1) {
+            final int midLine = (lowLine + highLine) >>> 1;
+            if (chunk.getLineStartIndex(midLine) <= offset) {
+                lowLine = midLine;
+            } else {
+                highLine = midLine;
+            }
+        }
+        return firstLine + lowLine;
+    }
+    
+    /** Returns a rough count of the bytes of heap used by the frozen lines that aren't on disk. */
+    long getFrozenByteCount() {
+        ScrollbackChunk lastChunk = getLastChunk();
+        return (lastChunk == null) ? 0 : frozenByteCount + lastChunk.estimateByteCount();
+    }
+    
+    private ScrollbackChunk chunkForLine(int index) {
+        // Spilled lines always come in whole chunks, so they don't disturb the arithmetic.
+        final int chunkIndex = index / LINES_PER_CHUNK;
+        final int spilledChunkCount = (spill == null) ? 0 : spill.getChunkCount();
+        if (chunkIndex < spilledChunkCount) {
+            return spill.getChunk(chunkIndex);
+        }
+        return chunks.get(firstChunk + chunkIndex - spilledChunkCount);
+    }
+    
+    /** Freezes all hot lines before 'index'. */
+    void freeze(int index) {
+        final int count = Math.min(index - frozenLineCount, hotLines.size());
+        if (count <= 0) {
+            return;
+        }
+        for (int i = 0; i < count; ++i) {
+            ScrollbackChunk chunk = getLastChunk();
+            if (chunk == null || chunk.isFull()) {
+                chunk = new ScrollbackChunk(evictedCharCount + getFrozenCharCount());
+                chunks.add(chunk);
+            }
+            chunk.append(hotLines.get(i));
+            ++frozenLineCount;
+            if (chunk.isFull()) {
+                frozenByteCount += chunk.estimateByteCount();
+            }
+        }
+        hotLines.subList(0, count).clear();
+        hotLineLengths.removeRange(0, count);
+    }
+    
+    /** Makes all frozen lines from 'index' onwards hot again. */
+    void thaw(int index) {
+        index = Math.max(index, 0);
+        if (index >= frozenLineCount) {
+            return;
+        }
+        ArrayList<TextLine> thawedLines = new ArrayList<>();
+        for (int i = index; i < frozenLineCount; ++i) {
+            thawedLines.add(get(i));
+        }
+        hotLines.addAll(0, thawedLines);
+        for (int i = 0; i < thawedLines.size(); ++i) {
+            hotLineLengths.add(i, thawedLines.get(i).lengthIncludingNewline());
+        }
+        while (frozenLineCount > index) {
+            if (getLastChunk() == null) {
+                // We need lines back from disk.
+                ScrollbackChunk chunk = spill.removeLastChunk();
+                chunks.add(chunk);
+                frozenByteCount += chunk.estimateByteCount();
+            }
+            ScrollbackChunk lastChunk = getLastChunk();
+            final int lastChunkFirstLine = getSpilledLineCount() + (chunks.size() - 1 - firstChunk) * LINES_PER_CHUNK;
+            if (lastChunk.isFull()) {
+                frozenByteCount -= lastChunk.estimateByteCount();
+            }
+            if (lastChunkFirstLine >= index) {
+                chunks.remove(chunks.size() - 1);
+                frozenLineCount = lastChunkFirstLine;
+            } else {
+                lastChunk.truncate(index - lastChunkFirstLine);
+                frozenLineCount = index;
+            }
+        }
+        if (getLastChunk() == null) {
+            // Don't leave evicted chunks lying around to be mistaken for the last chunk.
+            chunks.clear();
+            firstChunk = 0;
+        }
+        Arrays.fill(cachedSerials, -1);
+    }
+    
+    /**
+     * Gets the frozen lines that are still in memory down to no more than 'maxLineCount' lines using no more than 'maxByteCount' bytes.
+     * A limit of 0 means "no limit".
+     * If 'spillToDisk' is true, we do this by moving the oldest chunks to disk, where there's no limit.
+     * Otherwise (or if writing to disk fails), we discard the oldest frozen lines, a chunk at a time.
+     * Returns the number of lines discarded; the indexes of all remaining lines will have been reduced by that amount.
+     */
+    int trim(int maxLineCount, long maxByteCount, boolean spillToDisk) {
+        int evictedLines = 0;
+        if (spillToDisk == false && spill != null) {
+            evictedLines += discardSpill();
+        }
+        while (getLastChunk() != null) {
+            final int inMemoryLineCount = frozenLineCount - getSpilledLineCount();
+            boolean tooManyLines = (maxLineCount > 0 && inMemoryLineCount - LINES_PER_CHUNK >= maxLineCount);
+            boolean tooManyBytes = (maxByteCount > 0 && getFrozenByteCount() > maxByteCount);
+            if (!tooManyLines && !tooManyBytes) {
+                break;
+            }
+            ScrollbackChunk chunk = chunks.get(firstChunk);
+            if (spillToDisk && chunk.isFull() && spillFirstChunk()) {
+                continue;
+            }
+            if (spill != null) {
+                if (chunk.isFull() == false) {
+                    // Only full chunks can go to disk, and we can't discard lines from between the spilled ones and the hot ones, so we'll have to wait.
+                    break;
+                }
+                // Spilling failed, so we're back to discarding lines, starting with the spilled ones.
+                evictedLines += discardSpill();
+            }
+            evictedLines += evictFirstChunk();
+        }
+        if (firstChunk > 0 && firstChunk >= chunks.size() / 2) {
+            chunks.subList(0, firstChunk).clear();
+            firstChunk = 0;
+        }
+        return evictedLines;
+    }
+    
+    private boolean spillFirstChunk() {
+        if (spillFailed) {
+            return false;
+        }
+        if (spill == null) {
+            spill = ScrollbackSpill.create();
+            if (spill == null) {
+                Log.warn("Can't spill scrollback to disk because the logs directory isn't usable.");
+                spillFailed = true;
+                return false;
+            }
+        }
+        ScrollbackChunk chunk = chunks.get(firstChunk);
+        try {
+            spill.append(chunk);
+        } catch (IOException ex) {
+            Log.warn("Failed to spill scrollback to disk.", ex);
+            spillFailed = true;
+            return false;
+        }
+        chunks.set(firstChunk, null);
+        ++firstChunk;
+        frozenByteCount -= chunk.estimateByteCount();
+        return true;
+    }
+    
+    /** Discards all the spilled lines, returning how many there were. */
+    private int discardSpill() {
+        final int lineCount = spill.getLineCount();
+        frozenLineCount -= lineCount;
+        evictedLineCount += lineCount;
+        evictedCharCount = spill.getEndCharIndex();
+        spill.close();
+        spill = null;
+        return lineCount;
+    }
+    
+    /** Releases any resources, such as files, held by this buffer. */
+    void dispose() {
+        if (spill != null) {
+            spill.close();
+            spill = null;
+        }
+    }
+    
+    private int evictFirstChunk() {
+        ScrollbackChunk chunk = chunks.get(firstChunk);
+        chunks.set(firstChunk, null);
+        ++firstChunk;
+        final int lineCount = chunk.getLineCount();
+        frozenLineCount -= lineCount;
+        evictedLineCount += lineCount;
+        evictedCharCount += chunk.getCharCount();
+        if (frozenLineCount == 0) {
+            // That was the last chunk.
+            chunks.clear();
+            firstChunk = 0;
+            frozenByteCount = 0;
+        } else {
+            frozenByteCount -= chunk.estimateByteCount();
+        }
+        return lineCount;
+    }
+    
+    private static ScrollbackBuffer makeTestBuffer(int lineCount) {
+        StyleTable styleTable = new StyleTable();
+        ScrollbackBuffer buffer = new ScrollbackBuffer(styleTable);
+        for (int i = 0; i < lineCount; ++i) {
+            TextLine line = new TextLine(styleTable, Palettes.getInk(0));
+            line.writeTextAt(0, Integer.toString(i), Style.getDefaultStyle());
+            buffer.add(line);
+        }
+        return buffer;
+    }
+    
+    @Test private static void testFreezeAndThaw() {
+        ScrollbackBuffer buffer = makeTestBuffer(1000);
+        buffer.freeze(900);
+        Assert.equals(buffer.size(), 1000);
+        Assert.equals(buffer.getFrozenLineCount(), 900);
+        Assert.equals(buffer.get(0).getString(), "0");
+        Assert.equals(buffer.get(899).getString(), "899");
+        Assert.equals(buffer.get(900).getString(), "900");
+        // "0\n" to "9\n" is 20 characters, "10\n" to "99\n" is 270, and "100\n" to "899\n" is 3200.
+        Assert.equals(buffer.getFrozenCharCount(), 20L + 270 + 3200);
+        Assert.equals(buffer.getFrozenLineStartIndex(100), 20L + 270);
+        
+        buffer.thaw(500);
+        Assert.equals(buffer.getFrozenLineCount(), 500);
+        Assert.equals(buffer.size(), 1000);
+        Assert.equals(buffer.get(500).getString(), "500");
+        Assert.equals(buffer.getFrozenCharCount(), 20L + 270 + 1600);
+        buffer.set(500, new TextLine(buffer.styleTable, null));
+        Assert.equals(buffer.get(500).length(), 0);
+        
+        buffer.freeze(1000);
+        Assert.equals(buffer.getFrozenLineCount(), 1000);
+        Assert.equals(buffer.get(501).getString(), "501");
+        Assert.equals(buffer.get(999).getString(), "999");
+    }
+    
+    private static void checkCharIndexes(ScrollbackBuffer buffer) {
+        long charIndex = 0;
+        for (int i = 0; i < buffer.size(); ++i) {
+            Assert.equals(buffer.getLineStartIndex(i), charIndex);
+            Assert.equals(buffer.getLineIndex(charIndex), i);
+            charIndex += buffer.get(i).lengthIncludingNewline();
+            Assert.equals(buffer.getLineIndex(charIndex - 1), i);
+        }
+        Assert.equals(buffer.getCharCount(), charIndex);
+        Assert.equals(buffer.getLineIndex(charIndex + 100), buffer.size() - 1);
+    }
+    
+    @Test private static void testCharIndexes() {
+        ScrollbackBuffer buffer = makeTestBuffer(1000);
+        checkCharIndexes(buffer);
+        buffer.freeze(900);
+        checkCharIndexes(buffer);
+        
+        // Changes to hot lines only count once we're told about them.
+        buffer.get(950).writeTextAt(0, "a much longer line", Style.getDefaultStyle());
+        buffer.lineLengthChanged(950);
+        buffer.remove(960);
+        buffer.add(970, buffer.get(998));
+        checkCharIndexes(buffer);
+        
+        buffer.thaw(500);
+        checkCharIndexes(buffer);
+        buffer.trim(200, 0, false);
+        checkCharIndexes(buffer);
+    }
+    
+    @Test private static void testTrim() {
+        ScrollbackBuffer buffer = makeTestBuffer(2000);
+        buffer.freeze(1900);
+        Assert.equals(buffer.trim(0, 0, false), 0);
+        Assert.equals(buffer.trim(1000, 0, false), 3 * LINES_PER_CHUNK);
+        Assert.equals(buffer.size(), 2000 - 3 * LINES_PER_CHUNK);
+        Assert.equals(buffer.get(0).getString(), Integer.toString(3 * LINES_PER_CHUNK));
+        Assert.equals(buffer.get(buffer.size() - 1).getString(), "1999");
+        Assert.equals(buffer.getFrozenLineStartIndex(0), 0L);
+        Assert.equals(buffer.getFrozenLineStartIndex(1), 4L);
+        
+        Assert.equals(buffer.trim(0, 1, false), 1900 - 3 * LINES_PER_CHUNK);
+        Assert.equals(buffer.getFrozenLineCount(), 0);
+        Assert.equals(buffer.size(), 100);
+        Assert.equals(buffer.get(0).getString(), "1900");
+        buffer.freeze(10);
+        Assert.equals(buffer.get(9).getString(), "1909");
+        Assert.equals(buffer.getFrozenCharCount(), 50L);
+    }
+    
+    @Test private static void testLongCharIndexes() {
+        // A terminal that's been running long enough to have evicted more than 2^31 characters.
+        ScrollbackBuffer buffer = makeTestBuffer(2000);
+        buffer.evictedCharCount = Integer.MAX_VALUE - 1000L;
+        buffer.freeze(1900);
+        checkCharIndexes(buffer);
+        Assert.equals(buffer.getFrozenLineStartIndex(100), 20L + 270);
+        Assert.equals(buffer.getLineIndex(-1L - Integer.MAX_VALUE), 0);
+        
+        Assert.equals(buffer.trim(1000, 0, false), 3 * LINES_PER_CHUNK);
+        Assert.equals(buffer.evictedCharCount > Integer.MAX_VALUE, true);
+        Assert.equals(buffer.get(0).getString(), Integer.toString(3 * LINES_PER_CHUNK));
+        Assert.equals(buffer.getFrozenLineStartIndex(1), 4L);
+        checkCharIndexes(buffer);
+        Assert.equals(buffer.getLineIndex(Long.MAX_VALUE), buffer.size() - 1);
+    }
+    
+    @Test private static void testSpill() throws IOException {
+        File directory = java.nio.file.Files.createTempDirectory("scrollback").toFile();
+        ScrollbackBuffer buffer = makeTestBuffer(2000);
+        buffer.spill = new ScrollbackSpill(directory);
+        try {
+            buffer.freeze(1900);
+            Assert.equals(buffer.trim(300, 0, true), 0);
+            Assert.equals(buffer.getSpilledLineCount(), 6 * LINES_PER_CHUNK);
+            Assert.equals(buffer.size(), 2000);
+            Assert.equals(buffer.getFrozenLineCount(), 1900);
+            Assert.equals(buffer.get(0).getString(), "0");
+            Assert.equals(buffer.get(1000).getString(), "1000");
+            Assert.equals(buffer.getFrozenLineStartIndex(100), 20L + 270);
+            Assert.equals(buffer.getFrozenCharCount(), 20L + 270 + 3600 + 4500);
+            checkCharIndexes(buffer);
+            
+            // Thawing everything brings lines back from disk.
+            buffer.thaw(1000);
+            Assert.equals(buffer.getSpilledLineCount(), 3 * LINES_PER_CHUNK);
+            Assert.equals(buffer.getFrozenLineCount(), 1000);
+            Assert.equals(buffer.get(999).getString(), "999");
+            Assert.equals(buffer.get(1000).getString(), "1000");
+            
+            // Turning spilling off discards what's on disk.
+            Assert.equals(buffer.trim(300, 0, false), 3 * LINES_PER_CHUNK);
+            Assert.equals(buffer.get(0).getString(), Integer.toString(3 * LINES_PER_CHUNK));
+            Assert.equals(buffer.getFrozenLineStartIndex(0), 0L);
+        } finally {
+            buffer.dispose();
+            directory.delete();
+        }
+        Assert.equals(directory.exists(), false);
+    }
+}
@@ -0,0 +1,341 @@
+package terminator.model;
+
+import java.nio.*;
+import java.util.*;
+import org.jessies.test.*;
+import terminator.Palettes;
+
+/**
+ * Holds up to LINES_PER_CHUNK consecutive lines that have scrolled off the top of the screen.
+ *
+ * A TextLine costs an object, two arrays (with room to grow), and a style index per character.
+ * Lines in the scrollback never change, so we can afford to store them far more compactly:
+ * the characters of all our lines are packed into a single char[], and the styles are stored as runs that refer to a small per-chunk table of distinct Styles.
+ * We recreate a TextLine only when someone asks for one.
+ *
+ * Chunks are appended to until they're full.
+ * The only other change allowed is to remove lines from the end, which happens when the terminal gets taller and lines come back out of the scrollback.
+ *
+ * Full chunks can also be written to and read back from a ByteBuffer, which is how ScrollbackSpill keeps them on disk.
+ */
+class ScrollbackChunk {
+    static final int LINES_PER_CHUNK = 256;
+    
+    private static final char NO_BACKGROUND = Character.MAX_VALUE;
+    
+    private int lineCount = 0;
+    
+    // The characters of all our lines, concatenated.
+    // Line i occupies chars[lineStarts[i]] up to (but not including) chars[lineStarts[i + 1]].
+    private char[] chars = new char[4096];
+    private final int[] lineStarts = new int[LINES_PER_CHUNK + 1];
+    
+    // The style runs for line i are lineRunStarts[i] up to (but not including) lineRunStarts[i + 1].
+    // Each run has an end offset within its line, and an index into styleTable.
+    // A line with no runs uses the default style throughout.
+    private final int[] lineRunStarts = new int[LINES_PER_CHUNK + 1];
+    private int[] runEnds = new int[LINES_PER_CHUNK];
+    private int[] runStyles = new int[LINES_PER_CHUNK];
+    
+    // Each line's background, as an index into inkTable (or NO_BACKGROUND for null).
+    private final char[] backgrounds = new char[LINES_PER_CHUNK];
+    
+    private final ArrayList<Style> styleTable = new ArrayList<>();
+    private final ArrayList<Palettes.Ink> inkTable = new ArrayList<>();
+    // Only needed while we're still being appended to.
+    private HashMap<Style, Integer> styleIndexes = new HashMap<>();
+    
+    // The index into the terminal's character sequence (counting a newline at the end of each line) of our first character.
+    // This is a long because it counts every character ever frozen, including those since evicted.
+    private final long firstCharIndex;
+    
+    ScrollbackChunk(long firstCharIndex) {
+        this.firstCharIndex = firstCharIndex;
+    }
+    
+    /**
+     * Writes this chunk, which must be full, to 'buffer' in a form that readFrom understands.
+     * Throws BufferOverflowException if there isn't room, in which case the buffer's position is undefined.
+     */
+    void writeTo(ByteBuffer buffer) {
+        if (isFull() == false) {
+            throw new IllegalStateException("only full chunks can be written");
+        }
+        buffer.putLong(firstCharIndex);
+        final int charCount = lineStarts[lineCount];
+        buffer.putInt(charCount);
+        buffer.asCharBuffer().put(chars, 0, charCount);
+        buffer.position(buffer.position() + 2 * charCount);
+        final int runCount = lineRunStarts[lineCount];
+        for (int i = 1; i <= lineCount; ++i) {
+            buffer.putInt(lineStarts[i]);
+            buffer.putInt(lineRunStarts[i]);
+        }
+        for (int run = 0; run < runCount; ++run) {
+            buffer.putInt(runEnds[run]);
+            buffer.putInt(runStyles[run]);
+        }
+        buffer.asCharBuffer().put(backgrounds, 0, lineCount);
+        buffer.position(buffer.position() + 2 * lineCount);
+        buffer.putShort((short) inkTable.size());
+        for (Palettes.Ink ink : inkTable) {
+            ink.writeTo(buffer);
+        }
+        buffer.putInt(styleTable.size());
+        for (Style style : styleTable) {
+            buffer.putInt(style.getAttributes());
+            writeNullableInk(buffer, style.getRawForeground());
+            writeNullableInk(buffer, style.getRawBackground());
+        }
+    }
+    
+    /** Reads a chunk written by writeTo, starting at the buffer's current position. */
+    static ScrollbackChunk readFrom(ByteBuffer buffer) {
+        ScrollbackChunk chunk = new ScrollbackChunk(buffer.getLong());
+        chunk.lineCount = LINES_PER_CHUNK;
+        final int charCount = buffer.getInt();
+        chunk.chars = new char[charCount];
+        buffer.asCharBuffer().get(chunk.chars);
+        buffer.position(buffer.position() + 2 * charCount);
+        for (int i = 1; i <= LINES_PER_CHUNK; ++i) {
+            chunk.lineStarts[i] = buffer.getInt();
+            chunk.lineRunStarts[i] = buffer.getInt();
+        }
+        final int runCount = chunk.lineRunStarts[LINES_PER_CHUNK];
+        chunk.runEnds = new int[runCount];
+        chunk.runStyles = new int[runCount];
+        for (int run = 0; run < runCount; ++run) {
+            chunk.runEnds[run] = buffer.getInt();
+            chunk.runStyles[run] = buffer.getInt();
+        }
+        buffer.asCharBuffer().get(chunk.backgrounds);
+        buffer.position(buffer.position() + 2 * LINES_PER_CHUNK);
+        for (int i = buffer.getShort(); i > 0; --i) {
+            chunk.inkTable.add(Palettes.readInk(buffer));
+        }
+        for (int i = buffer.getInt(); i > 0; --i) {
+            int attributes = buffer.getInt();
+            Palettes.Ink foreground = readNullableInk(buffer);
+            Palettes.Ink background = readNullableInk(buffer);
+            chunk.styleTable.add(Style.makeStyle(foreground, background, attributes));
+        }
+        chunk.styleIndexes = null;
+        return chunk;
+    }
+    
+    private static void writeNullableInk(ByteBuffer buffer, Palettes.Ink ink) {
+        buffer.put((byte) (ink == null ? 0 : 1));
+        if (ink != null) {
+            ink.writeTo(buffer);
+        }
+    }
+    
+    private static Palettes.Ink readNullableInk(ByteBuffer buffer) {
+        return (buffer.get() == 0) ? null : Palettes.readInk(buffer);
+    }
+    
+    int getLineCount() {
+        return lineCount;
+    }
+    
+    boolean isFull() {
+        return lineCount == LINES_PER_CHUNK;
+    }
+    
+    long getFirstCharIndex() {
+        return firstCharIndex;
+    }
+    
+    /** Returns the number of characters in this chunk, counting a newline at the end of each line. */
+    int getCharCount() {
+        return lineStarts[lineCount] + lineCount;
+    }
+    
+    /** Returns the offset of the given line's first character from our first character, counting newlines. */
+    int getLineStartIndex(int lineIndex) {
+        return lineStarts[lineIndex] + lineIndex;
+    }
+    
+    int getLineLength(int lineIndex) {
+        return lineStarts[lineIndex + 1] - lineStarts[lineIndex];
+    }
+    
+    /** Returns a rough count of the bytes of heap we're using. */
+    long estimateByteCount() {
+        return 2L * chars.length + 4L * (runEnds.length + runStyles.length) + 10L * LINES_PER_CHUNK + 8L * (styleTable.size() + inkTable.size()) + 64;
+    }
+    
+    void append(TextLine line) {
+        if (isFull()) {
+            throw new IllegalStateException("can't append to a full chunk");
+        }
+        final int length = line.length();
+        
+        final int charStart = lineStarts[lineCount];
+        chars = ensureCapacity(chars, charStart + length);
+        System.arraycopy(line.getRawChars(), 0, chars, charStart, length);
+        lineStarts[lineCount + 1] = charStart + length;
+        
+        int runCount = lineRunStarts[lineCount];
+        if (line.hasStyles()) {
+            final int firstRun = runCount;
+            boolean allDefault = true;
+            for (int start = 0, end; start < length; start = end) {
+                end = line.getRunLimit(start, length);
+                Style style = line.getStyleAt(start);
+                allDefault = allDefault && style.equals(Style.getDefaultStyle());
+                runEnds = ensureCapacity(runEnds, runCount + 1);
+                runStyles = ensureCapacity(runStyles, runCount + 1);
+                runEnds[runCount] = end;
+                runStyles[runCount] = indexOfStyle(style);
+                ++runCount;
+            }
+            if (allDefault) {
+                runCount = firstRun;
+            }
+        }
+        lineRunStarts[lineCount + 1] = runCount;
+        
+        backgrounds[lineCount] = indexOfInk(line.getRawBackground());
+        
+        ++lineCount;
+        if (isFull()) {
+            seal();
+        }
+    }
+    
+    /** Returns a new TextLine equivalent to the one that was appended as line 'lineIndex', using the given terminal's StyleTable. */
+    TextLine getTextLine(int lineIndex, StyleTable terminalStyleTable) {
+        final int charStart = lineStarts[lineIndex];
+        final int length = lineStarts[lineIndex + 1] - charStart;
+        final char[] text = Arrays.copyOfRange(chars, charStart, charStart + length);
+        char[] styles = null;
+        final int firstRun = lineRunStarts[lineIndex];
+        final int lastRun = lineRunStarts[lineIndex + 1];
+        if (firstRun != lastRun) {
+            styles = new char[length];
+            int start = 0;
+            for (int run = firstRun; run < lastRun; ++run) {
+                Arrays.fill(styles, start, runEnds[run], terminalStyleTable.indexOf(styleTable.get(runStyles[run])));
+                start = runEnds[run];
+            }
+        }
+        final char background = backgrounds[lineIndex];
+        return new TextLine(terminalStyleTable, background == NO_BACKGROUND ? null : inkTable.get(background), text, styles);
+    }
+    
+    /** Forgets all lines from 'newLineCount' onwards. */
+    void truncate(int newLineCount) {
+        lineCount = Math.min(lineCount, newLineCount);
+        if (styleIndexes == null) {
+            // We were sealed, but now we may be appended to again.
+            styleIndexes = new HashMap<>();
+            for (int i = 0; i < styleTable.size(); ++i) {
+                styleIndexes.put(styleTable.get(i), i);
+            }
+        }
+    }
+    
+    /** Releases the space we were keeping in case more lines were appended. */
+    private void seal() {
+        chars = Arrays.copyOf(chars, lineStarts[lineCount]);
+        runEnds = Arrays.copyOf(runEnds, lineRunStarts[lineCount]);
+        runStyles = Arrays.copyOf(runStyles, lineRunStarts[lineCount]);
+        styleTable.trimToSize();
+        inkTable.trimToSize();
+        styleIndexes = null;
+    }
+    
+    private int indexOfStyle(Style style) {
+        Integer index = styleIndexes.get(style);
+        if (index == null) {
+            index = styleTable.size();
+            styleTable.add(style);
+            styleIndexes.put(style, index);
+        }
+        return index;
+    }
+    
+    private char indexOfInk(Palettes.Ink ink) {
+        if (ink == null) {
+            return NO_BACKGROUND;
+        }
+        // There's at most one distinct Ink per line, and usually only one per chunk, so a linear search is fine.
+        int index = inkTable.indexOf(ink);
+        if (index == -1) {
+            index = inkTable.size();
+            inkTable.add(ink);
+        }
+        return (char) index;
+    }
+    
+    private static char[] ensureCapacity(char[] array, int capacity) {
+        return (capacity <= array.length) ? array : Arrays.copyOf(array, Math.max(capacity, 2 * array.length));
+    }
+    
+    private static int[] ensureCapacity(int[] array, int capacity) {
+        return (capacity <= array.length) ? array : Arrays.copyOf(array, Math.max(capacity, 2 * array.length));
+    }
+    
+    @Test private static void testRoundTrip() {
+        StyleTable styleTable = new StyleTable();
+        Style red = Style.makeStyle(Palettes.getInk(1), null, Style.BOLD);
+        TextLine styled = new TextLine(styleTable, null);
+        styled.writeTextAt(0, "hello, ", Style.getDefaultStyle());
+        styled.writeTextAt(7, "world", red);
+        styled.insertTabAt(12, 4, red);
+        TextLine plain = new TextLine(styleTable, Palettes.getInk(4));
+        plain.writeTextAt(0, "plain", Style.getDefaultStyle());
+        
+        ScrollbackChunk chunk = new ScrollbackChunk(100);
+        chunk.append(styled);
+        chunk.append(new TextLine(styleTable, null));
+        chunk.append(plain);
+        Assert.equals(chunk.getLineCount(), 3);
+        Assert.equals(chunk.getCharCount(), 16 + 1 + 0 + 1 + 5 + 1);
+        Assert.equals(chunk.getLineStartIndex(2), 18);
+        
+        TextLine copy = chunk.getTextLine(0, styleTable);
+        Assert.equals(copy.getString(), styled.getString());
+        Assert.equals(copy.getTabbedString(0, copy.length()), "hello, world\t");
+        Assert.equals(copy.getRunLimit(0, copy.length()), 7);
+        Assert.equals(copy.getStyleAt(9), red);
+        Assert.equals(chunk.getTextLine(1, styleTable).length(), 0);
+        Assert.equals(chunk.getTextLine(2, styleTable).getString(), "plain");
+        Assert.equals(chunk.getTextLine(2, styleTable).getRawBackground(), Palettes.getInk(4));
+        Assert.equals(chunk.getTextLine(2, styleTable).hasStyles(), false);
+        
+        chunk.truncate(1);
+        Assert.equals(chunk.getLineCount(), 1);
+        Assert.equals(chunk.getCharCount(), 17);
+    }
+    
+    @Test private static void testWriteAndRead() {
+        StyleTable styleTable = new StyleTable();
+        Style red = Style.makeStyle(Palettes.getInk(1), Palettes.getFixedInk(new java.awt.Color(0x123456)), Style.UNDERLINE);
+        ScrollbackChunk chunk = new ScrollbackChunk(1234567890123L);
+        for (int i = 0; i < LINES_PER_CHUNK; ++i) {
+            TextLine line = new TextLine(styleTable, (i % 2 == 0) ? null : Palettes.getInk(i));
+            line.writeTextAt(0, "line " + i, Style.getDefaultStyle());
+            if (i % 3 == 0) {
+                line.writeTextAt(2, "NE", red);
+            }
+            chunk.append(line);
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+        chunk.writeTo(buffer);
+        buffer.flip();
+        ScrollbackChunk copy = ScrollbackChunk.readFrom(buffer);
+        Assert.equals(buffer.remaining(), 0);
+        Assert.equals(copy.getFirstCharIndex(), 1234567890123L);
+        Assert.equals(copy.getCharCount(), chunk.getCharCount());
+        for (int i = 0; i < LINES_PER_CHUNK; ++i) {
+            TextLine expected = chunk.getTextLine(i, styleTable);
+            TextLine actual = copy.getTextLine(i, styleTable);
+            Assert.equals(actual.getString(), expected.getString());
+            Assert.equals(actual.getRawBackground(), expected.getRawBackground());
+            Assert.equals(actual.getStyleAt(3), expected.getStyleAt(3));
+            Assert.equals(copy.getLineStartIndex(i), chunk.getLineStartIndex(i));
+        }
+    }
+}
@@ -0,0 +1,169 @@
+package terminator.model;
+
+import e.util.*;
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+
+/**
+ * Keeps full ScrollbackChunks on disk, for terminals whose scrollback has outgrown the in-memory limits.
+ *
+ * Chunks are appended to memory-mapped segment files in the Terminator logs directory.
+ * All we keep on the heap is a sparse index (the segment and offset of each chunk, which is to say one entry per LINES_PER_CHUNK lines), and a few recently-used chunks.
+ * The files are only of use to us, so they're deleted when we're closed (or when the JVM exits, if we never are).
+ */
+class ScrollbackSpill {
+    private static final int SEGMENT_BYTE_COUNT = 32 * 1024 * 1024;
+    // Enough to cover a screenful or two of scrolling around in the spilled scrollback without reading the same chunk twice.
+    private static final int CACHED_CHUNK_COUNT = 8;
+    
+    private final File directory;
+    private final ArrayList<Segment> segments = new ArrayList<>();
+    
+    // The index: where each chunk starts, on disk and in the text.
+    private int chunkCount = 0;
+    private int[] chunkSegments = new int[64];
+    private int[] chunkOffsets = new int[64];
+    private long[] chunkFirstCharIndexes = new long[64];
+    // The character index just past the end of our last chunk.
+    private long endCharIndex = 0;
+    
+    private final LinkedHashMap<Integer, ScrollbackChunk> cachedChunks = new LinkedHashMap<Integer, ScrollbackChunk>(16, 0.75f, true) {
+        @Override protected boolean removeEldestEntry(Map.Entry<Integer, ScrollbackChunk> eldest) {
+            return size() > CACHED_CHUNK_COUNT;
+        }
+    };
+    
+    private static class Segment {
+        private final File file;
+        private final FileChannel channel;
+        private final MappedByteBuffer buffer;
+        
+        private Segment(File file, int byteCount) throws IOException {
+            this.file = file;
+            file.deleteOnExit();
+            this.channel = new RandomAccessFile(file, "rw").getChannel();
+            this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, byteCount);
+        }
+        
+        private void close() {
+            try {
+                channel.close();
+            } catch (IOException ex) {
+                Log.warn("Failed to close scrollback segment \"" + file + "\"", ex);
+            }
+            // This may fail on Windows while the file's still mapped, but deleteOnExit will have another go.
+            file.delete();
+        }
+    }
+    
+    /**
+     * Returns a new spill in the Terminator logs directory, or null if that directory isn't usable.
+     */
+    static ScrollbackSpill create() {
+        String logsDirectoryName = System.getProperty("org.jessies.terminator.logDirectory");
+        if (logsDirectoryName == null || new File(logsDirectoryName).isDirectory() == false) {
+            return null;
+        }
+        return new ScrollbackSpill(new File(logsDirectoryName));
+    }
+    
+    ScrollbackSpill(File directory) {
+        this.directory = directory;
+    }
+    
+    int getChunkCount() {
+        return chunkCount;
+    }
+    
+    int getLineCount() {
+        return chunkCount * ScrollbackChunk.LINES_PER_CHUNK;
+    }
+    
+    long getEndCharIndex() {
+        return endCharIndex;
+    }
+    
+    /** Writes a full chunk to the end of the spill. */
+    void append(ScrollbackChunk chunk) throws IOException {
+        if (segments.isEmpty()) {
+            addSegment();
+        }
+        Segment segment = segments.get(segments.size() - 1);
+        int offset = segment.buffer.position();
+        try {
+            chunk.writeTo(segment.buffer);
+        } catch (BufferOverflowException ex) {
+            segment.buffer.position(offset);
+            segment = addSegment();
+            offset = 0;
+            try {
+                chunk.writeTo(segment.buffer);
+            } catch (BufferOverflowException ex2) {
+                // Even a whole segment isn't big enough, which shouldn't be possible given that we limit the width of lines.
+                segment.buffer.position(0);
+                throw new IOException("scrollback chunk too large for a " + SEGMENT_BYTE_COUNT + "-byte segment");
+            }
+        }
+        if (chunkCount == chunkSegments.length) {
+            chunkSegments = Arrays.copyOf(chunkSegments, 2 * chunkCount);
+            chunkOffsets = Arrays.copyOf(chunkOffsets, 2 * chunkCount);
+            chunkFirstCharIndexes = Arrays.copyOf(chunkFirstCharIndexes, 2 * chunkCount);
+        }
+        chunkSegments[chunkCount] = segments.size() - 1;
+        chunkOffsets[chunkCount] = offset;
+        chunkFirstCharIndexes[chunkCount] = chunk.getFirstCharIndex();
+        ++chunkCount;
+        endCharIndex = chunk.getFirstCharIndex() + chunk.getCharCount();
+    }
+    
+    private Segment addSegment() throws IOException {
+        Segment segment = new Segment(File.createTempFile("scrollback-", ".tmp", directory), SEGMENT_BYTE_COUNT);
+        segments.add(segment);
+        return segment;
+    }
+    
+    /** Returns the given chunk's first character index, without reading the chunk back in. */
+    long getChunkFirstCharIndex(int index) {
+        return chunkFirstCharIndexes[index];
+    }
+    
+    /** Returns the given chunk, reading it back in from disk if we don't have it to hand. */
+    ScrollbackChunk getChunk(int index) {
+        ScrollbackChunk chunk = cachedChunks.get(index);
+        if (chunk == null) {
+            ByteBuffer buffer = segments.get(chunkSegments[index]).buffer.duplicate();
+            buffer.position(chunkOffsets[index]);
+            chunk = ScrollbackChunk.readFrom(buffer);
+            cachedChunks.put(index, chunk);
+        }
+        return chunk;
+    }
+    
+    /** Removes the last chunk from the spill, and returns it. Its space on disk is reused. */
+    ScrollbackChunk removeLastChunk() {
+        final int index = chunkCount - 1;
+        ScrollbackChunk chunk = getChunk(index);
+        cachedChunks.remove(index);
+        --chunkCount;
+        endCharIndex = chunk.getFirstCharIndex();
+        // Chunks are only ever written to the last segment, so that's where this one must be.
+        segments.get(chunkSegments[index]).buffer.position(chunkOffsets[index]);
+        if (segments.size() > 1 && chunkOffsets[index] == 0) {
+            // That was the only chunk in the last segment.
+            segments.remove(segments.size() - 1).close();
+        }
+        return chunk;
+    }
+    
+    /** Deletes our files. We're no use after this. */
+    void close() {
+        for (Segment segment : segments) {
+            segment.close();
+        }
+        segments.clear();
+        cachedChunks.clear();
+        chunkCount = 0;
+    }
+}
@@ -0,0 +1,245 @@
+package terminator.model;
+
+import e.util.*;
+import java.awt.Color;
+import java.util.*;
+import org.jessies.test.*;
+import terminator.Palettes;
+
+/**
+ * Interns the distinct Styles used by a terminal, so that a TextLine can store a 16-bit index for each character rather than a Style reference.
+ * Even a terminal that's been running for weeks rarely uses more than a few hundred distinct styles.
+ *
+ * A program that uses a lot of 24-bit colors could still fill the table in the end, so the model compacts it (see needsCompaction) between batches of output.
+ * That keeps just the styles that lines still refer to, which are only those of the hot lines at the end of the scrollback: frozen lines store Styles rather than indexes.
+ * Only if a single batch of output uses more than a quarter of the table's capacity in new styles do we have to fall back to the default style.
+ *
+ * Index 0 is always the default style.
+ */
+public class StyleTable {
+    public static final char DEFAULT_INDEX = 0;
+    
+    // Indexes are stored as chars.
+    private static final int MAX_STYLE_COUNT = Character.MAX_VALUE + 1;
+    
+    private final ArrayList<Style> styles = new ArrayList<>();
+    private final HashMap<Style, Character> indexes = new HashMap<>();
+    // The background-only styles used to pad lines, by background.
+    private final HashMap<Palettes.Ink, Character> paddingIndexes = new HashMap<>();
+    
+    // The model uses the same Style object for long stretches, so it's worth remembering the last one we looked up.
+    private Style lastStyle;
+    private char lastIndex;
+    
+    // Once we have this many styles, it's time to compact.
+    private int compactionThreshold = MAX_STYLE_COUNT / 2;
+    
+    private boolean warnedAboutFullTable = false;
+    
+    public StyleTable() {
+        styles.add(Style.getDefaultStyle());
+        indexes.put(Style.getDefaultStyle(), DEFAULT_INDEX);
+        lastStyle = Style.getDefaultStyle();
+        lastIndex = DEFAULT_INDEX;
+    }
+    
+    public Style get(char index) {
+        return styles.get(index);
+    }
+    
+    /**
+     * Returns the index of the given style, adding it to the table if necessary.
+     */
+    public char indexOf(Style style) {
+        if (style == lastStyle) {
+            return lastIndex;
+        }
+        Character index = indexes.get(style);
+        if (index == null) {
+            if (styles.size() == MAX_STYLE_COUNT) {
+                // We can't compact in the middle of a batch, and there are too many new styles in this one; plain text is better than an exception.
+                if (warnedAboutFullTable == false) {
+                    Log.warn("Terminal has more than " + MAX_STYLE_COUNT + " distinct styles in use; using the default style instead");
+                    warnedAboutFullTable = true;
+                }
+                return DEFAULT_INDEX;
+            }
+            index = Character.valueOf((char) styles.size());
+            styles.add(style);
+            indexes.put(style, index);
+        }
+        lastStyle = style;
+        lastIndex = index.charValue();
+        return lastIndex;
+    }
+    
+    /**
+     * Returns the index of the style with no attributes, the default foreground, and the given background.
+     * This is what we pad lines with, and we'd rather not make a new Style just to look it up.
+     */
+    char indexOfPadding(Palettes.Ink background) {
+        if (background == null) {
+            return DEFAULT_INDEX;
+        }
+        Character index = paddingIndexes.get(background);
+        if (index == null) {
+            index = Character.valueOf(indexOf(Style.makeStyle(null, background, 0)));
+            paddingIndexes.put(background, index);
+        }
+        return index.charValue();
+    }
+    
+    public int size() {
+        return styles.size();
+    }
+    
+    /**
+     * Returns true if we're getting full enough that it's time to call compact.
+     */
+    boolean needsCompaction() {
+        return styles.size() >= compactionThreshold;
+    }
+    
+    /**
+     * Forgets the styles that none of the given lines use, and renumbers the rest, updating the lines to match.
+     * The lines must include every line whose styles will be looked at again, and nothing else may be part way through using an index.
+     */
+    void compact(Collection<TextLine> liveLines) {
+        // The same line may well be in the collection more than once (it might be both on the screen and in the saved screen), but must only be renumbered once.
+        Set<TextLine> lines = Collections.newSetFromMap(new IdentityHashMap<TextLine, Boolean>());
+        lines.addAll(liveLines);
+        
+        final char[] newIndexes = new char[styles.size()];
+        final boolean[] used = new boolean[styles.size()];
+        used[DEFAULT_INDEX] = true;
+        for (TextLine line : lines) {
+            line.markStylesUsed(used);
+        }
+        ArrayList<Style> oldStyles = new ArrayList<>(styles);
+        styles.clear();
+        indexes.clear();
+        for (int i = 0; i < oldStyles.size(); ++i) {
+            if (used[i]) {
+                newIndexes[i] = (char) styles.size();
+                indexes.put(oldStyles.get(i), newIndexes[i]);
+                styles.add(oldStyles.get(i));
+            }
+        }
+        for (TextLine line : lines) {
+            line.renumberStyles(newIndexes);
+        }
+        
+        for (Iterator<Map.Entry<Palettes.Ink, Character>> it = paddingIndexes.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<Palettes.Ink, Character> entry = it.next();
+            if (used[entry.getValue()]) {
+                entry.setValue(newIndexes[entry.getValue()]);
+            } else {
+                it.remove();
+            }
+        }
+        lastStyle = Style.getDefaultStyle();
+        lastIndex = DEFAULT_INDEX;
+        // If most of the styles are still in use, don't keep compacting to little effect.
+        compactionThreshold = Math.min(Math.max(MAX_STYLE_COUNT / 2, styles.size() + MAX_STYLE_COUNT / 4), MAX_STYLE_COUNT);
+        warnedAboutFullTable = false;
+    }
+    
+    /** Returns a distinct style for each 'i'. */
+    private static Style makeTestStyle(int i) {
+        return Style.makeStyle(Palettes.getFixedInk(new Color(i)), null, 0);
+    }
+    
+    @Test private static void testInterning() {
+        StyleTable table = new StyleTable();
+        Assert.equals(table.indexOf(Style.getDefaultStyle()), DEFAULT_INDEX);
+        Assert.equals(table.indexOf(Style.makeStyle(null, null, 0)), DEFAULT_INDEX);
+        final char bold = table.indexOf(Style.makeStyle(null, null, Style.BOLD));
+        final char red = table.indexOf(makeTestStyle(0xff0000));
+        Assert.equals(bold != red && bold != DEFAULT_INDEX, true);
+        // Equal styles get the same index, whether or not they're the same object.
+        Assert.equals(table.indexOf(Style.makeStyle(null, null, Style.BOLD)), bold);
+        Assert.equals(table.indexOf(makeTestStyle(0xff0000)), red);
+        Assert.equals(table.get(bold), Style.makeStyle(null, null, Style.BOLD));
+        Assert.equals(table.size(), 3);
+        // Padding for a given background is interned too.
+        final char padding = table.indexOfPadding(Palettes.getInk(4));
+        Assert.equals(table.indexOfPadding(Palettes.getInk(4)), padding);
+        Assert.equals(table.get(padding), Style.makeStyle(null, Palettes.getInk(4), 0));
+        Assert.equals(table.indexOfPadding(null), DEFAULT_INDEX);
+    }
+    
+    @Test private static void testStyledLine() {
+        StyleTable table = new StyleTable();
+        final Style bold = Style.makeStyle(null, null, Style.BOLD);
+        final Style red = makeTestStyle(0xff0000);
+        TextLine line = new TextLine(table, null);
+        line.writeTextAt(0, "plain", Style.getDefaultStyle());
+        Assert.equals(line.hasStyles(), false);
+        line.writeTextAt(5, "bold", bold);
+        line.insertTextAt(5, "red", red);
+        line.writeTextAt(14, "x", Style.getDefaultStyle());
+        Assert.equals(line.getString(), "plainredbold  x");
+        Assert.equals(line.getStyleAt(0), Style.getDefaultStyle());
+        Assert.equals(line.getStyleAt(5), red);
+        Assert.equals(line.getStyleAt(8), bold);
+        Assert.equals(line.getStyleAt(12), Style.getDefaultStyle());
+        Assert.equals(line.getRunLimit(0, line.length()), 5);
+        Assert.equals(line.getRunLimit(5, line.length()), 8);
+        Assert.equals(line.getRunLimit(8, line.length()), 12);
+        Assert.equals(line.getRunLimit(8, 10), 10);
+        line.killText(5, 8);
+        Assert.equals(line.getStyleAt(5), bold);
+        Assert.equals(line.getRunLimit(0, line.length()), 5);
+        line.clear();
+        Assert.equals(line.hasStyles(), false);
+    }
+    
+    @Test private static void testCompaction() {
+        StyleTable table = new StyleTable();
+        final Style bold = Style.makeStyle(null, null, Style.BOLD);
+        TextLine line = new TextLine(table, Palettes.getInk(4));
+        line.writeTextAt(0, "ab", bold);
+        line.writeTextAt(4, "cd", makeTestStyle(12345));
+        final int modificationCount = line.getModificationCount();
+        
+        // Fill the table with styles nothing uses any more.
+        for (int i = 0; table.needsCompaction() == false; ++i) {
+            table.indexOf(makeTestStyle(i));
+        }
+        Assert.equals(table.size(), MAX_STYLE_COUNT / 2);
+        // Compaction keeps only the styles in use (the default, bold, the padding, and the last color), and the lines look just as they did.
+        table.compact(Arrays.asList(line, line));
+        Assert.equals(table.size(), 4);
+        Assert.equals(table.needsCompaction(), false);
+        Assert.equals(line.getString(), "ab  cd");
+        Assert.equals(line.getStyleAt(0), bold);
+        Assert.equals(line.getStyleAt(2), Style.makeStyle(null, Palettes.getInk(4), 0));
+        Assert.equals(line.getStyleAt(4), makeTestStyle(12345));
+        Assert.equals(line.getRunLimit(0, line.length()), 2);
+        Assert.equals(line.getModificationCount(), modificationCount);
+        // The surviving styles are still interned, as is padding.
+        Assert.equals(table.indexOf(bold), line.getRawStyleIndex(0));
+        Assert.equals(table.indexOfPadding(Palettes.getInk(4)), line.getRawStyleIndex(2));
+        Assert.equals(table.indexOfPadding(Palettes.getInk(5)) >= 4, true);
+    }
+    
+    @Test private static void testOverflow() {
+        StyleTable table = new StyleTable();
+        TextLine line = new TextLine(table, null);
+        for (int i = 1; i < MAX_STYLE_COUNT; ++i) {
+            line.writeTextAt(0, "x", makeTestStyle(i));
+        }
+        Assert.equals(table.size(), MAX_STYLE_COUNT);
+        // With no chance to compact, a full table falls back to the default style rather than failing.
+        line.writeTextAt(0, "y", makeTestStyle(0xabcdef));
+        Assert.equals(line.getStyleAt(0), Style.getDefaultStyle());
+        // Once we can compact, there's room again.
+        line.writeTextAt(0, "x", makeTestStyle(1));
+        Assert.equals(table.needsCompaction(), true);
+        table.compact(Collections.singletonList(line));
+        Assert.equals(table.size(), 2);
+        line.writeTextAt(1, "y", makeTestStyle(0xabcdef));
+        Assert.equals(line.getStyleAt(0), makeTestStyle(1));
+        Assert.equals(line.getStyleAt(1), makeTestStyle(0xabcdef));
+    }
+}
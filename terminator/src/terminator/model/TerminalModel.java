@@ -9,15 +9,20 @@ import terminator.view.*;
 import terminator.*;
 
 public class TerminalModel {
+    // How many lines above the top of the display (or the cursor, if it's higher) we leave hot rather than freezing them.
+    // This saves us from repeatedly freezing and thawing the same lines as the terminal's height changes.
+    private static final int HOT_LINES_ABOVE_DISPLAY = 64;
+    
     private TerminalView view;
     private int width;
     private int height;
-    private ArrayList<TextLine> textLines = new ArrayList<>();
+    // Every line in this terminal, including those in the scrollback, stores its styles as indexes into this table.
+    private final StyleTable styleTable = new StyleTable();
+    private ScrollbackBuffer textLines = new ScrollbackBuffer(styleTable);
     private Style currentStyle = Style.getDefaultStyle();
     private int firstScrollLineIndex;
     private int lastScrollLineIndex;
     private Location cursorPosition;
-    private int lastValidStartIndex = 0;
     private boolean insertMode = false;
     private ArrayList<Integer> tabPositions = new ArrayList<>();
     private int maxLineWidth = width;
@@ -25,6 +30,18 @@ public class TerminalModel {
     
     // Used for reducing the number of lines changed events sent up to the view.
     private int firstLineChanged;
+    // The lines from scrollTop (inclusive) to scrollBottom (exclusive) have moved up by scrolledLineCount lines since we last updated the view.
+    // The view can move what it's already drawn of them rather than draw them all again.
+    private int scrollTop;
+    private int scrollBottom;
+    private int scrolledLineCount;
+    // Whether we've changed since we last updated the view (in which case the FrameScheduler will be calling updateView).
+    private boolean viewUpdatePending = false;
+    // The state of the view when we last updated it.
+    private boolean wereAtBottom;
+    private Dimension initialSize;
+    // The number of lines discarded from the start of the scrollback since we were created.
+    private long totalEvictedLineCount = 0;
     
     // Fields used for saving and restoring state.
     private Location savedPosition;
@@ -94,7 +111,6 @@ public class TerminalModel {
         if (viewInactive && !canViewInactiveBuffer()) return;
         // If we get here, it's safe to switch to view the inactive buffer.
         viewInactiveScreen = viewInactive;
-        lineIsDirty(getFirstDisplayLine());
         linesChangedFrom(getFirstDisplayLine());
         view.linesChangedFrom(getFirstDisplayLine());
         view.repaint();
@@ -102,13 +118,18 @@ public class TerminalModel {
     }
     
     public void checkInvariant() {
-        int highestStartLineIndex = -1;
-        for (int lineNumber = 0; lineNumber <= lastValidStartIndex; ++ lineNumber) {
-            int thisStartLineIndex = textLines.get(lineNumber).getLineStartIndex();
-            if (thisStartLineIndex <= highestStartLineIndex) {
-                throw new RuntimeException("the lineStartIndex must increase monotonically as the line number increases");
+        // The ScrollbackBuffer only knows the hot lines' lengths if we tell it every time we change one.
+        // Checking them all would be too expensive to do this often, but the cursor's line is the one most likely to have changed.
+        if (cursorPosition == null) {
+            // We're still being constructed.
+            return;
+        }
+        int lineIndex = cursorPosition.getLineIndex();
+        if (lineIndex >= textLines.getFrozenLineCount() && lineIndex + 1 < textLines.size()) {
+            long indexedLength = textLines.getLineStartIndex(lineIndex + 1) - textLines.getLineStartIndex(lineIndex);
+            if (indexedLength != textLines.get(lineIndex).lengthIncludingNewline()) {
+                throw new RuntimeException("line " + lineIndex + "'s length has changed without the ScrollbackBuffer being told");
             }
-            highestStartLineIndex = thisStartLineIndex;
         }
     }
     
@@ -128,15 +149,19 @@ public class TerminalModel {
         // multiple physical lines, and the cursor may not be on the
         // first of those lines. Ideally we should keep all pertinent
         // lines. Unfortunately, I can't see how we'd know.
-        ArrayList<TextLine> retainedLines = new ArrayList<>(textLines.subList(cursorPosition.getLineIndex(), textLines.size()));
+        ArrayList<TextLine> retainedLines = new ArrayList<>();
+        for (int i = cursorPosition.getLineIndex(); i < textLines.size(); ++i) {
+            retainedLines.add(textLines.get(i));
+        }
         
         // Revert to just the right number of empty lines to fill the
         // current window size.
-        // Using a new ArrayList ensures we free space without risking
+        // Using a new ScrollbackBuffer ensures we free space without risking
         // expensive nulling-out of now-unused elements. The assumption
         // being that we're most likely to be asked to clear the
         // scrollback when it's insanely large.
-        textLines = new ArrayList<TextLine>();
+        textLines.dispose();
+        textLines = new ScrollbackBuffer(styleTable);
         setSize(width, view.getVisibleSizeInCharacters().height);
         maxLineWidth = width;
         
@@ -147,7 +172,6 @@ public class TerminalModel {
         
         // Make sure all the lines will be redrawn.
         view.sizeChanged();
-        lineIsDirty(0);
         
         resetCursorPosition();
         
@@ -164,6 +188,12 @@ public class TerminalModel {
         view.setCursorPosition(cursorPosition);
     }
     
+    /** Releases any resources, such as scrollback files, held by this model. */
+    public void dispose() {
+        FrameScheduler.getInstance().cancelUpdate(this);
+        textLines.dispose();
+    }
+    
     public void flushScrollBuffer() {
         clearScrollBuffer();
         ++ flushes;
@@ -218,7 +248,7 @@ public class TerminalModel {
             for (int i = 0; i < height; i++) {
                 int lineIndex = getFirstDisplayLine() + i;
                 savedScreen[i] = getTextLine(lineIndex);
-                textLines.set(lineIndex, new TextLine(Palettes.getBackgroundInk()));
+                textLines.set(lineIndex, new TextLine(styleTable, Palettes.getBackgroundInk()));
             }
         } else {
             // Save the alternative buffer in case the user wants to flip back and see what it contained.
@@ -226,14 +256,13 @@ public class TerminalModel {
             for (int i = 0; i < height; i++) {
                 int lineIndex = getFirstDisplayLine() + i;
                 alternateScreen[i] = getTextLine(lineIndex);
-                textLines.set(lineIndex, i >= savedScreen.length ? new TextLine(Palettes.getBackgroundInk()) : savedScreen[i]);
+                textLines.set(lineIndex, i >= savedScreen.length ? new TextLine(styleTable, Palettes.getBackgroundInk()) : savedScreen[i]);
             }
             for (int i = height; i < savedScreen.length; i++) {
                 textLines.add(savedScreen[i]);
             }
             savedScreen = null;
         }
-        lineIsDirty(getFirstDisplayLine());
         for (int i = 0; i < height; i++) {
             int index = getFirstDisplayLine() + i;
             linesChangedFrom(index);
@@ -286,9 +315,8 @@ public class TerminalModel {
     }
     
     /** Returns the start character index of the indexed line. */
-    public int getStartIndex(int lineIndex) {
-        ensureValidStartIndex(lineIndex);
-        return getTextLine(lineIndex).getLineStartIndex();
+    public long getStartIndex(int lineIndex) {
+        return textLines.getLineStartIndex(lineIndex);
     }
     
     /**
@@ -296,44 +324,25 @@ public class TerminalModel {
      * If the index is actually larger than the screen area, returns a 'fake' location to the right
      * of the end of the last line.
      */
-    public Location getLocationFromCharIndex(int charIndex) {
-        int lowLine = 0;
-        int highLine = textLines.size();
-        
-        while (highLine - lowLine > 1) {
-            int midLine = (lowLine + highLine) / 2;
-            int mid = getStartIndex(midLine);
-            if (mid <= charIndex) {
-                lowLine = midLine;
-            } else {
-                highLine = midLine;
-            }
-        }
-        return new Location(lowLine, charIndex - getStartIndex(lowLine));
+    public Location getLocationFromCharIndex(long charIndex) {
+        int lineIndex = textLines.getLineIndex(charIndex);
+        return new Location(lineIndex, (int) Math.min(charIndex - getStartIndex(lineIndex), Integer.MAX_VALUE));
     }
     
     /** Returns the char index equivalent to the given Location. */
-    public int getCharIndexFromLocation(Location location) {
+    public long getCharIndexFromLocation(Location location) {
         return getStartIndex(location.getLineIndex()) + location.getCharOffset();
     }
     
     /** Returns the count of all characters in the buffer, including NLs. */
-    public int length() {
-        int lastIndex = textLines.size() - 1;
-        return getStartIndex(lastIndex) + getLineLength(lastIndex);
-    }
-    
-    private void lineIsDirty(int dirtyLineIndex) {
-        lastValidStartIndex = Math.min(lastValidStartIndex, dirtyLineIndex + 1);
+    public long length() {
+        return textLines.getCharCount();
     }
     
-    private void ensureValidStartIndex(int lineIndex) {
-        if (lineIndex > lastValidStartIndex) {
-            for (int i = lastValidStartIndex; i < lineIndex; i++) {
-                TextLine line = getTextLine(i);
-                getTextLine(i + 1).setLineStartIndex(line.getLineStartIndex() + line.lengthIncludingNewline());
-            }
-            lastValidStartIndex = lineIndex;
+    /** Tells the ScrollbackBuffer that we've changed the lengths of the lines from 'firstLineIndex' (inclusive) to 'lastLineIndex' (exclusive). */
+    private void lineLengthsChanged(int firstLineIndex, int lastLineIndex) {
+        for (int i = firstLineIndex; i < lastLineIndex; ++i) {
+            textLines.lineLengthChanged(i);
         }
     }
     
@@ -347,6 +356,7 @@ public class TerminalModel {
         for (int i = 0; i < height; i++) {
             getTextLine(firstLineToClear + i).clear();
         }
+        lineLengthsChanged(firstLineToClear, firstLineToClear + height);
         view.repaint();
     }
     
@@ -355,6 +365,31 @@ public class TerminalModel {
         view.getSelectionHighlighter().textChanged(new Location(firstLineChanged, 0), new Location(getLineCount() + 1, 0));
     }
     
+    /**
+     * Records that the lines from 'top' (inclusive) to 'bottom' (exclusive) have moved up by 'count' lines, with new lines coming in at the bottom.
+     * Only the new lines need drawing, as long as everything that scrolls before the next view update scrolls the same region.
+     * Anything more complicated is treated as a change to every line from 'top' down, which is what all scrolling used to be.
+     */
+    private void linesScrolledUp(int top, int bottom, int count) {
+        if (count <= 0) {
+            return;
+        }
+        view.getSelectionHighlighter().textChanged(new Location(top, 0), new Location(getLineCount() + 1, 0));
+        // Lines that had already changed since the last update have moved with everything else.
+        if (firstLineChanged >= top && firstLineChanged < bottom) {
+            firstLineChanged = Math.max(top, firstLineChanged - count);
+        }
+        final boolean sameRegion = (scrolledLineCount == 0) || (scrollTop == top && scrollBottom == bottom);
+        if (sameRegion && scrolledLineCount + count < bottom - top) {
+            scrollTop = top;
+            scrollBottom = bottom;
+            scrolledLineCount += count;
+            firstLineChanged = Math.min(firstLineChanged, bottom - count);
+        } else {
+            firstLineChanged = Math.min(firstLineChanged, top);
+        }
+    }
+    
     public Dimension getCurrentSizeInChars() {
         return new Dimension(getMaxLineWidth(), getLineCount());
     }
@@ -364,13 +399,71 @@ public class TerminalModel {
     }
     
     public void processActions(TerminalAction[] actions) {
-        firstLineChanged = Integer.MAX_VALUE;
-        boolean wereAtBottom = view.isAtBottom();
-        boolean needsScroll = false;
-        Dimension initialSize = getCurrentSizeInChars();
+        startProcessing();
         for (TerminalAction action : actions) {
             action.perform(this);
         }
+        finishProcessing();
+    }
+    
+    /**
+     * Starts a batch of changes, which must end with a call to finishProcessing.
+     * The view isn't told about the changes until the FrameScheduler says so, which may be several batches later.
+     */
+    public void startProcessing() {
+        if (viewUpdatePending == false) {
+            // This is the first batch since the view was last updated, so the view is as it was before any of the pending changes.
+            firstLineChanged = Integer.MAX_VALUE;
+            scrolledLineCount = 0;
+            wereAtBottom = view.isAtBottom();
+            initialSize = getCurrentSizeInChars();
+            viewUpdatePending = true;
+        }
+    }
+    
+    public void finishProcessing() {
+        if (styleTable.needsCompaction()) {
+            compactStyleTable();
+        }
+        int evictedLineCount = compactScrollback();
+        if (evictedLineCount > 0) {
+            // The view's line indexes need fixing now, not at the next frame.
+            view.linesEvicted(evictedLineCount);
+            if (firstLineChanged != Integer.MAX_VALUE) {
+                firstLineChanged = Math.max(0, firstLineChanged - evictedLineCount);
+            }
+            if (scrolledLineCount > 0) {
+                scrollTop -= evictedLineCount;
+                scrollBottom -= evictedLineCount;
+                if (scrollTop < 0) {
+                    // Some of the scrolled lines have gone altogether, so just redraw.
+                    firstLineChanged = 0;
+                    scrolledLineCount = 0;
+                }
+            }
+        }
+        FrameScheduler.getInstance().scheduleUpdate(this);
+    }
+    
+    /**
+     * Tells the view about everything that's changed since the last time we were called.
+     * Called by the FrameScheduler, at most once per frame.
+     */
+    public void updateView() {
+        if (viewUpdatePending == false) {
+            return;
+        }
+        if (view.isDisplayable() && view.isShowing() == false) {
+            // We're in a tab that isn't selected, so there's nothing to repaint.
+            // The changes accumulate until the view's shown (when it asks the FrameScheduler for an update), but the tab still wants to know there's been output.
+            view.getTerminalControl().fireChangeListeners();
+            return;
+        }
+        viewUpdatePending = false;
+        boolean needsScroll = false;
+        if (scrolledLineCount > 0) {
+            view.linesScrolled(scrollTop, scrollBottom, scrolledLineCount);
+        }
         if (firstLineChanged != Integer.MAX_VALUE) {
             needsScroll = true;
             view.linesChangedFrom(firstLineChanged);
@@ -383,6 +476,55 @@ public class TerminalModel {
             view.scrollOnTtyOutput(wereAtBottom);
         }
         view.setCursorPosition(cursorPosition);
+        view.getTerminalControl().fireChangeListeners();
+    }
+    
+    /**
+     * Makes room for more styles by forgetting those no line uses any more.
+     * Between batches is the only time we can be sure no one's half way through using a style index.
+     */
+    private void compactStyleTable() {
+        ArrayList<TextLine> lines = new ArrayList<>();
+        textLines.addLinesUsingStyleTable(lines);
+        if (savedScreen != null) {
+            lines.addAll(Arrays.asList(savedScreen));
+        }
+        if (alternateScreen != null) {
+            lines.addAll(Arrays.asList(alternateScreen));
+        }
+        styleTable.compact(lines);
+    }
+    
+    /**
+     * Freezes the lines that have scrolled well out of reach of the cursor, and discards the oldest lines if we've exceeded the user's scrollback limits.
+     * Returns the number of lines discarded; all line indexes (including those held by the view) need to be reduced by that amount.
+     */
+    private int compactScrollback() {
+        int firstLineToKeepHot = Math.min(getFirstDisplayLine(), cursorPosition.getLineIndex());
+        if (savedPosition != null) {
+            firstLineToKeepHot = Math.min(firstLineToKeepHot, savedPosition.getLineIndex());
+        }
+        textLines.freeze(firstLineToKeepHot - HOT_LINES_ABOVE_DISPLAY);
+        
+        int maxLineCount = Terminator.getPreferences().getInt(TerminatorPreferences.SCROLLBACK_LINES);
+        long maxByteCount = Terminator.getPreferences().getInt(TerminatorPreferences.SCROLLBACK_MEGABYTES) * 1024L * 1024L;
+        boolean spillToDisk = Terminator.getPreferences().getBoolean(TerminatorPreferences.SCROLLBACK_SPILL_TO_DISK);
+        int evictedLineCount = textLines.trim(maxLineCount, maxByteCount, spillToDisk);
+        if (evictedLineCount > 0) {
+            totalEvictedLineCount += evictedLineCount;
+            cursorPosition = new Location(cursorPosition.getLineIndex() - evictedLineCount, cursorPosition.getCharOffset());
+            if (savedPosition != null) {
+                savedPosition = new Location(Math.max(0, savedPosition.getLineIndex() - evictedLineCount), savedPosition.getCharOffset());
+            }
+        }
+        return evictedLineCount;
+    }
+    
+    /**
+     * Returns the number of lines that have been discarded from the start of the scrollback, so a line index remembered earlier can be corrected.
+     */
+    public long getEvictedLineCount() {
+        return totalEvictedLineCount;
     }
     
     public void setStyle(Style style) {
@@ -402,14 +544,13 @@ public class TerminalModel {
     }
     
     public void insertLine(int index) {
-        insertLine(index, new TextLine(Palettes.getBackgroundInk()));
+        insertLine(index, new TextLine(styleTable, Palettes.getBackgroundInk()));
     }
     
     public void insertLine(int index, TextLine lineToInsert) {
         // Use a private copy of the first display line throughout this method to avoid mutation
         // caused by textLines.add()/textLines.remove().
         final int firstDisplayLine = getFirstDisplayLine();
-        lineIsDirty(firstDisplayLine);
         if (index > firstDisplayLine + lastScrollLineIndex) {
             for (int i = firstDisplayLine + lastScrollLineIndex + 1; i <= index; i++) {
                 textLines.add(i, lineToInsert);
@@ -421,8 +562,12 @@ public class TerminalModel {
                 // don't add anything going off the top into the history.
                 int removeIndex = firstDisplayLine + firstScrollLineIndex;
                 textLines.remove(removeIndex);
-                linesChangedFrom(removeIndex);
-                view.repaint();
+                final int addedLineCount = index - (firstDisplayLine + lastScrollLineIndex);
+                if (addedLineCount == 1) {
+                    linesScrolledUp(removeIndex, firstDisplayLine + lastScrollLineIndex + 1, 1);
+                } else {
+                    linesChangedFrom(removeIndex);
+                }
             } else {
                 cursorPosition = new Location(index, cursorPosition.getCharOffset());
             }
@@ -447,7 +592,7 @@ public class TerminalModel {
     public TextLine getTextLine(int index) {
         if (index >= textLines.size()) {
             Log.warn("TextLine requested for index " + index + ", size of buffer is " + textLines.size() + ".", new Exception("stack trace"));
-            return new TextLine(Palettes.getBackgroundInk());
+            return new TextLine(styleTable, Palettes.getBackgroundInk());
         }
         return textLines.get(index);
     }
@@ -464,14 +609,18 @@ public class TerminalModel {
         // If viewIndex is outside what we have, there's probably been some resize event that has screwed us up.
         // In such a case, return a blank line. We don't delegate to getTextLine here, so as to avoid mixing the two
         // buffers (which would look weird).
-        if (viewIndex >= toView.length) return new TextLine(Palettes.getBackgroundInk());
+        if (viewIndex >= toView.length) return new TextLine(styleTable, Palettes.getBackgroundInk());
         // Yay! We can show something alternative.
         return toView[viewIndex];
     }
     
+    /**
+     * Changes the size of the display.
+     * We don't wrap lines (the view scrolls horizontally instead; see TerminalView), so each TextLine is already a whole logical line, and a change of width needs no reflow.
+     * All we do is add or remove lines at the bottom, so resizing costs the same however much scrollback there is.
+     */
     public void setSize(int width, int height) {
         this.width = width;
-        lineIsDirty(0);
         if (this.height > height && textLines.size() >= this.height) {
             for (int i = 0; i < (this.height - height); i++) {
                 int lineToRemove = textLines.size() - 1;
@@ -482,7 +631,7 @@ public class TerminalModel {
         } else if (this.height < height) {
             for (int i = 0; i < (height - this.height); i++) {
                 if (usingAlternateBuffer() || getFirstDisplayLine() <= 0) {
-                    textLines.add(new TextLine(Palettes.getBackgroundInk()));
+                    textLines.add(new TextLine(styleTable, Palettes.getBackgroundInk()));
                 }
             }
         }
@@ -490,8 +639,10 @@ public class TerminalModel {
         firstScrollLineIndex = 0;
         lastScrollLineIndex = height - 1;
         while (getFirstDisplayLine() < 0) {
-            textLines.add(new TextLine(Palettes.getBackgroundInk()));
+            textLines.add(new TextLine(styleTable, Palettes.getBackgroundInk()));
         }
+        // If we've grown, lines may have come back out of the scrollback, and they need to be writable again.
+        textLines.thaw(getFirstDisplayLine() - HOT_LINES_ABOVE_DISPLAY);
         checkInvariant();
     }
     
@@ -500,12 +651,12 @@ public class TerminalModel {
     }
     
     /**
-     * Process the characters in the given line. The string is composed of
-     * normal printable characters, escape sequences having been extracted
-     * elsewhere.
+     * Process the given characters, which are all on the current line.
+     * They're all normal printable characters, escape sequences having been extracted elsewhere.
+     * The characters may be overwritten, but aren't kept beyond the call.
      */
-    public void processLine(String untranslatedLine) {
-        String line = view.getTerminalControl().translate(untranslatedLine);
+    public void processText(char[] chars, int offset, int length) {
+        view.getTerminalControl().translate(chars, offset, length);
         // Java is unable to correctly render windowing components wider than 32768 pixels,
         // and at sizes much larger than that, we end up with things getting horribly slow.
         // For example, cat a multi-megabyte file with no newlines, and Terminator can lock
@@ -515,30 +666,28 @@ public class TerminalModel {
         if (charsLeft <= 0) {
             return;
         }
-        if (line.length() > charsLeft) {
+        if (length > charsLeft) {
             if (!warnedAboutExcessiveWidth) {
                 warnedAboutExcessiveWidth = true;
                 Log.warn("Line too wide in terminal; chopping input");
             }
-            line = line.substring(0, charsLeft);
+            length = charsLeft;
         }
         TextLine textLine = getTextLine(cursorPosition.getLineIndex());
         if (insertMode) {
-            //Log.warn("Inserting text \"" + line + "\" at " + cursorPosition + ".");
-            textLine.insertTextAt(cursorPosition.getCharOffset(), line, currentStyle);
+            //Log.warn("Inserting text \"" + new String(chars, offset, length) + "\" at " + cursorPosition + ".");
+            textLine.insertTextAt(cursorPosition.getCharOffset(), chars, offset, length, currentStyle);
         } else {
-            //Log.warn("Writing text \"" + line + "\" at " + cursorPosition + ".");
-            textLine.writeTextAt(cursorPosition.getCharOffset(), line, currentStyle);
+            //Log.warn("Writing text \"" + new String(chars, offset, length) + "\" at " + cursorPosition + ".");
+            textLine.writeTextAt(cursorPosition.getCharOffset(), chars, offset, length, currentStyle);
         }
-        textAdded(line.length());
+        textAdded(length);
     }
     
     private void textAdded(int length) {
         TextLine textLine = getTextLine(cursorPosition.getLineIndex());
         updateMaxLineWidth(textLine.length());
-        // cursorPosition's line still has a valid *start* index, so we invalidate
-        // only the next line's start position.
-        lineIsDirty(cursorPosition.getLineIndex() + 1);
+        textLines.lineLengthChanged(cursorPosition.getLineIndex());
         linesChangedFrom(cursorPosition.getLineIndex());
         moveCursorHorizontally(length);
     }
@@ -601,7 +750,7 @@ public class TerminalModel {
         int start = cursorPosition.getCharOffset();
         int end = start + count;
         line.killText(start, end);
-        lineIsDirty(cursorPosition.getLineIndex() + 1);  // cursorPosition.y's line still has a valid *start* index.
+        textLines.lineLengthChanged(cursorPosition.getLineIndex());
         linesChangedFrom(cursorPosition.getLineIndex());
     }
     
@@ -620,7 +769,7 @@ public class TerminalModel {
             int start = fromStart ? 0 : cursorPosition.getCharOffset();
             line.killText(start, oldLineLength);
         }
-        lineIsDirty(cursorPosition.getLineIndex() + 1);  // cursorPosition.y's line still has a valid *start* index.
+        textLines.lineLengthChanged(cursorPosition.getLineIndex());
         linesChangedFrom(cursorPosition.getLineIndex());
     }
     
@@ -652,7 +801,7 @@ public class TerminalModel {
             // The current position is always erased, hence the + 1.
             line.writeTextAt(0, StringUtilities.nCopies(cursorPosition.getCharOffset() + 1, ' '), currentStyle);
         }
-        lineIsDirty(start + 1);
+        lineLengthsChanged(start, toBottom ? getLineCount() : cursorPosition.getLineIndex() + 1);
         linesChangedFrom(start);
     }
     
@@ -717,9 +866,8 @@ public class TerminalModel {
     public void scrollRegionUp() {
         int addIndex = getFirstDisplayLine() + firstScrollLineIndex;
         int removeIndex = getFirstDisplayLine() + lastScrollLineIndex + 1;
-        textLines.add(addIndex, new TextLine(Palettes.getBackgroundInk()));
+        textLines.add(addIndex, new TextLine(styleTable, Palettes.getBackgroundInk()));
         textLines.remove(removeIndex);
-        lineIsDirty(addIndex);
         linesChangedFrom(addIndex);
         view.repaint();
         checkInvariant();
@@ -731,13 +879,17 @@ public class TerminalModel {
         int bottom = getFirstDisplayLine() + lastScrollLineIndex + 1;
         int addIndex = up ? bottom : top;
         int removeIndex = up ? top : bottom;
+        final int lineCount = count;
         while (count-- > 0) {
-            textLines.add(addIndex, new TextLine(Palettes.getBackgroundInk()));
+            textLines.add(addIndex, new TextLine(styleTable, Palettes.getBackgroundInk()));
             textLines.remove(removeIndex);
         }
-        lineIsDirty(addIndex);
-        linesChangedFrom(addIndex);
-        view.repaint();
+        if (up) {
+            linesScrolledUp(top, bottom, lineCount);
+        } else {
+            linesChangedFrom(addIndex);
+            view.repaint();
+        }
         checkInvariant();
     }
     
@@ -745,11 +897,9 @@ public class TerminalModel {
     public void deleteLine() {
         int removeIndex = cursorPosition.getLineIndex();
         int addIndex = getFirstDisplayLine() + lastScrollLineIndex + 1;
-        textLines.add(addIndex, new TextLine(Palettes.getBackgroundInk()));
+        textLines.add(addIndex, new TextLine(styleTable, Palettes.getBackgroundInk()));
         textLines.remove(removeIndex);
-        lineIsDirty(removeIndex);
-        linesChangedFrom(removeIndex);
-        view.repaint();
+        linesScrolledUp(removeIndex, addIndex, 1);
         checkInvariant();
     }
     
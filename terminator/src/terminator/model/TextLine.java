@@ -4,7 +4,8 @@ import java.util.*;
 import terminator.Palettes;
 
 /**
- * Ties together the String containing the characters on a particular line, and the styles to be applied to each character.
+ * Ties together the characters on a particular line, and the styles to be applied to each character.
+ * That's two chars per character: the character itself, and the index of its style in the terminal's StyleTable.
  * TextLines are mutable, though it's not possible to change style information without rewriting the corresponding characters (because that's not how terminals work).
  * Actually documentation says that the VT400 has some, but by default support is not compiled into xterm.
  * #define OPT_DEC_RECTOPS 1
@@ -19,48 +20,100 @@ public class TextLine {
     private static final char TAB_START = '\t';
     private static final char TAB_CONTINUE = '\r';
     
+    private static final char[] EMPTY = new char[0];
+    
+    // The table our style indexes refer to; shared by all the lines of a terminal.
+    private final StyleTable styleTable;
+    
     // The default background, used beyond the last character of the line.
     private Palettes.Ink background;
-    // The index in characters into the containing buffer of the first character of this line.
-    private int lineStartIndex;
-    
-    // The characters on this line.
-    // An immutable String may seem like an odd choice, but we've tried StringBuilder too.
-    // In terms of space, StringBuilder helps a little, saving on useless String fields (such as the cached hashCode), but we pay extra for each blank line (where the cost is a whole new StringBuilder rather than just sharing the JVM's single empty-string instance), and we pay for unused space in the underlying char[]s.
-    // In terms of time, StringBuilder hurts a little, because we need to convert to a String for our callers (especially rendering), and young lines don't change much and old lines never change.
-    // In terms of code, there's nothing in it; the StringBuilder delete and insert methods are arguably more readable, but that only affects a handful of lines.
-    // All in all, then, String is actually the best choice in our current environment.
-    // (If we switched rendering over to AttributedCharacterIterator or something else that didn't require a String, that might change the balance.)
-    private String text;
-    
-    // The styles to be applied to the characters on this line.
+    
+    // The characters on this line are text[0] up to (but not including) text[length].
+    // We used to use an immutable String, replaced on every write, but that meant each write cost allocations proportional to the length of the line.
+    // Now text is overwritten in place, and the arrays only grow when the line gets longer than it's ever been.
+    private char[] text = EMPTY;
+    private int length;
+    
+    // The styles to be applied to the characters on this line, as indexes into styleTable.
     // styles == null => all characters use the default style.
-    // Otherwise, styles.length == text.length(), and the style information for text.charAt(i) is styles[i] (never null).
-    private Style[] styles;
+    // Otherwise, styles.length == text.length, and the style information for text[i] is styleTable.get(styles[i]).
+    private char[] styles;
     
-    public TextLine(Palettes.Ink bg) {
+    // Incremented by every change to the line, so the view can tell whether what it drew last time is still right.
+    private int modificationCount = 0;
+    
+    public TextLine(StyleTable styleTable, Palettes.Ink bg) {
+        this.styleTable = styleTable;
         background = bg;
         clear();
     }
     
+    /**
+     * Recreates a line that was frozen into the scrollback, taking ownership of the arrays.
+     * 'text' is in our internal representation (tabs and all), and 'styles' follows the same rules as our field of that name.
+     */
+    TextLine(StyleTable styleTable, Palettes.Ink bg, char[] text, char[] styles) {
+        this.styleTable = styleTable;
+        this.background = bg;
+        this.text = text;
+        this.length = text.length;
+        this.styles = styles;
+    }
+    
+    // The raw accessors below are for ScrollbackChunk, which needs our internal representation to be able to recreate us exactly.
+    
+    Palettes.Ink getRawBackground() {
+        return background;
+    }
+    
+    /** Returns our internal array; only the first length() chars are meaningful, and the caller mustn't modify it. */
+    char[] getRawChars() {
+        return text;
+    }
+    
+    boolean hasStyles() {
+        return styles != null;
+    }
+    
+    char getRawStyleIndex(int index) {
+        return (styles == null) ? StyleTable.DEFAULT_INDEX : styles[index];
+    }
+    
+    // These two are for StyleTable.compact, which renumbers the styles.
+    // The line looks the same afterwards, so the modification count doesn't change.
+    
+    void markStylesUsed(boolean[] used) {
+        if (styles != null) {
+            for (int i = 0; i < length; ++i) {
+                used[styles[i]] = true;
+            }
+        }
+    }
+    
+    void renumberStyles(char[] newIndexes) {
+        if (styles != null) {
+            for (int i = 0; i < length; ++i) {
+                styles[i] = newIndexes[styles[i]];
+            }
+        }
+    }
+    
     public Palettes.Ink getBackground() {
         return background == null ? Palettes.getBackgroundInk() : background;
     }
     
     public void setBackground(Palettes.Ink bg) {
         background = bg;
+        ++modificationCount;
     }
     
-    public int getLineStartIndex() {
-        return lineStartIndex;
-    }
-    
-    public void setLineStartIndex(int lineStartIndex) {
-        this.lineStartIndex = lineStartIndex;
+    /** Returns a number that changes whenever this line's text, styles, or background change. */
+    public int getModificationCount() {
+        return modificationCount;
     }
     
     public Style getStyleAt(int index) {
-        return (styles == null) ? Style.getDefaultStyle() : styles[index];
+        return (styles == null) ? Style.getDefaultStyle() : styleTable.get(styles[index]);
     }
     
     /**
@@ -82,9 +135,10 @@ public class TextLine {
         if (styles == null) {
             return end;
         }
-        Style toMatch = styles[start];
+        // Interning means equal styles have equal indexes.
+        final char toMatch = styles[start];
         for (int i = start + 1; i < end; i++) {
-            if (!toMatch.equals(styles[i])) {
+            if (styles[i] != toMatch) {
                 return i;
             }
         }
@@ -97,18 +151,27 @@ public class TextLine {
      * This isn't called toString because you need to come here and think about whether you want this method or getTabbedString instead.
      */
     public String getString() {
-        return text.replace(TAB_START, ' ').replace(TAB_CONTINUE, ' ');
+        return getSubstring(0, length);
     }
     
     public String getSubstring(int beginIndex, int endIndex) {
-        return getString().substring(beginIndex, endIndex);
+        if (beginIndex < 0 || beginIndex > endIndex || endIndex > length) {
+            throw new StringIndexOutOfBoundsException("beginIndex=" + beginIndex + " endIndex=" + endIndex + " length()=" + length);
+        }
+        char[] result = Arrays.copyOfRange(text, beginIndex, endIndex);
+        for (int i = 0; i < result.length; ++i) {
+            if (result[i] == TAB_START || result[i] == TAB_CONTINUE) {
+                result[i] = ' ';
+            }
+        }
+        return new String(result);
     }
 
     /** Returns the text, with all the tabs put back in for use with clipboard stuff. */
     public String getTabbedString(int start, int end) {
         StringBuilder buf = new StringBuilder();
         for (int i = start; i < end; i++) {
-            char ch = text.charAt(i);
+            char ch = text[i];
             if (ch != TAB_CONTINUE) {
                 buf.append(ch);
             }
@@ -117,7 +180,7 @@ public class TextLine {
     }
     
     public int length() {
-        return text.length();
+        return length;
     }
     
     public int lengthIncludingNewline() {
@@ -130,11 +193,11 @@ public class TextLine {
     * be smaller if the character at charOffset is part of a tab.
     */
     public int getEffectiveCharStartOffset(int charOffset) {
-        if (charOffset >= text.length()) {
+        if (charOffset >= length) {
             return charOffset;
         }
         for (int i = charOffset; i >= 0; i--) {
-            if (text.charAt(i) != TAB_CONTINUE) {
+            if (text[i] != TAB_CONTINUE) {
                 return i;
             }
         }
@@ -147,121 +210,126 @@ public class TextLine {
     * be larger if the character at charOffset is part of a tab (after the start).
     */
     public int getEffectiveCharEndOffset(int charOffset) {
-        if (charOffset >= text.length()) {
+        if (charOffset >= length) {
             return charOffset;
         }
-        for (int i = charOffset; i < text.length(); i++) {
-            if (text.charAt(i) != TAB_CONTINUE) {
+        for (int i = charOffset; i < length; i++) {
+            if (text[i] != TAB_CONTINUE) {
                 return i;
             }
         }
-        return text.length();
+        return length;
     }
     
     public void clear() {
-        text = "";
+        // We keep the arrays, because a line that's been cleared is usually about to be written to again.
+        length = 0;
         styles = null;
+        ++modificationCount;
     }
     
     public void killText(int startIndex, int endIndex) {
-        if (startIndex >= endIndex || startIndex >= text.length()) {
+        if (startIndex >= endIndex || startIndex >= length) {
             return;
         }
-        endIndex = Math.min(endIndex, text.length());
-        text = text.substring(0, startIndex) + text.substring(endIndex);
-        removeStyleData(startIndex, endIndex);
+        endIndex = Math.min(endIndex, length);
+        System.arraycopy(text, endIndex, text, startIndex, length - endIndex);
+        if (styles != null) {
+            System.arraycopy(styles, endIndex, styles, startIndex, length - endIndex);
+        }
+        length -= (endIndex - startIndex);
+        ++modificationCount;
     }
     
     public void insertTabAt(int offset, int tabLength, Style style) {
-        insertTextAt(offset, getTabString(tabLength), style);
-    }
-    
-    private static String getTabString(int tabLength) {
-        char[] tab = new char[tabLength];
-        tab[0] = TAB_START;
-        Arrays.fill(tab, 1, tab.length, TAB_CONTINUE);
-        return new String(tab);
+        ensureOffsetIsOK(offset);
+        makeRoom(offset, tabLength);
+        text[offset] = TAB_START;
+        Arrays.fill(text, offset + 1, offset + tabLength, TAB_CONTINUE);
+        fillStyleData(offset, tabLength, styleTable.indexOf(style));
     }
     
     /** Inserts text at the given position, moving anything already there further to the right. */
     public void insertTextAt(int offset, String newText, Style style) {
+        insertTextAt(offset, newText.toCharArray(), 0, newText.length(), style);
+    }
+    
+    /** Inserts chars[start] up to (but not including) chars[start + count] at the given position, moving anything already there further to the right. */
+    public void insertTextAt(int offset, char[] chars, int start, int count, Style style) {
         ensureOffsetIsOK(offset);
-        text = text.substring(0, offset) + newText + text.substring(offset);
-        insertStyleData(offset, newText.length(), style);
+        makeRoom(offset, count);
+        System.arraycopy(chars, start, text, offset, count);
+        fillStyleData(offset, count, styleTable.indexOf(style));
     }
     
     /** Writes text at the given position, overwriting anything underneath. */
     public void writeTextAt(int offset, String newText, Style style) {
+        writeTextAt(offset, newText.toCharArray(), 0, newText.length(), style);
+    }
+    
+    /** Writes chars[start] up to (but not including) chars[start + count] at the given position, overwriting anything underneath. */
+    public void writeTextAt(int offset, char[] chars, int start, int count, Style style) {
         ensureOffsetIsOK(offset);
-        if (offset + newText.length() < text.length()) {
-            text = text.substring(0, offset) + newText + text.substring(offset + newText.length());
-        } else {
-            text = text.substring(0, offset) + newText;
+        final int end = offset + count;
+        if (end > length) {
+            ensureCapacity(end);
+            length = end;
         }
-        overwriteStyleData(offset, newText.length(), style);
+        System.arraycopy(chars, start, text, offset, count);
+        fillStyleData(offset, count, styleTable.indexOf(style));
     }
     
     private void ensureOffsetIsOK(int offset) {
         if (offset < 0) {
             throw new IllegalArgumentException("Negative offset " + offset);
         }
-        if (offset > text.length()) {
-            appendPadding(offset - text.length());
+        if (offset > length) {
+            appendPadding(offset - length);
         }
     }
     
     private void appendPadding(int count) {
-        char[] pad = new char[count];
-        Arrays.fill(pad, ' ');
-        int oldTextLength = text.length();
-        text += new String(pad);
+        final int oldLength = length;
+        ensureCapacity(oldLength + count);
+        length = oldLength + count;
+        Arrays.fill(text, oldLength, length, ' ');
         // Even an empty line can have a background color; make sure we use it.
-        insertStyleData(oldTextLength, count, Style.makeStyle(null, background, 0));
+        fillStyleData(oldLength, count, styleTable.indexOfPadding(background));
     }
     
-    private void overwriteStyleData(int offset, int count, Style value) {
-        if (styles == null && value.equals(Style.getDefaultStyle())) {
-            return;
-        }
-        Style[] oldStyleData = maybeResizeStyleData();
-        if (oldStyleData != null) {
-            System.arraycopy(oldStyleData, 0, styles, 0, oldStyleData.length);
+    /** Moves everything from 'offset' onwards 'count' characters to the right, leaving a gap for the caller to fill. */
+    private void makeRoom(int offset, int count) {
+        ensureCapacity(length + count);
+        System.arraycopy(text, offset, text, offset + count, length - offset);
+        if (styles != null) {
+            System.arraycopy(styles, offset, styles, offset + count, length - offset);
         }
-        Arrays.fill(styles, offset, offset + count, value);
+        length += count;
     }
     
-    private void insertStyleData(int offset, int count, Style value) {
-        if (styles == null && value.equals(Style.getDefaultStyle())) {
+    private void ensureCapacity(int capacity) {
+        if (capacity <= text.length) {
             return;
         }
-        Style[] oldStyleData = maybeResizeStyleData();
-        if (oldStyleData != null) {
-            System.arraycopy(oldStyleData, 0, styles, 0, offset);
-            System.arraycopy(oldStyleData, offset, styles, offset + count, oldStyleData.length - offset);
+        // Most lines are written left to right a bit at a time, so grow by more than we need.
+        final int newCapacity = Math.max(capacity, Math.max(16, text.length + (text.length >> 1)));
+        text = Arrays.copyOf(text, newCapacity);
+        if (styles != null) {
+            styles = Arrays.copyOf(styles, newCapacity);
         }
-        Arrays.fill(styles, offset, offset + count, value);
     }
     
-    private void removeStyleData(int startIndex, int endIndex) {
+    /** Sets the style of the characters from 'offset' to 'offset + count', which must already be within the line. */
+    private void fillStyleData(int offset, int count, char styleIndex) {
+        // Every write of text ends up here.
+        ++modificationCount;
         if (styles == null) {
-            return;
-        }
-        Style[] oldStyleData = maybeResizeStyleData();
-        // insert and overwrite can get here when oldStyleData is null, but remove can't.
-        System.arraycopy(oldStyleData, 0, styles, 0, startIndex);
-        System.arraycopy(oldStyleData, endIndex, styles, startIndex, oldStyleData.length - endIndex);
-    }
-    
-    /**
-     * Ensures that the "styles" array is the right size for the current "text".
-     * You should only call this if you know that the line requires non-default styling.
-     */
-    private Style[] maybeResizeStyleData() {
-        Style[] oldStyleData = styles;
-        if (styles == null || styles.length != text.length()) {
-            styles = new Style[text.length()];
-            Arrays.fill(styles, 0, styles.length, Style.getDefaultStyle());
+            if (styleIndex == StyleTable.DEFAULT_INDEX) {
+                return;
+            }
+            // This is the first non-default style on the line, so everything else is default.
+            styles = new char[text.length];
         }
-        return oldStyleData;
+        Arrays.fill(styles, offset, offset + count, styleIndex);
     }
 }
@@ -0,0 +1,261 @@
+package terminator.terminal;
+
+import e.util.*;
+import java.io.*;
+import java.lang.management.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.util.*;
+import org.jessies.cli.*;
+import terminator.view.*;
+
+/**
+ * Measures how fast we emulate a terminal, without a window.
+ *
+ * Each corpus goes through the same path as a child process' output, but in a HeadlessTerminal: all on one thread, with nothing painted.
+ * The model updates its view at most once per 60Hz frame, as it would in a window.
+ *
+ * The built-in corpora are generated from a fixed seed, so every run sees the same bytes: plain text like cat(1)'s, colored listings like "ls --color", full-screen redraws like vim's and htop's, very long lines, and text that's mostly multi-byte UTF-8.
+ * Files named on the command line are used as well, as raw pty output (a SessionRecorder recording is better replayed with SessionReplay).
+ *
+ * For each corpus we report throughput, the bytes allocated per byte of input (if the JVM will tell us), and the median and 99th percentile time taken to process one read buffer.
+ *
+ * Usage: java -Djava.awt.headless=true terminator.terminal.EmulationBenchmark [--iterations=N] [--warm-up=N] [--buffer-size=N] [--megabytes=N] [file...]
+ * The default preferences are used unless you name an options file with -Dorg.jessies.terminator.optionsFile (which will otherwise be logged as unreadable).
+ */
+public class EmulationBenchmark {
+    private static final long FRAME_INTERVAL_NS = 1000000000L / 60;
+    
+    private static final char ESC = Ascii.ESC;
+    private static final String[] WORDS = {
+        "the", "quick", "brown", "fox", "jumps", "over", "lazy", "dog", "terminal", "output", "scrollback", "buffer",
+        "a", "of", "to", "and", "in", "is", "that", "for", "it", "with", "as", "was", "on", "build", "warning:", "error:",
+    };
+    private static final String[] UNICODE_WORDS = {
+        "naïve", "café", "Größe", "façade", "Ελληνικά", "кириллица", "日本語", "中文字符", "한국어", "עברית", "العربية",
+        "→", "✓", "€100", "½", "😀", "🚀", "─┼─", "│", "…",
+    };
+    
+    @Option(names = { "--iterations" })
+    private int iterations = 10;
+    
+    @Option(names = { "--warm-up" })
+    private int warmUpIterations = 5;
+    
+    @Option(names = { "--buffer-size" })
+    private int bufferSize = 8192;
+    
+    @Option(names = { "--megabytes" })
+    private int megabytes = 4;
+    
+    private final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+    
+    public static void main(String[] args) throws Exception {
+        new EmulationBenchmark(args);
+    }
+    
+    private EmulationBenchmark(String[] args) throws Exception {
+        final List<String> filenames = new OptionParser(this).parse(args);
+        
+        // We're the only thread touching the model and its view, so updates have to happen when we say.
+        FrameScheduler.getInstance().setManualUpdates(true);
+        
+        LinkedHashMap<String, byte[]> corpora = new LinkedHashMap<>();
+        final int byteCount = megabytes * 1024 * 1024;
+        corpora.put("cat", makeTextCorpus(byteCount));
+        corpora.put("ls --color", makeColorListingCorpus(byteCount));
+        corpora.put("full-screen", makeFullScreenCorpus(byteCount));
+        corpora.put("long lines", makeLongLineCorpus(byteCount));
+        corpora.put("UTF-8", makeUnicodeCorpus(byteCount));
+        for (String filename : filenames) {
+            corpora.put(filename, Files.readAllBytes(Paths.get(filename)));
+        }
+        
+        System.out.printf("%-20s %10s %12s %12s %12s\n", "corpus", "MB/s", "alloc B/B", "p50 batch", "p99 batch");
+        for (Map.Entry<String, byte[]> corpus : corpora.entrySet()) {
+            for (int i = 0; i < warmUpIterations; ++i) {
+                run(corpus.getValue());
+            }
+            Result total = new Result();
+            for (int i = 0; i < iterations; ++i) {
+                total.add(run(corpus.getValue()));
+            }
+            total.print(corpus.getKey());
+        }
+        System.exit(0);
+    }
+    
+    /**
+     * The measurements from one or more runs of a corpus.
+     */
+    private static class Result {
+        private long byteCount = 0;
+        private long elapsed_ns = 0;
+        // -1 if the JVM can't tell us.
+        private long allocatedByteCount = 0;
+        private long[] batchTimes_ns = new long[0];
+        
+        private void add(Result other) {
+            byteCount += other.byteCount;
+            elapsed_ns += other.elapsed_ns;
+            allocatedByteCount = (allocatedByteCount < 0 || other.allocatedByteCount < 0) ? -1 : allocatedByteCount + other.allocatedByteCount;
+            final int oldLength = batchTimes_ns.length;
+            batchTimes_ns = Arrays.copyOf(batchTimes_ns, oldLength + other.batchTimes_ns.length);
+            System.arraycopy(other.batchTimes_ns, 0, batchTimes_ns, oldLength, other.batchTimes_ns.length);
+        }
+        
+        private void print(String name) {
+            final double megabytesPerSecond = (byteCount / (1024.0 * 1024.0)) / (elapsed_ns / 1e9);
+            final String allocation = (allocatedByteCount < 0) ? "?" : String.format("%.3f", (double) allocatedByteCount / byteCount);
+            Arrays.sort(batchTimes_ns);
+            System.out.printf("%-20s %10.1f %12s %12s %12s\n", name, megabytesPerSecond, allocation, TimeUtilities.nsToString(percentile(50)), TimeUtilities.nsToString(percentile(99)));
+        }
+        
+        // batchTimes_ns must be sorted.
+        private long percentile(int percent) {
+            if (batchTimes_ns.length == 0) {
+                return 0;
+            }
+            return batchTimes_ns[Math.min(batchTimes_ns.length - 1, (int) ((long) batchTimes_ns.length * percent / 100))];
+        }
+    }
+    
+    /**
+     * Feeds the corpus to a new terminal, a buffer at a time, and measures how long it takes.
+     */
+    private Result run(byte[] corpus) throws IOException {
+        // Setting up the terminal isn't part of what we're measuring.
+        HeadlessTerminal terminal = new HeadlessTerminal(bufferSize);
+        
+        Result result = new Result();
+        result.byteCount = corpus.length;
+        result.batchTimes_ns = new long[(corpus.length + bufferSize - 1) / bufferSize];
+        final long allocatedAtStart = getAllocatedByteCount();
+        final long startTime = System.nanoTime();
+        long lastFrameTime = startTime;
+        for (int offset = 0, batch = 0; offset < corpus.length; offset += bufferSize, ++batch) {
+            final long batchStartTime = System.nanoTime();
+            terminal.write(corpus, offset, Math.min(bufferSize, corpus.length - offset));
+            if (batchStartTime - lastFrameTime >= FRAME_INTERVAL_NS) {
+                terminal.updateView();
+                lastFrameTime = batchStartTime;
+            }
+            result.batchTimes_ns[batch] = System.nanoTime() - batchStartTime;
+        }
+        terminal.updateView();
+        result.elapsed_ns = System.nanoTime() - startTime;
+        final long allocatedAtEnd = getAllocatedByteCount();
+        result.allocatedByteCount = (allocatedAtStart < 0) ? -1 : allocatedAtEnd - allocatedAtStart;
+        return result;
+    }
+    
+    private long getAllocatedByteCount() {
+        if (threadBean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) threadBean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+    
+    private static byte[] toBytes(StringBuilder chars) {
+        return chars.toString().getBytes(StandardCharsets.UTF_8);
+    }
+    
+    private static void appendWords(StringBuilder chars, Random random, String[] words, int length) {
+        final int start = chars.length();
+        while (chars.length() - start < length) {
+            if (chars.length() > start) {
+                chars.append(' ');
+            }
+            chars.append(words[random.nextInt(words.length)]);
+        }
+    }
+    
+    private static byte[] makeTextCorpus(int byteCount) {
+        Random random = new Random(1);
+        StringBuilder chars = new StringBuilder(byteCount + 128);
+        while (chars.length() < byteCount) {
+            appendWords(chars, random, WORDS, 20 + random.nextInt(80));
+            chars.append("\r\n");
+        }
+        return toBytes(chars);
+    }
+    
+    private static byte[] makeColorListingCorpus(int byteCount) {
+        Random random = new Random(2);
+        // Directories, executables, symbolic links, and plain files, as GNU ls(1) colors them by default.
+        final String[] colors = { "01;34", "01;32", "01;36", null };
+        StringBuilder chars = new StringBuilder(byteCount + 128);
+        while (chars.length() < byteCount) {
+            for (int column = 0; column < 5; ++column) {
+                final String name = WORDS[random.nextInt(WORDS.length)] + "-" + random.nextInt(1000);
+                final String color = colors[random.nextInt(colors.length)];
+                if (color != null) {
+                    chars.append(ESC).append("[0m").append(ESC).append('[').append(color).append('m').append(name).append(ESC).append("[0m");
+                } else {
+                    chars.append(name);
+                }
+                chars.append(StringUtilities.nCopies(16 - name.length(), ' '));
+            }
+            chars.append("\r\n");
+        }
+        return toBytes(chars);
+    }
+    
+    private static byte[] makeFullScreenCorpus(int byteCount) {
+        Random random = new Random(3);
+        final int rows = 24;
+        StringBuilder chars = new StringBuilder(byteCount + 4096);
+        // Switch to the alternate screen, as full-screen programs do.
+        chars.append(ESC).append("[?1049h");
+        while (chars.length() < byteCount) {
+            if (random.nextBoolean()) {
+                // An htop-style redraw of every line, with lots of color changes.
+                chars.append(ESC).append("[H");
+                for (int row = 1; row <= rows; ++row) {
+                    chars.append(ESC).append('[').append(row).append(";1H");
+                    for (int field = 0; field < 6; ++field) {
+                        chars.append(ESC).append("[").append(30 + random.nextInt(8)).append(';').append(40 + random.nextInt(8)).append('m');
+                        appendWords(chars, random, WORDS, 8);
+                    }
+                    chars.append(ESC).append("[0m").append(ESC).append("[K");
+                }
+            } else {
+                // A vim-style scroll of a few lines within a scroll region above the status line.
+                chars.append(ESC).append("[1;").append(rows - 1).append('r');
+                chars.append(ESC).append('[').append(rows - 1).append(";1H");
+                for (int i = random.nextInt(5); i >= 0; --i) {
+                    chars.append("\n\r");
+                    appendWords(chars, random, WORDS, 20 + random.nextInt(50));
+                    chars.append(ESC).append("[K");
+                }
+                chars.append(ESC).append("[r");
+                chars.append(ESC).append('[').append(rows).append(";1H").append(ESC).append("[7m");
+                appendWords(chars, random, WORDS, 60);
+                chars.append(ESC).append("[0m").append(ESC).append("[K");
+            }
+        }
+        chars.append(ESC).append("[?1049l");
+        return toBytes(chars);
+    }
+    
+    private static byte[] makeLongLineCorpus(int byteCount) {
+        Random random = new Random(4);
+        StringBuilder chars = new StringBuilder(byteCount + 32768);
+        while (chars.length() < byteCount) {
+            appendWords(chars, random, WORDS, 2000 + random.nextInt(18000));
+            chars.append("\r\n");
+        }
+        return toBytes(chars);
+    }
+    
+    private static byte[] makeUnicodeCorpus(int byteCount) {
+        Random random = new Random(5);
+        StringBuilder chars = new StringBuilder(byteCount);
+        // Multi-byte characters mean we reach the byte count with fewer chars.
+        while (chars.length() < byteCount / 3) {
+            appendWords(chars, random, UNICODE_WORDS, 20 + random.nextInt(60));
+            chars.append("\r\n");
+        }
+        return toBytes(chars);
+    }
+}
@@ -0,0 +1,85 @@
+package terminator.terminal;
+
+import e.gui.*;
+import java.awt.Dimension;
+import java.io.*;
+import java.nio.*;
+import java.util.concurrent.*;
+import javax.swing.*;
+import terminator.model.*;
+import terminator.view.*;
+
+/**
+ * A terminal with no window, no process, and no event dispatch thread, for feeding pty output to from a single thread.
+ * The output goes through the same path as a child process' would: it's decoded from UTF-8 a buffer at a time, split up by the EscapeParser, queued, and performed on a TerminalModel.
+ * The TerminalView the model reports to is never shown, so nothing is painted.
+ *
+ * The FrameScheduler must have been put in manual mode; it's up to the caller to call updateView as often as a window would be updated.
+ */
+class HeadlessTerminal {
+    private final TerminalModel model;
+    private final TerminalControl control;
+    private final Utf8Decoder decoder = new Utf8Decoder();
+    private final ByteBuffer bytes;
+    private final char[] chars;
+    
+    HeadlessTerminal(int bufferSize) {
+        TerminalView view = new TerminalView();
+        // The view expects to be in a scroll pane, and to have a BirdView to show find matches.
+        JScrollPane scrollPane = new JScrollPane(view);
+        view.setBirdView(new BirdView(view.getBirdsEye(), scrollPane.getVerticalScrollBar()));
+        this.model = view.getModel();
+        this.control = new TerminalControl(null, model, new Executor() {
+            public void execute(Runnable runnable) {
+                runnable.run();
+            }
+        });
+        view.setTerminalControl(control);
+        this.bytes = ByteBuffer.allocateDirect(bufferSize);
+        this.chars = new char[Utf8Decoder.maxCharCount(bufferSize)];
+    }
+    
+    TerminalModel getModel() {
+        return model;
+    }
+    
+    /**
+     * Processes the given output, a buffer at a time.
+     */
+    void write(byte[] output, int offset, int length) throws IOException {
+        final int end = offset + length;
+        while (offset < end) {
+            final int count = Math.min(bytes.capacity(), end - offset);
+            bytes.clear();
+            bytes.put(output, offset, count);
+            bytes.flip();
+            control.processBuffer(chars, decoder.decode(bytes, chars));
+            offset += count;
+        }
+    }
+    
+    void sizeChanged(Dimension sizeInChars, Dimension sizeInPixels) throws IOException {
+        control.sizeChanged(sizeInChars, sizeInPixels);
+    }
+    
+    void updateView() {
+        FrameScheduler.getInstance().updateNow();
+    }
+    
+    /**
+     * Returns the text of every line (scrollback included), preceded by the terminal's size and the cursor position.
+     * Styles aren't included, so the snapshot is readable, and easy to compare with a diff(1) of an expected one.
+     */
+    String getSnapshot() {
+        StringBuilder result = new StringBuilder();
+        final int height = model.getLineCount() - model.getFirstDisplayLine();
+        final Location cursor = model.getCursorPosition();
+        result.append("size: ").append(model.getWidth()).append('x').append(height).append('\n');
+        result.append("cursor: ").append(cursor.getLineIndex()).append(',').append(cursor.getCharOffset()).append('\n');
+        result.append("lines: ").append(model.getLineCount()).append('\n');
+        for (int i = 0; i < model.getLineCount(); ++i) {
+            result.append(model.getTextLine(i).getString()).append('\n');
+        }
+        return result.toString();
+    }
+}
@@ -0,0 +1,150 @@
+package terminator.terminal;
+
+import e.util.*;
+import terminator.model.*;
+
+/**
+ * Measures how long a keystroke takes to be echoed to the screen, broken down into stages, each with its own Stopwatch.
+ * Their histograms can be seen with "Show Stopwatch Histograms" on the debug menu.
+ *
+ * The stages are: from the key event being generated to our key handler seeing it (which is mostly time spent in the event queue), from the handler to it being written to the pty, from then until the PtyMultiplexer reads the next output (the child's echo), from then until the echo's been performed on the model, from then until the view's been updated, and from then until it's been painted.
+ * The stages happen on different threads, so each records its time here, and the durations are worked out when the paint completes.
+ *
+ * Only one keystroke is followed at a time: keys typed while we're waiting for an earlier one's echo aren't measured, so one keystroke's echo isn't mistaken for another's.
+ * Output that arrives long after the keystroke was written probably isn't its echo (the keystroke might have been part of a password, say), so we give up on the keystroke instead.
+ */
+class KeystrokeLatency {
+    private static final long GIVE_UP_NS = 1000000000L;
+    
+    private static final Stopwatch eventQueueStopwatch = Stopwatch.get("Keystroke 1: key event to handler");
+    private static final Stopwatch writerStopwatch = Stopwatch.get("Keystroke 2: handler to pty write");
+    private static final Stopwatch echoStopwatch = Stopwatch.get("Keystroke 3: pty write to echo read");
+    private static final Stopwatch modelStopwatch = Stopwatch.get("Keystroke 4: echo read to model update");
+    private static final Stopwatch viewStopwatch = Stopwatch.get("Keystroke 5: model update to view update");
+    private static final Stopwatch paintStopwatch = Stopwatch.get("Keystroke 6: view update to paint");
+    private static final Stopwatch totalStopwatch = Stopwatch.get("Keystroke total: key event to paint");
+    
+    // The stage we're waiting for the end of.
+    private static final int IDLE = 0;
+    private static final int WRITING = 1;
+    private static final int READING = 2;
+    private static final int PERFORMING = 3;
+    private static final int UPDATING = 4;
+    private static final int PAINTING = 5;
+    
+    // Written with our lock held, but read without it so reading output and painting don't need the lock when we're idle.
+    private volatile int state = IDLE;
+    private long eventQueueDuration_ns;
+    private long handledTime_ns;
+    private long writtenTime_ns;
+    private long readTime_ns;
+    private long performedTime_ns;
+    private long updatedTime_ns;
+    
+    /**
+     * Queued after the echo's output, to note when the model has it.
+     */
+    final TerminalAction performedAction = new TerminalAction() {
+        public void perform(TerminalModel model) {
+            performed();
+        }
+        
+        @Override public String toString() {
+            return "TerminalAction[Keystroke echo performed]";
+        }
+    };
+    
+    /**
+     * Called on the event dispatch thread when a key event is about to be sent to the child.
+     * 'eventTime_ms' is the event's KeyEvent.getWhen.
+     */
+    synchronized void keystroke(long eventTime_ms) {
+        final long now = System.nanoTime();
+        if (state != IDLE && now - handledTime_ns < GIVE_UP_NS) {
+            return;
+        }
+        // KeyEvent times are wall-clock milliseconds, so that's all the precision we have for this stage.
+        eventQueueDuration_ns = Math.max(0, System.currentTimeMillis() - eventTime_ms) * 1000000L;
+        handledTime_ns = now;
+        state = WRITING;
+    }
+    
+    /**
+     * Called just before the keystroke's written to the pty (usually on the event dispatch thread, unless the pty was full and the PtyMultiplexer's thread writes it later).
+     * We can't wait until the write returns, because the terminal driver's own echo may already have been read by then.
+     */
+    synchronized void writing() {
+        if (state == WRITING) {
+            writtenTime_ns = System.nanoTime();
+            state = READING;
+        }
+    }
+    
+    /**
+     * Called on the PtyMultiplexer's thread for each buffer of output.
+     * Returns true if the output is the echo we're waiting for, in which case the caller should queue performedAction after it.
+     */
+    boolean outputRead() {
+        if (state != READING) {
+            return false;
+        }
+        synchronized (this) {
+            if (state != READING) {
+                return false;
+            }
+            final long now = System.nanoTime();
+            if (now - writtenTime_ns > GIVE_UP_NS) {
+                state = IDLE;
+                return false;
+            }
+            readTime_ns = now;
+            state = PERFORMING;
+            return true;
+        }
+    }
+    
+    private synchronized void performed() {
+        if (state == PERFORMING) {
+            performedTime_ns = System.nanoTime();
+            state = UPDATING;
+        }
+    }
+    
+    /**
+     * Called on the event dispatch thread each time the model updates the view.
+     */
+    void viewUpdated() {
+        if (state != UPDATING) {
+            return;
+        }
+        synchronized (this) {
+            if (state == UPDATING) {
+                updatedTime_ns = System.nanoTime();
+                state = PAINTING;
+            }
+        }
+    }
+    
+    /**
+     * Called on the event dispatch thread each time the view finishes painting.
+     */
+    void painted() {
+        if (state != PAINTING) {
+            return;
+        }
+        synchronized (this) {
+            if (state != PAINTING) {
+                return;
+            }
+            final long now = System.nanoTime();
+            eventQueueStopwatch.addSample(eventQueueDuration_ns);
+            writerStopwatch.addSample(writtenTime_ns - handledTime_ns);
+            echoStopwatch.addSample(readTime_ns - writtenTime_ns);
+            modelStopwatch.addSample(performedTime_ns - readTime_ns);
+            viewStopwatch.addSample(updatedTime_ns - performedTime_ns);
+            paintStopwatch.addSample(now - updatedTime_ns);
+            totalStopwatch.addSample(eventQueueDuration_ns + (now - handledTime_ns));
+            state = IDLE;
+        }
+    }
+}
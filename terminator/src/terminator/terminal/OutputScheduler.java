@@ -0,0 +1,136 @@
+package terminator.terminal;
+
+import e.util.*;
+import java.awt.EventQueue;
+import java.util.*;
+import terminator.view.*;
+
+/**
+ * Shares the event dispatch thread fairly between all the terminals with output waiting to be performed on their models.
+ *
+ * Each TerminalCommandQueue with published output asks us to drain it, rather than posting its own invokeLater.
+ * We drain the queues in passes, each a single event on the event dispatch thread.
+ * Within a pass, the terminal with the keyboard focus goes first, then any others that are showing, and then the hidden ones (background tabs, say).
+ * Each terminal only gets a bounded slice of the pass.
+ * The other visible terminals share a bounded part of the pass, as do the hidden ones, taking turns from pass to pass, so neither is starved.
+ * A queue that isn't empty at the end of its slice waits for the next pass, which is posted behind whatever input events have arrived in the meantime.
+ * That way, the time before a keystroke is handled is bounded by the length of a pass, however many terminals are busy.
+ *
+ * A hidden terminal whose queue fills up makes its reader wait, which slows the child down via the pty, rather than making the event dispatch thread fall further behind.
+ * (Hidden terminals only update their models anyway; see TerminalModel.updateView.)
+ */
+class OutputScheduler {
+    // The focused terminal's slice is bigger than a frame's worth of anyone's output, so an interactive terminal never has to wait for a second pass.
+    private static final long FOCUSED_SLICE_NS = 6 * 1000000L;
+    private static final long VISIBLE_SLICE_NS = 2 * 1000000L;
+    private static final long HIDDEN_SLICE_NS = 1 * 1000000L;
+    // Shared between all the visible terminals other than the focused one, and between all the hidden ones, respectively.
+    private static final long VISIBLE_PASS_NS = 4 * 1000000L;
+    private static final long HIDDEN_PASS_NS = 2 * 1000000L;
+    
+    private static final int FOCUSED = 0;
+    private static final int VISIBLE = 1;
+    private static final int HIDDEN = 2;
+    
+    private static final OutputScheduler INSTANCE = new OutputScheduler();
+    
+    private static final ThroughputCounter unfinishedCounter = ThroughputCounter.get("OutputScheduler terminals left for the next pass");
+    
+    // The queues waiting to be drained, in the order they'll be considered within their priority.
+    // Guarded by 'this'.
+    private final ArrayDeque<TerminalCommandQueue> readyQueues = new ArrayDeque<>();
+    private boolean passScheduled = false;
+    
+    private final Runnable passRunnable = new Runnable() {
+        public void run() {
+            runPass();
+        }
+    };
+    
+    private OutputScheduler() {
+    }
+    
+    static OutputScheduler getInstance() {
+        return INSTANCE;
+    }
+    
+    /**
+     * Arranges for the given queue to be drained.
+     * The queue mustn't ask again until its drain has reported that it's empty.
+     * Any thread.
+     */
+    synchronized void schedule(TerminalCommandQueue queue) {
+        readyQueues.addLast(queue);
+        schedulePass();
+    }
+    
+    // Must be called with our lock held.
+    private void schedulePass() {
+        if (passScheduled == false) {
+            passScheduled = true;
+            EventQueue.invokeLater(passRunnable);
+        }
+    }
+    
+    private void runPass() {
+        final TerminalCommandQueue[] queues;
+        synchronized (this) {
+            passScheduled = false;
+            queues = readyQueues.toArray(new TerminalCommandQueue[readyQueues.size()]);
+            readyQueues.clear();
+        }
+        
+        // Queues that still have output after their slice go to the back of the line, and queues whose turn didn't come stay at the front.
+        ArrayList<TerminalCommandQueue> unfinished = new ArrayList<>();
+        ArrayList<TerminalCommandQueue> skipped = new ArrayList<>();
+        final int[] priorities = new int[queues.length];
+        for (int i = 0; i < queues.length; ++i) {
+            priorities[i] = getPriority(queues[i]);
+        }
+        for (int priority = FOCUSED; priority <= HIDDEN; ++priority) {
+            final long slice_ns = (priority == FOCUSED) ? FOCUSED_SLICE_NS : (priority == VISIBLE) ? VISIBLE_SLICE_NS : HIDDEN_SLICE_NS;
+            final long budget_ns = (priority == FOCUSED) ? Long.MAX_VALUE : (priority == VISIBLE) ? VISIBLE_PASS_NS : HIDDEN_PASS_NS;
+            long time_ns = 0;
+            for (int i = 0; i < queues.length; ++i) {
+                if (priorities[i] != priority) {
+                    continue;
+                }
+                final TerminalCommandQueue queue = queues[i];
+                if (time_ns >= budget_ns) {
+                    skipped.add(queue);
+                    continue;
+                }
+                final long sliceStart_ns = System.nanoTime();
+                if (queue.drain(sliceStart_ns + slice_ns) == false) {
+                    unfinished.add(queue);
+                }
+                time_ns += System.nanoTime() - sliceStart_ns;
+            }
+        }
+        
+        if (skipped.isEmpty() && unfinished.isEmpty()) {
+            return;
+        }
+        unfinishedCounter.add(skipped.size() + unfinished.size());
+        synchronized (this) {
+            // Anything scheduled during the pass goes after the queues we already had.
+            ArrayList<TerminalCommandQueue> newlyReady = new ArrayList<>(readyQueues);
+            readyQueues.clear();
+            readyQueues.addAll(skipped);
+            readyQueues.addAll(unfinished);
+            readyQueues.addAll(newlyReady);
+            schedulePass();
+        }
+    }
+    
+    private static int getPriority(TerminalCommandQueue queue) {
+        final JTerminalPane pane = queue.getPane();
+        if (pane == null) {
+            return VISIBLE;
+        }
+        if (pane.getTerminalView().isFocusOwner()) {
+            return FOCUSED;
+        }
+        return pane.isShowing() ? VISIBLE : HIDDEN;
+    }
+}
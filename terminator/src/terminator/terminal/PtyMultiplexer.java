@@ -0,0 +1,341 @@
+package terminator.terminal;
+
+import e.util.*;
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+import org.jessies.os.*;
+import terminator.*;
+
+/**
+ * Does all the reading from and writing to the children's ptys, for every terminal, on a single thread.
+ *
+ * We used to have a reader thread and a writer thread per terminal, which cost two thread stacks per tab, and left the kernel to choose between dozens of threads when lots of terminals were busy.
+ * Instead, the ptys are non-blocking, and our thread waits in poll(2) until any of them has output to read, or has room for input we've been asked to write.
+ * We poll a pipe of our own too, so other threads can wake us when there's input to write, or when a terminal that couldn't take any more output can again.
+ *
+ * Output is read into a single buffer shared by all the terminals, and handed to the terminal's Listener on our thread.
+ * Before each read, the Listener says how much output it can take without having to wait for anything, so one terminal whose model has fallen behind can't hold up the rest.
+ * A Listener that can't take any output isn't read from until it wakes us; in the meantime the child's output waits in the kernel, which slows the child down, as before.
+ *
+ * Input is written straight away by the thread that asks, if the pty has room for it.
+ * Anything left over is queued, and written by our thread when the pty has room.
+ */
+class PtyMultiplexer {
+    // The user can choose the read buffer size (see TerminatorPreferences.READ_BUFFER_SIZE), but only within reason.
+    private static final int MIN_READ_BUFFER_SIZE = 256;
+    private static final int MAX_READ_BUFFER_SIZE = 1024 * 1024;
+    
+    private static final ThroughputCounter pollCounter = ThroughputCounter.get("PtyMultiplexer polls");
+    private static final ThroughputCounter wakeUpCounter = ThroughputCounter.get("PtyMultiplexer wake-ups");
+    
+    private static PtyMultiplexer instance;
+    
+    /**
+     * Receives a terminal's output, on the multiplexer's thread.
+     */
+    interface Listener {
+        /**
+         * Returns how many bytes of output we can take now, or 0 if we can't take any, in which case we must call Registration.wakeUp once we can.
+         */
+        int getReadLimit();
+        
+        /**
+         * Handles the output between the buffer's position and its limit.
+         * The buffer is reused as soon as we return.
+         */
+        void outputRead(ByteBuffer bytes);
+        
+        /**
+         * Called just before input's written to the pty, on whatever thread is writing it.
+         */
+        void writing();
+        
+        /**
+         * Called when the pty's reached end of file or can't be read, after which the multiplexer forgets us.
+         * The cause is null at end of file.
+         */
+        void closed(Throwable cause);
+    }
+    
+    /**
+     * A pty the multiplexer is servicing.
+     */
+    class Registration {
+        private final PtyProcess ptyProcess;
+        private final Listener listener;
+        // Input waiting for the pty to have room, oldest first.
+        // Guarded by 'this'.
+        private final ArrayDeque<ByteBuffer> pendingInput = new ArrayDeque<>();
+        private boolean closed = false;
+        // Set once poll has reported a hang-up, after which we only ask about the pty when we're going to read it.
+        // Otherwise, poll would keep returning straight away while we weren't reading.
+        // Only touched on our thread.
+        private boolean hungUp = false;
+        
+        private Registration(PtyProcess ptyProcess, Listener listener) {
+            this.ptyProcess = ptyProcess;
+            this.listener = listener;
+        }
+        
+        /**
+         * Writes the given bytes to the pty, without waiting, after any input that's still waiting for room.
+         * Input written after the pty's been closed is silently discarded.
+         * Any thread.
+         */
+        void write(byte[] bytes) throws IOException {
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                final ByteBuffer buffer = ByteBuffer.wrap(bytes);
+                final boolean wasIdle = pendingInput.isEmpty();
+                if (wasIdle) {
+                    writeSome(buffer);
+                    if (buffer.hasRemaining() == false) {
+                        return;
+                    }
+                }
+                pendingInput.addLast(buffer);
+                if (wasIdle == false) {
+                    // Our thread already knows there's input waiting.
+                    return;
+                }
+            }
+            wakeUp();
+        }
+        
+        /**
+         * Wakes the multiplexer, so it asks the listener again whether it can take output.
+         * Any thread.
+         */
+        void wakeUp() {
+            PtyMultiplexer.this.wakeUp();
+        }
+        
+        private synchronized boolean hasPendingInput() {
+            return pendingInput.isEmpty() == false;
+        }
+        
+        // Must be called with our lock held.
+        private void writeSome(ByteBuffer buffer) throws IOException {
+            listener.writing();
+            int n;
+            do {
+                n = ptyProcess.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+                buffer.position(buffer.position() + n);
+            } while (n > 0 && buffer.hasRemaining());
+        }
+        
+        private synchronized void writePendingInput() {
+            try {
+                while (pendingInput.isEmpty() == false) {
+                    final ByteBuffer buffer = pendingInput.peekFirst();
+                    writeSome(buffer);
+                    if (buffer.hasRemaining()) {
+                        return;
+                    }
+                    pendingInput.removeFirst();
+                }
+            } catch (IOException ex) {
+                Log.warn("Couldn't write " + StringUtilities.pluralize(pendingInput.size(), "pending input", "pending inputs") + " to " + ptyProcess, ex);
+                pendingInput.clear();
+            }
+        }
+        
+        private synchronized void markClosed() {
+            closed = true;
+            pendingInput.clear();
+        }
+    }
+    
+    // Guarded by 'this'.
+    private final ArrayList<Registration> registrations = new ArrayList<>();
+    
+    private final int wakeUpReadFd;
+    private final int wakeUpWriteFd;
+    // Set while there's a byte in the pipe we haven't read yet, so a burst of wake-ups costs one write(2).
+    private volatile boolean wakeUpPending = false;
+    private final byte[] wakeUpBytes = new byte[64];
+    
+    // Only touched on our thread.
+    private ByteBuffer buffer;
+    private int[] fds = new int[16];
+    private int[] events = new int[16];
+    private int[] revents = new int[16];
+    private int[] readLimits = new int[16];
+    private Registration[] polled = new Registration[16];
+    
+    private PtyMultiplexer() throws IOException {
+        final int[] pipeFds = new int[2];
+        PtyProcess.makePipe(pipeFds);
+        this.wakeUpReadFd = pipeFds[0];
+        this.wakeUpWriteFd = pipeFds[1];
+        
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    while (true) {
+                        pollOnce();
+                    }
+                } catch (Throwable th) {
+                    Log.warn("Pty I/O thread failed", th);
+                }
+            }
+        }, "Pty I/O");
+        thread.setDaemon(true);
+        thread.start();
+    }
+    
+    static synchronized PtyMultiplexer getInstance() throws IOException {
+        if (instance == null) {
+            instance = new PtyMultiplexer();
+        }
+        return instance;
+    }
+    
+    /**
+     * Makes the given process' pty non-blocking, and starts servicing it.
+     * The listener is asked how much output it can take straight away, so it should say none until it's ready, and then wake us.
+     */
+    Registration register(PtyProcess ptyProcess, Listener listener) throws IOException {
+        ptyProcess.setNonBlocking();
+        Registration registration = new Registration(ptyProcess, listener);
+        synchronized (this) {
+            registrations.add(registration);
+        }
+        wakeUp();
+        return registration;
+    }
+    
+    private void wakeUp() {
+        if (wakeUpPending) {
+            return;
+        }
+        wakeUpPending = true;
+        // If the pipe's full, we're already going to be woken, so there's nothing to do about failure.
+        Posix.write(wakeUpWriteFd, wakeUpBytes, 0, 1);
+    }
+    
+    private void pollOnce() throws IOException {
+        final Registration[] current;
+        synchronized (this) {
+            current = registrations.toArray(new Registration[registrations.size()]);
+        }
+        ensureArraySizes(current.length + 1);
+        
+        int fdCount = 0;
+        fds[fdCount] = wakeUpReadFd;
+        events[fdCount] = PtyProcess.POLL_READABLE;
+        polled[fdCount] = null;
+        ++fdCount;
+        for (Registration registration : current) {
+            final int readLimit = registration.listener.getReadLimit();
+            int wanted = 0;
+            if (readLimit > 0) {
+                wanted |= PtyProcess.POLL_READABLE;
+            }
+            if (registration.hungUp == false && registration.hasPendingInput()) {
+                wanted |= PtyProcess.POLL_WRITABLE;
+            }
+            if (wanted == 0) {
+                continue;
+            }
+            fds[fdCount] = registration.ptyProcess.getFd();
+            events[fdCount] = wanted;
+            readLimits[fdCount] = readLimit;
+            polled[fdCount] = registration;
+            ++fdCount;
+        }
+        
+        pollCounter.add(1);
+        PtyProcess.poll(fds, events, revents, fdCount, -1);
+        
+        if (revents[0] != 0) {
+            wakeUpCounter.add(1);
+            // Empty the pipe before clearing the flag.
+            // The other way round, a wake-up that came in between would write a byte we'd then throw away, leaving the flag set with nothing in the pipe, and all later wake-ups would be ignored.
+            // This way, a wake-up that sees the flag still set doesn't write, but whatever it was waking us for happened before we cleared the flag, so the next time round the loop (when we ask the listeners again) sees it.
+            while (Posix.read(wakeUpReadFd, wakeUpBytes, 0, wakeUpBytes.length) > 0) {
+            }
+            wakeUpPending = false;
+        }
+        for (int i = 1; i < fdCount; ++i) {
+            final Registration registration = polled[i];
+            polled[i] = null;
+            final int ready = revents[i];
+            if (ready == 0) {
+                continue;
+            }
+            try {
+                if ((ready & PtyProcess.POLL_WRITABLE) != 0) {
+                    registration.writePendingInput();
+                }
+                if ((ready & (PtyProcess.POLL_READABLE | PtyProcess.POLL_HANGUP)) != 0) {
+                    if ((events[i] & PtyProcess.POLL_READABLE) != 0) {
+                        read(registration, readLimits[i]);
+                    } else {
+                        registration.hungUp = true;
+                    }
+                }
+            } catch (Throwable th) {
+                close(registration, th);
+            }
+        }
+    }
+    
+    private void read(Registration registration, int readLimit) {
+        ensureBufferSize();
+        buffer.clear();
+        buffer.limit(Math.min(readLimit, buffer.capacity()));
+        final int readCount;
+        try {
+            readCount = registration.ptyProcess.read(buffer);
+        } catch (IOException ex) {
+            // Linux reports EIO rather than end of file once the child's side of the pty has been closed.
+            close(registration, ex);
+            return;
+        }
+        if (readCount == -1) {
+            close(registration, null);
+            return;
+        }
+        if (readCount == 0) {
+            return;
+        }
+        buffer.flip();
+        registration.listener.outputRead(buffer);
+    }
+    
+    private void close(Registration registration, Throwable cause) {
+        synchronized (this) {
+            registrations.remove(registration);
+        }
+        registration.markClosed();
+        registration.listener.closed(cause);
+    }
+    
+    /**
+     * (Re)allocates our buffer if the user's changed the preferred size since the last read.
+     */
+    private void ensureBufferSize() {
+        int size = Terminator.getPreferences().getInt(TerminatorPreferences.READ_BUFFER_SIZE);
+        size = Math.max(MIN_READ_BUFFER_SIZE, Math.min(size, MAX_READ_BUFFER_SIZE));
+        if (buffer == null || buffer.capacity() != size) {
+            // Direct, so PtyProcess.read can read straight into it.
+            buffer = ByteBuffer.allocateDirect(size);
+        }
+    }
+    
+    private void ensureArraySizes(int fdCount) {
+        if (fds.length >= fdCount) {
+            return;
+        }
+        final int size = Math.max(fdCount, 2 * fds.length);
+        fds = new int[size];
+        events = new int[size];
+        revents = new int[size];
+        readLimits = new int[size];
+        polled = new Registration[size];
+    }
+}
@@ -3,10 +3,17 @@ package terminator.terminal;
 import e.util.*;
 import java.awt.Dimension;
 import java.io.*;
+import java.nio.*;
 import java.util.concurrent.*;
 import org.jessies.os.*;
 
 public class PtyProcess {
+    // The events poll understands; the native code translates them to and from poll(2)'s.
+    static final int POLL_READABLE = 1;
+    static final int POLL_WRITABLE = 2;
+    // Reported whether asked for or not, for a hang-up, an error, or a bad fd.
+    static final int POLL_HANGUP = 4;
+    
     private class PtyInputStream extends InputStream {
         /**
          * Although we don't want to invoke this inefficient method, it's abstract in InputStream, so we have to "implement" it.
@@ -133,6 +140,70 @@ public class PtyProcess {
         return inStream;
     }
     
+    /**
+     * Reads whatever the child has written (waiting until there's something, unless we're non-blocking) into 'buffer', from its position up to its limit, and advances its position.
+     * The buffer must be direct, so the bytes can go straight there from read(2) without being copied through a Java array.
+     * Returns the number of bytes read, 0 if we're non-blocking and there's nothing to read, or -1 at end of file.
+     */
+    public int read(ByteBuffer buffer) throws IOException {
+        if (buffer.isDirect() == false) {
+            throw new IllegalArgumentException("PtyProcess.read needs a direct ByteBuffer");
+        }
+        final int n = nativeRead(buffer, buffer.position(), buffer.remaining());
+        if (n == 0) {
+            return -1;
+        }
+        if (n == -1) {
+            return 0;
+        }
+        buffer.position(buffer.position() + n);
+        return n;
+    }
+    
+    /**
+     * Writes as many as it can of the given bytes without waiting, and returns how many that was (which may be none).
+     * Only for use once we're non-blocking; see setNonBlocking.
+     */
+    int write(byte[] bytes, int offset, int byteCount) throws IOException {
+        int n;
+        while ((n = Posix.write(fd, bytes, offset, byteCount)) < 0) {
+            if (n == -Errno.EAGAIN) {
+                return 0;
+            }
+            if (n != -Errno.EINTR) {
+                throw new IOException("write(" + fd + ", buffer, " + offset + ", " + byteCount + ") failed: " + Errno.toString(-n));
+            }
+        }
+        return n;
+    }
+    
+    /**
+     * Makes reads and writes of the pty return straight away rather than wait, so one thread can service many ptys (see PtyMultiplexer).
+     * The streams from getInputStream and getOutputStream don't expect that, so they mustn't be used afterwards.
+     */
+    void setNonBlocking() throws IOException {
+        nativeSetNonBlocking();
+    }
+    
+    /**
+     * Waits until one of the first 'fdCount' fds is ready for one of the corresponding POLL_ events, or until 'timeout_ms' has passed (if it's not negative).
+     * A negative fd is ignored.
+     * Fills in 'revents' with the POLL_ events that are ready for each fd, and returns how many fds have any.
+     */
+    static int poll(int[] fds, int[] events, int[] revents, int fdCount, int timeout_ms) throws IOException {
+        ensureLibraryLoaded();
+        return nativePoll(fds, events, revents, fdCount, timeout_ms);
+    }
+    
+    /**
+     * Creates a pipe, neither end of which blocks, and puts the read end's fd in fds[0] and the write end's in fds[1].
+     * A PtyMultiplexer uses one to wake itself from poll.
+     */
+    static void makePipe(int[] fds) throws IOException {
+        ensureLibraryLoaded();
+        nativeMakePipe(fds);
+    }
+    
     public OutputStream getOutputStream() {
         return outStream;
     }
@@ -257,6 +328,14 @@ public class PtyProcess {
     
     private native void nativeStartProcess(String executable, String[] argv, String workingDirectory) throws IOException;
     
+    private native int nativeRead(ByteBuffer buffer, int offset, int byteCount) throws IOException;
+    
+    private native void nativeSetNonBlocking() throws IOException;
+    
+    private static native int nativePoll(int[] fds, int[] events, int[] revents, int fdCount, int timeout_ms) throws IOException;
+    
+    private static native void nativeMakePipe(int[] fds) throws IOException;
+    
     public native void sendResizeNotification(Dimension sizeInChars, Dimension sizeInPixels) throws IOException;
     
     private native String nativeListProcessesUsingTty() throws IOException;
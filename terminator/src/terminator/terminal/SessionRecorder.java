@@ -0,0 +1,274 @@
+package terminator.terminal;
+
+import e.util.*;
+import java.awt.Dimension;
+import java.io.*;
+import java.nio.*;
+import java.util.concurrent.*;
+
+/**
+ * Records the raw bytes read from a child process, and the terminal's size changes, with the time each happened.
+ * Unlike the TerminalLogWriter's text log, a recording has everything the emulator saw (escape sequences and all), so SessionReplay can feed it back through a TerminalControl and get the same model.
+ *
+ * The file starts with MAGIC, FORMAT_VERSION, and the wall-clock time the recording started, in milliseconds.
+ * Then there's a record per read or size change, each starting with its type and the nanoseconds since the recording started.
+ * An OUTPUT record then has the byte count and the bytes; a RESIZE record has the width and height in characters and then in pixels.
+ * Everything is big-endian, as DataOutputStream and ByteBuffer write it.
+ *
+ * As with TerminalLogWriter, the reader thread only copies records into a buffer, and the file I/O happens on a background thread shared by every recording.
+ *
+ * Output read while logging is suspended isn't recorded, so a recording with a gap in it may not replay faithfully.
+ */
+class SessionRecorder {
+    static final String MAGIC = "terminator-session";
+    static final int FORMAT_VERSION = 1;
+    
+    static final byte OUTPUT = 0;
+    static final byte RESIZE = 1;
+    
+    // The type, time, and byte count that start an OUTPUT record.
+    private static final int OUTPUT_HEADER_BYTE_COUNT = 1 + 8 + 4;
+    private static final int RESIZE_BYTE_COUNT = 1 + 8 + 4 * 4;
+    
+    // As for TerminalLogWriter: enough for a few hundred full screens of output.
+    private static final int BUFFER_BYTE_COUNT = 256 * 1024;
+    // Output isn't worth reading in smaller pieces than this; see getSpace.
+    private static final int MIN_SPACE = 1024;
+    // We flush a second after output, so a recording of a busy terminal doesn't mean a write(2) per read.
+    private static final long FLUSH_DELAY_MS = 1000;
+    
+    private static final ScheduledExecutorService executor = ThreadUtilities.newSingleThreadScheduledExecutor("Session Recorder");
+    
+    private final File file;
+    private final long startTime;
+    
+    // Guarded by 'this'.
+    // The buffer the reader thread encodes records into, and the one the background thread isn't using.
+    private ByteBuffer buffer = ByteBuffer.allocate(BUFFER_BYTE_COUNT);
+    private ByteBuffer spareBuffer = ByteBuffer.allocate(BUFFER_BYTE_COUNT);
+    private boolean drainScheduled = false;
+    private boolean closed = false;
+    // Run once there's space in the buffer again, if getSpace has said there wasn't.
+    private Runnable spaceListener;
+    
+    // Only touched on the background thread, once we've been constructed.
+    private DataOutputStream out;
+    private boolean flushScheduled = false;
+    
+    private final Runnable drainRunnable = new Runnable() {
+        public void run() {
+            drain();
+        }
+    };
+    
+    private final Runnable flushRunnable = new Runnable() {
+        public void run() {
+            flushScheduled = false;
+            flushOut();
+        }
+    };
+    
+    private SessionRecorder(File file) throws IOException {
+        this.file = file;
+        this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 64 * 1024));
+        this.startTime = System.nanoTime();
+        out.writeUTF(MAGIC);
+        out.writeInt(FORMAT_VERSION);
+        out.writeLong(System.currentTimeMillis());
+    }
+    
+    /**
+     * Starts a recording alongside the given log file, or returns null if there's no log file or we can't write the recording.
+     */
+    static SessionRecorder startRecordingNextTo(File logFile) {
+        if (logFile == null) {
+            return null;
+        }
+        File file = new File(logFile.getPath().replaceAll("\\.txt(\\.gz)?$", "") + ".session");
+        try {
+            return new SessionRecorder(file);
+        } catch (IOException ex) {
+            Log.warn("Couldn't start recording session to \"" + file + "\"", ex);
+            return null;
+        }
+    }
+    
+    /**
+     * Records the bytes between the buffer's position and its limit, without changing either.
+     * This only copies the bytes into our buffer; the background thread writes them out.
+     * A recording with a gap in it is no use, so if the buffer's full we wait rather than drop output, but the reader thread asks getSpace first so that's rare.
+     */
+    synchronized void output(ByteBuffer bytes) {
+        final long time = System.nanoTime() - startTime;
+        final ByteBuffer remaining = bytes.duplicate();
+        while (remaining.hasRemaining()) {
+            if (waitForSpace(OUTPUT_HEADER_BYTE_COUNT + 1) == false) {
+                return;
+            }
+            // A read too big for the buffer becomes several records with the same time, which replays the same.
+            final int byteCount = Math.min(remaining.remaining(), buffer.remaining() - OUTPUT_HEADER_BYTE_COUNT);
+            buffer.put(OUTPUT);
+            buffer.putLong(time);
+            buffer.putInt(byteCount);
+            final ByteBuffer slice = remaining.duplicate();
+            slice.limit(slice.position() + byteCount);
+            buffer.put(slice);
+            remaining.position(remaining.position() + byteCount);
+        }
+        scheduleDrain();
+    }
+    
+    synchronized void resize(Dimension sizeInChars, Dimension sizeInPixels) {
+        if (waitForSpace(RESIZE_BYTE_COUNT) == false) {
+            return;
+        }
+        buffer.put(RESIZE);
+        buffer.putLong(System.nanoTime() - startTime);
+        buffer.putInt(sizeInChars.width);
+        buffer.putInt(sizeInChars.height);
+        buffer.putInt(sizeInPixels.width);
+        buffer.putInt(sizeInPixels.height);
+        // Size changes are rare, and worth having on disk promptly if we're recording to reproduce a problem with one.
+        executor.execute(new Runnable() {
+            public void run() {
+                drain();
+                flushOut();
+            }
+        });
+    }
+    
+    // Must be called with our lock held.
+    // Returns false if we've been closed, and so shouldn't record anything more.
+    private boolean waitForSpace(int byteCount) {
+        while (closed == false && buffer.remaining() < byteCount) {
+            scheduleDrain();
+            try {
+                wait();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return (closed == false);
+    }
+    
+    /**
+     * Returns how many bytes output could certainly take without waiting, or Integer.MAX_VALUE if we're no longer recording.
+     * If that's too few to be worth reading, returns 0, and the given Runnable will be run (on the background thread) once there's space.
+     */
+    synchronized int getSpace(Runnable spaceListener) {
+        if (closed) {
+            return Integer.MAX_VALUE;
+        }
+        final int space = buffer.remaining() - OUTPUT_HEADER_BYTE_COUNT;
+        if (space < MIN_SPACE) {
+            this.spaceListener = spaceListener;
+            scheduleDrain();
+            return 0;
+        }
+        return space;
+    }
+    
+    // Must be called with our lock held.
+    private void spaceMade() {
+        notifyAll();
+        if (spaceListener != null) {
+            final Runnable listener = spaceListener;
+            spaceListener = null;
+            listener.run();
+        }
+    }
+    
+    // Must be called with our lock held.
+    private void scheduleDrain() {
+        if (drainScheduled == false) {
+            drainScheduled = true;
+            executor.execute(drainRunnable);
+        }
+    }
+    
+    /**
+     * Swaps the buffers, and writes out the one that was being filled.
+     * Runs on the background thread.
+     */
+    private void drain() {
+        final ByteBuffer bytes;
+        synchronized (this) {
+            drainScheduled = false;
+            bytes = buffer;
+            buffer = spareBuffer;
+            spareBuffer = bytes;
+            buffer.clear();
+            // Anyone waiting for space now has a whole buffer.
+            spaceMade();
+        }
+        if (out == null || bytes.position() == 0) {
+            return;
+        }
+        try {
+            out.write(bytes.array(), 0, bytes.position());
+            if (flushScheduled == false) {
+                flushScheduled = true;
+                executor.schedule(flushRunnable, FLUSH_DELAY_MS, TimeUnit.MILLISECONDS);
+            }
+        } catch (IOException ex) {
+            failed(ex);
+        }
+    }
+    
+    private void flushOut() {
+        if (out == null) {
+            return;
+        }
+        try {
+            out.flush();
+        } catch (IOException ex) {
+            failed(ex);
+        }
+    }
+    
+    private void closeOut() {
+        if (out == null) {
+            return;
+        }
+        try {
+            out.close();
+        } catch (IOException ex) {
+            Log.warn("Problem closing session recording \"" + file + "\"", ex);
+        }
+        out = null;
+    }
+    
+    // Runs on the background thread.
+    private void failed(IOException ex) {
+        Log.warn("Problem writing session recording \"" + file + "\"; giving up", ex);
+        closeOut();
+        synchronized (this) {
+            closed = true;
+            spaceMade();
+        }
+    }
+    
+    /**
+     * Stops recording, and asks the background thread to finish writing the recording.
+     */
+    void close() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            spaceMade();
+        }
+        executor.execute(new Runnable() {
+            public void run() {
+                drain();
+                closeOut();
+            }
+        });
+    }
+    
+    @Override public String toString() {
+        return file.toString();
+    }
+}
@@ -0,0 +1,175 @@
+package terminator.terminal;
+
+import e.util.*;
+import java.awt.Dimension;
+import java.io.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.util.*;
+import org.jessies.cli.*;
+import terminator.view.*;
+
+/**
+ * Replays a SessionRecorder recording into a HeadlessTerminal, and checks the result.
+ *
+ * By default the recording is replayed as fast as possible; with --real-time, each read and size change happens as long after the start as it did when it was recorded.
+ * Either way, the view is updated once per 60Hz frame, as it would be in a window.
+ *
+ * Afterwards, the model's snapshot (see HeadlessTerminal.getSnapshot) can be written to a file with --write-snapshot, or compared with one written earlier with --expect.
+ * With --budget-ms, the time spent processing the recording (not counting any time spent waiting in real-time mode) must be no more than that.
+ * We exit with a non-zero status if the snapshot doesn't match or the budget's exceeded, so a replay can be used as a regression test.
+ *
+ * Usage: java -Djava.awt.headless=true terminator.terminal.SessionReplay [--real-time] [--expect=FILE] [--write-snapshot=FILE] [--budget-ms=N] [--buffer-size=N] RECORDING
+ */
+public class SessionReplay {
+    private static final long FRAME_INTERVAL_NS = 1000000000L / 60;
+    
+    @Option(names = { "--real-time" })
+    private boolean realTime = false;
+    
+    @Option(names = { "--expect" })
+    private String expectedSnapshotFilename = null;
+    
+    @Option(names = { "--write-snapshot" })
+    private String snapshotFilename = null;
+    
+    @Option(names = { "--budget-ms" })
+    private int budgetMs = 0;
+    
+    @Option(names = { "--buffer-size" })
+    private int bufferSize = 8192;
+    
+    // What we've done so far.
+    private long byteCount = 0;
+    private int readCount = 0;
+    private int resizeCount = 0;
+    private long recordedDuration_ns = 0;
+    private long processingTime_ns = 0;
+    
+    public static void main(String[] args) throws Exception {
+        System.exit(new SessionReplay().run(args) ? 0 : 1);
+    }
+    
+    private boolean run(String[] args) throws IOException {
+        final List<String> filenames = new OptionParser(this).parse(args);
+        if (filenames.size() != 1) {
+            System.err.println("usage: SessionReplay [--real-time] [--expect=FILE] [--write-snapshot=FILE] [--budget-ms=N] [--buffer-size=N] RECORDING");
+            return false;
+        }
+        
+        // We're the only thread touching the model and its view, so updates have to happen when we say.
+        FrameScheduler.getInstance().setManualUpdates(true);
+        HeadlessTerminal terminal = new HeadlessTerminal(bufferSize);
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(filenames.get(0)), 64 * 1024))) {
+            replay(in, terminal);
+        }
+        
+        System.out.printf("Replayed %d bytes (%s and %s) recorded over %s in %s (%.1f MB/s).\n", byteCount, StringUtilities.pluralize(readCount, "read", "reads"), StringUtilities.pluralize(resizeCount, "size change", "size changes"), TimeUtilities.nsToString(recordedDuration_ns), TimeUtilities.nsToString(processingTime_ns), (byteCount / (1024.0 * 1024.0)) / Math.max(processingTime_ns / 1e9, 1e-9));
+        
+        boolean passed = true;
+        final String snapshot = terminal.getSnapshot();
+        if (snapshotFilename != null) {
+            Files.write(Paths.get(snapshotFilename), snapshot.getBytes(StandardCharsets.UTF_8));
+        }
+        if (expectedSnapshotFilename != null) {
+            final String expectedSnapshot = new String(Files.readAllBytes(Paths.get(expectedSnapshotFilename)), StandardCharsets.UTF_8);
+            if (snapshot.equals(expectedSnapshot) == false) {
+                reportMismatch(expectedSnapshot, snapshot);
+                passed = false;
+            }
+        }
+        if (budgetMs > 0 && processingTime_ns > budgetMs * 1000000L) {
+            System.out.println("Over budget: took " + TimeUtilities.nsToString(processingTime_ns) + ", but the budget was " + TimeUtilities.msToString(budgetMs) + ".");
+            passed = false;
+        }
+        return passed;
+    }
+    
+    private void replay(DataInputStream in, HeadlessTerminal terminal) throws IOException {
+        if (in.readUTF().equals(SessionRecorder.MAGIC) == false) {
+            throw new IOException("not a session recording");
+        }
+        final int version = in.readInt();
+        if (version != SessionRecorder.FORMAT_VERSION) {
+            throw new IOException("unsupported session recording version " + version);
+        }
+        in.readLong(); // The wall-clock time the recording started isn't interesting here.
+        
+        byte[] output = new byte[bufferSize];
+        final long startTime = System.nanoTime();
+        long lastFrameTime = startTime;
+        while (true) {
+            final byte type;
+            final long time_ns;
+            try {
+                type = in.readByte();
+                time_ns = in.readLong();
+            } catch (EOFException ex) {
+                // A recording that was never closed (because Terminator quit, say) can end in the middle of a record; we just ignore the incomplete one.
+                break;
+            }
+            if (realTime) {
+                waitUntil(startTime + time_ns);
+            }
+            final long recordStartTime = System.nanoTime();
+            try {
+                if (type == SessionRecorder.OUTPUT) {
+                    final int length = in.readInt();
+                    if (output.length < length) {
+                        output = new byte[length];
+                    }
+                    in.readFully(output, 0, length);
+                    terminal.write(output, 0, length);
+                    byteCount += length;
+                    ++readCount;
+                } else if (type == SessionRecorder.RESIZE) {
+                    final Dimension sizeInChars = new Dimension(in.readInt(), in.readInt());
+                    final Dimension sizeInPixels = new Dimension(in.readInt(), in.readInt());
+                    terminal.sizeChanged(sizeInChars, sizeInPixels);
+                    ++resizeCount;
+                } else {
+                    throw new IOException("unknown record type " + type);
+                }
+            } catch (EOFException ex) {
+                break;
+            }
+            recordedDuration_ns = time_ns;
+            final long now = System.nanoTime();
+            if (now - lastFrameTime >= FRAME_INTERVAL_NS) {
+                terminal.updateView();
+                lastFrameTime = now;
+            }
+            processingTime_ns += System.nanoTime() - recordStartTime;
+        }
+        final long finalUpdateStartTime = System.nanoTime();
+        terminal.updateView();
+        processingTime_ns += System.nanoTime() - finalUpdateStartTime;
+    }
+    
+    private static void waitUntil(long time_ns) {
+        long delay_ns;
+        while ((delay_ns = time_ns - System.nanoTime()) > 0) {
+            try {
+                Thread.sleep(delay_ns / 1000000, (int) (delay_ns % 1000000));
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+    
+    private static void reportMismatch(String expected, String actual) {
+        final String[] expectedLines = expected.split("\n", -1);
+        final String[] actualLines = actual.split("\n", -1);
+        for (int i = 0; i < Math.max(expectedLines.length, actualLines.length); ++i) {
+            final String expectedLine = (i < expectedLines.length) ? expectedLines[i] : "(nothing)";
+            final String actualLine = (i < actualLines.length) ? actualLines[i] : "(nothing)";
+            if (expectedLine.equals(actualLine) == false) {
+                System.out.println("Snapshot mismatch at line " + (i + 1) + " of the snapshot:");
+                System.out.println("  expected: " + StringUtilities.escapeForJava(expectedLine));
+                System.out.println("  actual:   " + StringUtilities.escapeForJava(actualLine));
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,480 @@
+package terminator.terminal;
+
+import e.util.*;
+import java.util.*;
+import java.util.concurrent.*;
+import org.jessies.test.*;
+import terminator.model.*;
+import terminator.view.*;
+
+/**
+ * Carries the output of the child process from the reader thread to the model, which lives on the event dispatch thread.
+ *
+ * The queue is a fixed-size ring of commands, each of which is either a TerminalAction or a run of plain text.
+ * Text is copied into recycled char[] pages, and a command refers to its text as a slice of a page, so the common case of a program writing a lot of text allocates nothing per line.
+ * Adjacent runs of text are coalesced into a single command.
+ * The reader (the PtyMultiplexer's thread, usually) adds commands and then publishes them; the event dispatch thread drains what's been published so far, when the OutputScheduler gives it a slice of time.
+ * If the event dispatch thread falls too far behind, the reader stops reading until there's room again (see getRoom), which pushes back on the child via the pty.
+ * A reader that adds more than there's room for has to wait.
+ *
+ * (A HeadlessTerminal has no event dispatch thread, so it drains each batch on the reader's thread as soon as it's published.)
+ */
+class TerminalCommandQueue {
+    // The maximum number of commands in flight.
+    private static final int CAPACITY = 4096;
+    // The size of a text page, which is also the longest slice of text a single command can hold.
+    // This matches TerminalControl's input buffer size, so in the common case each read fills at most two pages.
+    private static final int PAGE_SIZE = 8192;
+    // The maximum number of text pages in flight, beyond which the reader waits.
+    private static final int MAX_PAGE_COUNT = 64;
+    // Pages are kept for reuse up to this many; beyond that they're left for the garbage collector.
+    private static final int MAX_FREE_PAGE_COUNT = 8;
+    // Output isn't worth reading in smaller pieces than this; see getRoom.
+    private static final int MIN_ROOM = 256;
+    // Room kept for the commands that don't have a character of output to themselves, such as a run of text split across pages, or KeystrokeLatency's.
+    private static final int COMMAND_SLACK = 128;
+    
+    private static final ThroughputCounter charsCounter = ThroughputCounter.get("TerminalCommandQueue chars");
+    private static final ThroughputCounter batchCounter = ThroughputCounter.get("TerminalCommandQueue commands per batch");
+    private static final ThroughputCounter stallCounter = ThroughputCounter.get("TerminalCommandQueue reader stalls");
+    
+    private static class TextPage {
+        private final char[] chars = new char[PAGE_SIZE];
+        // How much of 'chars' the reader has filled.
+        private int used;
+        // How many commands still refer to this page.
+        private int referenceCount;
+    }
+    
+    // The ring. A command with a null action is a text command.
+    private final TerminalAction[] actions = new TerminalAction[CAPACITY];
+    private final TextPage[] pages = new TextPage[CAPACITY];
+    private final int[] offsets = new int[CAPACITY];
+    private final int[] lengths = new int[CAPACITY];
+    
+    // Sequence numbers; the index into the ring is the sequence number modulo CAPACITY.
+    // consumed <= published <= produced.
+    // The reader owns [published, produced); the event dispatch thread owns [consumed, published).
+    private long consumed = 0;
+    private long published = 0;
+    private long produced = 0;
+    
+    private TextPage currentPage;
+    private int pageCount = 0;
+    private final ArrayDeque<TextPage> freePages = new ArrayDeque<>();
+    
+    // True from when we ask for a drain until a drain leaves us empty.
+    private boolean drainScheduled = false;
+    private final TerminalModel model;
+    // Used by the OutputScheduler to decide how urgent we are; null if we're not on the event dispatch thread.
+    private final JTerminalPane pane;
+    // Runs drainRunnable on the thread that owns the model, or null to have the OutputScheduler drain us on the event dispatch thread.
+    private final Executor drainExecutor;
+    // Run by whichever thread drains us, once there's room again, if getRoom has said there wasn't.
+    private Runnable roomListener;
+    private final Runnable drainRunnable = new Runnable() {
+        public void run() {
+            drain(Long.MAX_VALUE);
+        }
+    };
+    
+    /**
+     * Creates a queue drained on the event dispatch thread, sharing it with other terminals.
+     */
+    TerminalCommandQueue(TerminalModel model, JTerminalPane pane) {
+        this.model = model;
+        this.pane = pane;
+        this.drainExecutor = null;
+    }
+    
+    /**
+     * Creates a queue drained by the given Executor, which must run one drain at a time.
+     */
+    TerminalCommandQueue(TerminalModel model, Executor drainExecutor) {
+        this.model = model;
+        this.pane = null;
+        this.drainExecutor = drainExecutor;
+    }
+    
+    JTerminalPane getPane() {
+        return pane;
+    }
+    
+    /**
+     * Returns how many characters of output could be added without the reader having to wait, however the output turns out to be split into commands.
+     * If that's too few to be worth reading, returns 0, and the given Runnable will be run once there's room.
+     * Reader thread only.
+     */
+    synchronized int getRoom(Runnable roomListener) {
+        final int room = computeRoom();
+        if (room < MIN_ROOM) {
+            this.roomListener = roomListener;
+            return 0;
+        }
+        return room;
+    }
+    
+    // Must be called with our lock held.
+    private int computeRoom() {
+        // In the worst case, each character is a command of its own.
+        final long commandRoom = CAPACITY - (produced - consumed) - COMMAND_SLACK;
+        // The rest of the current page, plus the pages we could reuse or allocate.
+        long pageRoom = (long) (MAX_PAGE_COUNT - pageCount + freePages.size()) * PAGE_SIZE;
+        if (currentPage != null) {
+            pageRoom += PAGE_SIZE - currentPage.used;
+        }
+        return (int) Math.max(0, Math.min(commandRoom, pageRoom));
+    }
+    
+    /**
+     * Adds a copy of the given text to the queue.
+     * Reader thread only.
+     */
+    synchronized void addText(char[] chars, int start, int end) {
+        while (start < end) {
+            if (currentPage == null || currentPage.used == PAGE_SIZE) {
+                nextPage();
+            }
+            final int count = Math.min(end - start, PAGE_SIZE - currentPage.used);
+            System.arraycopy(chars, start, currentPage.chars, currentPage.used, count);
+            final int offset = currentPage.used;
+            currentPage.used += count;
+            start += count;
+            
+            // Can we just extend the previous command?
+            if (produced > published) {
+                final int last = (int) ((produced - 1) % CAPACITY);
+                if (actions[last] == null && pages[last] == currentPage && offsets[last] + lengths[last] == offset) {
+                    lengths[last] += count;
+                    continue;
+                }
+            }
+            final int index = nextIndex();
+            pages[index] = currentPage;
+            offsets[index] = offset;
+            lengths[index] = count;
+            ++currentPage.referenceCount;
+            ++produced;
+        }
+    }
+    
+    /**
+     * Adds the given action to the queue.
+     * Reader thread only.
+     */
+    synchronized void addAction(TerminalAction action) {
+        final int index = nextIndex();
+        actions[index] = action;
+        ++produced;
+    }
+    
+    /**
+     * Makes everything added so far available to the event dispatch thread, and arranges for it to be processed.
+     * Reader thread only.
+     */
+    synchronized void publish() {
+        if (produced == published) {
+            return;
+        }
+        published = produced;
+        if (drainScheduled == false) {
+            drainScheduled = true;
+            if (drainExecutor != null) {
+                drainExecutor.execute(drainRunnable);
+            } else {
+                OutputScheduler.getInstance().schedule(this);
+            }
+        }
+    }
+    
+    /** Waits for room for another command, and returns its index in the ring. */
+    private int nextIndex() {
+        if (produced - consumed == CAPACITY) {
+            // We've filled the ring without publishing, so publish; otherwise we'd wait forever.
+            publish();
+            waitForEventDispatchThread();
+            while (produced - consumed == CAPACITY) {
+                waitForEventDispatchThread();
+            }
+        }
+        return (int) (produced % CAPACITY);
+    }
+    
+    private void nextPage() {
+        if (currentPage != null && currentPage.referenceCount == 0) {
+            // Nothing refers to the page we've just filled, so we can start it again from the top.
+            currentPage.used = 0;
+            return;
+        }
+        if (freePages.isEmpty() && pageCount == MAX_PAGE_COUNT) {
+            publish();
+            while (freePages.isEmpty()) {
+                waitForEventDispatchThread();
+            }
+        }
+        if (freePages.isEmpty()) {
+            ++pageCount;
+            currentPage = new TextPage();
+        } else {
+            currentPage = freePages.removeFirst();
+        }
+    }
+    
+    private void waitForEventDispatchThread() {
+        stallCounter.add(1);
+        try {
+            wait();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(ex);
+        }
+    }
+    
+    /**
+     * Performs the commands published so far, stopping early if we're still going at the given System.nanoTime.
+     * Returns true if there's nothing left to do, in which case our next publish will ask for another drain; otherwise the caller must drain us again.
+     * Event dispatch thread only (or the drainExecutor's thread).
+     */
+    boolean drain(long deadline_ns) {
+        final long first;
+        final long last;
+        synchronized (this) {
+            first = consumed;
+            last = published;
+        }
+        
+        // We don't need the lock while we perform the commands, because the reader won't touch them until we mark them consumed.
+        long charCount = 0;
+        long i = first;
+        model.startProcessing();
+        try {
+            while (i < last) {
+                final int index = (int) (i % CAPACITY);
+                final TerminalAction action = actions[index];
+                if (action != null) {
+                    action.perform(model);
+                } else {
+                    model.processText(pages[index].chars, offsets[index], lengths[index]);
+                    charCount += lengths[index];
+                }
+                ++i;
+                // Reading the clock costs less than a short command, but there's no need to do it after every one.
+                if ((i & 0xf) == 0 && System.nanoTime() >= deadline_ns) {
+                    break;
+                }
+            }
+        } catch (Throwable th) {
+            // Give up on the rest of what we have rather than trip over the same command again next time.
+            Log.warn("Problem performing terminal output", th);
+            i = last;
+        } finally {
+            model.finishProcessing();
+            release(first, i);
+        }
+        charsCounter.add(charCount);
+        batchCounter.add(i - first);
+        synchronized (this) {
+            if (consumed < published) {
+                return false;
+            }
+            drainScheduled = false;
+            return true;
+        }
+    }
+    
+    private synchronized void release(long first, long last) {
+        for (long i = first; i < last; ++i) {
+            final int index = (int) (i % CAPACITY);
+            final TextPage page = pages[index];
+            if (page != null && --page.referenceCount == 0 && page != currentPage) {
+                if (freePages.size() < MAX_FREE_PAGE_COUNT) {
+                    page.used = 0;
+                    freePages.addLast(page);
+                } else {
+                    --pageCount;
+                }
+            }
+            actions[index] = null;
+            pages[index] = null;
+        }
+        consumed = last;
+        notifyAll();
+        if (roomListener != null && computeRoom() >= MIN_ROOM) {
+            final Runnable listener = roomListener;
+            roomListener = null;
+            listener.run();
+        }
+    }
+    
+    /**
+     * Records the text and test actions performed on it, rather than changing any lines.
+     */
+    private static class TestModel extends TerminalModel {
+        private final StringBuilder performed = new StringBuilder();
+        
+        private TestModel() {
+            super(new TerminalView(), 80, 24);
+        }
+        
+        @Override public void startProcessing() {
+        }
+        
+        @Override public void finishProcessing() {
+        }
+        
+        @Override public void processText(char[] chars, int offset, int length) {
+            performed.append(chars, offset, length);
+        }
+        
+        private String takePerformed() {
+            final String result = performed.toString();
+            performed.setLength(0);
+            return result;
+        }
+    }
+    
+    /** Returns an action that records 'ch' as if it were text. */
+    private static TerminalAction makeTestAction(final char ch) {
+        return new TerminalAction() {
+            public void perform(TerminalModel model) {
+                ((TestModel) model).performed.append(ch);
+            }
+        };
+    }
+    
+    /** Returns a queue that's only drained when the test says so. */
+    private static TerminalCommandQueue makeTestQueue(TestModel model) {
+        return new TerminalCommandQueue(model, new Executor() {
+            public void execute(Runnable runnable) {
+            }
+        });
+    }
+    
+    private static void addTestActions(TerminalCommandQueue queue, String s) {
+        for (int i = 0; i < s.length(); ++i) {
+            queue.addAction(makeTestAction(s.charAt(i)));
+        }
+    }
+    
+    private static void addTestText(TerminalCommandQueue queue, String s) {
+        queue.addText(s.toCharArray(), 0, s.length());
+    }
+    
+    @Test private static void testWrapAround() {
+        TestModel model = new TestModel();
+        TerminalCommandQueue queue = makeTestQueue(model);
+        // Go round the ring a few times, with commands straddling the end of it each time.
+        final String actions = "0123456789".repeat(CAPACITY / 10 - 1);
+        for (int round = 0; round < 3; ++round) {
+            addTestActions(queue, actions);
+            addTestText(queue, "text");
+            addTestActions(queue, "!");
+            addTestText(queue, "more text");
+            addTestText(queue, ", coalesced");
+            queue.publish();
+            Assert.equals(queue.drain(Long.MAX_VALUE), true);
+            Assert.equals(model.takePerformed(), actions + "text!more text, coalesced");
+        }
+        Assert.equals(queue.consumed, queue.produced);
+        Assert.equals(queue.produced, 3L * (actions.length() + 3));
+    }
+    
+    @Test private static void testDrainAcrossWrapPoint() {
+        TestModel model = new TestModel();
+        TerminalCommandQueue queue = makeTestQueue(model);
+        addTestActions(queue, "x".repeat(CAPACITY - 8));
+        queue.publish();
+        queue.drain(Long.MAX_VALUE);
+        model.takePerformed();
+        
+        // An expired deadline stops a drain after every 16 commands, which here is at the wrap point, and then part way through the text.
+        addTestActions(queue, "abcdefgh");
+        for (int i = 0; i < 20; ++i) {
+            addTestText(queue, Integer.toString(i % 10));
+            addTestActions(queue, "-");
+        }
+        queue.publish();
+        Assert.equals(queue.drain(0), false);
+        Assert.equals(model.takePerformed(), "abcdefgh");
+        Assert.equals(queue.consumed % CAPACITY, 0L);
+        Assert.equals(queue.drain(0), false);
+        Assert.equals(model.takePerformed(), "0-1-2-3-4-5-6-7-");
+        // More commands published mid-drain are performed in order after the rest.
+        addTestText(queue, "end");
+        queue.publish();
+        Assert.equals(queue.drain(Long.MAX_VALUE), true);
+        Assert.equals(model.takePerformed(), "8-9-0-1-2-3-4-5-6-7-8-9-end");
+    }
+    
+    @Test private static void testRoomListener() {
+        TestModel model = new TestModel();
+        TerminalCommandQueue queue = makeTestQueue(model);
+        final int[] roomListenerRunCount = new int[1];
+        final Runnable roomListener = new Runnable() {
+            public void run() {
+                ++roomListenerRunCount[0];
+            }
+        };
+        Assert.equals(queue.getRoom(roomListener), CAPACITY - COMMAND_SLACK);
+        
+        // Fill the ring until there's too little room to be worth reading into.
+        addTestActions(queue, "a".repeat(CAPACITY - COMMAND_SLACK - 16));
+        queue.publish();
+        Assert.equals(queue.getRoom(roomListener), 0);
+        // Draining a little isn't enough...
+        queue.drain(0);
+        Assert.equals(roomListenerRunCount[0], 0);
+        // ...but draining enough tells the reader there's room again, once.
+        queue.drain(Long.MAX_VALUE);
+        Assert.equals(roomListenerRunCount[0], 1);
+        addTestActions(queue, "b");
+        queue.publish();
+        queue.drain(Long.MAX_VALUE);
+        Assert.equals(roomListenerRunCount[0], 1);
+        
+        // Text pages run out too.
+        final char[] page = new char[PAGE_SIZE];
+        for (int i = 0; i < MAX_PAGE_COUNT; ++i) {
+            queue.addText(page, 0, PAGE_SIZE);
+        }
+        queue.publish();
+        Assert.equals(queue.getRoom(roomListener), 0);
+        queue.drain(Long.MAX_VALUE);
+        Assert.equals(roomListenerRunCount[0], 2);
+        Assert.equals(queue.getRoom(roomListener) > MIN_ROOM, true);
+    }
+    
+    @Test private static void testFullQueue() throws Exception {
+        final TestModel model = new TestModel();
+        final TerminalCommandQueue queue = makeTestQueue(model);
+        // A reader that ignores getRoom has to wait for the ring, and for text pages.
+        final StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 3 * CAPACITY; ++i) {
+            expected.append((char) ('a' + i % 26));
+        }
+        final char[] page = new char[PAGE_SIZE];
+        Arrays.fill(page, '.');
+        final String pages = new String(page).repeat(2 * MAX_PAGE_COUNT);
+        Thread reader = new Thread(new Runnable() {
+            public void run() {
+                addTestActions(queue, expected.toString());
+                for (int i = 0; i < 2 * MAX_PAGE_COUNT; ++i) {
+                    queue.addText(page, 0, PAGE_SIZE);
+                }
+                queue.publish();
+            }
+        });
+        reader.start();
+        StringBuilder performed = new StringBuilder();
+        while (reader.isAlive() || queue.consumed < queue.published) {
+            queue.drain(Long.MAX_VALUE);
+            performed.append(model.takePerformed());
+            Thread.sleep(1);
+        }
+        reader.join();
+        queue.drain(Long.MAX_VALUE);
+        performed.append(model.takePerformed());
+        Assert.equals(performed.toString(), expected + pages);
+        Assert.equals(queue.pageCount <= MAX_PAGE_COUNT, true);
+    }
+}
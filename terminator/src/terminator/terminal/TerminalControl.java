@@ -3,6 +3,8 @@ package terminator.terminal;
 import e.util.*;
 import java.awt.*;
 import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
 import java.util.*;
 import java.util.List;
 import java.util.concurrent.*;
@@ -13,28 +15,23 @@ import terminator.view.*;
 import terminator.terminal.escape.*;
 
 /**
- * Ties together the subprocess reader thread, the subprocess writer thread, and the thread that processes the subprocess' output.
+ * Ties together the PtyMultiplexer, which reads the subprocess' output and writes its input, and the thread that processes the subprocess' output.
  * Some basic processing is done here.
  */
 public class TerminalControl {
-    // Andrew Giddings wanted "windows-1252" for his Psion.
+    // We only speak UTF-8: what we read from the child goes through our own Utf8Decoder.
     private static final String CHARSET_NAME = "UTF-8";
     
-    // This should be around your system's pipe size.
-    // Too much larger and you'll waste time copying unused char[].
-    // Too much smaller and you'll waste time making excessive system calls reading just part of what's available.
-    // FIXME: add a JNI call to return PIPE_BUF? (It's not strictly required to be the value we're looking for, but it probably is.)
-    private static final int INPUT_BUFFER_SIZE = 8192;
-    
     // We use "new String" here because we're going to use reference equality later to recognize Terminator-supplied defaults.
     private static final String TERMINATOR_DEFAULT_SHELL = new String(System.getenv("SHELL"));
     
     private static final boolean DEBUG = false;
     private static final boolean DEBUG_STEP_MODE = false;
-    private static final boolean SHOW_ASCII_RENDITION = false;
     
     private static BufferedReader stepModeReader;
     
+    private static final ThroughputCounter bytesCounter = ThroughputCounter.get("TerminalControl bytes read");
+    
     private JTerminalPane pane;
     private List<ChangeListener> changeListeners = new ArrayList<>();
     private TerminalModel model;
@@ -42,11 +39,10 @@ public class TerminalControl {
     private boolean processIsRunning;
     private boolean processHasBeenDestroyed = false;
     
-    private InputStreamReader in;
-    private OutputStream out;
-    
-    private ExecutorService writerExecutor;
-    private Thread readerThread;
+    // Null if there's no process.
+    private PtyMultiplexer.Registration ptyRegistration;
+    // Until we're started, we tell the PtyMultiplexer we can't take any output.
+    private volatile boolean started = false;
     
     private int characterSet;
     private char[] g = new char[4];
@@ -54,20 +50,32 @@ public class TerminalControl {
     private boolean automaticNewline;
     
     private TerminalLogWriter terminalLogWriter;
+    // Null unless the user's asked for sessions to be recorded.
+    private SessionRecorder sessionRecorder;
     
-    private StringBuilder lineBuffer = new StringBuilder();
+    private final EscapeParser escapeParser = new EscapeParser(this);
     
-    private EscapeParser escapeParser;
+    // The text and TerminalActions on their way to the model.
+    private final TerminalCommandQueue commandQueue;
     
-    // Buffer of TerminalActions to perform.
-    private ArrayList<TerminalAction> terminalActions = new ArrayList<>();
-    // Semaphore to prevent us from overrunning the EDT.
-    private Semaphore flowControl = new Semaphore(30);
+    private final KeystrokeLatency keystrokeLatency = new KeystrokeLatency();
     
     public TerminalControl(JTerminalPane pane, TerminalModel model) {
         reset();
         this.pane = pane;
         this.model = model;
+        this.commandQueue = new TerminalCommandQueue(model, pane);
+    }
+    
+    /**
+     * Creates a TerminalControl whose model is updated by 'drainExecutor' rather than the event dispatch thread.
+     * HeadlessTerminal uses this, with no pane and no process, to run everything on one thread.
+     */
+    TerminalControl(JTerminalPane pane, TerminalModel model, Executor drainExecutor) {
+        reset();
+        this.pane = pane;
+        this.model = model;
+        this.commandQueue = new TerminalCommandQueue(model, drainExecutor);
     }
     
     public void initProcess(List<String> command, String workingDirectory) throws Throwable {
@@ -90,12 +98,13 @@ public class TerminalControl {
         
         // We log an announceConnectionLost message if we fail to create the PtyProcess, so we need the TerminalLogWriter first.
         this.terminalLogWriter = new TerminalLogWriter(command);
+        if (Terminator.getPreferences().getBoolean(TerminatorPreferences.RECORD_SESSIONS)) {
+            this.sessionRecorder = SessionRecorder.startRecordingNextTo(terminalLogWriter.getLogFile());
+        }
         this.ptyProcess = new PtyProcess(executable, argv, workingDirectory);
         this.processIsRunning = true;
         Log.warn("Created " + ptyProcess + " and logging to " + terminalLogWriter.getInfo());
-        this.in = new InputStreamReader(ptyProcess.getInputStream(), CHARSET_NAME);
-        this.out = ptyProcess.getOutputStream();
-        writerExecutor = ThreadUtilities.newSingleThreadExecutor(makeThreadName("Writer"));
+        this.ptyRegistration = PtyMultiplexer.getInstance().register(ptyProcess, new PtyListener());
     }
     
     public static ArrayList<String> getDefaultShell() {
@@ -120,17 +129,91 @@ public class TerminalControl {
      * invoked when all the user interface stuff is set up.
      */
     public void start() {
-        if (readerThread != null) {
+        if (started) {
             // Detaching a tab causes start to be invoked again, but we shouldn't do anything.
             return;
         }
         
-        if (ptyProcess == null) {
+        if (ptyRegistration == null) {
             // If the PtyProcess couldn't start, there's no point carrying on.
             return;
         }
         
-        readerThread = startThread("Reader", new ReaderRunnable());
+        started = true;
+        ptyRegistration.wakeUp();
+    }
+    
+    /**
+     * Starts feeding the given log (which may be gzip-compressed) to the terminal, as if it were output from a process, for a read-only terminal with no process.
+     * Once the log's been shown, the pane is asked to scroll to the given line of it (counting from 0).
+     * The line's position is worked out from where the cursor was when we'd fed the terminal the lines before it, so it's only approximate if the log moved the cursor up the screen.
+     */
+    public void startReadingLog(final File logFile, final int lineIndex) {
+        Thread readerThread = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    readLog(logFile, lineIndex);
+                } catch (Throwable th) {
+                    Log.warn("Problem reading log \"" + logFile + "\"", th);
+                    announceConnectionLost("\n\r[Couldn't read log: " + th.getMessage() + ".]");
+                }
+            }
+        }, "Log Reader for " + logFile.getName());
+        readerThread.setDaemon(true);
+        readerThread.start();
+    }
+    
+    private void readLog(File logFile, int lineIndex) throws IOException {
+        InputStream in = TerminalLogWriter.openLog(logFile);
+        // Both elements are written on the event dispatch thread, by the TerminalActions below, and read there too.
+        final long[] hitPosition = new long[] { -1, 0 };
+        try (ReadableByteChannel channel = Channels.newChannel(in)) {
+            final Utf8Decoder decoder = new Utf8Decoder();
+            final ByteBuffer bytes = ByteBuffer.allocate(64 * 1024);
+            final char[] chars = new char[Utf8Decoder.maxCharCount(bytes.capacity())];
+            int lineCount = 0;
+            while (channel.read(bytes) != -1) {
+                bytes.flip();
+                int charCount = decoder.decode(bytes, chars);
+                bytes.clear();
+                if (lineCount < lineIndex) {
+                    for (int i = 0; i < charCount; ++i) {
+                        if (chars[i] == '\n' && ++lineCount == lineIndex) {
+                            // Show everything up to the start of the line we want, and then note where the cursor is.
+                            processBuffer(chars, i + 1);
+                            addLogAction(new TerminalAction() {
+                                public void perform(TerminalModel model) {
+                                    hitPosition[0] = model.getCursorPosition().getLineIndex();
+                                    hitPosition[1] = model.getEvictedLineCount();
+                                }
+                            });
+                            System.arraycopy(chars, i + 1, chars, 0, charCount - (i + 1));
+                            charCount -= i + 1;
+                            break;
+                        }
+                    }
+                }
+                processBuffer(chars, charCount);
+            }
+        }
+        addLogAction(new TerminalAction() {
+            public void perform(final TerminalModel model) {
+                // Lines may have been discarded from the scrollback since we noted the hit's position.
+                final int line = (int) Math.max(0, hitPosition[0] - (model.getEvictedLineCount() - hitPosition[1]));
+                EventQueue.invokeLater(new Runnable() {
+                    public void run() {
+                        // Make sure the view has all the lines before asking it to scroll.
+                        model.updateView();
+                        pane.showLogLine(line);
+                    }
+                });
+            }
+        });
+    }
+    
+    private synchronized void addLogAction(TerminalAction action) {
+        commandQueue.addAction(action);
+        commandQueue.publish();
     }
     
     private Thread startThread(String name, Runnable runnable) {
@@ -144,30 +227,70 @@ public class TerminalControl {
         return "Process " + ptyProcess.getPid() + " (" + ptyProcess.getPtyName() + ") " + role;
     }
     
-    private class ReaderRunnable implements Runnable {
-        public void run() {
+    /**
+     * Handles the child's output on the PtyMultiplexer's thread, which is shared by all the terminals, so nothing here may wait.
+     */
+    private class PtyListener implements PtyMultiplexer.Listener {
+        private final Utf8Decoder decoder = new Utf8Decoder();
+        // We reuse this, because everything we pass it to copies what it needs.
+        private char[] chars = new char[0];
+        
+        private final Runnable wakeUpRunnable = new Runnable() {
+            public void run() {
+                ptyRegistration.wakeUp();
+            }
+        };
+        
+        public int getReadLimit() {
+            if (started == false) {
+                return 0;
+            }
+            int room = commandQueue.getRoom(wakeUpRunnable);
+            if (room > 0 && terminalLogWriter != null) {
+                room = Math.min(room, terminalLogWriter.getSpace(wakeUpRunnable));
+            }
+            if (room > 0 && sessionRecorder != null) {
+                room = Math.min(room, sessionRecorder.getSpace(wakeUpRunnable));
+            }
+            // The decoder can turn the last few bytes of a sequence into more characters than there are bytes (see Utf8Decoder.maxCharCount).
+            return Math.max(0, room - 1);
+        }
+        
+        public void outputRead(ByteBuffer bytes) {
+            bytesCounter.add(bytes.remaining());
             try {
-                while (true) {
-                    char[] chars = new char[INPUT_BUFFER_SIZE];
-                    int readCount = in.read(chars, 0, chars.length);
-                    if (readCount == -1) {
-                        Log.warn("read returned -1 from " + ptyProcess);
-                        return; // This isn't going to fix itself!
-                    }
-                    
-                    try {
-                        processBuffer(chars, readCount);
-                    } catch (Throwable th) {
-                        Log.warn("Problem processing output from " + ptyProcess, th);
-                    }
+                if (sessionRecorder != null && terminalLogWriter.isSuspended() == false) {
+                    sessionRecorder.output(bytes);
                 }
+                final int maxCharCount = Utf8Decoder.maxCharCount(bytes.remaining());
+                if (chars.length < maxCharCount) {
+                    chars = new char[maxCharCount];
+                }
+                final int charCount = decoder.decode(bytes, chars);
+                processBuffer(chars, charCount);
             } catch (Throwable th) {
-                Log.warn("Problem reading output from " + ptyProcess, th);
-            } finally {
-                // Our reader might throw an exception before the child has terminated.
-                // So "handleProcessTermination" is perhaps not the ideal name.
-                handleProcessTermination();
+                Log.warn("Problem processing output from " + ptyProcess, th);
+            }
+        }
+        
+        public void writing() {
+            keystrokeLatency.writing();
+        }
+        
+        public void closed(Throwable cause) {
+            if (cause == null) {
+                Log.warn("read returned -1 from " + ptyProcess);
+            } else {
+                Log.warn("Problem reading output from " + ptyProcess, cause);
             }
+            // Reading might fail before the child has terminated.
+            // So "handleProcessTermination" is perhaps not the ideal name.
+            // It waits for the child, so it mustn't hold up the other terminals.
+            startThread("Reaper", new Runnable() {
+                public void run() {
+                    handleProcessTermination();
+                }
+            });
         }
     }
     
@@ -177,12 +300,11 @@ public class TerminalControl {
     
     /**
      * Ensures that ^N and ^O are handled at the proper time.
-     * If we just call invokeCharacterSet they jump any pending text in the terminalActions queue.
+     * If we just call invokeCharacterSet they jump any pending text in the command queue.
      * Before this fix, "echo hello ^N world" would all appear in character set 1.
      */
-    public void invokeCharacterSetLater(final int index) {
-        flushLineBuffer();
-        terminalActions.add(new TerminalAction() {
+    public synchronized void invokeCharacterSetLater(final int index) {
+        commandQueue.addAction(new TerminalAction() {
             public void perform(TerminalModel model) {
                 invokeCharacterSet(index);
             }
@@ -232,11 +354,8 @@ public class TerminalControl {
     
     private void handleProcessTermination() {
         processIsRunning = false;
-
-        // The readerThread will have shut itself down by now.
-        // We need to handle the writer ExecutorService ourselves.
-        if (writerExecutor != null) {
-            writerExecutor.shutdownNow();
+        if (sessionRecorder != null) {
+            sessionRecorder.close();
         }
         
         // If the JNI side failed to start, ptyProcess can be null.
@@ -301,91 +420,48 @@ public class TerminalControl {
             }
         };
         model.processActions(new TerminalAction[] { sizeChangeAction });
-        // Notify the pty that the size has changed.
-        ptyProcess.sendResizeNotification(sizeInChars, sizeInPixels);
+        if (sessionRecorder != null) {
+            sessionRecorder.resize(sizeInChars, sizeInPixels);
+        }
+        // Notify the pty that the size has changed (if there is one: SessionReplay has no process).
+        if (ptyProcess != null) {
+            ptyProcess.sendResizeNotification(sizeInChars, sizeInPixels);
+        }
     }
     
-    private synchronized void processBuffer(char[] buffer, int size) throws IOException {
+    /** Processes the first 'size' decoded characters of output from the child. */
+    synchronized void processBuffer(char[] buffer, int size) throws IOException {
         boolean sawNewline = false;
         for (int i = 0; i < size; ++i) {
-            char ch = buffer[i];
-            if (ch == '\n') {
+            if (buffer[i] == '\n') {
                 sawNewline = true;
+                break;
             }
-            processChar(ch);
         }
-        terminalLogWriter.append(buffer, size, sawNewline);
-        flushLineBuffer();
-        flushTerminalActions();
-        fireChangeListeners();
-    }
-    
-    private synchronized void flushTerminalActions() {
-        if (terminalActions.size() == 0) {
-            return;
+        escapeParser.process(buffer, 0, size);
+        if (keystrokeLatency.outputRead()) {
+            commandQueue.addAction(keystrokeLatency.performedAction);
         }
-        
-        final TerminalAction[] actions = terminalActions.toArray(new TerminalAction[terminalActions.size()]);
-        terminalActions.clear();
-        
-        boolean didAcquire = false;
-        try {
-            flowControl.acquire();
-            didAcquire = true;
-            EventQueue.invokeLater(new Runnable() {
-                public void run() {
-                    try {
-                        model.processActions(actions);
-                    } catch (Throwable th) {
-                        Log.warn("Couldn't process terminal actions for " + ptyProcess, th);
-                    } finally {
-                        flowControl.release();
-                    }
-                }
-            });
-        } catch (Throwable th) {
-            Log.warn("Couldn't flush terminal actions for " + ptyProcess, th);
-            if (didAcquire) {
-                flowControl.release();
-            }
+        if (terminalLogWriter != null) {
+            terminalLogWriter.append(buffer, size, sawNewline);
         }
+        commandQueue.publish();
     }
     
     /**
-     * According to vttest, these cursor movement characters are still
-     * treated as such, even when they occur within an escape sequence.
+     * Called by the EscapeParser for runs of printable characters.
      */
-    private final boolean countsTowardsEscapeSequence(char ch) {
-        return (ch != Ascii.BS && ch != Ascii.CR && ch != Ascii.VT);
+    public synchronized void processText(char[] chars, int start, int end) {
+        doStep();
+        commandQueue.addText(chars, start, end);
     }
     
-    private synchronized void processChar(final char ch) {
-        // Enable this if you're having trouble working out what we're being asked to interpret.
-        if (SHOW_ASCII_RENDITION) {
-            if (ch >= ' ' || ch == '\n') {
-                System.out.print(ch);
-            } else {
-                System.out.print(".");
-            }
-        }
-        
-        if (ch == Ascii.ESC) {
-            flushLineBuffer();
-            // If the old escape sequence is interrupted; we start a new one.
-            if (escapeParser != null) {
-                Log.warn("Escape parser discarded with string \"" + escapeParser + "\"");
-            }
-            escapeParser = new EscapeParser();
-            return;
-        }
-        if (escapeParser != null && countsTowardsEscapeSequence(ch)) {
-            escapeParser.addChar(ch);
-            if (escapeParser.isComplete()) {
-                processEscape();
-                escapeParser = null;
-            }
-        } else if (ch == Ascii.LF || ch == Ascii.CR || ch == Ascii.BS || ch == Ascii.HT || ch == Ascii.VT) {
-            flushLineBuffer();
+    /**
+     * Called by the EscapeParser for C0 (and C1) control characters.
+     * According to vttest, the cursor movement characters are still treated as such, even when they occur within an escape sequence, and the parser does the right thing.
+     */
+    public synchronized void processControlCharacter(char ch) {
+        if (ch == Ascii.LF || ch == Ascii.CR || ch == Ascii.BS || ch == Ascii.HT || ch == Ascii.VT) {
             doStep();
             processSpecialCharacter(ch);
         } else if (ch == Ascii.SO) {
@@ -393,101 +469,86 @@ public class TerminalControl {
         } else if (ch == Ascii.SI) {
             invokeCharacterSetLater(0);
         } else if (ch == Ascii.BEL) {
-            pane.flash();
-        } else if (ch == Ascii.NUL) {
-            // Most telnetd(1) implementations seem to have a bug whereby
-            // they send the NUL byte at the end of the C strings they want to
-            // output when you first connect. Since all Unixes are pretty much
-            // copy and pasted from one another these days, this silly mistake
-            // only needed to be made once.
-        } else {
-            lineBuffer.append(ch);
-        }
-    }
-    
-    private static class PlainTextAction implements TerminalAction {
-        private String line;
-        
-        private PlainTextAction(String line) {
-            this.line = line;
-        }
-        
-        public void perform(TerminalModel model) {
-            if (DEBUG) {
-                Log.warn("Processing line \"" + line + "\"");
+            if (pane != null) {
+                pane.flash();
             }
-            model.processLine(line);
-        }
-        
-        @Override public String toString() {
-            return "TerminalAction[Process line: " + line + "]";
         }
+        // Anything else (NUL in particular) is ignored.
+        // Most telnetd(1) implementations seem to have a bug whereby
+        // they send the NUL byte at the end of the C strings they want to
+        // output when you first connect. Since all Unixes are pretty much
+        // copy and pasted from one another these days, this silly mistake
+        // only needed to be made once.
     }
     
-    public String translate(String characters) {
+    /** Translates the given characters to the current character set, in place. */
+    public void translate(char[] chars, int offset, int length) {
         if (g[characterSet] == 'B') {
-            return characters;
+            return;
         }
-        StringBuilder translation = new StringBuilder(characters.length());
-        for (int i = 0; i < characters.length(); ++i) {
-            translation.append(translateToCharacterSet(characters.charAt(i)));
+        for (int i = offset; i < offset + length; ++i) {
+            chars[i] = translateToCharacterSet(chars[i]);
         }
-        return translation.toString();
     }
     
-    private synchronized void flushLineBuffer() {
-        if (lineBuffer.length() == 0) {
-            // Nothing to flush!
-            return;
-        }
+    public synchronized void processSpecialCharacter(char ch) {
+        commandQueue.addAction(SpecialCharacterAction.forCharacter(ch));
+    }
+    
+    /**
+     * Performs one of the special characters on the model.
+     * These are so common, and so simple, that we share one instance per character.
+     */
+    private static class SpecialCharacterAction implements TerminalAction {
+        private static final SpecialCharacterAction LF = new SpecialCharacterAction(Ascii.LF, "LF");
+        private static final SpecialCharacterAction CR = new SpecialCharacterAction(Ascii.CR, "CR");
+        private static final SpecialCharacterAction HT = new SpecialCharacterAction(Ascii.HT, "HT");
+        private static final SpecialCharacterAction VT = new SpecialCharacterAction(Ascii.VT, "VT");
+        private static final SpecialCharacterAction BS = new SpecialCharacterAction(Ascii.BS, "BS");
         
-        final String line = lineBuffer.toString();
-        lineBuffer = new StringBuilder();
+        private final char ch;
+        private final String description;
         
-        doStep();
+        private SpecialCharacterAction(char ch, String description) {
+            this.ch = ch;
+            this.description = description;
+        }
         
-        // Conform to the stated claim that the model's always mutated in the AWT dispatch thread.
-        terminalActions.add(new PlainTextAction(line));
-    }
-    
-    public synchronized void processSpecialCharacter(final char ch) {
-        terminalActions.add(new TerminalAction() {
-            public void perform(TerminalModel model) {
-                if (DEBUG) {
-                    Log.warn("Processing special char \"" + getCharDesc(ch) + "\"");
-                }
-                model.processSpecialCharacter(ch);
-            }
-            
-            @Override public String toString() {
-                return "TerminalAction[Special char " + getCharDesc(ch) + "]";
+        private static SpecialCharacterAction forCharacter(char ch) {
+            switch (ch) {
+                case Ascii.LF: return LF;
+                case Ascii.CR: return CR;
+                case Ascii.HT: return HT;
+                case Ascii.VT: return VT;
+                case Ascii.BS: return BS;
+                default: return new SpecialCharacterAction(ch, "UK");
             }
-            
-            private String getCharDesc(char ch) {
-                switch (ch) {
-                    case Ascii.LF: return "LF";
-                    case Ascii.CR: return "CR";
-                    case Ascii.HT: return "HT";
-                    case Ascii.VT: return "VT";
-                    case Ascii.BS: return "BS";
-                    default: return "UK";
-                }
+        }
+        
+        public void perform(TerminalModel model) {
+            if (DEBUG) {
+                Log.warn("Processing special char \"" + description + "\"");
             }
-        });
+            model.processSpecialCharacter(ch);
+        }
+        
+        @Override public String toString() {
+            return "TerminalAction[Special char " + description + "]";
+        }
     }
     
-    public synchronized void processEscape() {
+    /**
+     * Called by the EscapeParser for each complete escape sequence.
+     */
+    public synchronized void processEscape(TerminalAction action) {
         if (DEBUG) {
-            Log.warn("Processing escape sequence \"" + StringUtilities.escapeForJava(escapeParser.toString()) + "\"");
+            Log.warn("Processing escape sequence " + action);
         }
         
         // Invoke all escape sequence handling in the AWT dispatch thread - otherwise we'd have
         // to create billions upon billions of tiny little invokeLater(Runnable) things all over the place.
         doStep();
-        TerminalAction action = escapeParser.getAction(this);
-        if (action != null) {
-            terminalActions.add(action);
-        }
+        commandQueue.addAction(action);
     }
     
     private char translateToCharacterSet(char ch) {
@@ -592,18 +653,30 @@ public class TerminalControl {
     }
     
     public void sendUtf8String(final String s) {
-        writerExecutor.execute(new Runnable() {
-            public void run() {
-                try {
-                    if (processIsRunning) {
-                        out.write(s.getBytes(CHARSET_NAME));
-                        out.flush();
-                    }
-                } catch (IOException ex) {
-                    reportFailedSend("string", s, ex);
-                }
-            }
-        });
+        if (ptyRegistration == null) {
+            // There's no process (because we're showing a log, say), so there's nothing to send to.
+            return;
+        }
+        try {
+            // This doesn't wait: anything the pty hasn't room for yet is written later by the PtyMultiplexer.
+            ptyRegistration.write(s.getBytes(CHARSET_NAME));
+        } catch (IOException ex) {
+            reportFailedSend("string", s, ex);
+        }
+    }
+    
+    /**
+     * Notes that the next string sent is the result of the given key event, so we can measure how long it takes to be echoed (see KeystrokeLatency).
+     */
+    public void keystrokeWillBeSent(long eventTime_ms) {
+        keystrokeLatency.keystroke(eventTime_ms);
+    }
+    
+    /**
+     * Called by the view each time it's painted.
+     */
+    public void viewPainted() {
+        keystrokeLatency.painted();
     }
     
     public void sendSGR(int code, Location l, char m) {
@@ -633,7 +706,11 @@ public class TerminalControl {
         changeListeners.remove(l);
     }
     
-    private void fireChangeListeners() {
+    /**
+     * Called by the model each time it updates the view.
+     */
+    public void fireChangeListeners() {
+        keystrokeLatency.viewUpdated();
         for (ChangeListener l : changeListeners) {
             l.stateChanged(null);
         }
@@ -0,0 +1,149 @@
+package terminator.terminal;
+
+import java.nio.*;
+import org.jessies.test.*;
+
+/**
+ * Decodes UTF-8 straight from the bytes we read from the pty into the chars the EscapeParser wants.
+ *
+ * Unlike an InputStreamReader, we don't need a stream to pull from, and we don't need to copy the bytes first.
+ * A sequence split across two reads is kept until the rest arrives.
+ * Malformed input (including overlong forms and encoded surrogates) becomes U+FFFD, one per bad sequence, without swallowing whatever interrupted it.
+ * Most terminal output is ASCII, so we check eight bytes at a time for the high bit, and handle runs of ASCII without looking at them individually.
+ */
+class Utf8Decoder {
+    private static final char REPLACEMENT_CHARACTER = '\ufffd';
+    private static final long HIGH_BITS = 0x8080808080808080L;
+    
+    // The state of the sequence we're part way through, if any.
+    private int codePoint;
+    private int continuationBytesNeeded = 0;
+    // The smallest code point that the current sequence's length can legitimately encode.
+    private int minimumCodePoint;
+    
+    /**
+     * Returns the size of char[] that's always large enough for decode to write to, given 'byteCount' bytes.
+     */
+    static int maxCharCount(int byteCount) {
+        // A four-byte sequence becomes two chars, so if we've got the first three bytes already, the last byte alone is worth two chars.
+        return byteCount + 1;
+    }
+    
+    /**
+     * Decodes the bytes between the buffer's position and its limit into 'chars', starting at index 0.
+     * Returns the number of chars written. The buffer's position is left at its limit.
+     * 'chars' must have room for at least maxCharCount(buffer.remaining()) chars.
+     */
+    int decode(ByteBuffer buffer, char[] chars) {
+        int position = buffer.position();
+        final int limit = buffer.limit();
+        int charCount = 0;
+        while (position < limit) {
+            if (continuationBytesNeeded == 0) {
+                // The fast path: eight ASCII bytes at a time...
+                while (position + 8 <= limit && (buffer.getLong(position) & HIGH_BITS) == 0) {
+                    for (int i = 0; i < 8; ++i) {
+                        chars[charCount++] = (char) buffer.get(position++);
+                    }
+                }
+                // ...and then one at a time.
+                int b = (position < limit) ? buffer.get(position) : -1;
+                while (b >= 0) {
+                    chars[charCount++] = (char) b;
+                    b = (++position < limit) ? buffer.get(position) : -1;
+                }
+                if (position == limit) {
+                    break;
+                }
+                
+                // A lead byte.
+                b &= 0xff;
+                ++position;
+                if (b >= 0xc2 && b <= 0xdf) {
+                    codePoint = b & 0x1f;
+                    continuationBytesNeeded = 1;
+                    minimumCodePoint = 0x80;
+                } else if (b >= 0xe0 && b <= 0xef) {
+                    codePoint = b & 0x0f;
+                    continuationBytesNeeded = 2;
+                    minimumCodePoint = 0x800;
+                } else if (b >= 0xf0 && b <= 0xf4) {
+                    codePoint = b & 0x07;
+                    continuationBytesNeeded = 3;
+                    minimumCodePoint = 0x10000;
+                } else {
+                    // A stray continuation byte, or a byte that never appears in UTF-8.
+                    chars[charCount++] = REPLACEMENT_CHARACTER;
+                }
+            } else {
+                final int b = buffer.get(position) & 0xff;
+                if ((b & 0xc0) != 0x80) {
+                    // The sequence was cut short. Replace what we had, and look at this byte again as a possible lead byte.
+                    chars[charCount++] = REPLACEMENT_CHARACTER;
+                    continuationBytesNeeded = 0;
+                    continue;
+                }
+                ++position;
+                codePoint = (codePoint << 6) | (b & 0x3f);
+                if (--continuationBytesNeeded == 0) {
+                    if (codePoint < minimumCodePoint || codePoint > Character.MAX_CODE_POINT || (codePoint >= Character.MIN_SURROGATE && codePoint <= Character.MAX_SURROGATE)) {
+                        chars[charCount++] = REPLACEMENT_CHARACTER;
+                    } else if (codePoint >= Character.MIN_SUPPLEMENTARY_CODE_POINT) {
+                        chars[charCount++] = Character.highSurrogate(codePoint);
+                        chars[charCount++] = Character.lowSurrogate(codePoint);
+                    } else {
+                        chars[charCount++] = (char) codePoint;
+                    }
+                }
+            }
+        }
+        buffer.position(position);
+        return charCount;
+    }
+    
+    private static String decodeForTest(Utf8Decoder decoder, int... bytes) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(bytes.length);
+        for (int b : bytes) {
+            buffer.put((byte) b);
+        }
+        buffer.flip();
+        char[] chars = new char[maxCharCount(bytes.length)];
+        return new String(chars, 0, decoder.decode(buffer, chars));
+    }
+    
+    private static String decodeForTest(int... bytes) {
+        return decodeForTest(new Utf8Decoder(), bytes);
+    }
+    
+    @Test private static void testAscii() {
+        Assert.equals(decodeForTest(), "");
+        Assert.equals(decodeForTest('h', 'i'), "hi");
+        Assert.equals(decodeForTest('h', 'e', 'l', 'l', 'o', ',', ' ', 'w', 'o', 'r', 'l', 'd', '\n'), "hello, world\n");
+        Assert.equals(decodeForTest(0x1b, '[', 'm', 0x7f), "\u001b[m\u007f");
+    }
+    
+    @Test private static void testMultiByte() {
+        // U+00E9 LATIN SMALL LETTER E WITH ACUTE, U+20AC EURO SIGN, and U+1F600 GRINNING FACE, among ASCII long enough to take the fast path.
+        Assert.equals(decodeForTest('a', 'b', 'c', 'd', 'e', 'f', 'g', 'h', 0xc3, 0xa9, 'x', 0xe2, 0x82, 0xac, 'y', 0xf0, 0x9f, 0x98, 0x80, 'z'), "abcdefgh\u00e9x\u20acy\ud83d\ude00z");
+    }
+    
+    @Test private static void testSplitSequences() {
+        Utf8Decoder decoder = new Utf8Decoder();
+        Assert.equals(decodeForTest(decoder, 'a', 0xf0, 0x9f, 0x98), "a");
+        Assert.equals(decodeForTest(decoder, 0x80, 'b', 0xe2), "\ud83d\ude00b");
+        Assert.equals(decodeForTest(decoder, 0x82), "");
+        Assert.equals(decodeForTest(decoder, 0xac), "\u20ac");
+    }
+    
+    @Test private static void testMalformed() {
+        // Stray continuation bytes, and bytes that are never valid.
+        Assert.equals(decodeForTest('a', 0x80, 'b', 0xc0, 0xff, 'c'), "a\ufffdb\ufffd\ufffdc");
+        // A truncated sequence is one U+FFFD, and the byte that interrupted it isn't lost.
+        Assert.equals(decodeForTest(0xe2, 0x82, 'x'), "\ufffdx");
+        Assert.equals(decodeForTest(0xe2, 0xc3, 0xa9), "\ufffd\u00e9");
+        // Overlong forms, encoded surrogates, and code points beyond U+10FFFF.
+        Assert.equals(decodeForTest(0xe0, 0x80, 0xaf), "\ufffd");
+        Assert.equals(decodeForTest(0xed, 0xa0, 0x80), "\ufffd");
+        Assert.equals(decodeForTest(0xf4, 0x90, 0x80, 0x80), "\ufffd");
+    }
+}
@@ -8,29 +8,68 @@ import terminator.model.*;
 import terminator.terminal.*;
 
 /**
-Parses 'CSI' escape sequences.  Such sequences always have '[' as their first character,
+Performs 'CSI' escape sequences.  Such sequences always have '[' as their first character,
 and then are sometimes followed by a '?' character, then optionally a list of numbers
 separated by ';' characters, followed by the final character which tells us what to do with
 all that stuff.
 
+EscapeParser has already split the sequence up for us, so we get the numbers as an int[].
+
 https://invisible-island.net/xterm/ctlseqs/ctlseqs.html#h2-Functions-using-CSI-_-ordered-by-the-final-character_s_
 
 @author Phil Norman
 */
 
 public class CSIEscapeAction implements TerminalAction {
+    /** The value of a parameter that was omitted, meaning "use the default". */
+    public static final int DEFAULT = -1;
+    
     private TerminalControl control;
-    private String sequence;
+    // The '?' (or '<', '=', or '>') before the parameters, or 0.
+    private char privateMarker;
+    // The (first) intermediate character between the parameters and the final character, or 0.
+    private char intermediate;
+    private int[] parameters;
+    private char finalChar;
     
-    public CSIEscapeAction(TerminalControl control, String sequence) {
+    public CSIEscapeAction(TerminalControl control, char privateMarker, char intermediate, int[] parameters, char finalChar) {
         this.control = control;
-        this.sequence = sequence;
+        this.privateMarker = privateMarker;
+        this.intermediate = intermediate;
+        this.parameters = parameters;
+        this.finalChar = finalChar;
     }
 
     public void perform(TerminalModel model) {
         if (processSequence(model) == false) {
-            Log.warn("Unimplemented escape sequence: \"" + StringUtilities.escapeForJava(sequence) + "\"");
+            Log.warn("Unimplemented escape sequence: \"" + StringUtilities.escapeForJava(getSequence()) + "\"");
+        }
+    }
+    
+    /** Returns the parameter at 'index', or 'defaultValue' if it was omitted. */
+    private int getParameter(int index, int defaultValue) {
+        return (index >= parameters.length || parameters[index] == DEFAULT) ? defaultValue : parameters[index];
+    }
+    
+    /** Reconstructs the sequence (minus the ESC), for diagnostic purposes. */
+    String getSequence() {
+        StringBuilder result = new StringBuilder("[");
+        if (privateMarker != 0) {
+            result.append(privateMarker);
+        }
+        for (int i = 0; i < parameters.length; ++i) {
+            if (i > 0) {
+                result.append(';');
+            }
+            if (parameters[i] != DEFAULT) {
+                result.append(parameters[i]);
+            }
+        }
+        if (intermediate != 0) {
+            result.append(intermediate);
         }
+        result.append(finalChar);
+        return result.toString();
     }
     
     private String getSequenceType(char lastChar) {
@@ -64,89 +103,85 @@ public class CSIEscapeAction implements TerminalAction {
     }
     
     @Override public String toString() {
-        char lastChar = sequence.charAt(sequence.length() - 1);
-        return "CSIEscapeAction[" + getSequenceType(lastChar) + "]";
+        return "CSIEscapeAction[" + getSequenceType(finalChar) + "]";
     }
     
     private boolean processSequence(TerminalModel model) {
-        char lastChar = sequence.charAt(sequence.length() - 1);
-        String midSequence = sequence.substring(1, sequence.length() - 1);
-        switch (lastChar) {
+        switch (finalChar) {
         case 'A':
-            return moveCursor(model, midSequence, 0, -1);
+            return moveCursor(model, 0, -1);
         case 'B':
-            return moveCursor(model, midSequence, 0, 1);
+            return moveCursor(model, 0, 1);
         case 'C':
-            return moveCursor(model, midSequence, 1, 0);
+            return moveCursor(model, 1, 0);
         case 'c':
-            return deviceAttributesRequest(midSequence);
+            return deviceAttributesRequest();
         case 'D':
-            return moveCursor(model, midSequence, -1, 0);
+            return moveCursor(model, -1, 0);
         case 'd':
-            return moveCursorRowTo(model, midSequence);
+            return moveCursorRowTo(model);
         case 'E':
         case 'F':
-            return movePrevNextLine(model, midSequence, lastChar);
+            return movePrevNextLine(model, finalChar);
         case 'G':
         case '`':
-            return moveCursorColumnTo(model, midSequence);
+            return moveCursorColumnTo(model);
         case 'f':
         case 'H':
-            return moveCursorTo(model, midSequence);
+            return moveCursorTo(model);
         case 'K':
-            return killLineContents(model, midSequence);
+            return killLineContents(model);
         case 'J':
-            return eraseInPage(model, midSequence);
+            return eraseInPage(model);
         case 'L':
-            return insertLines(model, midSequence);
+            return insertLines(model);
         case 'M':
-            return deleteLines(model, midSequence);
+            return deleteLines(model);
         case 'P':
-            return deleteCharacters(model, midSequence);
+            return deleteCharacters(model);
         case 'S':
-            return scrollRegion(model, midSequence, true);
+            return scrollRegion(model, true);
         case 'T':
-            return scrollRegion(model, midSequence, false);
+            return scrollRegion(model, false);
         case 'g':
-            return clearTabs(model, midSequence);
+            return clearTabs(model);
         case 'h':
-            return setDecPrivateMode(model, midSequence, true);
+            return setDecPrivateMode(model, true);
         case 'l':
-            return setDecPrivateMode(model, midSequence, false);
+            return setDecPrivateMode(model, false);
         case 'm':
-            return processFontEscape(model, midSequence);
+            return processFontEscape(model);
         case 'n':
-            return processDeviceStatusReport(model, midSequence);
+            return processDeviceStatusReport(model);
         case 'p':
-            if (midSequence.equals("!")) {
+            if (intermediate == '!') {
                 control.reset();
                 return true;
             }
             break;
         case 'q':
-            if (sequence.charAt(sequence.length() - 2) == ' ') {
-                int style = Integer.parseInt(sequence.substring(1, sequence.length() - 2));
-                model.setCursorStyle(style);
+            if (intermediate == ' ') {
+                model.setCursorStyle(getParameter(0, 0));
                 return true;
             } else {
-                Log.warn("unknown CSI q sequence " + StringUtilities.escapeForJava(sequence));
+                Log.warn("unknown CSI q sequence " + StringUtilities.escapeForJava(getSequence()));
             }
             break;
         case 'r':
-            if (midSequence.startsWith("?")) {
-                return restoreDecPrivateModes(midSequence);
+            if (privateMarker == '?') {
+                return restoreDecPrivateModes();
             } else {
-                return setScrollingRegion(model, midSequence);
+                return setScrollingRegion(model);
             }
         case 's':
-            return saveDecPrivateModes(midSequence);
+            return saveDecPrivateModes();
         }
-        Log.warn("unknown CSI sequence " + StringUtilities.escapeForJava(sequence));
+        Log.warn("unknown CSI sequence " + StringUtilities.escapeForJava(getSequence()));
         return false;
     }
     
-    private boolean clearTabs(TerminalModel model, String seq) {
-        int clearType = seq.isEmpty() ? 0 : Integer.parseInt(seq);
+    private boolean clearTabs(TerminalModel model) {
+        int clearType = getParameter(0, 0);
         if (clearType == 0) {
             // Clear horizontal tab at current cursor position.
             model.removeTabAtCursor();
@@ -161,31 +196,32 @@ public class CSIEscapeAction implements TerminalAction {
         }
     }
     
-    private boolean deleteLines(TerminalModel model, String seq) {
-        int count = seq.isEmpty() ? 1 : Integer.parseInt(seq);
+    private boolean deleteLines(TerminalModel model) {
+        int count = getParameter(0, 1);
         for (int i = 0; i < count; i++) {
             model.deleteLine();
         }
         return true;
     }
     
-    private boolean insertLines(TerminalModel model, String seq) {
-        int count = seq.isEmpty() ? 1 : Integer.parseInt(seq);
+    private boolean insertLines(TerminalModel model) {
+        int count = getParameter(0, 1);
         model.insertLines(count);
         return true;
     }
     
-    private boolean scrollRegion(TerminalModel model, String seq, boolean up) {
-        int count = seq.isEmpty() ? 1 : Integer.parseInt(seq);
+    private boolean scrollRegion(TerminalModel model, boolean up) {
+        int count = getParameter(0, 1);
         model.scrollRegion(count, up);
         return true;
     }
     
-    private boolean setDecPrivateMode(TerminalModel model, String seq, boolean value) {
-        boolean isPrivateMode = seq.startsWith("?");
-        String[] modes = (isPrivateMode ? seq.substring(1) : seq).split(";");
-        for (String modeString : modes) {
-            int mode = Integer.parseInt(modeString);
+    private boolean setDecPrivateMode(TerminalModel model, boolean value) {
+        boolean isPrivateMode = (privateMarker == '?');
+        for (int mode : parameters) {
+            if (mode == DEFAULT) {
+                continue;
+            }
             if (isPrivateMode) {
                 switch (mode) {
                 case 3:
@@ -236,7 +272,7 @@ public class CSIEscapeAction implements TerminalAction {
                     model.setBracketedPasteMode(value);
                     break;
                 default:
-                    Log.warn("Unknown private mode " + mode + " in [" + StringUtilities.escapeForJava(seq) + (value ? 'h' : 'l'));
+                    Log.warn("Unknown private mode " + mode + " in " + StringUtilities.escapeForJava(getSequence()));
                 }
             } else {
                 switch (mode) {
@@ -247,35 +283,30 @@ public class CSIEscapeAction implements TerminalAction {
                     control.setAutomaticNewline(value);
                     break;
                 default:
-                    Log.warn("Unknown mode " + mode + " in [" + StringUtilities.escapeForJava(seq) + (value ? 'h' : 'l'));
+                    Log.warn("Unknown mode " + mode + " in " + StringUtilities.escapeForJava(getSequence()));
                 }
             }
         }
         return true;
     }
     
-    private boolean restoreDecPrivateModes(String seq) {
-        Log.warn("Restore DEC private mode values not implemented (CSI " + StringUtilities.escapeForJava(seq) + ")");
+    private boolean restoreDecPrivateModes() {
+        Log.warn("Restore DEC private mode values not implemented (CSI " + StringUtilities.escapeForJava(getSequence()) + ")");
         return false;
     }
     
-    private boolean saveDecPrivateModes(String seq) {
-        Log.warn("Save DEC private mode values not implemented (CSI " + StringUtilities.escapeForJava(seq) + ")");
+    private boolean saveDecPrivateModes() {
+        Log.warn("Save DEC private mode values not implemented (CSI " + StringUtilities.escapeForJava(getSequence()) + ")");
         return false;
     }
     
-    private boolean setScrollingRegion(TerminalModel model, String seq) {
-        int index = seq.indexOf(';');
-        if (index == -1) {
-            model.setScrollingRegion(-1, -1);
-        } else {
-            model.setScrollingRegion(Integer.parseInt(seq.substring(0, index)), Integer.parseInt(seq.substring(index + 1)));
-        }
+    private boolean setScrollingRegion(TerminalModel model) {
+        model.setScrollingRegion(getParameter(0, -1), getParameter(1, -1));
         return true;
     }
     
-    private boolean deviceAttributesRequest(String seq) {
-        if (seq.equals("") || seq.equals("0")) {
+    private boolean deviceAttributesRequest() {
+        if (privateMarker == 0 && getParameter(0, 0) == 0) {
             sendDeviceAttributes(control);
             return true;
         } else {
@@ -287,60 +318,55 @@ public class CSIEscapeAction implements TerminalAction {
         control.sendUtf8String(Ascii.ESC + "[?1;0c");
     }
     
-    private boolean deleteCharacters(TerminalModel model, String seq) {
-        int count = seq.isEmpty() ? 1 : Integer.parseInt(seq);
+    private boolean deleteCharacters(TerminalModel model) {
+        int count = getParameter(0, 1);
         model.deleteCharacters(count);
         return true;
     }
     
-    private boolean killLineContents(TerminalModel model, String seq) {
-        int type = seq.isEmpty() ? 0 : Integer.parseInt(seq);
+    private boolean killLineContents(TerminalModel model) {
+        int type = getParameter(0, 0);
         boolean fromStart = (type >= 1);
         boolean toEnd = (type != 1);
         model.killHorizontally(fromStart, toEnd);
         return true;
     }
     
-    private boolean eraseInPage(TerminalModel model, String seq) {
-        int type = seq.isEmpty() ? 0 : Integer.parseInt(seq);
+    private boolean eraseInPage(TerminalModel model) {
+        int type = getParameter(0, 0);
         boolean fromTop = (type >= 1);
         boolean toBottom = (type != 1);
         model.eraseInPage(fromTop, toBottom);
         return true;
     }
     
-    private boolean movePrevNextLine(TerminalModel model, String seq, char eOrF) {
-        int count = seq.isEmpty() ? 1 : Integer.parseInt(seq);
+    private boolean movePrevNextLine(TerminalModel model, char eOrF) {
+        int count = getParameter(0, 1);
         int line = model.getCursorPosition().getLineIndex();
         line += ((eOrF == 'E') ? 1 : -1) * count;
         model.setCursorPosition(1, line + 1);
         return true;
     }
     
-    private boolean moveCursorRowTo(TerminalModel model, String seq) {
-        model.setCursorPosition(-1, Integer.parseInt(seq));
+    private boolean moveCursorRowTo(TerminalModel model) {
+        model.setCursorPosition(-1, getParameter(0, 1));
         return true;
     }
     
-    private boolean moveCursorColumnTo(TerminalModel model, String seq) {
-        model.setCursorPosition(Integer.parseInt(seq), -1);
+    private boolean moveCursorColumnTo(TerminalModel model) {
+        model.setCursorPosition(getParameter(0, 1), -1);
         return true;
     }
     
-    private boolean moveCursorTo(TerminalModel model, String seq) {
-        int x = 1;
-        int y = 1;
-        int splitIndex = seq.indexOf(';');
-        if (splitIndex != -1) {
-            y = Integer.parseInt(seq.substring(0, splitIndex));
-            x = Integer.parseInt(seq.substring(splitIndex + 1));
-        }
+    private boolean moveCursorTo(TerminalModel model) {
+        int y = getParameter(0, 1);
+        int x = getParameter(1, 1);
         model.setCursorPosition(x, y);
         return true;
     }
     
-    private boolean moveCursor(TerminalModel model, String countString, int xDirection, int yDirection) {
-        int count = countString.isEmpty() ? 1 : Integer.parseInt(countString);
+    private boolean moveCursor(TerminalModel model, int xDirection, int yDirection) {
+        int count = getParameter(0, 1);
         if (xDirection != 0) {
             model.moveCursorHorizontally(xDirection * count);
         }
@@ -350,8 +376,11 @@ public class CSIEscapeAction implements TerminalAction {
         return true;
     }
     
-    private boolean processDeviceStatusReport(TerminalModel model, String sequence) {
-        switch (Integer.parseInt(sequence)) {
+    private boolean processDeviceStatusReport(TerminalModel model) {
+        if (privateMarker != 0) {
+            return false;
+        }
+        switch (getParameter(0, 0)) {
         case 5:
             control.sendUtf8String(Ascii.ESC + "[0n");
             return true;
@@ -366,15 +395,7 @@ public class CSIEscapeAction implements TerminalAction {
         }
     }
     
-    // Returns the next chunk from 'chunks' as an int.
-    // If the next chunk is empty, returns 0.
-    // If there are no more chunks, returns 0.
-    private int nextInt(Iterator<String> chunks) {
-        final String chunk = chunks.hasNext() ? chunks.next() : "";
-        return chunk.isEmpty() ? 0 : Integer.parseInt(chunk);
-    }
-    
-    private boolean processFontEscape(TerminalModel model, String sequence) {
+    private boolean processFontEscape(TerminalModel model) {
         Style oldStyle = model.getStyle();
         // Grab the *raw* foreground and background colours. This preserves their 'null'ness in the
         // case that a style has no explicit fg/bg, and must use the current default. This is important
@@ -382,9 +403,10 @@ public class CSIEscapeAction implements TerminalAction {
         Palettes.Ink foreground = oldStyle.getRawForeground();
         Palettes.Ink background = oldStyle.getRawBackground();
         int attributes = oldStyle.getAttributes();
-        Iterator<String> chunks = Arrays.asList(sequence.split(";")).iterator();
-        while (chunks.hasNext()) {
-            final int attribute = nextInt(chunks);
+        // An omitted parameter means 0, and "CSI m" means "CSI 0 m".
+        int i = 0;
+        do {
+            final int attribute = getParameter(i++, 0);
             switch (attribute) {
             case 0:
                 // Clear all attributes.
@@ -434,21 +456,21 @@ public class CSIEscapeAction implements TerminalAction {
             case 48:
                 // Set background color (256-color or 24-bit).
                 Palettes.Ink newColor = null;
-                final int colorMode = nextInt(chunks);
+                final int colorMode = getParameter(i++, 0);
                 switch (colorMode) {
                 case 5:
                     // 256 color mode, as in xterm.
-                    newColor = Palettes.getInk(nextInt(chunks));
+                    newColor = Palettes.getInk(getParameter(i++, 0));
                     break;
                 case 2:
                     // 24 bit color mode, a konsole extension.
-                    final int red = nextInt(chunks);
-                    final int green = nextInt(chunks);
-                    final int blue = nextInt(chunks);
-                    newColor = Palettes.getFixedInk(new Color(red, green, blue));
+                    final int red = getParameter(i++, 0);
+                    final int green = getParameter(i++, 0);
+                    final int blue = getParameter(i++, 0);
+                    newColor = Palettes.getFixedInk(new Color(red & 0xff, green & 0xff, blue & 0xff));
                     break;
                 default:
-                    Log.warn("Unknown color mode " + colorMode + " for attribute " + attribute + " in [" + StringUtilities.escapeForJava(sequence));
+                    Log.warn("Unknown color mode " + colorMode + " for attribute " + attribute + " in " + StringUtilities.escapeForJava(getSequence()));
                 }
                 if (attribute == 38) {
                     foreground = newColor;
@@ -498,10 +520,10 @@ public class CSIEscapeAction implements TerminalAction {
                 background = Palettes.getInk(attribute - 92);
                 break;
             default:
-                Log.warn("Unknown attribute " + attribute + " in [" + StringUtilities.escapeForJava(sequence));
+                Log.warn("Unknown attribute " + attribute + " in " + StringUtilities.escapeForJava(getSequence()));
                 break;
             }
-        }
+        } while (i < parameters.length);
         model.setStyle(Style.makeStyle(foreground, background, attributes));
         return true;
     }
@@ -1,127 +1,451 @@
 package terminator.terminal.escape;
 
 import java.util.*;
-import e.util.*;
+import org.jessies.test.*;
 import terminator.terminal.*;
 
 /**
-
-Stuff we're unsure about:
-G - process graphics.
-
-@author Phil Norman
-*/
-
+ * Splits the output of the child process into plain text, control characters, and escape sequences.
+ *
+ * This is the DEC/ANSI parser state machine described by Paul Williams at https://vt100.net/emu/dec_ansi_parser, driven by a table built once at class initialization.
+ * We work on the characters in place, and keep the state of the current escape sequence in reusable fields (with the parameters as an int[]), so parsing itself doesn't allocate.
+ * The only objects we create are the TerminalActions for complete escape sequences, which need to outlive us because they're performed later, on the event dispatch thread.
+ *
+ * Characters from U+00A0 upwards are always text (or part of an OSC or DCS string); we never see bytes, because the input has already been decoded.
+ * The C1 controls, U+0080 to U+009F, are only controls in 8-bit mode (see setEightBitControls).
+ * In UTF-8, a program can only send one by encoding it as two bytes, and xterm doesn't act on them then either, so by default we ignore them completely.
+ *
+ * @author Phil Norman
+ */
 public class EscapeParser {
-    private boolean isComplete = false;
-    private String sequence = "";
-
-    private SequenceRecognizer seqRecognizer;
+    // States.
+    private static final int GROUND = 0;
+    private static final int ESCAPE = 1;
+    private static final int ESCAPE_INTERMEDIATE = 2;
+    private static final int CSI_ENTRY = 3;
+    private static final int CSI_PARAM = 4;
+    private static final int CSI_INTERMEDIATE = 5;
+    private static final int CSI_IGNORE = 6;
+    private static final int DCS_ENTRY = 7;
+    private static final int DCS_PARAM = 8;
+    private static final int DCS_INTERMEDIATE = 9;
+    private static final int DCS_PASSTHROUGH = 10;
+    private static final int DCS_IGNORE = 11;
+    private static final int OSC_STRING = 12;
+    private static final int SOS_PM_APC_STRING = 13;
+    private static final int STATE_COUNT = 14;
+    // Not a state: used in the table to mean "perform the action, but don't leave the current state (so don't perform any exit or entry actions either)".
+    private static final int SAME = 15;
     
-    private static final HashMap<Character, SequenceRecognizer> SEQ_RECOGNIZERS = new HashMap<>();
+    // Actions.
+    private static final int NONE = 0;
+    private static final int PRINT = 1;
+    private static final int EXECUTE = 2;
+    private static final int COLLECT = 3;
+    private static final int PARAM = 4;
+    private static final int ESC_DISPATCH = 5;
+    private static final int CSI_DISPATCH = 6;
+    private static final int PUT = 7;
+    private static final int OSC_PUT = 8;
+
+    // TRANSITIONS[state][ch] for ch < TABLE_SIZE is (action << 4) | nextState.
+    // Entry and exit actions (clear, hook, unhook, osc_start, and osc_end) are implied by the states, and performed by enterState and exitState.
+    private static final int TABLE_SIZE = 0xa0;
+    private static final byte[][] TRANSITIONS = new byte[STATE_COUNT][TABLE_SIZE];
     static {
-        addSequenceRecognizers("6789=>DEHMZcno", new SingleCharSequenceRecognizer());
-        addSequenceRecognizers("#()*+$@", new TwoCharSequenceRecognizer());
-        addSequenceRecognizers("[", new CSISequenceRecognizer());
-        addSequenceRecognizers("]", new XTermSequenceRecognizer());
+        for (int state = 0; state < STATE_COUNT; ++state) {
+            // By default, C0 controls are executed, and everything else is ignored.
+            transition(state, 0x00, 0x7f, NONE, SAME);
+            transitionC0(state, EXECUTE, SAME);
+            // The "anywhere" transitions (the C1 ones only apply in 8-bit mode).
+            transition(state, 0x18, 0x18, EXECUTE, GROUND);
+            transition(state, 0x1a, 0x1a, EXECUTE, GROUND);
+            transition(state, 0x1b, 0x1b, NONE, ESCAPE);
+            transition(state, 0x80, 0x8f, EXECUTE, GROUND);
+            transition(state, 0x90, 0x90, NONE, DCS_ENTRY);
+            transition(state, 0x91, 0x97, EXECUTE, GROUND);
+            transition(state, 0x98, 0x98, NONE, SOS_PM_APC_STRING);
+            transition(state, 0x99, 0x9a, EXECUTE, GROUND);
+            transition(state, 0x9b, 0x9b, NONE, CSI_ENTRY);
+            transition(state, 0x9c, 0x9c, NONE, GROUND);
+            transition(state, 0x9d, 0x9d, NONE, OSC_STRING);
+            transition(state, 0x9e, 0x9f, NONE, SOS_PM_APC_STRING);
+        }
+        
+        transition(GROUND, 0x20, 0x7e, PRINT, SAME);
+        
+        transition(ESCAPE, 0x20, 0x2f, COLLECT, ESCAPE_INTERMEDIATE);
+        transition(ESCAPE, 0x30, 0x7e, ESC_DISPATCH, GROUND);
+        transition(ESCAPE, 0x50, 0x50, NONE, DCS_ENTRY);
+        transition(ESCAPE, 0x58, 0x58, NONE, SOS_PM_APC_STRING);
+        transition(ESCAPE, 0x5b, 0x5b, NONE, CSI_ENTRY);
+        transition(ESCAPE, 0x5d, 0x5d, NONE, OSC_STRING);
+        transition(ESCAPE, 0x5e, 0x5f, NONE, SOS_PM_APC_STRING);
+        
+        transition(ESCAPE_INTERMEDIATE, 0x20, 0x2f, COLLECT, SAME);
+        transition(ESCAPE_INTERMEDIATE, 0x30, 0x7e, ESC_DISPATCH, GROUND);
+        
+        transition(CSI_ENTRY, 0x20, 0x2f, COLLECT, CSI_INTERMEDIATE);
+        transition(CSI_ENTRY, 0x30, 0x39, PARAM, CSI_PARAM);
+        transition(CSI_ENTRY, 0x3a, 0x3a, NONE, CSI_IGNORE);
+        transition(CSI_ENTRY, 0x3b, 0x3b, PARAM, CSI_PARAM);
+        transition(CSI_ENTRY, 0x3c, 0x3f, COLLECT, CSI_PARAM);
+        transition(CSI_ENTRY, 0x40, 0x7e, CSI_DISPATCH, GROUND);
+        
+        transition(CSI_PARAM, 0x20, 0x2f, COLLECT, CSI_INTERMEDIATE);
+        transition(CSI_PARAM, 0x30, 0x39, PARAM, SAME);
+        transition(CSI_PARAM, 0x3a, 0x3a, NONE, CSI_IGNORE);
+        transition(CSI_PARAM, 0x3b, 0x3b, PARAM, SAME);
+        transition(CSI_PARAM, 0x3c, 0x3f, NONE, CSI_IGNORE);
+        transition(CSI_PARAM, 0x40, 0x7e, CSI_DISPATCH, GROUND);
+        
+        transition(CSI_INTERMEDIATE, 0x20, 0x2f, COLLECT, SAME);
+        transition(CSI_INTERMEDIATE, 0x30, 0x3f, NONE, CSI_IGNORE);
+        transition(CSI_INTERMEDIATE, 0x40, 0x7e, CSI_DISPATCH, GROUND);
+        
+        transition(CSI_IGNORE, 0x40, 0x7e, NONE, GROUND);
+        
+        // We don't support any DCS sequences, so we only parse them to know where they end.
+        transitionC0(DCS_ENTRY, NONE, SAME);
+        transition(DCS_ENTRY, 0x20, 0x2f, COLLECT, DCS_INTERMEDIATE);
+        transition(DCS_ENTRY, 0x30, 0x39, PARAM, DCS_PARAM);
+        transition(DCS_ENTRY, 0x3a, 0x3a, NONE, DCS_IGNORE);
+        transition(DCS_ENTRY, 0x3b, 0x3b, PARAM, DCS_PARAM);
+        transition(DCS_ENTRY, 0x3c, 0x3f, COLLECT, DCS_PARAM);
+        transition(DCS_ENTRY, 0x40, 0x7e, NONE, DCS_PASSTHROUGH);
+        
+        transitionC0(DCS_PARAM, NONE, SAME);
+        transition(DCS_PARAM, 0x20, 0x2f, COLLECT, DCS_INTERMEDIATE);
+        transition(DCS_PARAM, 0x30, 0x39, PARAM, SAME);
+        transition(DCS_PARAM, 0x3a, 0x3a, NONE, DCS_IGNORE);
+        transition(DCS_PARAM, 0x3b, 0x3b, PARAM, SAME);
+        transition(DCS_PARAM, 0x3c, 0x3f, NONE, DCS_IGNORE);
+        transition(DCS_PARAM, 0x40, 0x7e, NONE, DCS_PASSTHROUGH);
+        
+        transitionC0(DCS_INTERMEDIATE, NONE, SAME);
+        transition(DCS_INTERMEDIATE, 0x20, 0x2f, COLLECT, SAME);
+        transition(DCS_INTERMEDIATE, 0x30, 0x3f, NONE, DCS_IGNORE);
+        transition(DCS_INTERMEDIATE, 0x40, 0x7e, NONE, DCS_PASSTHROUGH);
+        
+        transitionC0(DCS_PASSTHROUGH, PUT, SAME);
+        transition(DCS_PASSTHROUGH, 0x20, 0x7e, PUT, SAME);
+        
+        transitionC0(DCS_IGNORE, NONE, SAME);
+        
+        transitionC0(OSC_STRING, NONE, SAME);
+        transition(OSC_STRING, 0x20, 0x7f, OSC_PUT, SAME);
+        // xterm also accepts BEL as the terminator of an OSC string, and it's what everyone actually sends.
+        transition(OSC_STRING, 0x07, 0x07, NONE, GROUND);
+        
+        transitionC0(SOS_PM_APC_STRING, NONE, SAME);
     }
-    private static void addSequenceRecognizers(String chars, SequenceRecognizer recognizer) {
-        for (int i = 0; i < chars.length(); i++) {
-            SEQ_RECOGNIZERS.put(chars.charAt(i), recognizer);
+    
+    private static void transition(int state, int first, int last, int action, int nextState) {
+        for (int ch = first; ch <= last; ++ch) {
+            TRANSITIONS[state][ch] = (byte) ((action << 4) | nextState);
         }
     }
     
-    public void addChar(char ch) {
-        sequence += ch;
-        if (sequence.length() == 1) {
-            seqRecognizer = SEQ_RECOGNIZERS.get(ch);
-            if (seqRecognizer == null) {
-                Log.warn("No SequenceRecognizer for ESC '" + ch + "'");
+    /** Sets the transition for the C0 controls that aren't "anywhere" transitions. */
+    private static void transitionC0(int state, int action, int nextState) {
+        transition(state, 0x00, 0x17, action, nextState);
+        transition(state, 0x19, 0x19, action, nextState);
+        transition(state, 0x1c, 0x1f, action, nextState);
+    }
+    
+    // Beyond this, parameters are ignored. xterm allows 30.
+    private static final int MAX_PARAMETER_COUNT = 32;
+    // Parameter values saturate here rather than overflowing.
+    private static final int MAX_PARAMETER_VALUE = 65535;
+    // An OSC string longer than this is truncated. That's far more than we need for a window title.
+    private static final int MAX_OSC_LENGTH = 4096;
+    
+    private final TerminalControl control;
+    
+    private int state = GROUND;
+    private boolean eightBitControls = false;
+    
+    // The escape sequence collected so far.
+    // See CSIEscapeAction.DEFAULT for the meaning of an omitted parameter.
+    private final int[] parameters = new int[MAX_PARAMETER_COUNT];
+    private int parameterCount;
+    private char privateMarker;
+    private char intermediate;
+    private int intermediateCount;
+    private final StringBuilder oscString = new StringBuilder();
+    
+    public EscapeParser(TerminalControl control) {
+        this.control = control;
+    }
+    
+    /**
+     * Sets whether U+0080 to U+009F are C1 controls (as the bytes 0x80 to 0x9f would be in an 8-bit character set), rather than being ignored.
+     */
+    public void setEightBitControls(boolean eightBitControls) {
+        this.eightBitControls = eightBitControls;
+    }
+    
+    /** Parses the given characters, continuing from wherever the previous call left off. */
+    public void process(char[] chars, int offset, int length) {
+        final int end = offset + length;
+        for (int i = offset; i < end; ++i) {
+            char ch = chars[i];
+            if (state == GROUND && ch >= ' ' && ch != 0x7f && (ch < 0x80 || ch >= TABLE_SIZE)) {
+                // Plain text is by far the most common case, so we hand over as much as we can at once.
+                int runEnd = i + 1;
+                while (runEnd < end && isText(chars[runEnd])) {
+                    ++runEnd;
+                }
+                control.processText(chars, i, runEnd);
+                i = runEnd - 1;
+                continue;
+            }
+            if (ch >= TABLE_SIZE) {
+                // Non-ASCII text is either part of a string or ignored.
+                if (state == OSC_STRING) {
+                    putOsc(ch);
+                }
+                continue;
+            }
+            if (ch >= 0x80 && eightBitControls == false) {
+                // A C1 control, but we're not in 8-bit mode, so it's neither a control nor text.
+                continue;
             }
+            final int transition = TRANSITIONS[state][ch];
+            final int action = (transition >> 4) & 0xf;
+            final int nextState = transition & 0xf;
+            if (nextState != SAME) {
+                exitState();
+            }
+            performAction(action, chars, i);
+            if (nextState != SAME) {
+                state = nextState;
+                enterState();
+            }
+        }
+    }
+    
+    private static boolean isText(char ch) {
+        return (ch >= ' ' && ch < 0x7f) || ch >= TABLE_SIZE;
+    }
+    
+    private void performAction(int action, char[] chars, int index) {
+        final char ch = chars[index];
+        switch (action) {
+        case NONE:
+        case PUT:
+            return;
+        case PRINT:
+            // In practice, the loop in process handles all text before we get here.
+            control.processText(chars, index, index + 1);
+            return;
+        case EXECUTE:
+            control.processControlCharacter(ch);
+            return;
+        case COLLECT:
+            collect(ch);
+            return;
+        case PARAM:
+            param(ch);
+            return;
+        case ESC_DISPATCH:
+            escDispatch(ch);
+            return;
+        case CSI_DISPATCH:
+            control.processEscape(new CSIEscapeAction(control, privateMarker, intermediate, Arrays.copyOf(parameters, parameterCount), ch));
+            return;
+        case OSC_PUT:
+            putOsc(ch);
+            return;
         }
-        isComplete = (seqRecognizer == null) ? true : seqRecognizer.isAtEnd(sequence);
     }
     
-    public boolean isComplete() {
-        return isComplete;
+    private void enterState() {
+        switch (state) {
+        case ESCAPE:
+        case CSI_ENTRY:
+        case DCS_ENTRY:
+            clear();
+            break;
+        case OSC_STRING:
+            oscString.setLength(0);
+            break;
+        }
     }
     
-    public TerminalAction getAction(TerminalControl terminalControl) {
-        //Log.warn("Getting action for ESC sequence \"" + StringUtilities.escapeForJava(sequence) + "\"");
-        return (seqRecognizer == null) ? null : seqRecognizer.getTerminalAction(terminalControl, sequence);
+    private void exitState() {
+        if (state == OSC_STRING) {
+            control.processEscape(new XTermEscapeAction(control, oscString.toString()));
+        }
     }
     
-    @Override public String toString() {
-        return sequence;
+    private void clear() {
+        parameterCount = 0;
+        privateMarker = 0;
+        intermediate = 0;
+        intermediateCount = 0;
     }
     
-    private interface SequenceRecognizer {
-        public boolean isAtEnd(String sequence);
-        public TerminalAction getTerminalAction(TerminalControl terminalControl, String sequence);
+    private void collect(char ch) {
+        if (ch >= 0x3c) {
+            privateMarker = ch;
+        } else if (intermediateCount++ == 0) {
+            intermediate = ch;
+        }
     }
     
-    private static class SingleCharSequenceRecognizer implements SequenceRecognizer {
-        public boolean isAtEnd(String sequence) {
-            return (sequence.length() == 1);
+    private void param(char ch) {
+        if (parameterCount == 0) {
+            parameters[0] = CSIEscapeAction.DEFAULT;
+            parameterCount = 1;
         }
-        
-        public TerminalAction getTerminalAction(TerminalControl terminalControl, String sequence) {
-            return new SingleCharEscapeAction(terminalControl, sequence.charAt(0));
+        if (ch == ';') {
+            if (parameterCount < MAX_PARAMETER_COUNT) {
+                parameters[parameterCount++] = CSIEscapeAction.DEFAULT;
+            }
+            return;
         }
+        int value = parameters[parameterCount - 1];
+        value = (value == CSIEscapeAction.DEFAULT) ? 0 : value;
+        parameters[parameterCount - 1] = Math.min(value * 10 + (ch - '0'), MAX_PARAMETER_VALUE);
     }
     
-    private static class TwoCharSequenceRecognizer implements SequenceRecognizer {
-        public boolean isAtEnd(String sequence) {
-            return (sequence.length() == 2);
+    private void escDispatch(char ch) {
+        if (intermediateCount == 0) {
+            if (ch == '\\') {
+                // ST, which terminates strings we've already finished with.
+                return;
+            }
+            control.processEscape(new SingleCharEscapeAction(control, ch));
+        } else {
+            control.processEscape(new TwoCharEscapeAction(control, intermediate, ch));
         }
-        
-        public TerminalAction getTerminalAction(TerminalControl terminalControl, String sequence) {
-            return new TwoCharEscapeAction(terminalControl, sequence);
+    }
+    
+    private void putOsc(char ch) {
+        if (oscString.length() < MAX_OSC_LENGTH) {
+            oscString.append(ch);
         }
     }
     
-    private static class CSISequenceRecognizer implements SequenceRecognizer {
-        public boolean isAtEnd(String sequence) {
-            // We don't need to check for sequence.length() == 0, since SequenceRecognizers are always
-            // created after the first char has been read.
-            if (sequence.length() == 1) {
-                return false;
+    /**
+     * Records what the parser hands over, as a string, without performing any of it.
+     * Consecutive runs of text are recorded as one, because where text gets split depends on where the buffers end.
+     */
+    private static class TestControl extends TerminalControl {
+        private final StringBuilder events = new StringBuilder();
+        private boolean lastWasText = false;
+        
+        private TestControl() {
+            super(null, null);
+        }
+        
+        @Override public void processText(char[] chars, int start, int end) {
+            if (lastWasText) {
+                events.setLength(events.length() - 2);
+            } else {
+                events.append("text(");
             }
-            char endChar = sequence.charAt(sequence.length() - 1);
-            return (endChar < ' ' || endChar >= '@');
+            events.append(chars, start, end - start).append(") ");
+            lastWasText = true;
         }
         
-        public TerminalAction getTerminalAction(TerminalControl terminalControl, String sequence) {
-            return new CSIEscapeAction(terminalControl, sequence);
+        @Override public void processControlCharacter(char ch) {
+            events.append("control(").append((int) ch).append(") ");
+            lastWasText = false;
+        }
+        
+        @Override public void processEscape(TerminalAction action) {
+            lastWasText = false;
+            if (action instanceof CSIEscapeAction) {
+                events.append("csi(").append(((CSIEscapeAction) action).getSequence()).append(") ");
+            } else {
+                events.append(action).append(' ');
+            }
         }
     }
     
-    private static class XTermSequenceRecognizer implements SequenceRecognizer {
-        private boolean isInInitialNumber = true;
-
-        public boolean isAtEnd(String sequence) {
-            // We don't need to check for sequence.length() == 0, since SequenceRecognizers are always
-            // created after the first char has been read.
-            if (sequence.length() == 1) {
-                return false;
-            }
-            char endChar = sequence.charAt(sequence.length() - 1);
-            if (endChar < ' ') {
-                return true;
-            }
-            if (isInInitialNumber) {
-                if (endChar == ';') {
-                    isInInitialNumber = false;
-                    return false;
-                } else if (Character.isDigit(endChar) == false) {
-                    return true;
-                }
-            }
-            return (endChar < ' ');
+    /** Returns what parsing the given buffers, in turn, hands over. */
+    private static String parse(boolean eightBitControls, String... buffers) {
+        TestControl control = new TestControl();
+        EscapeParser parser = new EscapeParser(control);
+        parser.setEightBitControls(eightBitControls);
+        for (String buffer : buffers) {
+            parser.process(buffer.toCharArray(), 0, buffer.length());
         }
-        
-        public TerminalAction getTerminalAction(TerminalControl terminalControl, String sequence) {
-            return new XTermEscapeAction(terminalControl, sequence);
+        return control.events.toString().trim();
+    }
+    
+    /** Returns what parsing the given string hands over, checking that it's the same however the string is split into buffers. */
+    private static String parse(String s) {
+        final String expected = parse(false, s);
+        for (int split = 1; split < s.length(); ++split) {
+            Assert.equals(parse(false, s.substring(0, split), s.substring(split)), expected);
+        }
+        String[] chars = new String[s.length()];
+        for (int i = 0; i < s.length(); ++i) {
+            chars[i] = s.substring(i, i + 1);
         }
+        Assert.equals(parse(false, chars), expected);
+        return expected;
+    }
+    
+    @Test private static void testText() {
+        Assert.equals(parse("hello, world"), "text(hello, world)");
+        Assert.equals(parse("a\r\nb\u0007"), "text(a) control(13) control(10) text(b) control(7)");
+        Assert.equals(parse("caf\u00e9 \u2603"), "text(caf\u00e9 \u2603)");
+    }
+    
+    @Test private static void testCsi() {
+        Assert.equals(parse("\u001b[H"), "csi([H)");
+        Assert.equals(parse("\u001b[1;31mred"), "csi([1;31m) text(red)");
+        Assert.equals(parse("\u001b[;5H"), "csi([;5H)");
+        Assert.equals(parse("\u001b[?1049h"), "csi([?1049h)");
+        Assert.equals(parse("\u001b[>c"), "csi([>c)");
+        // Intermediates, as in DECSCUSR and DECSTR.
+        Assert.equals(parse("\u001b[2 q"), "csi([2 q)");
+        Assert.equals(parse("\u001b[!p"), "csi([!p)");
+        // Parameters saturate, and there's a limit to how many we keep.
+        Assert.equals(parse("\u001b[99999999A"), "csi([65535A)");
+        Assert.equals(parse("\u001b[" + "1;".repeat(40) + "m").split(";").length, MAX_PARAMETER_COUNT);
+        // Controls within a sequence are performed without disturbing it.
+        Assert.equals(parse("\u001b[1\r2H"), "control(13) csi([12H)");
+        // Malformed sequences are ignored up to and including their final character.
+        Assert.equals(parse("\u001b[1:2mx"), "text(x)");
+        Assert.equals(parse("\u001b[1?2mx"), "text(x)");
+    }
+    
+    @Test private static void testOsc() {
+        Assert.equals(parse("\u001b]0;title\u0007x"), "XTermEscapeAction[0;title] text(x)");
+        Assert.equals(parse("\u001b]2;t\u00eftle\u001b\\x"), "XTermEscapeAction[2;t\\u00eftle] text(x)");
+        // Other controls within the string are ignored.
+        Assert.equals(parse("\u001b]0;a\rb\u0007"), "XTermEscapeAction[0;ab]");
+    }
+    
+    @Test private static void testEscape() {
+        Assert.equals(parse("\u001b7x\u001b8"), "SingleCharEscapeAction[Save cursor] text(x) SingleCharEscapeAction[Restore cursor]");
+        Assert.equals(parse("\u001b(0"), "TwoCharEscapeAction[Set character set at index 0 to 0]");
+        // We don't support DCS, but we know where it ends.
+        Assert.equals(parse("\u001bP1$qm\u001b\\x"), "text(x)");
+    }
+    
+    @Test private static void testCancel() {
+        // CAN and SUB abandon a sequence, and ESC starts a new one.
+        Assert.equals(parse("\u001b[1;2\u0018A"), "control(24) text(A)");
+        Assert.equals(parse("\u001b[1;2\u001aA"), "control(26) text(A)");
+        Assert.equals(parse("\u001b[1;2\u001b[3A"), "csi([3A)");
+        // An OSC string abandoned by CAN is still finished with, as xterm does.
+        Assert.equals(parse("\u001b]0;a\u0018b"), "XTermEscapeAction[0;a] control(24) text(b)");
+    }
+    
+    @Test private static void testC1Controls() {
+        // By default, C1 controls are ignored, and don't interrupt sequences.
+        Assert.equals(parse("a\u009b1mb"), "text(a1mb)");
+        Assert.equals(parse("\u001b[1\u00852m"), "csi([12m)");
+        Assert.equals(parse("\u001b]0;a\u009cb\u0007"), "XTermEscapeAction[0;ab]");
+        // In 8-bit mode, they're controls.
+        Assert.equals(parse(true, "a\u009b1mb"), "text(a) csi([1m) text(b)");
+        Assert.equals(parse(true, "\u009d0;title\u009cx"), "XTermEscapeAction[0;title] text(x)");
+        Assert.equals(parse(true, "\u001b[1\u0085"), "control(133)");
     }
 }
@@ -6,15 +6,17 @@ import terminator.terminal.*;
 
 public class TwoCharEscapeAction implements TerminalAction {
     private TerminalControl control;
-    private String sequence;
+    private char intermediate;
+    private char finalChar;
     
-    public TwoCharEscapeAction(TerminalControl control, String sequence) {
+    public TwoCharEscapeAction(TerminalControl control, char intermediate, char finalChar) {
         this.control = control;
-        this.sequence = sequence;
+        this.intermediate = intermediate;
+        this.finalChar = finalChar;
     }
 
     public void perform(TerminalModel model) {
-        switch (sequence.charAt(0)) {
+        switch (intermediate) {
             case '(':
             case ')':
             case '*':
@@ -24,19 +26,23 @@ public class TwoCharEscapeAction implements TerminalAction {
             case '#':  // rxvt: if second char == '8', scr_E().
             case '$':  // rxvt: scr_charset_set(-2, second char).
             case '@':  // rxvt ignores this completely.
-                Log.warn("Unsupported two-character escape \"" + StringUtilities.escapeForJava(sequence) + "\".");
+                Log.warn("Unsupported two-character escape \"" + StringUtilities.escapeForJava(getSequence()) + "\".");
                 break;
             default:
-                Log.warn("Unrecognized two-character escape \"" + StringUtilities.escapeForJava(sequence) + "\".");
+                Log.warn("Unrecognized two-character escape \"" + StringUtilities.escapeForJava(getSequence()) + "\".");
         }
     }
     
+    private String getSequence() {
+        return String.valueOf(intermediate) + finalChar;
+    }
+    
     private int getCharacterSetIndex() {
-        return "()*+".indexOf(sequence.charAt(0));
+        return "()*+".indexOf(intermediate);
     }
     
     private char getCharacterSet() {
-        return sequence.charAt(1);
+        return finalChar;
     }
     
     @Override public String toString() {
@@ -44,7 +50,7 @@ public class TwoCharEscapeAction implements TerminalAction {
         if (characterSetIndex != -1) {
             return "TwoCharEscapeAction[Set character set at index " + characterSetIndex + " to " + getCharacterSet() + "]";
         } else {
-            return "TwoCharEscapeAction[Unsupported:" + StringUtilities.escapeForJava(sequence) + "]";
+            return "TwoCharEscapeAction[Unsupported:" + StringUtilities.escapeForJava(getSequence()) + "]";
         }
     }
 }
@@ -9,9 +9,8 @@ import terminator.terminal.*;
 /**
  * An XTermEscapeAction performs the action associated with an XTerm OSC (Operating System Command) escape sequence.
  * XTerm escape sequences always start with a ']' character, followed by a number.
- * An optional ';' follows, marking the start of a BEL-terminated string.
- * We strip off the initial ']' and the BEL terminator, if present, in the constructor, since they contain no information.
- * FIXME: this is probably a mistake if we're planning on outputting the sequence in toString, or if we ever support other OSCs.
+ * An optional ';' follows, marking the start of a BEL- or ST-terminated string.
+ * EscapeParser gives us just the part in between (the "Ps;Pt"), since the rest contains no information.
  */
 public class XTermEscapeAction implements TerminalAction {
     private TerminalControl control;
@@ -19,13 +18,7 @@ public class XTermEscapeAction implements TerminalAction {
     
     public XTermEscapeAction(TerminalControl control, String sequence) {
         this.control = control;
-        
-        // Trim off the initial ']', and the terminating BEL character (if present).
-        if (sequence.charAt(sequence.length() - 1) == '\007') {
-            this.sequence = sequence.substring(1, sequence.length() - 1);
-        } else {
-            this.sequence = sequence.substring(1);
-        }
+        this.sequence = sequence;
     }
 
     /**
@@ -0,0 +1,101 @@
+package terminator.view;
+
+import e.util.*;
+import java.awt.event.*;
+import java.util.*;
+import javax.swing.Timer;
+import terminator.model.*;
+
+/**
+ * Limits how often terminals update their views to once per display frame.
+ *
+ * A terminal's model can change many times per frame when a program's producing output faster than we can paint it.
+ * Rather than repaint and scroll after every change, the model tracks what's changed and asks us to have it update the view.
+ * If it's been at least a frame since we last did so, we do it straight away (so interactive echo isn't delayed), otherwise we do it (for all the terminals that asked) at the start of the next frame.
+ * One scheduler is shared by all terminals, so they're all updated together.
+ * (A terminal in a hidden tab doesn't actually update its view until it's shown, which the view tells us about.)
+ *
+ * A HeadlessTerminal has no event dispatch thread (and so no timer); it asks for manual updates, and calls updateNow itself.
+ *
+ * Event dispatch thread only.
+ */
+public class FrameScheduler implements ActionListener {
+    private static final int FRAMES_PER_SECOND = 60;
+    private static final long FRAME_INTERVAL_NS = 1000000000L / FRAMES_PER_SECOND;
+    
+    private static final FrameScheduler INSTANCE = new FrameScheduler();
+    
+    private static final ThroughputCounter framesCounter = ThroughputCounter.get("FrameScheduler terminals updated per frame");
+    
+    private final LinkedHashSet<TerminalModel> pendingModels = new LinkedHashSet<>();
+    private final Timer timer;
+    private long lastFrameTime_ns = System.nanoTime() - FRAME_INTERVAL_NS;
+    private boolean manualUpdates = false;
+    
+    private FrameScheduler() {
+        timer = new Timer(0, this);
+        timer.setRepeats(false);
+    }
+    
+    public static FrameScheduler getInstance() {
+        return INSTANCE;
+    }
+    
+    /**
+     * Arranges for the given model's updateView method to be called, either now or at the start of the next frame.
+     */
+    public void scheduleUpdate(TerminalModel model) {
+        pendingModels.add(model);
+        if (manualUpdates || timer.isRunning()) {
+            // The next frame's already scheduled.
+            return;
+        }
+        final long delay_ns = lastFrameTime_ns + FRAME_INTERVAL_NS - System.nanoTime();
+        if (delay_ns <= 0) {
+            updateViews();
+        } else {
+            // Round up, so we don't wake early and have to go back to sleep.
+            timer.setInitialDelay((int) ((delay_ns + 999999) / 1000000));
+            timer.start();
+        }
+    }
+    
+    /**
+     * Forgets about the given model, which is going away.
+     */
+    public void cancelUpdate(TerminalModel model) {
+        pendingModels.remove(model);
+    }
+    
+    /**
+     * Stops us updating views of our own accord; they'll only be updated by calls to updateNow.
+     */
+    public void setManualUpdates(boolean manualUpdates) {
+        this.manualUpdates = manualUpdates;
+    }
+    
+    /**
+     * Updates all the views waiting to be updated, regardless of when we last did so.
+     */
+    public void updateNow() {
+        updateViews();
+    }
+    
+    public void actionPerformed(ActionEvent e) {
+        updateViews();
+    }
+    
+    private void updateViews() {
+        lastFrameTime_ns = System.nanoTime();
+        final TerminalModel[] models = pendingModels.toArray(new TerminalModel[pendingModels.size()]);
+        pendingModels.clear();
+        for (TerminalModel model : models) {
+            try {
+                model.updateView();
+            } catch (Throwable th) {
+                Log.warn("Couldn't update view for " + model, th);
+            }
+        }
+        framesCounter.add(models.length);
+    }
+}
@@ -2,6 +2,7 @@ package terminator.view;
 
 import java.awt.*;
 import java.awt.event.*;
+import java.io.File;
 import java.util.*;
 import java.util.List;
 import javax.swing.*;
@@ -29,6 +30,10 @@ public class JTerminalPane extends JPanel {
     private boolean wasCreatedAsNewShell;
     private Dimension currentSizeInChars;
     private MenuItemProvider menuItemProvider;
+    // Non-null if we're showing a log rather than running a process (see newLogViewer).
+    private File logFile;
+    private int logLineIndex;
+    private String logQuery;
     
     /**
      * Creates a new terminal with the given name, running the given command.
@@ -88,7 +93,22 @@ public class JTerminalPane extends JPanel {
         return new JTerminalPane(name, workingDirectory, TerminalControl.getDefaultShell(), true);
     }
     
+    /**
+     * Creates a read-only terminal showing the given log, scrolled to the given line (counting from 0), with the words of the query that found it highlighted.
+     */
+    public static JTerminalPane newLogViewer(File logFile, int lineIndex, String query) {
+        JTerminalPane result = new JTerminalPane("Log: " + logFile.getName(), null, null, false);
+        result.logFile = logFile;
+        result.logLineIndex = lineIndex;
+        result.logQuery = query;
+        return result;
+    }
+    
     public JTerminalPane newShellHere() {
+        if (control.getPtyProcess() == null) {
+            // We're showing a log, so there's no "here".
+            return newShell();
+        }
         int fd = control.getPtyProcess().getFd();
         int foregroundPid = Posix.tcgetpgrp(fd);
         if (foregroundPid < 0) {
@@ -170,7 +190,9 @@ public class JTerminalPane extends JPanel {
         try {
             control = new TerminalControl(this, view.getModel());
             view.setTerminalControl(control);
-            control.initProcess(command, workingDirectory);
+            if (command != null) {
+                control.initProcess(command, workingDirectory);
+            }
             initSizeMonitoring();
         } catch (final Throwable th) {
             Log.warn("Couldn't initialize terminal", th);
@@ -263,7 +285,28 @@ public class JTerminalPane extends JPanel {
     public void start(TerminalPaneHost host) {
         this.host = host;
         this.menuItemProvider = host.createMenuItemProvider(this);
-        control.start();
+        if (logFile != null) {
+            control.startReadingLog(logFile, logLineIndex);
+        } else {
+            control.start();
+        }
+    }
+    
+    /**
+     * Scrolls to the given line of a log we're showing, and highlights the words searched for.
+     * Called by the TerminalControl once it's shown the whole log.
+     */
+    public void showLogLine(int lineIndex) {
+        view.scrollToLine(lineIndex);
+        ArrayList<String> patterns = new ArrayList<>();
+        for (String word : logQuery.trim().split("\\s+")) {
+            if (word.isEmpty() == false) {
+                patterns.add(StringUtilities.regularExpressionFromLiteral(word));
+            }
+        }
+        if (patterns.isEmpty() == false) {
+            view.getFindHighlighter().setPattern(view, StringUtilities.join(patterns, "|"), findPanel);
+        }
     }
     
     public void reset() {
@@ -364,6 +407,7 @@ public class JTerminalPane extends JPanel {
                         Log.warn("The constraint about not handling keys that generate KEY_TYPED events in keyPressed was probably violated when handling " + event);
                     }
                 }
+                control.keystrokeWillBeSent(event.getWhen());
                 control.sendUtf8String(sequence);
                 view.userIsTyping();
                 scroll();
@@ -547,6 +591,7 @@ public class JTerminalPane extends JPanel {
             
             String utf8 = getUtf8ForKeyEvent(event);
             if (utf8 != null) {
+                control.keystrokeWillBeSent(event.getWhen());
                 control.sendUtf8String(utf8);
                 view.userIsTyping();
                 scroll();
@@ -747,7 +792,10 @@ public class JTerminalPane extends JPanel {
     
     public void doCloseAction() {
         destroyProcess();
-        control.getTerminalLogWriter().close();
+        if (control.getTerminalLogWriter() != null) {
+            control.getTerminalLogWriter().close();
+        }
+        view.getModel().dispose();
         host.closeTerminalPane(this);
     }
     
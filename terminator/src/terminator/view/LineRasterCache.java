@@ -0,0 +1,97 @@
+package terminator.view;
+
+import e.util.*;
+import java.awt.*;
+import java.util.*;
+import terminator.model.*;
+
+/**
+ * Remembers what each recently-painted line looked like, so that repainting it (when the cursor blinks, or the user scrolls back a little, or some other line changes) is a single image copy rather than a font lookup and glyph layout for every style run.
+ *
+ * A raster is only reused if the line hasn't been modified, and its URL and find highlights, the view's background color (which the terminal can change), and the width and scale it was drawn at are all the same.
+ * The cursor and the selection aren't part of the raster; they're painted over it.
+ * We keep about two screenfuls of rasters, least-recently-painted first out, so the memory we use is proportional to the size of the window rather than the size of the scrollback.
+ */
+class LineRasterCache {
+    private static final int MIN_LINE_COUNT = 64;
+    
+    private static class Raster {
+        private final int modificationCount;
+        private final int urlStart;
+        private final int urlEnd;
+        private final Range[] findResults;
+        private final Color background;
+        private final int width;
+        private final double scale;
+        private final Image image;
+        
+        private Raster(int modificationCount, int urlStart, int urlEnd, Range[] findResults, Color background, int width, double scale, Image image) {
+            this.modificationCount = modificationCount;
+            this.urlStart = urlStart;
+            this.urlEnd = urlEnd;
+            this.findResults = findResults;
+            this.background = background;
+            this.width = width;
+            this.scale = scale;
+            this.image = image;
+        }
+    }
+    
+    private int maxLineCount = MIN_LINE_COUNT;
+    
+    // TextLine doesn't override equals, so this is keyed by identity, which is what we want: a line that's been replaced (by being frozen into the scrollback, say) isn't worth keeping.
+    private final LinkedHashMap<TextLine, Raster> rasters = new LinkedHashMap<TextLine, Raster>(16, 0.75f, true) {
+        @Override protected boolean removeEldestEntry(Map.Entry<TextLine, Raster> eldest) {
+            return size() > maxLineCount;
+        }
+    };
+    
+    /** Sets the number of rows on the display, which decides how many rasters we'll keep. */
+    void setVisibleLineCount(int lineCount) {
+        maxLineCount = Math.max(MIN_LINE_COUNT, 2 * lineCount);
+        if (rasters.size() > maxLineCount) {
+            // The window's been made smaller; this is rare enough that it's not worth keeping any of them.
+            rasters.clear();
+        }
+    }
+    
+    /**
+     * Returns the image of the given line painted with the given highlights on the given background at the given width and scale, or null if we don't have one.
+     */
+    Image get(TextLine line, int urlStart, int urlEnd, Range[] findResults, Color background, int width, double scale) {
+        Raster raster = rasters.get(line);
+        if (raster == null) {
+            return null;
+        }
+        if (raster.modificationCount != line.getModificationCount() || raster.urlStart != urlStart || raster.urlEnd != urlEnd || raster.background.equals(background) == false || raster.width != width || raster.scale != scale || sameRanges(raster.findResults, findResults) == false) {
+            rasters.remove(line);
+            return null;
+        }
+        return raster.image;
+    }
+    
+    void put(TextLine line, int urlStart, int urlEnd, Range[] findResults, Color background, int width, double scale, Image image) {
+        rasters.put(line, new Raster(line.getModificationCount(), urlStart, urlEnd, findResults, background, width, scale, image));
+    }
+    
+    /** Forgets everything, because something that affects every line (such as the font or the colors) has changed. */
+    void clear() {
+        rasters.clear();
+    }
+    
+    // The FindMatchIndex hands out new arrays, so we have to compare the contents.
+    private static boolean sameRanges(Range[] lhs, Range[] rhs) {
+        if (lhs == rhs) {
+            return true;
+        }
+        if (lhs == null || rhs == null || lhs.length != rhs.length) {
+            return false;
+        }
+        for (int i = 0; i < lhs.length; ++i) {
+            if (lhs[i].getStart() != rhs[i].getStart() || lhs[i].getEnd() != rhs[i].getEnd()) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -40,13 +40,20 @@ public class TerminalView extends JComponent implements FocusListener, Scrollabl
     private BirdView birdView;
     private FindBirdsEye birdsEye;
     
-    // Size may be smaller than model's lines. Elements may be null, but should not be empty.
-    // FIXME: this is a mistake:
-    // 1. Lines with matches/URLs are very rare, so we shouldn't waste space on lines with no matches.
-    // 2. We should use List<Range> rather than Range[].
-    // 3. Using null instead of an empty array or list is gross (but any fix for #1 probably fixes this).
-    private final ArrayList<Range[]> urlMatches = new ArrayList<>();
-    private final ArrayList<Range[]> findMatches = new ArrayList<>();
+    // Only lines with matches take any space, which matters because a find covers the whole scrollback.
+    // (URLs are found on demand by the UrlHighlighter.)
+    private final FindMatchIndex findMatches = new FindMatchIndex();
+    
+    private final LineRasterCache lineRasterCache = new LineRasterCache();
+    
+    // True while we're growing to make room for new output; see sizeChanged.
+    private boolean growingForOutput = false;
+    
+    // Pixels that linesScrolled has asked paintComponent to move up by pendingScrollDistance, or null.
+    private Rectangle pendingScrollSource;
+    private int pendingScrollDistance;
+    // The lines that were asked to be repainted after linesScrolled, which need painting even if their pixels are moved.
+    private final BitSet linesToPaintAfterScroll = new BitSet();
     
     // If non-null, the row of this is urlMouseLocation.getLineIndex()
     private Range urlUnderMouse = null;
@@ -76,6 +83,14 @@ public class TerminalView extends JComponent implements FocusListener, Scrollabl
         setOpaque(true);
         optionsDidChange();
         addFocusListener(this);
+        addHierarchyListener(new HierarchyListener() {
+            public void hierarchyChanged(HierarchyEvent e) {
+                if ((e.getChangeFlags() & HierarchyEvent.SHOWING_CHANGED) != 0 && isShowing()) {
+                    // The model doesn't update us while we're hidden; see TerminalModel.updateView.
+                    FrameScheduler.getInstance().scheduleUpdate(model);
+                }
+            }
+        });
         MouseAdapter mouseAdapter = new MouseAdapter() {
             // Used to check whether a drag has actually moved to a new character cell.
             private Location lastLocation;
@@ -175,7 +190,10 @@ public class TerminalView extends JComponent implements FocusListener, Scrollabl
         addMouseWheelListener(mouseAdapter);
         findHighlighter = new FindHighlighter();
         urlHighlighter = new UrlHighlighter();
-        becomeDropTarget();
+        if (GraphicsEnvironment.isHeadless() == false) {
+            // Only the EmulationBenchmark and SessionReplay run us headless, and it has nothing to drop onto.
+            becomeDropTarget();
+        }
         cursorBlinker = new CursorBlinker(this);
         selectionHighlighter = new SelectionHighlighter(this);
         birdsEye = new FindBirdsEye(this);
@@ -200,6 +218,8 @@ public class TerminalView extends JComponent implements FocusListener, Scrollabl
         TerminatorPreferences preferences = Terminator.getPreferences();
         setFont(preferences.getFont(TerminatorPreferences.FONT));
         setBackground(preferences.getColor(TerminatorPreferences.BACKGROUND_COLOR));
+        // The font, colors, or anti-aliasing may have changed, and any of them changes how every line looks.
+        lineRasterCache.clear();
         sizeChanged();
     }
     
@@ -356,8 +376,139 @@ public class TerminalView extends JComponent implements FocusListener, Scrollabl
         revalidate();
     }
     
+    /**
+     * Called by the model when the lines from 'firstLineIndex' (inclusive) to 'endLineIndex' (exclusive) have moved up by 'lineCount' lines since the last update.
+     * Rather than draw the lines that moved again, we move what's already been drawn, the way JViewport does when it scrolls.
+     * The model tells us about the lines that scrolled in (and anything else that changed) with linesChangedFrom straight afterwards.
+     *
+     * We can't move the pixels here: drawing with getGraphics would go straight to the screen, behind the RepaintManager's back, and whatever it later copied from its back buffer would undo the move.
+     * Instead we ask for the whole band to be repainted, and paintComponent moves the pixels within the back buffer before painting anything else.
+     * See canMovePixelsWhenPainting for why what's in the back buffer is what's on the screen.
+     */
+    public void linesScrolled(int firstLineIndex, int endLineIndex, int lineCount) {
+        // Anything that was waiting to be repainted has moved too.
+        Rectangle dirty = getPendingRepaint();
+        
+        // Our highlights are indexed by line, so everything from the first moved line needs finding again.
+        // We don't need to repaint to show them, though: the highlights we've already drawn move with the text.
+        forgetHighlightsFrom(firstLineIndex);
+        findHighlighter.addHighlightsFrom(this, firstLineIndex);
+        
+        final int rowHeight = getCharUnitSize().height;
+        final int top = getInsets().top + firstLineIndex * rowHeight;
+        final int bottom = getInsets().top + endLineIndex * rowHeight;
+        final int dy = lineCount * rowHeight;
+        dirty = dirty.intersection(new Rectangle(0, top, getWidth(), bottom - top));
+        Rectangle visibleRect = getVisibleRect();
+        // We can only move pixels that are on the screen to somewhere else that's on the screen.
+        final int copyTop = Math.max(top, visibleRect.y);
+        final int copyBottom = Math.min(bottom - dy, visibleRect.y + visibleRect.height - dy);
+        // Two moves before a paint would need to be done in order, which isn't worth the trouble.
+        if (copyTop >= copyBottom || pendingScrollSource != null || canMovePixelsWhenPainting() == false) {
+            pendingScrollSource = null;
+            repaint(0, top, getWidth(), bottom - top);
+            return;
+        }
+        pendingScrollSource = new Rectangle(visibleRect.x, copyTop + dy, visibleRect.width, copyBottom - copyTop);
+        pendingScrollDistance = dy;
+        linesToPaintAfterScroll.clear();
+        // This doesn't go through our repaint, because only the moved pixels need copying to the screen, not painting.
+        super.repaint(0, visibleRect.x, copyTop, visibleRect.width, copyBottom - copyTop);
+        // Anything we couldn't move needs drawing in its new place.
+        repaint(0, top, getWidth(), copyTop - top);
+        repaint(0, copyBottom, getWidth(), bottom - copyBottom);
+        // So does anything that was out of date, and so do the cursor and the underline of the URL under the mouse, which aren't part of the text.
+        if (dirty.isEmpty() == false) {
+            repaint(dirty.x, dirty.y - dy, dirty.width, dirty.height);
+        }
+        repaintMovedLine(cursorPosition.getLineIndex(), firstLineIndex, endLineIndex, lineCount);
+        if (urlMouseLocation.getLineIndex() >= firstLineIndex) {
+            if (urlUnderMouse != null) {
+                repaintMovedLine(urlMouseLocation.getLineIndex(), firstLineIndex, endLineIndex, lineCount);
+            }
+            urlUnderMouse = getUrlForLocation(urlMouseLocation);
+            repaintLine(urlMouseLocation.getLineIndex());
+        }
+    }
+    
+    /**
+     * Returns true if paintComponent can move pixels that we painted in an earlier frame, because they'll still be in the Graphics it's given.
+     * That's the case when Swing gives each window a back buffer of its own (with a BufferStrategy whose contents are copied, not flipped, to the screen), as it does by default.
+     * The back buffer then always holds what's on the screen, and painting only replaces the part that was asked to be repainted.
+     * JViewport relies on the same thing when it scrolls.
+     * Our VisualBellViewport tells us (with ancestorPainted) if it's about to paint over us, in which case the pixels are gone.
+     * With any other kind of RepaintManager buffer, what was there before is undefined, so we just repaint.
+     */
+    private boolean canMovePixelsWhenPainting() {
+        if (isShowing() == false || isOpaque() == false || getParent() instanceof VisualBellViewport == false) {
+            return false;
+        }
+        if (RepaintManager.currentManager(this).isDoubleBufferingEnabled() == false) {
+            return false;
+        }
+        Window window = SwingUtilities.getWindowAncestor(this);
+        return window != null && window.getBufferStrategy() != null;
+    }
+    
+    /** Called by our VisualBellViewport before it paints, which means it's painting over pixels we might have been about to move. */
+    void ancestorPainted() {
+        pendingScrollSource = null;
+    }
+    
+    /**
+     * Moves the pixels linesScrolled asked us to, if we can, and returns the rectangle they now occupy, or null.
+     */
+    private Rectangle movePendingScrollPixels(Graphics g, Rectangle clip) {
+        final Rectangle source = pendingScrollSource;
+        pendingScrollSource = null;
+        if (source == null) {
+            return null;
+        }
+        Rectangle destination = new Rectangle(source.x, source.y - pendingScrollDistance, source.width, source.height);
+        // We asked for all of the destination to be repainted, so we expect it to be part of the first paint after linesScrolled.
+        // If it's not, or the truncation watermark (which isn't opaque) is in the way, we just paint everything as usual.
+        if (clip.contains(destination) == false || clip.x + clip.width > TRUNCATION_WATERMARK_BEGIN_X || isPaintingForPrint()) {
+            return null;
+        }
+        g.copyArea(source.x, source.y, source.width, source.height, 0, -pendingScrollDistance);
+        return destination;
+    }
+    
+    /** Repaints where the given line's pixels were moved to by linesScrolled, if they were moved. */
+    private void repaintMovedLine(int lineIndex, int firstLineIndex, int endLineIndex, int lineCount) {
+        if (lineIndex - lineCount >= firstLineIndex && lineIndex < endLineIndex) {
+            repaintLine(lineIndex - lineCount);
+        }
+    }
+    
+    /** Returns the part of us the RepaintManager has yet to repaint, which may be empty. */
+    private Rectangle getPendingRepaint() {
+        RepaintManager repaintManager = RepaintManager.currentManager(this);
+        Rectangle dirty = new Rectangle(repaintManager.getDirtyRegion(this));
+        if (getParent() instanceof JComponent) {
+            JComponent parent = (JComponent) getParent();
+            Rectangle parentDirty = repaintManager.getDirtyRegion(parent);
+            if (parentDirty.isEmpty() == false) {
+                dirty = dirty.union(SwingUtilities.convertRectangle(parent, parentDirty, this));
+            }
+        }
+        return dirty;
+    }
+    
     public void sizeChanged(Dimension oldSizeInChars, Dimension newSizeInChars) {
-        sizeChanged();
+        if (newSizeInChars.width == oldSizeInChars.width && newSizeInChars.height > oldSizeInChars.height) {
+            // New output has added lines at the bottom.
+            // AWT repaints the whole of a lightweight component (and its parent) when it changes size, which would mean redrawing every visible line every frame, and would stop the viewport from blitting when we scroll to follow the output.
+            // None of the lines we already had has moved, though, and the new ones are repainted below, so those repaints can be ignored.
+            growingForOutput = true;
+            try {
+                sizeChanged();
+            } finally {
+                growingForOutput = false;
+            }
+        } else {
+            sizeChanged();
+        }
         redoHighlightsFrom(Math.min(oldSizeInChars.height, newSizeInChars.height));
     }
     
@@ -422,6 +573,10 @@ public class TerminalView extends JComponent implements FocusListener, Scrollabl
         scrollTo(0, 0, 0);
     }
     
+    public void scrollToLine(int lineIndex) {
+        scrollTo(lineIndex, 0, 0);
+    }
+    
     private void scrollTo(final int lineNumber, final int charStart, final int charEnd) {
         Dimension character = getCharUnitSize();
         final int x0 = charStart * character.width;
@@ -578,26 +733,56 @@ public class TerminalView extends JComponent implements FocusListener, Scrollabl
         return new Dimension(width, height);
     }
     
-    public void setUrlMatches(int lineIndex, Range[] matches) {
-        resizeAndSet(urlMatches, lineIndex, matches);
-        if (lineIndex == urlMouseLocation.getLineIndex()) {
-            urlUnderMouse = getUrlForLocation(urlMouseLocation);
+    /**
+     * Replaces the find matches on the given line with the 'rangeCount' start/end pairs in 'bounds' starting at bounds[2 * offset].
+     */
+    public void setFindMatches(int lineIndex, int[] bounds, int offset, int rangeCount) {
+        findMatches.setMatches(lineIndex, bounds, offset, rangeCount);
+        if (rangeCount > 0) {
+            birdView.addMatchingLine(lineIndex);
+        } else {
+            birdView.removeMatchingLine(lineIndex);
         }
+        repaintLine(lineIndex);
     }
     
-    public void setFindMatches(int lineIndex, Range[] matches) {
-        resizeAndSet(findMatches, lineIndex, matches);
-        birdView.addMatchingLine(lineIndex);
+    public int getFindMatchCount() {
+        return findMatches.getMatchCount();
     }
     
-    private static <T> void resizeAndSet(ArrayList<T> list, int index, T element) {
-        if (list.size() <= index) {
-            list.ensureCapacity(index);
-            for (int i = list.size(); i <= index; ++i) {
-                list.add(null);
+    /**
+     * Called by the model when it has discarded the oldest 'lineCount' lines of scrollback.
+     * Everything we know by line index needs to move up to match.
+     */
+    public void linesEvicted(int lineCount) {
+        if (pendingScrollSource != null) {
+            // Every line is about to move, and the pixels linesScrolled wanted to move with them.
+            pendingScrollSource = null;
+            repaint();
+        }
+        urlUnderMouse = null;
+        urlMouseLocation = new Location(0, -1);
+        urlHighlighter.linesEvicted(lineCount);
+        findMatches.linesEvicted(lineCount);
+        findHighlighter.linesEvicted(lineCount);
+        birdView.setValueIsAdjusting(true);
+        try {
+            birdView.clearMatchingLines();
+            for (int i = findMatches.nextMatchingLine(0); i != -1; i = findMatches.nextMatchingLine(i + 1)) {
+                birdView.addMatchingLine(i);
             }
+        } finally {
+            birdView.setValueIsAdjusting(false);
+        }
+        selectionHighlighter.linesEvicted(lineCount);
+        
+        // Keep the user looking at the same text if they're reading the scrollback.
+        JViewport viewport = getViewport();
+        if (viewport != null) {
+            Point position = viewport.getViewPosition();
+            position.y = Math.max(0, position.y - lineCount * getCharUnitSize().height);
+            viewport.setViewPosition(position);
         }
-        list.set(index, element);
     }
     
     public void removeFindMatches() {
@@ -608,36 +793,63 @@ public class TerminalView extends JComponent implements FocusListener, Scrollabl
     
     private void redoHighlightsFrom(int firstLineIndex) {
         removeHighlightsFrom(firstLineIndex);
-        urlHighlighter.addHighlightsFrom(this, firstLineIndex);
+        // The text under the mouse may have become (or stopped being) a URL.
+        if (urlMouseLocation.getLineIndex() >= firstLineIndex) {
+            urlUnderMouse = getUrlForLocation(urlMouseLocation);
+        }
         findHighlighter.addHighlightsFrom(this, firstLineIndex);
     }
     
     public void removeHighlightsFrom(int firstLineIndex) {
+        forgetHighlightsFrom(firstLineIndex);
+        if (firstLineIndex == 0) {
+            repaint();
+        } else {
+            repaintFromLine(firstLineIndex);
+        }
+    }
+    
+    private void forgetHighlightsFrom(int firstLineIndex) {
         if (firstLineIndex == 0) {
             urlUnderMouse = null;
-            urlMatches.clear();
+            urlHighlighter.linesChangedFrom(0);
             findMatches.clear();
             birdView.clearMatchingLines();
-            repaint();
             return;
         }
         
         birdView.setValueIsAdjusting(true);
         try {
-            for (int i = urlMatches.size() - 1; i >= firstLineIndex; --i) {
-                urlMatches.remove(i);
-            }
-            // We use a backwards loop because going forwards results in N array copies if we're removing N lines.
-            for (int i = findMatches.size() - 1; i >= firstLineIndex; --i) {
-                findMatches.remove(i);
+            urlHighlighter.linesChangedFrom(firstLineIndex);
+            for (int i = findMatches.nextMatchingLine(firstLineIndex); i != -1; i = findMatches.nextMatchingLine(i + 1)) {
                 birdView.removeMatchingLine(i);
             }
-            repaintFromLine(firstLineIndex);
+            findMatches.removeFrom(firstLineIndex);
         } finally {
             birdView.setValueIsAdjusting(false);
         }
     }
     
+    /**
+     * Ignores repaints while we're growing for new output; see sizeChanged.
+     * Also notes which lines need painting despite being moved by linesScrolled.
+     */
+    @Override public void repaint(long tm, int x, int y, int width, int height) {
+        if (growingForOutput) {
+            return;
+        }
+        if (pendingScrollSource != null && height > 0) {
+            final int rowHeight = getCharUnitSize().height;
+            final int top = getInsets().top;
+            linesToPaintAfterScroll.set(Math.max(0, (y - top) / rowHeight), Math.max(0, (y + height - top + rowHeight - 1) / rowHeight));
+        }
+        super.repaint(tm, x, y, width, height);
+    }
+    
+    boolean isGrowingForOutput() {
+        return growingForOutput;
+    }
+    
     public BirdView getBirdView() {
         return birdView;
     }
@@ -656,42 +868,35 @@ public class TerminalView extends JComponent implements FocusListener, Scrollabl
     }
     
     /**
-     * Searches from startLine to endLine inclusive, incrementing the
-     * current line by 'direction', looking for a line with a find highlight.
-     * When one is found, we scroll there.
+     * Scrolls to the given line's first find highlight, if it has one.
      */
-    private void findAgain(int startLine, int endLine, int direction) {
-        if (direction != 1 && direction != -1) {
-            throw new IllegalArgumentException("Invalid direction: " + direction);
-        }
-        for (int i = startLine; i != endLine; i += direction) {
-            Range[] matches = matchesForLine(i);
-            if (matches != null) {
-                scrollTo(i, matches[0].getStart(), matches[0].getEnd());
-                birdsEye.setCurrentLineIndex(i);
-                // Highlight the new match in the bird view as well as in the text itself.
-                birdView.repaint();
-                return;
-            }
+    private void goToFindMatch(int lineIndex) {
+        if (lineIndex == -1 || lineIndex >= getModel().getLineCount()) {
+            return;
         }
+        Range[] matches = matchesForLine(lineIndex);
+        scrollTo(lineIndex, matches[0].getStart(), matches[0].getEnd());
+        birdsEye.setCurrentLineIndex(lineIndex);
+        // Highlight the new match in the bird view as well as in the text itself.
+        birdView.repaint();
     }
     
     private Range[] matchesForLine(int i) {
-        return i >= findMatches.size() ? null : findMatches.get(i);
+        return findMatches.getMatches(i);
     }
     
     /**
      * Scrolls the display down to the next highlight of the given class not currently on the display.
      */
     public void findNext() {
-        findAgain(getLastVisibleLine() + 1, getModel().getLineCount() + 1, 1);
+        goToFindMatch(findMatches.nextMatchingLine(getLastVisibleLine() + 1));
     }
     
     /**
      * Scrolls the display up to the next highlight of the given class not currently on the display.
      */
     public void findPrevious() {
-        findAgain(getFirstVisibleLine() - 1, -1, -1);
+        goToFindMatch(findMatches.previousMatchingLine(getFirstVisibleLine() - 1));
     }
     
     public JViewport getViewport() {
@@ -713,10 +918,10 @@ public class TerminalView extends JComponent implements FocusListener, Scrollabl
     private Range getUrlForLocation(Location location) {
         int line = location.getLineIndex();
         int offset = location.getCharOffset();
-        if (line >= urlMatches.size() || urlMatches.get(line) == null) {
+        if (offset < 0) {
             return null;
         }
-        for (Range r : urlMatches.get(line)) {
+        for (Range r : urlHighlighter.getMatches(this, line)) {
             // Optimization: URLs are in order.
             if (r.getStart() > offset) {
                 return null;
@@ -828,8 +1033,17 @@ public class TerminalView extends JComponent implements FocusListener, Scrollabl
             Dimension charUnitSize = getCharUnitSize();
             
             Rectangle rect = g.getClipBounds();
+            // Pixels linesScrolled asked us to move are moved first, before anything can paint over where they came from.
+            final Rectangle moved = movePendingScrollPixels(g, rect);
             g.setColor(getBackground());
-            g.fill(rect);
+            if (moved == null) {
+                g.fill(rect);
+            } else {
+                g.fillRect(rect.x, rect.y, rect.width, moved.y - rect.y);
+                g.fillRect(rect.x, moved.y + moved.height, rect.width, rect.y + rect.height - moved.y - moved.height);
+                g.fillRect(rect.x, moved.y, moved.x - rect.x, moved.height);
+                g.fillRect(moved.x + moved.width, moved.y, rect.x + rect.width - moved.x - moved.width, moved.height);
+            }
             
             // If we're getting close to the right-hand edge, paint the watermark to warn the user that some
             // of their text has been dropped.
@@ -860,10 +1074,26 @@ public class TerminalView extends JComponent implements FocusListener, Scrollabl
             final Location selectionEnd = selectionHighlighter.getEnd();
             final boolean hasSelection = selectionStart != null;
             
+            // Lines are painted from the cache if they can be, which needs them all to be painted to the same right-hand edge.
+            // We use the edge of the visible area, so that small repaints (the cursor blinking, say) find what bigger ones left behind.
+            // Painting the truncation watermark is rare enough that we don't bother with the cache.
+            Rectangle visibleRect = getVisibleRect();
+            final int rasterMaxX = visibleRect.x + visibleRect.width;
+            final boolean useRasterCache = maxX <= rasterMaxX && rasterMaxX > insets.left && rasterMaxX <= TRUNCATION_WATERMARK_BEGIN_X;
+            final double scale = g.getTransform().getScaleX();
+            lineRasterCache.setVisibleLineCount(visibleRect.height / charUnitSize.height + 1);
+            
             for (int i = firstTextLine; i <= lastTextLine; i++) {
-                boolean drawCursor = (shouldShowCursor() && i == cursorPosition.getLineIndex());
-                int x = insets.left;
-                int baseline = insets.top + charUnitSize.height * (i + 1) - metrics.getMaxDescent();
+                final int rowTop = insets.top + charUnitSize.height * i;
+                if (moved != null && rowTop >= moved.y && rowTop + charUnitSize.height <= moved.y + moved.height) {
+                    if (linesToPaintAfterScroll.get(i) == false) {
+                        // This line's pixels have been moved into place, cursor, highlights and all.
+                        continue;
+                    }
+                    g.setColor(getBackground());
+                    g.fillRect(rect.x, rowTop, rect.width, charUnitSize.height);
+                }
+                int baseline = rowTop + charUnitSize.height - metrics.getMaxDescent();
                 TextLine textLine = model.getDisplayTextLine(i);
                 final int length = textLine.length();
                 int urlStart = length;
@@ -873,34 +1103,23 @@ public class TerminalView extends JComponent implements FocusListener, Scrollabl
                     urlEnd = urlUnderMouse.getEnd();
                 }
                 Range[] findResults = matchesForLine(i);
-                int findIndex = -1;
-                int findStart = 0, findEnd = -1;
-                for (int start = 0, end, done; start < length && x < maxX; start = done) {
-                    if (findResults != null && findEnd <= start && ++findIndex < findResults.length) {
-                        findStart = findResults[findIndex].getStart();
-                        findEnd = findResults[findIndex].getEnd();
+                if (useRasterCache) {
+                    final int rasterWidth = rasterMaxX - insets.left;
+                    // Every raster has our background baked into it, and the terminal can change that at any time.
+                    final Color background = getBackground();
+                    Image raster = lineRasterCache.get(textLine, urlStart, urlEnd, findResults, background, rasterWidth, scale);
+                    if (raster == null) {
+                        raster = makeLineRaster(textLine, rowTop, urlStart, urlEnd, findResults, rasterMaxX, scale);
+                        lineRasterCache.put(textLine, urlStart, urlEnd, findResults, background, rasterWidth, scale, raster);
                     }
-                    end = getMinGT(start, findStart, findEnd, urlStart, urlEnd, length);
-                    done = textLine.getRunLimit(start, end);
-                    String text = textLine.getSubstring(start, done);
-                    Style style = textLine.getStyleAt(start);
-                    boolean isUrl = urlStart <= start && start < urlEnd;
-                    boolean isFind = findStart <= start && start < findEnd;
-                    x += paintStyledText(g, metrics, text, style, x, baseline, isUrl, isFind);
-                    if (drawCursor && cursorPosition.charOffsetInRange(start, done)) {
-                        paintCursor(g, textLine.getSubstring(cursorPosition.getCharOffset(), cursorPosition.getCharOffset() + 1), baseline);
-                        drawCursor = false;
-                    }
-                }
-                Color lineBG = textLine.getBackground().get();
-                if (x < maxX && !getBackground().equals(lineBG)) {
-                    // Fill the rest of the line with line's default background
-                    g.setColor(lineBG);
-                    g.fillRect(x, baseline - metrics.getMaxAscent() - metrics.getLeading(), maxX - x, charUnitSize.height);
+                    g.drawImage(raster, insets.left, rowTop, rasterWidth, charUnitSize.height, null);
+                } else {
+                    paintLineText(g, metrics, textLine, baseline, urlStart, urlEnd, findResults, maxX);
                 }
-                if (drawCursor) {
+                if (shouldShowCursor() && i == cursorPosition.getLineIndex()) {
                     // A cursor at the end of the line is in a position past the end of the text.
-                    paintCursor(g, "", baseline);
+                    final int cursorOffset = cursorPosition.getCharOffset();
+                    paintCursor(g, cursorOffset < length ? textLine.getSubstring(cursorOffset, cursorOffset + 1) : "", baseline);
                 }
                 if (hasSelection && selectionStart.getLineIndex() <= i && i <= selectionEnd.getLineIndex()) {
                     boolean blockMode = selectionHighlighter.isBlockMode();
@@ -918,7 +1137,7 @@ public class TerminalView extends JComponent implements FocusListener, Scrollabl
                     Color selectionColor = Terminator.getPreferences().getColor(TerminatorPreferences.SELECTION_COLOR);
                     g.setColor(new Color(selectionColor.getRed(), selectionColor.getGreen(), selectionColor.getBlue(), 128));
 
-                    x = insets.left + (start == 0 ? 0 : metrics.stringWidth(paddedLine.substring(0, start)));
+                    int x = insets.left + (start == 0 ? 0 : metrics.stringWidth(paddedLine.substring(0, start)));
                     int y = baseline - metrics.getMaxAscent() - metrics.getLeading();
                     int w = toEnd ? maxX - x : metrics.stringWidth(paddedLine.substring(start, end));
                     int h = charUnitSize.height;
@@ -927,7 +1146,68 @@ public class TerminalView extends JComponent implements FocusListener, Scrollabl
                 }
             }
         } finally {
+            linesToPaintAfterScroll.clear();
             timer.stop();
+            if (terminalControl != null) {
+                terminalControl.viewPainted();
+            }
+        }
+    }
+    
+    /**
+     * Paints the given line into a new image 'maxX - insets.left' pixels wide (before scaling), for the LineRasterCache.
+     * The image is opaque, so copying it to the screen is as cheap as it can be.
+     */
+    private Image makeLineRaster(TextLine textLine, int rowTop, int urlStart, int urlEnd, Range[] findResults, int maxX, double scale) {
+        Insets insets = getInsets();
+        final int width = maxX - insets.left;
+        final int height = getCharUnitSize().height;
+        final int deviceWidth = (int) Math.ceil(width * scale);
+        final int deviceHeight = (int) Math.ceil(height * scale);
+        GraphicsConfiguration configuration = getGraphicsConfiguration();
+        BufferedImage image = (configuration != null) ? configuration.createCompatibleImage(deviceWidth, deviceHeight) : new BufferedImage(deviceWidth, deviceHeight, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = image.createGraphics();
+        try {
+            g.scale(scale, scale);
+            g.setColor(getBackground());
+            g.fillRect(0, 0, width, height);
+            g.translate(-insets.left, -rowTop);
+            g.setFont(getFont());
+            GuiUtilities.setTextAntiAliasing(g, Terminator.getPreferences().getBoolean(TerminatorPreferences.ANTI_ALIAS));
+            FontMetrics metrics = getFontMetrics(getFont());
+            paintLineText(g, metrics, textLine, rowTop + height - metrics.getMaxDescent(), urlStart, urlEnd, findResults, maxX);
+        } finally {
+            g.dispose();
+        }
+        return image;
+    }
+    
+    /**
+     * Paints the text of the given line (with its URL and find highlights, but not the cursor or the selection), as far as 'maxX'.
+     */
+    private void paintLineText(Graphics2D g, FontMetrics metrics, TextLine textLine, int baseline, int urlStart, int urlEnd, Range[] findResults, int maxX) {
+        final int length = textLine.length();
+        int x = getInsets().left;
+        int findIndex = -1;
+        int findStart = 0, findEnd = -1;
+        for (int start = 0, end, done; start < length && x < maxX; start = done) {
+            if (findResults != null && findEnd <= start && ++findIndex < findResults.length) {
+                findStart = findResults[findIndex].getStart();
+                findEnd = findResults[findIndex].getEnd();
+            }
+            end = getMinGT(start, findStart, findEnd, urlStart, urlEnd, length);
+            done = textLine.getRunLimit(start, end);
+            String text = textLine.getSubstring(start, done);
+            Style style = textLine.getStyleAt(start);
+            boolean isUrl = urlStart <= start && start < urlEnd;
+            boolean isFind = findStart <= start && start < findEnd;
+            x += paintStyledText(g, metrics, text, style, x, baseline, isUrl, isFind);
+        }
+        Color lineBG = textLine.getBackground().get();
+        if (x < maxX && !getBackground().equals(lineBG)) {
+            // Fill the rest of the line with line's default background
+            g.setColor(lineBG);
+            g.fillRect(x, baseline - metrics.getMaxAscent() - metrics.getLeading(), maxX - x, getCharUnitSize().height);
         }
     }
     
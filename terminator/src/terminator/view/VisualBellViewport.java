@@ -36,6 +36,27 @@ public class VisualBellViewport extends JViewport {
         timer.setRepeats(false);
     }
     
+    @Override
+    public void repaint(long tm, int x, int y, int width, int height) {
+        // AWT asks us to repaint the terminal's old bounds whenever it grows, but growing for new output doesn't move anything.
+        // See TerminalView.sizeChanged.
+        Component view = getView();
+        if (view instanceof TerminalView && ((TerminalView) view).isGrowingForOutput()) {
+            return;
+        }
+        super.repaint(tm, x, y, width, height);
+    }
+    
+    @Override
+    protected void paintComponent(Graphics g) {
+        // We're about to paint over the terminal, so it can't rely on what it painted last time still being there.
+        Component view = getView();
+        if (view instanceof TerminalView) {
+            ((TerminalView) view).ancestorPainted();
+        }
+        super.paintComponent(g);
+    }
+    
     @Override
     protected void paintChildren(Graphics g) {
         super.paintChildren(g);
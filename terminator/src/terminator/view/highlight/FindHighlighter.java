@@ -1,21 +1,35 @@
 package terminator.view.highlight;
 
 import e.util.*;
+import java.awt.EventQueue;
+import java.util.*;
 import java.util.concurrent.*;
 import java.util.regex.*;
-import java.util.ArrayList;
-import javax.swing.*;
 import terminator.model.*;
 import terminator.view.*;
 
 /**
  * Highlights the results of user-initiated finds.
+ *
+ * Searching a large scrollback happens in the background, a segment of lines at a time.
+ * The model belongs to the event dispatch thread, so that's where we copy each segment's text, but the searching is done by a pool of threads (one per core), and their matches are handed back to the event dispatch thread to go in the view's FindMatchIndex.
+ * We start at the bottom, because recent output is the most likely to be what the user's looking for, and we copy only a few segments ahead of the searching threads, so we never hold much text at once.
+ * Changing the pattern cancels the current search straight away.
+ * Lines that change during a search are searched on the event dispatch thread as they change, just as new output is when there's no search in progress.
  */
 public class FindHighlighter {
-    private static final ExecutorService executorService = ThreadUtilities.newSingleThreadExecutor("Background Find");
+    private static final int THREAD_COUNT = Runtime.getRuntime().availableProcessors();
+    private static final ExecutorService executorService = ThreadUtilities.newFixedThreadPool(THREAD_COUNT, "Background Find");
+    
+    private static final int LINES_PER_SEGMENT = 8192;
+    // How many segments we copy ahead of the searching threads.
+    private static final int MAX_SEGMENTS_IN_FLIGHT = 2 * THREAD_COUNT;
+    // How often a searching thread checks whether its search has been cancelled.
+    private static final int LINES_PER_CANCELLATION_CHECK = 256;
     
     private Pattern pattern;
     private String regularExpression = "";
+    private Search search;
     
     public String getName() {
         return "Find Highlighter";
@@ -25,10 +39,10 @@ public class FindHighlighter {
      * Sets the current sought regular expression. Existing highlights will
      * be removed, matches in the current text will be found, and future
      * matches will be found as they appear.
-     * 
+     *
      * 'newRegularExpression' can be "" to cancel match highlighting.
-     * 
-     * Status changes will be reported to 'findStatusDisplay' on the EDT.
+     *
+     * Status changes (including progress) will be reported to 'findStatusDisplay' on the EDT.
      */
     public void setPattern(final TerminalView view, String newRegularExpression, final FindStatusDisplay findStatusDisplay) {
         // Don't waste time re-finding all the current matches.
@@ -54,23 +68,15 @@ public class FindHighlighter {
             return;
         }
         
-        executorService.execute(new SwingWorker<Object, Object>() {
-            private int matchCount;
-            
-            @Override
-            protected Object doInBackground() {
-                matchCount = addHighlightsInternal(view, 0);
-                return null;
-            }
-            
-            @Override
-            protected void done() {
-                findStatusDisplay.setStatus(StringUtilities.pluralize(matchCount, "match", "matches"), false);
-            }
-        });
+        search = new Search(view, pattern, findStatusDisplay);
+        search.copySegments();
     }
     
     public void forgetPattern(TerminalView view) {
+        if (search != null) {
+            search.cancel();
+            search = null;
+        }
         view.removeFindMatches();
         this.pattern = null;
         this.regularExpression = "";
@@ -78,39 +84,221 @@ public class FindHighlighter {
     
     /** Request to add highlights to all lines of the view from the index given onwards. */
     public void addHighlightsFrom(TerminalView view, int firstLineIndex) {
-        addHighlightsInternal(view, firstLineIndex);
+        if (pattern == null) {
+            return;
+        }
+        if (search != null) {
+            // Anything the search finds on these lines would be out of date.
+            search.linesChangedFrom(firstLineIndex);
+        }
+        TerminalModel model = view.getModel();
+        LineMatches matches = new LineMatches();
+        Matcher matcher = pattern.matcher("");
+        for (int i = firstLineIndex; i < model.getLineCount(); ++i) {
+            matches.addLine(i, matcher.reset(model.getDisplayTextLine(i).getString()));
+        }
+        matches.addTo(view, 0, Integer.MAX_VALUE);
+    }
+    
+    /** Called by the view when the model has discarded the oldest 'lineCount' lines, so we can renumber what we're still to find. */
+    public void linesEvicted(int lineCount) {
+        if (search != null) {
+            search.linesEvicted(lineCount);
+        }
     }
 
     /**
-     * Returns the number of highlights added.
+     * The matches in some lines, in the same compact form the FindMatchIndex uses.
      */
-    private int addHighlightsInternal(TerminalView view, int firstLineIndex) {
-        if (pattern == null) {
-            return 0;
+    private static class LineMatches {
+        private int lineCount = 0;
+        private int[] lines = new int[16];
+        private int[] rangeCounts = new int[16];
+        private int rangeCount = 0;
+        private int[] bounds = new int[32];
+        
+        private void addLine(int lineIndex, Matcher matcher) {
+            final int firstRange = rangeCount;
+            while (matcher.find()) {
+                if (2 * rangeCount == bounds.length) {
+                    bounds = Arrays.copyOf(bounds, 2 * bounds.length);
+                }
+                bounds[2 * rangeCount] = matcher.start();
+                bounds[2 * rangeCount + 1] = matcher.end();
+                ++rangeCount;
+            }
+            if (rangeCount > firstRange) {
+                if (lineCount == lines.length) {
+                    lines = Arrays.copyOf(lines, 2 * lineCount);
+                    rangeCounts = Arrays.copyOf(rangeCounts, 2 * lineCount);
+                }
+                lines[lineCount] = lineIndex;
+                rangeCounts[lineCount] = rangeCount - firstRange;
+                ++lineCount;
+            }
         }
-        view.getBirdView().setValueIsAdjusting(true);
-        try {
-            // FIXME: this code is duplicated in UrlHighlighter.addHighlightsFrom.
-            TerminalModel model = view.getModel();
-            int count = 0;
-            // FIXME: this strange scoping avoids allocating an ArrayList for lines without matches, but there must be a cleaner way.
-            final ArrayList<Range> matches = new ArrayList<>();
-            for (int i = model.getLineCount() - 1; i >= firstLineIndex; i--) {
-                String text = model.getDisplayTextLine(i).getString();
-                Matcher matcher = pattern.matcher(text);
-                matches.clear();
-                while (matcher.find()) {
-                    matches.add(new Range(matcher.start(), matcher.end()));
-                    ++count;
+        
+        /**
+         * Adds our matches to the view, after subtracting 'lineIndexShift' from their line indexes.
+         * Lines that end up before 0 or at or after 'firstStaleLineIndex' are ignored.
+         */
+        private void addTo(TerminalView view, int lineIndexShift, int firstStaleLineIndex) {
+            if (lineCount == 0) {
+                return;
+            }
+            view.getBirdView().setValueIsAdjusting(true);
+            try {
+                int firstRange = 0;
+                for (int i = 0; i < lineCount; ++i) {
+                    final int lineIndex = lines[i] - lineIndexShift;
+                    if (lineIndex >= 0 && lineIndex < firstStaleLineIndex) {
+                        view.setFindMatches(lineIndex, bounds, firstRange, rangeCounts[i]);
+                    }
+                    firstRange += rangeCounts[i];
                 }
-                if (!matches.isEmpty()) {
-                    // FIXME: the toArray is a mistake. We should use List<Range> instead.
-                    view.setFindMatches(i, matches.toArray(new Range[matches.size()]));
+            } finally {
+                view.getBirdView().setValueIsAdjusting(false);
+            }
+        }
+    }
+    
+    /**
+     * A background search of the lines that were in the terminal when the pattern was set.
+     * Everything but the searching itself happens on the event dispatch thread.
+     */
+    private static class Search {
+        private final TerminalView view;
+        private final Pattern pattern;
+        private final FindStatusDisplay findStatusDisplay;
+        private volatile boolean cancelled = false;
+        
+        // Lines before this one have yet to be copied.
+        private int nextSegmentEnd;
+        private final int totalLineCount;
+        // Lines searched, or that no longer need to be.
+        private int doneLineCount = 0;
+        private int segmentsInFlight = 0;
+        private boolean copyScheduled = false;
+        
+        // The number of lines evicted since we started; each segment remembers how many had been when it was copied, so we can renumber its matches.
+        private int evictedLineCount = 0;
+        // Lines from this one on have changed since we started, and have already been searched by addHighlightsFrom.
+        private int firstChangedLineIndex = Integer.MAX_VALUE;
+        
+        private final Runnable copyRunnable = new Runnable() {
+            public void run() {
+                copyScheduled = false;
+                copySegments();
+            }
+        };
+        
+        private Search(TerminalView view, Pattern pattern, FindStatusDisplay findStatusDisplay) {
+            this.view = view;
+            this.pattern = pattern;
+            this.findStatusDisplay = findStatusDisplay;
+            this.nextSegmentEnd = view.getModel().getLineCount();
+            this.totalLineCount = nextSegmentEnd;
+        }
+        
+        private void cancel() {
+            cancelled = true;
+        }
+        
+        /**
+         * Copies the next segment (if there's room for it) and hands it to the searching threads.
+         * We copy one segment per event, so the event dispatch thread stays responsive.
+         */
+        private void copySegments() {
+            if (cancelled) {
+                return;
+            }
+            if (segmentsInFlight < MAX_SEGMENTS_IN_FLIGHT && nextSegmentEnd > 0) {
+                final int start = Math.max(0, nextSegmentEnd - LINES_PER_SEGMENT);
+                final TerminalModel model = view.getModel();
+                final String[] lines = new String[nextSegmentEnd - start];
+                for (int i = 0; i < lines.length; ++i) {
+                    lines[i] = model.getDisplayTextLine(start + i).getString();
+                }
+                nextSegmentEnd = start;
+                ++segmentsInFlight;
+                executorService.execute(new Segment(this, start, evictedLineCount, lines));
+                if (segmentsInFlight < MAX_SEGMENTS_IN_FLIGHT && nextSegmentEnd > 0 && copyScheduled == false) {
+                    copyScheduled = true;
+                    EventQueue.invokeLater(copyRunnable);
+                }
+            }
+            reportStatus();
+        }
+        
+        private void segmentSearched(Segment segment) {
+            --segmentsInFlight;
+            if (cancelled) {
+                return;
+            }
+            segment.matches.addTo(view, evictedLineCount - segment.evictedLineCount, firstChangedLineIndex);
+            doneLineCount += segment.lines.length;
+            copySegments();
+        }
+        
+        private void linesChangedFrom(int lineIndex) {
+            firstChangedLineIndex = Math.min(firstChangedLineIndex, lineIndex);
+            if (nextSegmentEnd > lineIndex) {
+                doneLineCount += nextSegmentEnd - lineIndex;
+                nextSegmentEnd = lineIndex;
+                reportStatus();
+            }
+        }
+        
+        private void linesEvicted(int lineCount) {
+            evictedLineCount += lineCount;
+            if (firstChangedLineIndex != Integer.MAX_VALUE) {
+                firstChangedLineIndex -= lineCount;
+            }
+            final int skippedLineCount = Math.min(lineCount, nextSegmentEnd);
+            doneLineCount += skippedLineCount;
+            nextSegmentEnd -= skippedLineCount;
+        }
+        
+        private void reportStatus() {
+            String status = StringUtilities.pluralize(view.getFindMatchCount(), "match", "matches");
+            if (segmentsInFlight > 0 || nextSegmentEnd > 0) {
+                final int percent = (int) (100L * Math.min(doneLineCount, totalLineCount) / Math.max(totalLineCount, 1));
+                status += " (searching, " + percent + "%)";
+            }
+            findStatusDisplay.setStatus(status, false);
+        }
+    }
+    
+    /**
+     * A copy of some of the lines to be searched, and (once the search has been done on a background thread) their matches.
+     */
+    private static class Segment implements Runnable {
+        private final Search search;
+        private final int firstLineIndex;
+        private final int evictedLineCount;
+        private final String[] lines;
+        private final LineMatches matches = new LineMatches();
+        
+        private Segment(Search search, int firstLineIndex, int evictedLineCount, String[] lines) {
+            this.search = search;
+            this.firstLineIndex = firstLineIndex;
+            this.evictedLineCount = evictedLineCount;
+            this.lines = lines;
+        }
+        
+        public void run() {
+            Matcher matcher = search.pattern.matcher("");
+            for (int i = 0; i < lines.length; ++i) {
+                if (i % LINES_PER_CANCELLATION_CHECK == 0 && search.cancelled) {
+                    return;
                 }
+                matches.addLine(firstLineIndex + i, matcher.reset(lines[i]));
             }
-            return count;
-        } finally {
-            view.getBirdView().setValueIsAdjusting(false);
+            EventQueue.invokeLater(new Runnable() {
+                public void run() {
+                    search.segmentSearched(Segment.this);
+                }
+            });
         }
     }
 }
@@ -0,0 +1,343 @@
+package terminator.view.highlight;
+
+import e.util.*;
+import java.util.*;
+import org.jessies.test.*;
+
+/**
+ * The find matches in a terminal, by line.
+ *
+ * Most lines of a large scrollback don't match, so rather than an entry for every line, we keep blocks of LINES_PER_BLOCK lines, each holding only its matching lines and their ranges, in parallel int arrays.
+ * Blocks are numbered by line serial number (a line's index plus the number of lines evicted before it), so evicting lines from the top only has to throw away whole blocks.
+ *
+ * Event dispatch thread only.
+ */
+public class FindMatchIndex {
+    private static final int LINES_PER_BLOCK = 4096;
+    
+    private static class Block {
+        // The matching lines, as offsets from the block's first line, in increasing order.
+        private int lineCount = 0;
+        private int[] lines = new int[4];
+        // Line i's ranges are the start/end pairs from bounds[2 * rangeStarts[i]] up to bounds[2 * rangeStarts[i + 1]].
+        private int[] rangeStarts = new int[5];
+        private int[] bounds = new int[8];
+        
+        private int getRangeCount() {
+            return rangeStarts[lineCount];
+        }
+        
+        /** Returns the position of the given line, or (-(insertion point) - 1) if it doesn't match. */
+        private int find(int line) {
+            return Arrays.binarySearch(lines, 0, lineCount, line);
+        }
+        
+        private void insert(int position, int line, int[] newBounds, int offset, int rangeCount) {
+            if (lineCount == lines.length) {
+                lines = Arrays.copyOf(lines, 2 * lineCount);
+                rangeStarts = Arrays.copyOf(rangeStarts, 2 * lineCount + 1);
+            }
+            final int oldRangeCount = getRangeCount();
+            final int firstRange = rangeStarts[position];
+            if (2 * (oldRangeCount + rangeCount) > bounds.length) {
+                bounds = Arrays.copyOf(bounds, Math.max(2 * bounds.length, 2 * (oldRangeCount + rangeCount)));
+            }
+            System.arraycopy(bounds, 2 * firstRange, bounds, 2 * (firstRange + rangeCount), 2 * (oldRangeCount - firstRange));
+            System.arraycopy(newBounds, 2 * offset, bounds, 2 * firstRange, 2 * rangeCount);
+            System.arraycopy(lines, position, lines, position + 1, lineCount - position);
+            System.arraycopy(rangeStarts, position + 1, rangeStarts, position + 2, lineCount - position);
+            lines[position] = line;
+            ++lineCount;
+            for (int i = position + 1; i <= lineCount; ++i) {
+                rangeStarts[i] += rangeCount;
+            }
+            rangeStarts[position + 1] = firstRange + rangeCount;
+        }
+        
+        private void remove(int position) {
+            final int firstRange = rangeStarts[position];
+            final int rangeCount = rangeStarts[position + 1] - firstRange;
+            System.arraycopy(bounds, 2 * (firstRange + rangeCount), bounds, 2 * firstRange, 2 * (getRangeCount() - firstRange - rangeCount));
+            System.arraycopy(lines, position + 1, lines, position, lineCount - position - 1);
+            System.arraycopy(rangeStarts, position + 2, rangeStarts, position + 1, lineCount - position - 1);
+            --lineCount;
+            for (int i = position + 1; i <= lineCount; ++i) {
+                rangeStarts[i] -= rangeCount;
+            }
+        }
+        
+        /** Removes the lines from the given position onwards. */
+        private void truncate(int position) {
+            lineCount = position;
+        }
+        
+        /** Removes the lines before the given position. */
+        private void removeBefore(int position) {
+            final int firstRange = rangeStarts[position];
+            System.arraycopy(bounds, 2 * firstRange, bounds, 0, 2 * (getRangeCount() - firstRange));
+            System.arraycopy(lines, position, lines, 0, lineCount - position);
+            lineCount -= position;
+            for (int i = 0; i <= lineCount; ++i) {
+                rangeStarts[i] = rangeStarts[i + position] - firstRange;
+            }
+        }
+    }
+    
+    // blocks.get(i) covers the lines whose serial numbers start at (firstBlock + i) * LINES_PER_BLOCK, or is null if none of them match.
+    private final ArrayList<Block> blocks = new ArrayList<>();
+    private long firstBlock = 0;
+    private long evictedLineCount = 0;
+    private int matchCount = 0;
+    
+    /** Returns the total number of matches on all lines. */
+    public int getMatchCount() {
+        return matchCount;
+    }
+    
+    /** Returns the given line's matches, or null if it has none. */
+    public Range[] getMatches(int lineIndex) {
+        final Block block = getBlock(lineIndex);
+        final int position = (block == null) ? -1 : block.find(offsetInBlock(lineIndex));
+        if (position < 0) {
+            return null;
+        }
+        final int firstRange = block.rangeStarts[position];
+        final Range[] result = new Range[block.rangeStarts[position + 1] - firstRange];
+        for (int i = 0; i < result.length; ++i) {
+            result[i] = new Range(block.bounds[2 * (firstRange + i)], block.bounds[2 * (firstRange + i) + 1]);
+        }
+        return result;
+    }
+    
+    /**
+     * Replaces the given line's matches with the 'rangeCount' start/end pairs in 'bounds' starting at bounds[2 * offset].
+     * A 'rangeCount' of 0 removes the line's matches.
+     */
+    public void setMatches(int lineIndex, int[] bounds, int offset, int rangeCount) {
+        final long serial = evictedLineCount + lineIndex;
+        if (lineIndex < 0) {
+            throw new IndexOutOfBoundsException("line " + lineIndex + " < 0");
+        }
+        final int blockIndex = (int) (serial / LINES_PER_BLOCK - firstBlock);
+        while (blocks.size() <= blockIndex) {
+            blocks.add(null);
+        }
+        Block block = blocks.get(blockIndex);
+        if (block == null) {
+            if (rangeCount == 0) {
+                return;
+            }
+            block = new Block();
+            blocks.set(blockIndex, block);
+        }
+        final int line = offsetInBlock(lineIndex);
+        int position = block.find(line);
+        if (position >= 0) {
+            final int oldRangeCount = block.rangeStarts[position + 1] - block.rangeStarts[position];
+            block.remove(position);
+            matchCount -= oldRangeCount;
+        } else {
+            position = -position - 1;
+        }
+        if (rangeCount > 0) {
+            block.insert(position, line, bounds, offset, rangeCount);
+            matchCount += rangeCount;
+        }
+    }
+    
+    /** Removes the matches on all lines from the given line onwards. */
+    public void removeFrom(int lineIndex) {
+        if (lineIndex <= 0) {
+            clear();
+            return;
+        }
+        final int blockIndex = (int) ((evictedLineCount + lineIndex) / LINES_PER_BLOCK - firstBlock);
+        for (int i = blocks.size() - 1; i > blockIndex; --i) {
+            final Block block = blocks.remove(i);
+            if (block != null) {
+                matchCount -= block.getRangeCount();
+            }
+        }
+        final Block block = getBlock(lineIndex);
+        if (block != null) {
+            int position = block.find(offsetInBlock(lineIndex));
+            if (position < 0) {
+                position = -position - 1;
+            }
+            matchCount -= block.getRangeCount() - block.rangeStarts[position];
+            block.truncate(position);
+        }
+    }
+    
+    public void clear() {
+        blocks.clear();
+        firstBlock = evictedLineCount / LINES_PER_BLOCK;
+        matchCount = 0;
+    }
+    
+    /** Forgets the first 'lineCount' lines, and renumbers the rest to match. */
+    public void linesEvicted(int lineCount) {
+        evictedLineCount += lineCount;
+        final long newFirstBlock = evictedLineCount / LINES_PER_BLOCK;
+        while (firstBlock < newFirstBlock) {
+            if (blocks.isEmpty() == false) {
+                final Block block = blocks.remove(0);
+                if (block != null) {
+                    matchCount -= block.getRangeCount();
+                }
+            }
+            ++firstBlock;
+        }
+        final Block block = blocks.isEmpty() ? null : blocks.get(0);
+        if (block != null) {
+            int position = block.find((int) (evictedLineCount % LINES_PER_BLOCK));
+            if (position < 0) {
+                position = -position - 1;
+            }
+            matchCount -= block.rangeStarts[position];
+            block.removeBefore(position);
+        }
+    }
+    
+    /** Returns the first line at or after 'lineIndex' with matches, or -1 if there isn't one. */
+    public int nextMatchingLine(int lineIndex) {
+        lineIndex = Math.max(lineIndex, 0);
+        for (int blockIndex = blockIndexOf(lineIndex); blockIndex < blocks.size(); ++blockIndex) {
+            final Block block = blocks.get(blockIndex);
+            if (block == null) {
+                continue;
+            }
+            int position = block.find(offsetInBlock(lineIndex));
+            if (position < 0) {
+                position = -position - 1;
+            }
+            if (position < block.lineCount) {
+                return lineIndexOf(blockIndex, block.lines[position]);
+            }
+            lineIndex = lineIndexOf(blockIndex + 1, 0);
+        }
+        return -1;
+    }
+    
+    /** Returns the last line at or before 'lineIndex' with matches, or -1 if there isn't one. */
+    public int previousMatchingLine(int lineIndex) {
+        if (lineIndex < 0) {
+            return -1;
+        }
+        int blockIndex = blockIndexOf(lineIndex);
+        int line = offsetInBlock(lineIndex);
+        if (blockIndex >= blocks.size()) {
+            blockIndex = blocks.size() - 1;
+            line = LINES_PER_BLOCK - 1;
+        }
+        for (; blockIndex >= 0; --blockIndex, line = LINES_PER_BLOCK - 1) {
+            final Block block = blocks.get(blockIndex);
+            if (block == null) {
+                continue;
+            }
+            int position = block.find(line);
+            if (position < 0) {
+                // The line before the insertion point.
+                position = -position - 2;
+            }
+            if (position >= 0) {
+                return lineIndexOf(blockIndex, block.lines[position]);
+            }
+        }
+        return -1;
+    }
+    
+    private int blockIndexOf(int lineIndex) {
+        return (int) ((evictedLineCount + lineIndex) / LINES_PER_BLOCK - firstBlock);
+    }
+    
+    private int offsetInBlock(int lineIndex) {
+        return (int) ((evictedLineCount + lineIndex) % LINES_PER_BLOCK);
+    }
+    
+    private int lineIndexOf(int blockIndex, int offsetInBlock) {
+        return (int) ((firstBlock + blockIndex) * LINES_PER_BLOCK + offsetInBlock - evictedLineCount);
+    }
+    
+    private Block getBlock(int lineIndex) {
+        if (lineIndex < 0) {
+            return null;
+        }
+        final int blockIndex = blockIndexOf(lineIndex);
+        return (blockIndex < blocks.size()) ? blocks.get(blockIndex) : null;
+    }
+    
+    private static void setTestMatches(FindMatchIndex index, int lineIndex, int... bounds) {
+        index.setMatches(lineIndex, bounds, 0, bounds.length / 2);
+    }
+    
+    private static String matchesToString(FindMatchIndex index, int lineIndex) {
+        Range[] matches = index.getMatches(lineIndex);
+        if (matches == null) {
+            return "null";
+        }
+        StringBuilder result = new StringBuilder();
+        for (Range match : matches) {
+            result.append("[" + match.getStart() + ", " + match.getEnd() + "]");
+        }
+        return result.toString();
+    }
+    
+    @Test private static void testSetAndGet() {
+        FindMatchIndex index = new FindMatchIndex();
+        setTestMatches(index, 10, 1, 2, 5, 7);
+        setTestMatches(index, 3, 0, 4);
+        setTestMatches(index, 5000, 8, 9);
+        Assert.equals(index.getMatchCount(), 4);
+        Assert.equals(matchesToString(index, 3), "[0, 4]");
+        Assert.equals(matchesToString(index, 10), "[1, 2][5, 7]");
+        Assert.equals(matchesToString(index, 4), "null");
+        Assert.equals(matchesToString(index, 5000), "[8, 9]");
+        
+        // Replacing and removing a line's matches.
+        setTestMatches(index, 3, 2, 3, 6, 8);
+        Assert.equals(matchesToString(index, 3), "[2, 3][6, 8]");
+        Assert.equals(matchesToString(index, 10), "[1, 2][5, 7]");
+        setTestMatches(index, 10);
+        Assert.equals(matchesToString(index, 10), "null");
+        Assert.equals(index.getMatchCount(), 3);
+    }
+    
+    @Test private static void testNextAndPrevious() {
+        FindMatchIndex index = new FindMatchIndex();
+        setTestMatches(index, 3, 0, 1);
+        setTestMatches(index, 10, 0, 1);
+        setTestMatches(index, 9000, 0, 1);
+        Assert.equals(index.nextMatchingLine(0), 3);
+        Assert.equals(index.nextMatchingLine(4), 10);
+        Assert.equals(index.nextMatchingLine(11), 9000);
+        Assert.equals(index.nextMatchingLine(9001), -1);
+        Assert.equals(index.previousMatchingLine(20000), 9000);
+        Assert.equals(index.previousMatchingLine(8999), 10);
+        Assert.equals(index.previousMatchingLine(10), 10);
+        Assert.equals(index.previousMatchingLine(2), -1);
+    }
+    
+    @Test private static void testRemoveAndEvict() {
+        FindMatchIndex index = new FindMatchIndex();
+        for (int i = 0; i < 10000; i += 100) {
+            setTestMatches(index, i, 0, 1);
+        }
+        index.removeFrom(5050);
+        Assert.equals(index.getMatchCount(), 51);
+        Assert.equals(index.nextMatchingLine(5001), -1);
+        
+        index.linesEvicted(4150);
+        Assert.equals(index.getMatchCount(), 9);
+        Assert.equals(index.nextMatchingLine(0), 50);
+        Assert.equals(index.previousMatchingLine(10000), 850);
+        setTestMatches(index, 1, 4, 5);
+        Assert.equals(matchesToString(index, 1), "[4, 5]");
+        
+        index.clear();
+        Assert.equals(index.getMatchCount(), 0);
+        Assert.equals(index.nextMatchingLine(0), -1);
+        setTestMatches(index, 7, 1, 2);
+        Assert.equals(index.nextMatchingLine(0), 7);
+    }
+}
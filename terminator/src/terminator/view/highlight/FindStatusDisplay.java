@@ -3,6 +3,7 @@ package terminator.view.highlight;
 public interface FindStatusDisplay {
     /**
      * Invoked when the find status changes.
+     * While a find is still searching the scrollback, this is called again as it makes progress.
      */
     public void setStatus(String text, boolean isError);
 }
@@ -48,6 +48,23 @@ public class SelectionHighlighter implements ClipboardOwner, MouseListener, Mous
         return highlightEnd;
     }
 
+    /** Moves the selection up to match the model having discarded its first 'lineCount' lines. */
+    public void linesEvicted(int lineCount) {
+        if (hasSelection() == false) {
+            return;
+        }
+        if (highlightEnd.getLineIndex() < lineCount) {
+            clearSelection();
+            return;
+        }
+        if (highlightStart.getLineIndex() < lineCount) {
+            highlightStart = new Location(0, 0);
+        } else {
+            highlightStart = new Location(highlightStart.getLineIndex() - lineCount, highlightStart.getCharOffset());
+        }
+        highlightEnd = new Location(highlightEnd.getLineIndex() - lineCount, highlightEnd.getCharOffset());
+    }
+    
     public void textChanged(Location start, Location end) {
         if (hasSelection()) {
             if (highlightEnd.compareTo(start) > 0 && highlightStart.compareTo(end) < 0) {
@@ -5,6 +5,11 @@ import e.util.Range;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import terminator.Terminator;
 import terminator.TerminatorPreferences;
 import terminator.model.TerminalModel;
@@ -13,31 +18,84 @@ import terminator.view.TerminalView;
 /**
  * This works in conjunction with the TerminalView mouse listener that tracks
  * and repaints highlights under the mouse.
+ *
+ * We used to find the URLs on every line from the first changed line to the end every time the model changed, which meant running the patterns over all of a compiler's output as it scrolled past.
+ * The only URL we ever show is the one under the mouse, though, so now we look for URLs on a line only when the mouse is over it.
+ * The results are cached, because the mouse tends to stay on the same few lines.
+ * Lines that have been frozen into the scrollback never change, so their entries stay valid until they're evicted; only lines at or after a change are forgotten.
  */
 public class UrlHighlighter {
-    public void addHighlightsFrom(final TerminalView view, final int firstLineIndex) {
-        // FIXME: this code is duplicated in FindHighlighter.addHighlightsInternal.
-        addMatches(PatternUtilities.HYPERLINK_PATTERN, view, firstLineIndex);
-        // If the user has configured a script to handle error links, then include the errors regexp as 'URL's.
-        if (Terminator.getPreferences().getString(TerminatorPreferences.ERROR_LINK_CMD) != "") {
-            addMatches(PatternUtilities.ERROR_PATTERN, view, firstLineIndex);
+    private static final int MAX_CACHED_LINE_COUNT = 256;
+    private static final Range[] NO_MATCHES = new Range[0];
+
+    private final LinkedHashMap<Integer, Range[]> cachedMatches = new LinkedHashMap<Integer, Range[]>(16, 0.75f, true) {
+        @Override protected boolean removeEldestEntry(Map.Entry<Integer, Range[]> eldest) {
+            return size() > MAX_CACHED_LINE_COUNT;
         }
+    };
+
+    /**
+     * Returns the URLs (and error links, if the user has configured a command for those) on the given line, in order.
+     * The result may be empty, but isn't null.
+     */
+    public Range[] getMatches(TerminalView view, int lineIndex) {
+        Range[] matches = cachedMatches.get(lineIndex);
+        if (matches == null) {
+            matches = findMatches(view.getModel(), lineIndex);
+            cachedMatches.put(lineIndex, matches);
+        }
+        return matches;
     }
-    
-    private void addMatches(Pattern pattern, final TerminalView view, final int firstLineIndex) {
-        final TerminalModel model = view.getModel();
-        ArrayList<Range> matches = new ArrayList<>();
-        for (int i = model.getLineCount() - 1; i >= firstLineIndex; i--) {
-            String text = model.getTextLine(i).getString();
-            Matcher matcher = pattern.matcher(text);
-            matches.clear();
-            while (matcher.find()) {
-                matches.add(new Range(matcher.start(), matcher.end()));
+
+    /** Forgets what we know about the lines from the index given onwards, which have changed. */
+    public void linesChangedFrom(int firstLineIndex) {
+        if (firstLineIndex == 0) {
+            cachedMatches.clear();
+            return;
+        }
+        for (Iterator<Integer> it = cachedMatches.keySet().iterator(); it.hasNext(); ) {
+            if (it.next() >= firstLineIndex) {
+                it.remove();
             }
-            if (!matches.isEmpty()) {
-                // FIXME: the toArray is a mistake. We should use List<Range> instead.
-                view.setUrlMatches(i, matches.toArray(new Range[matches.size()]));
+        }
+    }
+
+    /** Renumbers what we know to match the model having discarded its oldest 'lineCount' lines. */
+    public void linesEvicted(int lineCount) {
+        ArrayList<Map.Entry<Integer, Range[]>> entries = new ArrayList<>(cachedMatches.entrySet());
+        cachedMatches.clear();
+        // Re-adding in the original order preserves the least-recently-used order.
+        for (Map.Entry<Integer, Range[]> entry : entries) {
+            final int lineIndex = entry.getKey() - lineCount;
+            if (lineIndex >= 0) {
+                cachedMatches.put(lineIndex, entry.getValue());
             }
         }
     }
+
+    private Range[] findMatches(TerminalModel model, int lineIndex) {
+        if (lineIndex < 0 || lineIndex >= model.getLineCount()) {
+            return NO_MATCHES;
+        }
+        String text = model.getTextLine(lineIndex).getString();
+        ArrayList<Range> matches = new ArrayList<>();
+        addMatches(PatternUtilities.HYPERLINK_PATTERN, text, matches);
+        // If the user has configured a script to handle error links, then include the errors regexp as 'URL's.
+        if (Terminator.getPreferences().getString(TerminatorPreferences.ERROR_LINK_CMD) != "") {
+            addMatches(PatternUtilities.ERROR_PATTERN, text, matches);
+            Collections.sort(matches, new Comparator<Range>() {
+                public int compare(Range lhs, Range rhs) {
+                    return Integer.compare(lhs.getStart(), rhs.getStart());
+                }
+            });
+        }
+        return matches.isEmpty() ? NO_MATCHES : matches.toArray(new Range[matches.size()]);
+    }
+
+    private void addMatches(Pattern pattern, String text, ArrayList<Range> matches) {
+        Matcher matcher = pattern.matcher(text);
+        while (matcher.find()) {
+            matches.add(new Range(matcher.start(), matcher.end()));
+        }
+    }
 }